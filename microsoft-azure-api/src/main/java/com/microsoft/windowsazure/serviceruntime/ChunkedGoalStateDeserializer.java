@@ -15,9 +15,11 @@
 package com.microsoft.windowsazure.serviceruntime;
 
 import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 
 class ChunkedGoalStateDeserializer implements GoalStateDeserializer {
@@ -47,13 +49,13 @@ class ChunkedGoalStateDeserializer implements GoalStateDeserializer {
                 return null;
             }
 
-            int length = Integer.parseInt(lengthString.toString(), 16);
-            char chunkData[] = new char[length];
+            int length = Integer.parseInt(lengthString, 16);
+            ChunkReader chunk = new ChunkReader(reader, length);
 
-            reader.read(chunkData, 0, length);
-
-            GoalState goalState = deserializer.deserialize(new String(chunkData));
+            // Parse straight from the channel; the chunk reader stops the parser at the end of the chunk.
+            GoalState goalState = deserializer.deserialize(chunk);
 
+            chunk.skipRemaining();
             reader.readLine();
 
             return goalState;
@@ -64,4 +66,50 @@ class ChunkedGoalStateDeserializer implements GoalStateDeserializer {
             return null;
         }
     }
+
+    /**
+     * Reads at most a fixed number of characters from the underlying reader, which closing it leaves open.
+     */
+    private static final class ChunkReader extends Reader {
+        private final Reader in;
+        private int remaining;
+
+        ChunkReader(Reader in, int length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+
+            int read = in.read(buffer, offset, Math.min(length, remaining));
+
+            if (read < 0) {
+                throw new EOFException("The goal state channel ended within a chunk.");
+            }
+
+            remaining -= read;
+
+            return read;
+        }
+
+        void skipRemaining() throws IOException {
+            while (remaining > 0) {
+                long skipped = in.skip(remaining);
+
+                if (skipped <= 0) {
+                    throw new EOFException("The goal state channel ended within a chunk.");
+                }
+
+                remaining -= skipped;
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
 }
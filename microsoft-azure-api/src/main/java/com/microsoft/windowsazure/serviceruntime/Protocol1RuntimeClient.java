@@ -53,4 +53,9 @@ class Protocol1RuntimeClient implements RuntimeClient {
     public void setCurrentState(CurrentState state) {
         currentStateClient.setCurrentState(state);
     }
+
+    @Override
+    public void publishCurrentState(CurrentState state) {
+        currentStateClient.publishCurrentState(state);
+    }
 }
@@ -14,22 +14,51 @@
  */
 package com.microsoft.windowsazure.serviceruntime;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
- * 
+ * Writes the current state of the role instance to the runtime.
+ * <p>
+ * {@link #setCurrentState(CurrentState)} writes on the caller's thread. {@link #publishCurrentState(CurrentState)}
+ * hands the state to a background writer and returns: states published faster than they can be written are coalesced
+ * to the latest, a state that serializes to the same document as the last one written is not written again, and the
+ * last state is rewritten every heartbeat interval. The writer serializes into buffers it reuses between writes.
  */
 class Protocol1RuntimeCurrentStateClient implements RuntimeCurrentStateClient {
+    public static final long DEFAULT_HEARTBEAT_INTERVAL_MILLIS = 60000;
+
     private final CurrentStateSerializer serializer;
     private final OutputChannel outputChannel;
     private final AtomicReference<String> endpoint;
+    private final long heartbeatIntervalMillis;
+
+    // Guards every write to the channel, and the buffers.
+    private final Object writeLock = new Object();
+    private StateBuffer lastWritten = new StateBuffer();
+    private StateBuffer spare = new StateBuffer();
+    private boolean lastWrittenValid;
+
+    // Guarded by this.
+    private CurrentState pendingState;
+    private CurrentState lastState;
+    private long generation;
+    private long lastWriteTime;
+    private boolean writing;
+    private Thread publisherThread;
 
     public Protocol1RuntimeCurrentStateClient(CurrentStateSerializer serializer, OutputChannel outputChannel) {
+        this(serializer, outputChannel, DEFAULT_HEARTBEAT_INTERVAL_MILLIS);
+    }
+
+    public Protocol1RuntimeCurrentStateClient(CurrentStateSerializer serializer, OutputChannel outputChannel,
+            long heartbeatIntervalMillis) {
         this.serializer = serializer;
         this.outputChannel = outputChannel;
         this.endpoint = new AtomicReference<String>();
+        this.heartbeatIntervalMillis = heartbeatIntervalMillis;
     }
 
     public void setEndpoint(String endpoint) {
@@ -38,15 +67,165 @@ class Protocol1RuntimeCurrentStateClient implements RuntimeCurrentStateClient {
 
     @Override
     public void setCurrentState(CurrentState state) {
-        OutputStream outputStream = outputChannel.getOutputStream(endpoint.get());
+        synchronized (this) {
+            // Supersedes anything published but not yet written.
+            pendingState = null;
+            lastState = state;
+            generation++;
+        }
+
+        synchronized (writeLock) {
+            lastWrittenValid = false;
+
+            OutputStream outputStream = outputChannel.getOutputStream(endpoint.get());
+
+            serializer.serialize(state, outputStream);
+
+            try {
+                outputStream.close();
+            }
+            catch (IOException e) {
+                throw new RoleEnvironmentNotAvailableException(e);
+            }
+            finally {
+                synchronized (this) {
+                    lastWriteTime = System.currentTimeMillis();
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized void publishCurrentState(CurrentState state) {
+        pendingState = state;
+        lastState = state;
+        generation++;
+
+        if (publisherThread == null) {
+            publisherThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runPublisher();
+                }
+            }, "CurrentStatePublisher");
+            publisherThread.setDaemon(true);
+            publisherThread.start();
+        }
+
+        notifyAll();
+    }
+
+    /**
+     * Waits until every published state has been written.
+     */
+    synchronized void flush() throws InterruptedException {
+        while (pendingState != null || writing) {
+            wait();
+        }
+    }
+
+    private void runPublisher() {
+        while (true) {
+            CurrentState state;
+            boolean heartbeat;
+            long stateGeneration;
+
+            synchronized (this) {
+                try {
+                    while (pendingState == null) {
+                        long wait = lastState == null ? 0 : lastWriteTime + heartbeatIntervalMillis
+                                - System.currentTimeMillis();
+
+                        if (lastState != null && wait <= 0) {
+                            break;
+                        }
+
+                        wait(Math.max(wait, 0));
+                    }
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+
+                heartbeat = pendingState == null;
+                state = heartbeat ? lastState : pendingState;
+                stateGeneration = generation;
+                pendingState = null;
+                writing = true;
+            }
+
+            try {
+                writePublishedState(state, heartbeat, stateGeneration);
+            }
+            catch (Throwable t) {
+                t.printStackTrace();
+
+                synchronized (this) {
+                    // Wait a full heartbeat interval before retrying, rather than spinning on a failing write.
+                    lastWriteTime = System.currentTimeMillis();
+                }
+            }
+            finally {
+                synchronized (this) {
+                    writing = false;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    private void writePublishedState(CurrentState state, boolean heartbeat, long stateGeneration) throws IOException {
+        synchronized (writeLock) {
+            synchronized (this) {
+                if (stateGeneration != generation) {
+                    // A newer state arrived while waiting for the lock; it is written instead.
+                    return;
+                }
+            }
+
+            spare.reset();
+            serializer.serialize(state, spare);
+
+            if (!heartbeat && lastWrittenValid && spare.contentEquals(lastWritten)) {
+                return;
+            }
+
+            synchronized (this) {
+                lastWriteTime = System.currentTimeMillis();
+            }
 
-        serializer.serialize(state, outputStream);
+            OutputStream outputStream = outputChannel.getOutputStream(endpoint.get());
 
-        try {
-            outputStream.close();
+            try {
+                spare.writeTo(outputStream);
+            }
+            finally {
+                outputStream.close();
+            }
+
+            StateBuffer written = spare;
+            spare = lastWritten;
+            lastWritten = written;
+            lastWrittenValid = true;
         }
-        catch (IOException e) {
-            throw new RoleEnvironmentNotAvailableException(e);
+    }
+
+    /**
+     * A serialization buffer that can be compared without copying its content.
+     */
+    private static final class StateBuffer extends ByteArrayOutputStream {
+        boolean contentEquals(StateBuffer other) {
+            if (count != other.count) {
+                return false;
+            }
+
+            for (int i = 0; i < count; i++) {
+                if (buf[i] != other.buf[i]) {
+                    return false;
+                }
+            }
+
+            return true;
         }
     }
 }
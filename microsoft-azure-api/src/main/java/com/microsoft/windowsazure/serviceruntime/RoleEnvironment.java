@@ -16,15 +16,12 @@ package com.microsoft.windowsazure.serviceruntime;
 
 import java.util.Calendar;
 import java.util.Date;
-import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicReference;
 
-import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
 
 /**
@@ -37,17 +34,17 @@ public final class RoleEnvironment {
     private static final String clientId;
 
     private static RuntimeClient runtimeClient;
-    private static AtomicReference<GoalState> currentGoalState;
-    private static AtomicReference<RoleEnvironmentData> currentEnvironmentData;
+    private static final AtomicReference<Snapshot> currentSnapshot = new AtomicReference<Snapshot>();
     private static List<RoleEnvironmentChangingListener> changingListeners;
     private static List<RoleEnvironmentChangedListener> changedListeners;
     private static List<RoleEnvironmentStoppingListener> stoppingListeners;
+    private static RoleEnvironmentListenerDispatcher listenerDispatcher;
     private static AtomicReference<CurrentState> lastState;
     private static final Calendar maxDateTime;
 
     static {
         try {
-            JAXBContext.newInstance(RoleEnvironment.class.getPackage().getName());
+            RuntimeJaxbContext.get();
         }
         catch (JAXBException e) {
             e.printStackTrace();
@@ -59,6 +56,35 @@ public final class RoleEnvironment {
     private RoleEnvironment() {
     };
 
+    /**
+     * The goal state and role environment data of the latest accepted incarnation. A new snapshot is swapped in
+     * whole by the goal state listener thread, so the getters read it without locking and without going to the
+     * runtime.
+     */
+    private static final class Snapshot {
+        private final GoalState goalState;
+        private final RoleEnvironmentData environmentData;
+
+        Snapshot(GoalState goalState, RoleEnvironmentData environmentData) {
+            this.goalState = goalState;
+            this.environmentData = environmentData;
+        }
+    }
+
+    /**
+     * Returns the current snapshot, connecting to the runtime on first use.
+     */
+    private static Snapshot getSnapshot() {
+        Snapshot snapshot = currentSnapshot.get();
+
+        if (snapshot == null) {
+            initialize();
+            snapshot = currentSnapshot.get();
+        }
+
+        return snapshot;
+    }
+
     private static synchronized void initialize() {
         if (runtimeClient == null) {
             String endpoint = System.getenv(VersionEndpointEnvironmentName);
@@ -76,27 +102,29 @@ public final class RoleEnvironment {
                 throw new RoleEnvironmentNotAvailableException(t);
             }
 
-            changingListeners = new LinkedList<RoleEnvironmentChangingListener>();
-            changedListeners = new LinkedList<RoleEnvironmentChangedListener>();
-            stoppingListeners = new LinkedList<RoleEnvironmentStoppingListener>();
+            changingListeners = new CopyOnWriteArrayList<RoleEnvironmentChangingListener>();
+            changedListeners = new CopyOnWriteArrayList<RoleEnvironmentChangedListener>();
+            stoppingListeners = new CopyOnWriteArrayList<RoleEnvironmentStoppingListener>();
+            listenerDispatcher = new RoleEnvironmentListenerDispatcher(
+                    RoleEnvironmentListenerDispatcher.DEFAULT_LISTENER_TIMEOUT_MILLIS);
+
+            lastState = new AtomicReference<CurrentState>();
 
             try {
-                currentGoalState = new AtomicReference<GoalState>(runtimeClient.getCurrentGoalState());
-                currentEnvironmentData = new AtomicReference<RoleEnvironmentData>(
-                        runtimeClient.getRoleEnvironmentData());
+                currentSnapshot.set(new Snapshot(runtimeClient.getCurrentGoalState(), runtimeClient
+                        .getRoleEnvironmentData()));
             }
             catch (InterruptedException e) {
                 throw new RoleEnvironmentNotAvailableException(e);
             }
 
-            lastState = new AtomicReference<CurrentState>();
-
             runtimeClient.addGoalStateChangedListener(new GoalStateChangedListener() {
                 @Override
                 public void goalStateChanged(GoalState newGoalState) {
                     switch (newGoalState.getExpectedState()) {
                         case STARTED:
-                            if (newGoalState.getIncarnation().compareTo(currentGoalState.get().getIncarnation()) > 0) {
+                            if (newGoalState.getIncarnation().compareTo(
+                                    currentSnapshot.get().goalState.getIncarnation()) > 0) {
                                 processGoalStateChange(newGoalState);
                             }
                             break;
@@ -112,38 +140,27 @@ public final class RoleEnvironment {
                 }
             });
         }
-        else {
-            try {
-                currentGoalState.set(runtimeClient.getCurrentGoalState());
-                currentEnvironmentData.set(runtimeClient.getRoleEnvironmentData());
-            }
-            catch (InterruptedException e) {
-                throw new RoleEnvironmentNotAvailableException(e);
-            }
-        }
     }
 
     private static void processGoalStateChange(GoalState newGoalState) {
-        List<RoleEnvironmentChange> changes = new LinkedList<RoleEnvironmentChange>();
-        RoleEnvironmentChangingEvent changingEvent = new RoleEnvironmentChangingEvent(changes);
         CurrentState last = lastState.get();
+        RoleEnvironmentData newData;
+
+        try {
+            newData = runtimeClient.getRoleEnvironmentData();
+        }
+        catch (InterruptedException e) {
+            throw new RoleEnvironmentNotAvailableException(e);
+        }
 
-        calculateChanges(changes);
+        List<RoleEnvironmentChange> changes = RoleEnvironmentDiff.calculateChanges(
+                currentSnapshot.get().environmentData, newData);
 
         if (changes.isEmpty()) {
-            acceptLatestIncarnation(newGoalState, last);
+            acceptLatestIncarnation(newGoalState, newData, last);
         }
         else {
-            for (RoleEnvironmentChangingListener listener : changingListeners) {
-                try {
-                    listener.roleEnvironmentChanging(changingEvent);
-                }
-                catch (Throwable t) {
-                    t.printStackTrace();
-                }
-            }
-
-            if (changingEvent.isCancelled()) {
+            if (listenerDispatcher.raiseChanging(changingListeners, new RoleEnvironmentChangingEvent(changes))) {
                 CurrentState recycleState = new AcquireCurrentState(clientId, newGoalState.getIncarnation(),
                         CurrentStatus.RECYCLE, maxDateTime);
 
@@ -152,27 +169,14 @@ public final class RoleEnvironment {
                 return;
             }
 
-            acceptLatestIncarnation(newGoalState, last);
+            acceptLatestIncarnation(newGoalState, newData, last);
 
-            try {
-                currentEnvironmentData.set(runtimeClient.getRoleEnvironmentData());
-            }
-            catch (InterruptedException e) {
-                throw new RoleEnvironmentNotAvailableException(e);
-            }
-
-            for (RoleEnvironmentChangedListener listener : changedListeners) {
-                try {
-                    listener.roleEnvironmentChanged(new RoleEnvironmentChangedEvent(changes));
-                }
-                catch (Throwable t) {
-                    t.printStackTrace();
-                }
-            }
+            listenerDispatcher.raiseChanged(changedListeners, changes);
         }
     }
 
-    private static void acceptLatestIncarnation(GoalState newGoalState, CurrentState last) {
+    private static void acceptLatestIncarnation(GoalState newGoalState, RoleEnvironmentData newData,
+            CurrentState last) {
         if (last != null && last instanceof AcquireCurrentState) {
             AcquireCurrentState acquireState = (AcquireCurrentState) last;
 
@@ -182,131 +186,7 @@ public final class RoleEnvironment {
             runtimeClient.setCurrentState(acceptState);
         }
 
-        currentGoalState.set(newGoalState);
-    }
-
-    private static void calculateChanges(List<RoleEnvironmentChange> changes) {
-        RoleEnvironmentData current = currentEnvironmentData.get();
-        RoleEnvironmentData newData;
-
-        try {
-            newData = runtimeClient.getRoleEnvironmentData();
-        }
-        catch (InterruptedException e) {
-            throw new RoleEnvironmentNotAvailableException(e);
-        }
-
-        Map<String, String> currentConfig = current.getConfigurationSettings();
-        Map<String, String> newConfig = newData.getConfigurationSettings();
-        Map<String, Role> currentRoles = current.getRoles();
-        Map<String, Role> newRoles = newData.getRoles();
-
-        for (String setting : currentConfig.keySet()) {
-            if (newConfig.containsKey(setting)) {
-                if (!newConfig.get(setting).equals(currentConfig.get(setting))) {
-                    changes.add(new RoleEnvironmentConfigurationSettingChange(setting));
-                }
-            }
-            else {
-                changes.add(new RoleEnvironmentConfigurationSettingChange(setting));
-            }
-        }
-
-        for (String setting : newConfig.keySet()) {
-            if (!currentConfig.containsKey(setting)) {
-                changes.add(new RoleEnvironmentConfigurationSettingChange(setting));
-            }
-        }
-
-        Set<String> changedRoleSet = new HashSet<String>();
-
-        for (String role : currentRoles.keySet()) {
-            if (newRoles.containsKey(role)) {
-                Role currentRole = currentRoles.get(role);
-                Role newRole = newRoles.get(role);
-
-                for (String instance : currentRole.getInstances().keySet()) {
-                    if (newRole.getInstances().containsKey(instance)) {
-                        RoleInstance currentInstance = currentRole.getInstances().get(instance);
-                        RoleInstance newInstance = newRole.getInstances().get(instance);
-
-                        if (currentInstance.getUpdateDomain() == newInstance.getUpdateDomain()
-                                && currentInstance.getFaultDomain() == newInstance.getFaultDomain()) {
-                            for (String endpoint : currentInstance.getInstanceEndpoints().keySet()) {
-                                if (newInstance.getInstanceEndpoints().containsKey(endpoint)) {
-                                    RoleInstanceEndpoint currentEndpoint = currentInstance.getInstanceEndpoints().get(
-                                            endpoint);
-                                    RoleInstanceEndpoint newEndpoint = newInstance.getInstanceEndpoints().get(endpoint);
-
-                                    if (!currentEndpoint.getProtocol().equals(newEndpoint.getProtocol())
-                                            || !currentEndpoint.getIpEndPoint().equals(newEndpoint.getIpEndPoint())) {
-                                        changedRoleSet.add(role);
-                                    }
-                                }
-                                else {
-                                    changedRoleSet.add(role);
-                                }
-                            }
-                        }
-                        else {
-                            changedRoleSet.add(role);
-                        }
-                    }
-                    else {
-                        changedRoleSet.add(role);
-                    }
-                }
-            }
-            else {
-                changedRoleSet.add(role);
-            }
-        }
-
-        for (String role : newRoles.keySet()) {
-            if (currentRoles.containsKey(role)) {
-                Role currentRole = currentRoles.get(role);
-                Role newRole = newRoles.get(role);
-
-                for (String instance : newRole.getInstances().keySet()) {
-                    if (currentRole.getInstances().containsKey(instance)) {
-                        RoleInstance currentInstance = currentRole.getInstances().get(instance);
-                        RoleInstance newInstance = newRole.getInstances().get(instance);
-
-                        if (currentInstance.getUpdateDomain() == newInstance.getUpdateDomain()
-                                && currentInstance.getFaultDomain() == newInstance.getFaultDomain()) {
-                            for (String endpoint : newInstance.getInstanceEndpoints().keySet()) {
-                                if (currentInstance.getInstanceEndpoints().containsKey(endpoint)) {
-                                    RoleInstanceEndpoint currentEndpoint = currentInstance.getInstanceEndpoints().get(
-                                            endpoint);
-                                    RoleInstanceEndpoint newEndpoint = newInstance.getInstanceEndpoints().get(endpoint);
-
-                                    if (!currentEndpoint.getProtocol().equals(newEndpoint.getProtocol())
-                                            || !currentEndpoint.getIpEndPoint().equals(newEndpoint.getIpEndPoint())) {
-                                        changedRoleSet.add(role);
-                                    }
-                                }
-                                else {
-                                    changedRoleSet.add(role);
-                                }
-                            }
-                        }
-                        else {
-                            changedRoleSet.add(role);
-                        }
-                    }
-                    else {
-                        changedRoleSet.add(role);
-                    }
-                }
-            }
-            else {
-                changedRoleSet.add(role);
-            }
-        }
-
-        for (String role : changedRoleSet) {
-            changes.add(new RoleEnvironmentTopologyChange(role));
-        }
+        currentSnapshot.set(new Snapshot(newGoalState, newData));
     }
 
     private static synchronized void raiseStoppingEvent() {
@@ -328,9 +208,7 @@ public final class RoleEnvironment {
      *         instance in which this code is currently executing.
      */
     public static RoleInstance getCurrentRoleInstance() {
-        initialize();
-
-        return currentEnvironmentData.get().getCurrentInstance();
+        return getSnapshot().environmentData.getCurrentInstance();
     }
 
     /**
@@ -340,9 +218,7 @@ public final class RoleEnvironment {
      * @return A <code>String</code> object that represents the deployment ID.
      */
     public static String getDeploymentId() {
-        initialize();
-
-        return currentEnvironmentData.get().getDeploymentId();
+        return getSnapshot().environmentData.getDeploymentId();
     }
 
     /**
@@ -354,6 +230,10 @@ public final class RoleEnvironment {
      *         otherwise, <code>false</code>.
      */
     public static boolean isAvailable() {
+        if (currentSnapshot.get() != null) {
+            return true;
+        }
+
         try {
             initialize();
         }
@@ -370,9 +250,7 @@ public final class RoleEnvironment {
      *         fabric; otherwise, <code>false</code>.
      */
     public static boolean isEmulated() {
-        initialize();
-
-        return currentEnvironmentData.get().isEmulated();
+        return getSnapshot().environmentData.isEmulated();
     }
 
     /**
@@ -385,9 +263,7 @@ public final class RoleEnvironment {
      *         service.
      */
     public static Map<String, Role> getRoles() {
-        initialize();
-
-        return currentEnvironmentData.get().getRoles();
+        return getSnapshot().environmentData.getRoles();
     }
 
     /**
@@ -401,9 +277,7 @@ public final class RoleEnvironment {
      *         settings.
      */
     public static Map<String, String> getConfigurationSettings() {
-        initialize();
-
-        return currentEnvironmentData.get().getConfigurationSettings();
+        return getSnapshot().environmentData.getConfigurationSettings();
     }
 
     /**
@@ -414,9 +288,7 @@ public final class RoleEnvironment {
      *         resources.
      */
     public static Map<String, LocalResource> getLocalResources() {
-        initialize();
-
-        return currentEnvironmentData.get().getLocalResources();
+        return getSnapshot().environmentData.getLocalResources();
     }
 
     /**
@@ -430,9 +302,7 @@ public final class RoleEnvironment {
      * prepare the instance to be recycled.
      */
     public static void requestRecycle() {
-        initialize();
-
-        CurrentState recycleState = new AcquireCurrentState(clientId, currentGoalState.get().getIncarnation(),
+        CurrentState recycleState = new AcquireCurrentState(clientId, getSnapshot().goalState.getIncarnation(),
                 CurrentStatus.RECYCLE, maxDateTime);
 
         runtimeClient.setCurrentState(recycleState);
@@ -454,7 +324,7 @@ public final class RoleEnvironment {
      * 
      */
     public static void setStatus(RoleInstanceStatus status, Date expiration_utc) {
-        initialize();
+        Snapshot snapshot = getSnapshot();
 
         CurrentStatus currentStatus = CurrentStatus.STARTED;
 
@@ -469,12 +339,12 @@ public final class RoleEnvironment {
         Calendar expiration = Calendar.getInstance();
         expiration.setTime(expiration_utc);
 
-        CurrentState newState = new AcquireCurrentState(clientId, currentGoalState.get().getIncarnation(),
+        CurrentState newState = new AcquireCurrentState(clientId, snapshot.goalState.getIncarnation(),
                 currentStatus, expiration);
 
         lastState.set(newState);
 
-        runtimeClient.setCurrentState(newState);
+        runtimeClient.publishCurrentState(newState);
     }
 
     /**
@@ -484,13 +354,13 @@ public final class RoleEnvironment {
      * 
      */
     public static void clearStatus() {
-        initialize();
+        getSnapshot();
 
         CurrentState newState = new ReleaseCurrentState(clientId);
 
         lastState.set(newState);
 
-        runtimeClient.setCurrentState(newState);
+        runtimeClient.publishCurrentState(newState);
     }
 
     /**
@@ -506,7 +376,7 @@ public final class RoleEnvironment {
      * @see #removeRoleEnvironmentChangedListener
      */
     public static synchronized void addRoleEnvironmentChangedListener(RoleEnvironmentChangedListener listener) {
-        initialize();
+        getSnapshot();
 
         changedListeners.add(listener);
     }
@@ -521,7 +391,7 @@ public final class RoleEnvironment {
      * @see #addRoleEnvironmentChangedListener
      */
     public static synchronized void removeRoleEnvironmentChangedListener(RoleEnvironmentChangedListener listener) {
-        initialize();
+        getSnapshot();
 
         changedListeners.remove(listener);
     }
@@ -550,7 +420,7 @@ public final class RoleEnvironment {
      * @see #removeRoleEnvironmentChangingListener
      */
     public static synchronized void addRoleEnvironmentChangingListener(RoleEnvironmentChangingListener listener) {
-        initialize();
+        getSnapshot();
 
         changingListeners.add(listener);
     }
@@ -565,7 +435,7 @@ public final class RoleEnvironment {
      * @see #addRoleEnvironmentChangingListener
      */
     public static void removeRoleEnvironmentChangingListener(RoleEnvironmentChangingListener listener) {
-        initialize();
+        getSnapshot();
 
         changingListeners.remove(listener);
     }
@@ -581,7 +451,7 @@ public final class RoleEnvironment {
      * @see #removeRoleEnvironmentStoppingListener
      */
     public static synchronized void addRoleEnvironmentStoppingListener(RoleEnvironmentStoppingListener listener) {
-        initialize();
+        getSnapshot();
 
         stoppingListeners.add(listener);
     }
@@ -596,7 +466,7 @@ public final class RoleEnvironment {
      * @see #addRoleEnvironmentStoppingListener
      */
     public static synchronized void removeRoleEnvironmentStoppingListener(RoleEnvironmentStoppingListener listener) {
-        initialize();
+        getSnapshot();
 
         stoppingListeners.remove(listener);
     }
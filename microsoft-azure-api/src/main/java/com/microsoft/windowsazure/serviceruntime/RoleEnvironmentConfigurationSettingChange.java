@@ -37,4 +37,19 @@ public class RoleEnvironmentConfigurationSettingChange extends RoleEnvironmentCh
         return settingName;
     }
 
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof RoleEnvironmentConfigurationSettingChange)) {
+            return false;
+        }
+
+        String otherName = ((RoleEnvironmentConfigurationSettingChange) other).settingName;
+
+        return settingName == null ? otherName == null : settingName.equals(otherName);
+    }
+
+    @Override
+    public int hashCode() {
+        return settingName == null ? 0 : settingName.hashCode();
+    }
 }
@@ -0,0 +1,118 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.microsoft.windowsazure.serviceruntime;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Computes the changes between two versions of the role environment. Configuration settings are compared by name,
+ * role instances by instance ID and endpoints by endpoint name, so each comparison is a single pass of map lookups and
+ * a role stops being compared as soon as one difference is found.
+ */
+final class RoleEnvironmentDiff {
+    private RoleEnvironmentDiff() {
+    }
+
+    public static List<RoleEnvironmentChange> calculateChanges(RoleEnvironmentData current,
+            RoleEnvironmentData newData) {
+        List<RoleEnvironmentChange> changes = new ArrayList<RoleEnvironmentChange>();
+
+        addConfigurationChanges(current.getConfigurationSettings(), newData.getConfigurationSettings(), changes);
+        addTopologyChanges(current.getRoles(), newData.getRoles(), changes);
+
+        return changes;
+    }
+
+    private static void addConfigurationChanges(Map<String, String> currentConfig, Map<String, String> newConfig,
+            List<RoleEnvironmentChange> changes) {
+        for (Map.Entry<String, String> setting : currentConfig.entrySet()) {
+            String newValue = newConfig.get(setting.getKey());
+            boolean unchanged = newValue == null ? setting.getValue() == null
+                    && newConfig.containsKey(setting.getKey()) : newValue.equals(setting.getValue());
+
+            if (!unchanged) {
+                changes.add(new RoleEnvironmentConfigurationSettingChange(setting.getKey()));
+            }
+        }
+
+        for (String setting : newConfig.keySet()) {
+            if (!currentConfig.containsKey(setting)) {
+                changes.add(new RoleEnvironmentConfigurationSettingChange(setting));
+            }
+        }
+    }
+
+    private static void addTopologyChanges(Map<String, Role> currentRoles, Map<String, Role> newRoles,
+            List<RoleEnvironmentChange> changes) {
+        for (Map.Entry<String, Role> role : currentRoles.entrySet()) {
+            Role newRole = newRoles.get(role.getKey());
+
+            if (newRole == null || !sameInstances(role.getValue().getInstances(), newRole.getInstances())) {
+                changes.add(new RoleEnvironmentTopologyChange(role.getKey()));
+            }
+        }
+
+        for (String role : newRoles.keySet()) {
+            if (!currentRoles.containsKey(role)) {
+                changes.add(new RoleEnvironmentTopologyChange(role));
+            }
+        }
+    }
+
+    private static boolean sameInstances(Map<String, RoleInstance> currentInstances,
+            Map<String, RoleInstance> newInstances) {
+        // With equal sizes, finding every current instance in the new map means the key sets are equal.
+        if (currentInstances.size() != newInstances.size()) {
+            return false;
+        }
+
+        for (Map.Entry<String, RoleInstance> instance : currentInstances.entrySet()) {
+            RoleInstance newInstance = newInstances.get(instance.getKey());
+
+            if (newInstance == null || !sameInstance(instance.getValue(), newInstance)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean sameInstance(RoleInstance currentInstance, RoleInstance newInstance) {
+        if (currentInstance.getUpdateDomain() != newInstance.getUpdateDomain()
+                || currentInstance.getFaultDomain() != newInstance.getFaultDomain()) {
+            return false;
+        }
+
+        Map<String, RoleInstanceEndpoint> currentEndpoints = currentInstance.getInstanceEndpoints();
+        Map<String, RoleInstanceEndpoint> newEndpoints = newInstance.getInstanceEndpoints();
+
+        if (currentEndpoints.size() != newEndpoints.size()) {
+            return false;
+        }
+
+        for (Map.Entry<String, RoleInstanceEndpoint> endpoint : currentEndpoints.entrySet()) {
+            RoleInstanceEndpoint newEndpoint = newEndpoints.get(endpoint.getKey());
+
+            if (newEndpoint == null || !endpoint.getValue().getProtocol().equals(newEndpoint.getProtocol())
+                    || !endpoint.getValue().getIpEndPoint().equals(newEndpoint.getIpEndPoint())) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.microsoft.windowsazure.serviceruntime;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs role environment listeners off the goal state thread. Each listener call runs on a dedicated daemon pool and
+ * is waited for at most a fixed time, so a slow or hung listener cannot stall goal state processing.
+ * <p>
+ * Changing listeners are waited for, since they can cancel the change. Changed listeners are notified in the
+ * background; changes that arrive while a notification is still running are merged and delivered in one event once it
+ * finishes.
+ */
+class RoleEnvironmentListenerDispatcher {
+    public static final long DEFAULT_LISTENER_TIMEOUT_MILLIS = 30000;
+
+    private final ExecutorService executor;
+    private final long listenerTimeoutMillis;
+    private final Object pendingLock = new Object();
+    private final Set<RoleEnvironmentChange> pendingChanges = new LinkedHashSet<RoleEnvironmentChange>();
+    private Iterable<RoleEnvironmentChangedListener> pendingListeners;
+    private boolean dispatching;
+
+    public RoleEnvironmentListenerDispatcher(long listenerTimeoutMillis) {
+        this.listenerTimeoutMillis = listenerTimeoutMillis;
+        this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "RoleEnvironmentListener");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Calls each changing listener in turn and returns whether any of them cancelled the change.
+     */
+    public boolean raiseChanging(Iterable<RoleEnvironmentChangingListener> listeners,
+            final RoleEnvironmentChangingEvent event) {
+        for (final RoleEnvironmentChangingListener listener : listeners) {
+            Future<?> call = executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    listener.roleEnvironmentChanging(event);
+                }
+            });
+
+            awaitListener(call, listener);
+        }
+
+        return event.isCancelled();
+    }
+
+    /**
+     * Queues the changes for the changed listeners and returns without waiting for them.
+     */
+    public void raiseChanged(Iterable<RoleEnvironmentChangedListener> listeners,
+            Collection<RoleEnvironmentChange> changes) {
+        synchronized (pendingLock) {
+            pendingChanges.addAll(changes);
+            pendingListeners = listeners;
+
+            if (dispatching) {
+                return;
+            }
+
+            dispatching = true;
+        }
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                dispatchChanged();
+            }
+        });
+    }
+
+    private void dispatchChanged() {
+        while (true) {
+            List<RoleEnvironmentChange> changes;
+            Iterable<RoleEnvironmentChangedListener> listeners;
+
+            synchronized (pendingLock) {
+                if (pendingChanges.isEmpty()) {
+                    dispatching = false;
+                    return;
+                }
+
+                changes = new ArrayList<RoleEnvironmentChange>(pendingChanges);
+                listeners = pendingListeners;
+                pendingChanges.clear();
+            }
+
+            final RoleEnvironmentChangedEvent event = new RoleEnvironmentChangedEvent(changes);
+
+            for (final RoleEnvironmentChangedListener listener : listeners) {
+                Future<?> call = executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.roleEnvironmentChanged(event);
+                    }
+                });
+
+                awaitListener(call, listener);
+            }
+        }
+    }
+
+    private void awaitListener(Future<?> call, Object listener) {
+        try {
+            call.get(listenerTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+        }
+        catch (TimeoutException e) {
+            call.cancel(true);
+            new TimeoutException("Role environment listener " + listener + " did not return within "
+                    + listenerTimeoutMillis + " ms.").printStackTrace();
+        }
+        catch (InterruptedException e) {
+            call.cancel(true);
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -37,4 +37,19 @@ public class RoleEnvironmentTopologyChange extends RoleEnvironmentChange {
         return roleName;
     }
 
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof RoleEnvironmentTopologyChange)) {
+            return false;
+        }
+
+        String otherName = ((RoleEnvironmentTopologyChange) other).roleName;
+
+        return roleName == null ? otherName == null : roleName.equals(otherName);
+    }
+
+    @Override
+    public int hashCode() {
+        return roleName == null ? 0 : roleName.hashCode();
+    }
 }
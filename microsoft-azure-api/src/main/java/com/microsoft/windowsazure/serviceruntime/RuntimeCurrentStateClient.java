@@ -19,4 +19,6 @@ package com.microsoft.windowsazure.serviceruntime;
  */
 interface RuntimeCurrentStateClient {
     public void setCurrentState(CurrentState state);
+
+    public void publishCurrentState(CurrentState state);
 }
@@ -0,0 +1,47 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.serviceruntime;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+
+/**
+ * Holds the one JAXB context for the runtime protocol documents. Building a context is expensive and it is
+ * thread-safe, so it is created on first use and shared; marshallers and unmarshallers are not thread-safe and are
+ * still created per document.
+ */
+final class RuntimeJaxbContext {
+    private static volatile JAXBContext context;
+
+    private RuntimeJaxbContext() {
+    }
+
+    public static JAXBContext get() throws JAXBException {
+        JAXBContext current = context;
+
+        if (current == null) {
+            synchronized (RuntimeJaxbContext.class) {
+                current = context;
+
+                if (current == null) {
+                    current = JAXBContext.newInstance(GoalStateInfo.class.getPackage().getName());
+                    context = current;
+                }
+            }
+        }
+
+        return current;
+    }
+}
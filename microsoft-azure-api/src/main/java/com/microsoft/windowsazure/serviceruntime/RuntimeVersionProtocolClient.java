@@ -18,7 +18,6 @@ import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Map;
 
-import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBElement;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Unmarshaller;
@@ -36,8 +35,7 @@ class RuntimeVersionProtocolClient {
     public Map<String, String> getVersionMap(String connectionPath) {
         try {
             Map<String, String> versions = new HashMap<String, String>();
-            JAXBContext context = JAXBContext.newInstance(RuntimeServerDiscoveryInfo.class.getPackage().getName());
-            Unmarshaller unmarshaller = context.createUnmarshaller();
+            Unmarshaller unmarshaller = RuntimeJaxbContext.get().createUnmarshaller();
             InputStream input = inputChannel.getInputStream(connectionPath);
 
             @SuppressWarnings("unchecked")
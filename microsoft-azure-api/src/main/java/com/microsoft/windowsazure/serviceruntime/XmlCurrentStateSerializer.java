@@ -16,7 +16,6 @@ package com.microsoft.windowsazure.serviceruntime;
 
 import java.io.OutputStream;
 
-import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Marshaller;
 
@@ -29,8 +28,7 @@ class XmlCurrentStateSerializer implements CurrentStateSerializer {
 
     public void serialize(CurrentState state, OutputStream stream) {
         try {
-            JAXBContext context = JAXBContext.newInstance(GoalStateInfo.class.getPackage().getName());
-            Marshaller marshaller = context.createMarshaller();
+            Marshaller marshaller = RuntimeJaxbContext.get().createMarshaller();
 
             ObjectFactory factory = new ObjectFactory();
             CurrentStateInfo info = factory.createCurrentStateInfo();
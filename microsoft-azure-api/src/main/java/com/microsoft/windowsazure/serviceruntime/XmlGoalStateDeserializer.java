@@ -14,9 +14,9 @@
  */
 package com.microsoft.windowsazure.serviceruntime;
 
+import java.io.Reader;
 import java.io.StringReader;
 
-import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBElement;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Unmarshaller;
@@ -31,10 +31,13 @@ class XmlGoalStateDeserializer {
     }
 
     public GoalState deserialize(String document) {
+        return deserialize(new StringReader(document));
+    }
+
+    public GoalState deserialize(Reader document) {
         try {
-            JAXBContext context = JAXBContext.newInstance(GoalStateInfo.class.getPackage().getName());
-            Unmarshaller unmarshaller = context.createUnmarshaller();
-            InputSource source = new InputSource(new StringReader(document));
+            Unmarshaller unmarshaller = RuntimeJaxbContext.get().createUnmarshaller();
+            InputSource source = new InputSource(document);
 
             @SuppressWarnings("unchecked")
             GoalStateInfo goalStateInfo = ((JAXBElement<GoalStateInfo>) unmarshaller.unmarshal(source)).getValue();
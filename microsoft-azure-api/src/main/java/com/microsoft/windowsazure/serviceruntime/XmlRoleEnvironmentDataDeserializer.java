@@ -19,7 +19,6 @@ import java.net.InetSocketAddress;
 import java.util.HashMap;
 import java.util.Map;
 
-import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBElement;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Unmarshaller;
@@ -34,8 +33,7 @@ class XmlRoleEnvironmentDataDeserializer implements RoleEnvironmentDataDeseriali
     @Override
     public RoleEnvironmentData deserialize(InputStream stream) {
         try {
-            JAXBContext context = JAXBContext.newInstance(RoleEnvironmentInfo.class.getPackage().getName());
-            Unmarshaller unmarshaller = context.createUnmarshaller();
+            Unmarshaller unmarshaller = RuntimeJaxbContext.get().createUnmarshaller();
 
             @SuppressWarnings("unchecked")
             RoleEnvironmentInfo environmentInfo = ((JAXBElement<RoleEnvironmentInfo>) unmarshaller.unmarshal(stream))
@@ -0,0 +1,605 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.services.blob.client;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.microsoft.windowsazure.services.core.storage.DoesServiceRequest;
+import com.microsoft.windowsazure.services.core.storage.OperationContext;
+import com.microsoft.windowsazure.services.core.storage.StorageException;
+import com.microsoft.windowsazure.services.core.storage.utils.Utility;
+
+/**
+ * Copies every blob under a prefix of one container to a prefix of another container with server-side copy
+ * operations, keeping a bounded number of copies in flight.
+ * <p>
+ * Copies are started in listing order. Each pending copy is polled on its own schedule: the interval is estimated
+ * from the observed copy progress and otherwise doubles, within the configured minimum and maximum. When more copies
+ * in the same virtual directory are due than the directory listing has pages, their state is read with a listing that
+ * includes copy details instead of one request per blob. The page count is taken from the previous listing of the
+ * directory; a listing that runs past its expected pages is cut short, and the copies it did not reach are polled one
+ * by one. Copies that fail, are aborted, or fail to start
+ * are retried up to the configured number of attempts; a copy still pending after the copy timeout is aborted and
+ * treated as failed.
+ * <p>
+ * Copying between accounts requires the source blobs to be readable by the destination service, for example by
+ * supplying a shared access signature for the source container with {@link #setSourceSharedAccessSignature(String)}.
+ */
+public final class BlobCopyManager {
+    /**
+     * The number of blobs returned by one listing request.
+     */
+    private static final int LISTING_PAGE_SIZE = 5000;
+
+    /**
+     * Represents the outcome of a bulk copy.
+     */
+    public static final class Result {
+        private long succeededCount;
+        private long startedCount;
+        private long abortedCount;
+        private final Map<String, String> failedBlobs = new LinkedHashMap<String, String>();
+
+        /**
+         * @return The number of blobs copied successfully.
+         */
+        public long getSucceededCount() {
+            return this.succeededCount;
+        }
+
+        /**
+         * @return The number of copy operations started, including retries.
+         */
+        public long getStartedCount() {
+            return this.startedCount;
+        }
+
+        /**
+         * @return The number of copy operations aborted because they exceeded the copy timeout.
+         */
+        public long getAbortedCount() {
+            return this.abortedCount;
+        }
+
+        /**
+         * @return The names of the destination blobs that could not be copied, with a description of the last error.
+         */
+        public Map<String, String> getFailedBlobs() {
+            return Collections.unmodifiableMap(this.failedBlobs);
+        }
+    }
+
+    /**
+     * Holds the state of a single blob copy.
+     */
+    private static final class CopyTask {
+        final CloudBlob source;
+        final CloudBlob destination;
+        final String directory;
+        int attempts;
+        String copyId;
+        long startTime;
+        long nextActionTime;
+        long pollIntervalInMs;
+        long lastBytesCopied;
+        long lastPollTime;
+        CopyState observed;
+        String error;
+
+        CopyTask(final CloudBlob source, final CloudBlob destination, final String directory) {
+            this.source = source;
+            this.destination = destination;
+            this.directory = directory;
+        }
+    }
+
+    private final CloudBlobContainer sourceContainer;
+    private final String sourcePrefix;
+    private final CloudBlobContainer destinationContainer;
+    private final String destinationPrefix;
+
+    private String sourceSharedAccessSignature;
+    private int maxPendingCopies = 100;
+    private int maxAttempts = 3;
+    private long copyTimeoutInMs = 60L * 60 * 1000;
+    private long minPollIntervalInMs = 1000;
+    private long maxPollIntervalInMs = 60 * 1000;
+
+    /**
+     * Creates an instance of the <code>BlobCopyManager</code> class.
+     * 
+     * @param sourceContainer
+     *            A {@link CloudBlobContainer} object that represents the container to copy from.
+     * @param sourcePrefix
+     *            The prefix of the blobs to copy, or <code>null</code> to copy every blob in the container.
+     * @param destinationContainer
+     *            A {@link CloudBlobContainer} object that represents the container to copy to.
+     * @param destinationPrefix
+     *            The prefix that replaces <code>sourcePrefix</code> in destination blob names, or <code>null</code>.
+     */
+    public BlobCopyManager(final CloudBlobContainer sourceContainer, final String sourcePrefix,
+            final CloudBlobContainer destinationContainer, final String destinationPrefix) {
+        Utility.assertNotNull("sourceContainer", sourceContainer);
+        Utility.assertNotNull("destinationContainer", destinationContainer);
+
+        this.sourceContainer = sourceContainer;
+        this.sourcePrefix = sourcePrefix == null ? "" : sourcePrefix;
+        this.destinationContainer = destinationContainer;
+        this.destinationPrefix = destinationPrefix == null ? "" : destinationPrefix;
+    }
+
+    /**
+     * Sets a shared access signature appended to source blob URIs, so that a destination in another account can read
+     * them.
+     * 
+     * @param sourceSharedAccessSignature
+     *            The shared access signature query string, without a leading question mark.
+     */
+    public void setSourceSharedAccessSignature(final String sourceSharedAccessSignature) {
+        this.sourceSharedAccessSignature = sourceSharedAccessSignature;
+    }
+
+    /**
+     * Sets the maximum number of copy operations in flight. The default is 100.
+     * 
+     * @param maxPendingCopies
+     *            The maximum number of pending copies.
+     */
+    public void setMaxPendingCopies(final int maxPendingCopies) {
+        if (maxPendingCopies < 1) {
+            throw new IllegalArgumentException("The maximum number of pending copies must be positive.");
+        }
+
+        this.maxPendingCopies = maxPendingCopies;
+    }
+
+    /**
+     * Sets the number of times a blob copy is attempted before it is reported as failed. The default is 3.
+     * 
+     * @param maxAttempts
+     *            The maximum number of attempts.
+     */
+    public void setMaxAttempts(final int maxAttempts) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("The maximum number of attempts must be positive.");
+        }
+
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Sets the time after which a pending copy is aborted. The default is one hour.
+     * 
+     * @param copyTimeoutInMs
+     *            The copy timeout, in milliseconds.
+     */
+    public void setCopyTimeoutInMs(final long copyTimeoutInMs) {
+        if (copyTimeoutInMs < 1) {
+            throw new IllegalArgumentException("The copy timeout must be positive.");
+        }
+
+        this.copyTimeoutInMs = copyTimeoutInMs;
+    }
+
+    /**
+     * Sets the bounds of the interval between polls of a pending copy. The defaults are one second and one minute.
+     * 
+     * @param minPollIntervalInMs
+     *            The minimum poll interval, in milliseconds.
+     * @param maxPollIntervalInMs
+     *            The maximum poll interval, in milliseconds.
+     */
+    public void setPollIntervalInMs(final long minPollIntervalInMs, final long maxPollIntervalInMs) {
+        if (minPollIntervalInMs < 1 || maxPollIntervalInMs < minPollIntervalInMs) {
+            throw new IllegalArgumentException("The poll interval bounds must be positive and ordered.");
+        }
+
+        this.minPollIntervalInMs = minPollIntervalInMs;
+        this.maxPollIntervalInMs = maxPollIntervalInMs;
+    }
+
+    /**
+     * Copies the blobs, returning once every copy has completed or failed.
+     * 
+     * @param options
+     *            A {@link BlobRequestOptions} object that specifies any additional options for the request. Specifying
+     *            <code>null</code> will use the default request options from the associated service client (
+     *            {@link CloudBlobClient}). The concurrent request count bounds the number of requests made at once.
+     * @param opContext
+     *            An {@link OperationContext} object used for the source listing. Copy and status requests are made
+     *            from several threads and each uses its own context.
+     * @return A {@link Result} object that describes the outcome.
+     * 
+     * @throws StorageException
+     *             If the source listing failed, or the copy was interrupted.
+     */
+    @DoesServiceRequest
+    public Result copy(BlobRequestOptions options, final OperationContext opContext) throws StorageException {
+        if (options == null) {
+            options = new BlobRequestOptions();
+        }
+
+        options.applyDefaults(this.destinationContainer.getServiceClient());
+        final BlobRequestOptions requestOptions = options;
+
+        final Iterator<ListBlobItem> sourceBlobs = this.sourceContainer.listBlobs(this.sourcePrefix, true, null,
+                new BlobRequestOptions(options), opContext).iterator();
+        final Result result = new Result();
+        final List<CopyTask> pending = new ArrayList<CopyTask>();
+        final Map<String, Integer> listingSizes = new ConcurrentHashMap<String, Integer>();
+        final ExecutorService executor = Executors.newFixedThreadPool(options.getConcurrentRequestCount());
+
+        try {
+            while (true) {
+                final ArrayList<Callable<Void>> requests = new ArrayList<Callable<Void>>();
+
+                // Fill the window with new copies and schedule due retries.
+                while (pending.size() < this.maxPendingCopies && hasNext(sourceBlobs)) {
+                    final ListBlobItem item = sourceBlobs.next();
+                    if (item instanceof CloudBlob) {
+                        pending.add(this.createTask((CloudBlob) item));
+                    }
+                }
+
+                if (pending.isEmpty()) {
+                    break;
+                }
+
+                final long now = System.currentTimeMillis();
+                final HashMap<String, List<CopyTask>> duePolls = new HashMap<String, List<CopyTask>>();
+                for (final CopyTask task : pending) {
+                    if (task.nextActionTime > now) {
+                        continue;
+                    }
+
+                    if (task.copyId == null) {
+                        requests.add(this.startRequest(task, requestOptions));
+                        result.startedCount++;
+                    }
+                    else {
+                        List<CopyTask> group = duePolls.get(task.directory);
+                        if (group == null) {
+                            group = new ArrayList<CopyTask>();
+                            duePolls.put(task.directory, group);
+                        }
+                        group.add(task);
+                    }
+                }
+
+                for (final Map.Entry<String, List<CopyTask>> group : duePolls.entrySet()) {
+                    // A directory not listed yet is assumed to fit in one page until a listing shows otherwise.
+                    final Integer listingSize = listingSizes.get(group.getKey());
+                    final int listingPages = listingSize == null ? 1 : listingSize / LISTING_PAGE_SIZE + 1;
+                    if (group.getValue().size() > listingPages) {
+                        requests.add(this.listingPollRequest(group.getKey(), group.getValue(), listingPages,
+                                listingSizes, requestOptions));
+                    }
+                    else {
+                        for (final CopyTask task : group.getValue()) {
+                            requests.add(this.pollRequest(task, requestOptions));
+                        }
+                    }
+                }
+
+                if (requests.isEmpty()) {
+                    sleepUntil(pending);
+                    continue;
+                }
+
+                invokeAll(executor, requests);
+
+                final Iterator<CopyTask> iterator = pending.iterator();
+                while (iterator.hasNext()) {
+                    if (this.process(iterator.next(), result, requestOptions)) {
+                        iterator.remove();
+                    }
+                }
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        return result;
+    }
+
+    /**
+     * Creates the copy task for a source blob.
+     */
+    private CopyTask createTask(final CloudBlob source) throws StorageException {
+        try {
+            final String name = this.destinationPrefix + source.getName().substring(this.sourcePrefix.length());
+            final CloudBlob destination = source instanceof CloudPageBlob ? this.destinationContainer
+                    .getPageBlobReference(name) : this.destinationContainer.getBlockBlobReference(name);
+            final int separator = name.lastIndexOf(this.destinationContainer.getServiceClient().getDirectoryDelimiter());
+            return new CopyTask(source, destination, separator < 0 ? "" : name.substring(0, separator + 1));
+        }
+        catch (final URISyntaxException e) {
+            throw Utility.generateNewUnexpectedStorageException(e);
+        }
+    }
+
+    /**
+     * Returns a request that starts the copy of a task, recording the copy ID or the error.
+     */
+    private Callable<Void> startRequest(final CopyTask task, final BlobRequestOptions options) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws URISyntaxException {
+                task.attempts++;
+                task.startTime = System.currentTimeMillis();
+                task.lastPollTime = task.startTime;
+                task.lastBytesCopied = 0;
+                task.pollIntervalInMs = BlobCopyManager.this.minPollIntervalInMs;
+                try {
+                    task.destination.copyFromBlob(BlobCopyManager.this.getSourceUri(task.source), null, null,
+                            new BlobRequestOptions(options), new OperationContext());
+                    task.observed = task.destination.getCopyState();
+                    task.copyId = task.observed == null ? null : task.observed.getCopyId();
+                    task.error = task.copyId == null ? "The service did not return a copy ID." : null;
+                }
+                catch (final StorageException e) {
+                    task.observed = null;
+                    task.error = e.getMessage();
+                }
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Returns a request that reads the copy state of a single destination blob.
+     */
+    private Callable<Void> pollRequest(final CopyTask task, final BlobRequestOptions options) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() {
+                poll(task, options);
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Reads the copy state of a single destination blob.
+     */
+    private static void poll(final CopyTask task, final BlobRequestOptions options) {
+        try {
+            task.destination.downloadAttributes(null, new BlobRequestOptions(options), new OperationContext());
+            task.observed = task.destination.getCopyState();
+            task.error = null;
+        }
+        catch (final StorageException e) {
+            // Leave the copy pending; it is polled again later.
+            task.observed = null;
+            task.error = e.getMessage();
+        }
+    }
+
+    /**
+     * Returns a request that reads the copy state of several destination blobs in one directory with a listing of at
+     * most the specified number of pages, recording the number of items listed. If the listing is longer, the copies
+     * it did not reach are polled individually.
+     */
+    private Callable<Void> listingPollRequest(final String directory, final List<CopyTask> tasks, final int pages,
+            final Map<String, Integer> listingSizes, final BlobRequestOptions options) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws URISyntaxException {
+                final HashMap<String, CopyTask> byName = new HashMap<String, CopyTask>();
+                for (final CopyTask task : tasks) {
+                    task.observed = null;
+                    byName.put(task.destination.getName(), task);
+                }
+
+                final int maxItems = pages * LISTING_PAGE_SIZE;
+                int items = 0;
+                try {
+                    for (final ListBlobItem item : BlobCopyManager.this.destinationContainer.listBlobs(directory,
+                            false, EnumSet.of(BlobListingDetails.COPY), new BlobRequestOptions(options),
+                            new OperationContext())) {
+                        if (++items > maxItems) {
+                            break;
+                        }
+
+                        if (item instanceof CloudBlob) {
+                            final CopyTask task = byName.remove(((CloudBlob) item).getName());
+                            if (task != null) {
+                                task.observed = ((CloudBlob) item).getCopyState();
+                            }
+                        }
+                    }
+                }
+                catch (final NoSuchElementException e) {
+                    // The listing failed; copies not yet observed stay pending and are polled again later.
+                    return null;
+                }
+
+                listingSizes.put(directory, items);
+                if (items > maxItems) {
+                    for (final CopyTask task : byName.values()) {
+                        poll(task, options);
+                    }
+                }
+
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Applies the latest observation of a task, returning <code>true</code> once the task is finished.
+     */
+    private boolean process(final CopyTask task, final Result result, final BlobRequestOptions options) {
+        final long now = System.currentTimeMillis();
+        final CopyState state = task.observed;
+        final CopyStatus status = state == null || !isCurrentCopy(task, state) ? null : state.getStatus();
+
+        if (status == CopyStatus.SUCCESS) {
+            result.succeededCount++;
+            return true;
+        }
+
+        if (task.copyId != null && (status == null || status == CopyStatus.PENDING)) {
+            if (now - task.startTime < this.copyTimeoutInMs) {
+                this.schedulePoll(task, state, now);
+                return false;
+            }
+
+            try {
+                task.destination.abortCopy(task.copyId, null, new BlobRequestOptions(options),
+                        new OperationContext());
+            }
+            catch (final StorageException e) {
+                // The copy may have finished meanwhile; either way it is retried below.
+            }
+
+            result.abortedCount++;
+            task.error = "The copy did not complete within the copy timeout.";
+        }
+        else if (status == CopyStatus.FAILED || status == CopyStatus.ABORTED) {
+            task.error = state.getStatusDescription() == null ? status.toString() : state.getStatusDescription();
+        }
+
+        if (task.attempts >= this.maxAttempts) {
+            result.failedBlobs.put(task.destination.getUri().toString(), task.error);
+            return true;
+        }
+
+        // Retry after a delay that grows with the number of attempts.
+        task.copyId = null;
+        task.observed = null;
+        task.nextActionTime = now + Math.min(this.maxPollIntervalInMs, this.minPollIntervalInMs << task.attempts);
+        return false;
+    }
+
+    /**
+     * Schedules the next poll of a pending copy from its observed progress.
+     */
+    private void schedulePoll(final CopyTask task, final CopyState state, final long now) {
+        long interval = Math.min(this.maxPollIntervalInMs, task.pollIntervalInMs * 2);
+
+        if (state != null && state.getBytesCopied() != null && state.getTotalBytes() != null) {
+            final long copied = state.getBytesCopied();
+            final long elapsed = now - task.lastPollTime;
+            if (copied > task.lastBytesCopied && elapsed > 0) {
+                final double bytesPerMs = (double) (copied - task.lastBytesCopied) / elapsed;
+                interval = (long) ((state.getTotalBytes() - copied) / bytesPerMs);
+            }
+
+            task.lastBytesCopied = copied;
+        }
+
+        task.pollIntervalInMs = Math.max(this.minPollIntervalInMs, Math.min(this.maxPollIntervalInMs, interval));
+        task.lastPollTime = now;
+        task.nextActionTime = now + task.pollIntervalInMs;
+        task.observed = null;
+    }
+
+    /**
+     * Returns the URI the destination copies from.
+     */
+    private URI getSourceUri(final CloudBlob source) throws URISyntaxException {
+        final URI uri = source.getUri();
+        if (Utility.isNullOrEmpty(this.sourceSharedAccessSignature)) {
+            return uri;
+        }
+
+        return new URI(uri.toString() + "?" + this.sourceSharedAccessSignature);
+    }
+
+    /**
+     * Returns whether an observed state belongs to the copy this task started.
+     */
+    private static boolean isCurrentCopy(final CopyTask task, final CopyState state) {
+        return task.copyId == null || state.getCopyId() == null || task.copyId.equals(state.getCopyId());
+    }
+
+    /**
+     * Advances the source listing, surfacing listing failures as storage exceptions.
+     */
+    private static boolean hasNext(final Iterator<ListBlobItem> iterator) throws StorageException {
+        try {
+            return iterator.hasNext();
+        }
+        catch (final RuntimeException e) {
+            if (e.getCause() instanceof StorageException) {
+                throw (StorageException) e.getCause();
+            }
+
+            throw e;
+        }
+    }
+
+    /**
+     * Runs a set of requests on the executor and waits for them to finish.
+     */
+    private static void invokeAll(final ExecutorService executor, final List<Callable<Void>> requests)
+            throws StorageException {
+        try {
+            for (final Future<Void> future : executor.invokeAll(requests)) {
+                future.get();
+            }
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Utility.generateNewUnexpectedStorageException(e);
+        }
+        catch (final ExecutionException e) {
+            if (e.getCause() instanceof StorageException) {
+                throw (StorageException) e.getCause();
+            }
+
+            throw Utility.generateNewUnexpectedStorageException((Exception) e.getCause());
+        }
+    }
+
+    /**
+     * Sleeps until the earliest scheduled action of the pending copies.
+     */
+    private static void sleepUntil(final List<CopyTask> pending) throws StorageException {
+        long next = Long.MAX_VALUE;
+        for (final CopyTask task : pending) {
+            next = Math.min(next, task.nextActionTime);
+        }
+
+        final long delay = next - System.currentTimeMillis();
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            }
+            catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw Utility.generateNewUnexpectedStorageException(e);
+            }
+        }
+    }
+}
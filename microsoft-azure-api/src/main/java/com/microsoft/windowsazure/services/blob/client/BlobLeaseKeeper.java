@@ -0,0 +1,580 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.services.blob.client;
+
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.microsoft.windowsazure.services.core.storage.AccessCondition;
+import com.microsoft.windowsazure.services.core.storage.DoesServiceRequest;
+import com.microsoft.windowsazure.services.core.storage.OperationContext;
+import com.microsoft.windowsazure.services.core.storage.StorageException;
+import com.microsoft.windowsazure.services.core.storage.utils.Utility;
+
+/**
+ * Keeps blob and container leases alive until they are released.
+ * <p>
+ * A single scheduler thread tracks the renewal time of every lease. Each lease is renewed once a randomly jittered
+ * fraction of its duration has elapsed, so that leases acquired together do not renew together; when the scheduler
+ * wakes it also renews every other lease falling due within the batch window, and the renewals of a batch are issued
+ * in parallel on a bounded pool. A renewal that fails with a transient error is retried until the lease would expire.
+ * A lease that has expired, been broken, or been taken over is dropped and reported to the {@link LeaseLostListener},
+ * so that its holder can stop writing. {@link #shutdown()} releases every lease still held.
+ * <p>
+ * Infinite leases never need renewing; they are tracked only so that they are released on shutdown.
+ */
+public final class BlobLeaseKeeper {
+    /**
+     * Receives notifications of leases that could not be kept.
+     */
+    public interface LeaseLostListener {
+        /**
+         * Called once, on a renewal thread, when a lease is lost.
+         * 
+         * @param lease
+         *            The {@link Lease} that was lost.
+         * @param cause
+         *            The {@link StorageException} returned by the last renewal attempt.
+         */
+        void leaseLost(Lease lease, StorageException cause);
+    }
+
+    /**
+     * Represents a lease held by a {@link BlobLeaseKeeper}.
+     */
+    public abstract static class Lease implements Comparable<Lease> {
+        private final String leaseId;
+        private final long durationInMs;
+        private volatile boolean lost;
+        private volatile boolean released;
+        private long expiryTime;
+        private long nextRenewalTime;
+
+        Lease(final String leaseId, final int leaseTimeInSeconds) {
+            this.leaseId = leaseId;
+            this.durationInMs = leaseTimeInSeconds < 0 ? -1 : leaseTimeInSeconds * 1000L;
+        }
+
+        /**
+         * @return The lease ID.
+         */
+        public final String getLeaseId() {
+            return this.leaseId;
+        }
+
+        /**
+         * @return The URI of the leased blob or container.
+         */
+        public abstract URI getUri();
+
+        /**
+         * @return <code>true</code> if the lease could not be renewed and is no longer held.
+         */
+        public final boolean isLost() {
+            return this.lost;
+        }
+
+        /**
+         * @return An {@link AccessCondition} that specifies the lease, for use with requests made under the lease.
+         */
+        public final AccessCondition getAccessCondition() {
+            return AccessCondition.generateLeaseCondition(this.leaseId);
+        }
+
+        abstract void renew(BlobRequestOptions options) throws StorageException;
+
+        abstract void release(BlobRequestOptions options) throws StorageException;
+
+        @Override
+        public final int compareTo(final Lease other) {
+            return this.nextRenewalTime < other.nextRenewalTime ? -1 : this.nextRenewalTime == other.nextRenewalTime ? 0
+                    : 1;
+        }
+    }
+
+    /**
+     * The fraction of the lease duration after which a lease is renewed, before jitter.
+     */
+    private static final double RENEWAL_FRACTION = 0.5;
+
+    /**
+     * The additional random fraction of the lease duration added to the renewal time.
+     */
+    private static final double RENEWAL_JITTER = 0.15;
+
+    /**
+     * The delay before retrying a renewal that failed with a transient error.
+     */
+    private static final long RETRY_INTERVAL_IN_MS = 1000;
+
+    /**
+     * The number of renewals made at a time when the options do not specify a concurrent request count.
+     */
+    private static final int DEFAULT_CONCURRENT_RENEWALS = 8;
+
+    private final BlobRequestOptions options;
+    private final PriorityQueue<Lease> schedule = new PriorityQueue<Lease>();
+    private final List<Lease> infiniteLeases = new ArrayList<Lease>();
+    private final Set<Lease> renewing = Collections.newSetFromMap(new IdentityHashMap<Lease, Boolean>());
+    private final ExecutorService renewalPool;
+    private final Thread scheduler;
+    private final Random random = new Random();
+    private long batchWindowInMs = 1000;
+    private volatile LeaseLostListener listener;
+    private boolean isShutdown;
+
+    /**
+     * Creates an instance of the <code>BlobLeaseKeeper</code> class.
+     * 
+     * @param options
+     *            A {@link BlobRequestOptions} object used for the renewal and release requests. Specifying
+     *            <code>null</code> will use the default request options from the associated service client (
+     *            {@link CloudBlobClient}). The concurrent request count bounds the number of renewals in flight;
+     *            if it is not set, eight renewals are made at a time.
+     */
+    public BlobLeaseKeeper(final BlobRequestOptions options) {
+        this.options = options == null ? new BlobRequestOptions() : new BlobRequestOptions(options);
+        final int threads = this.options.getConcurrentRequestCount() == null ? DEFAULT_CONCURRENT_RENEWALS
+                : this.options.getConcurrentRequestCount();
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.renewalPool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "lease-renewal-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        this.scheduler = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                BlobLeaseKeeper.this.runScheduler();
+            }
+        }, "lease-scheduler");
+        this.scheduler.setDaemon(true);
+        this.scheduler.start();
+    }
+
+    /**
+     * Sets the listener notified when a lease is lost.
+     * 
+     * @param listener
+     *            The {@link LeaseLostListener} to notify, or <code>null</code>.
+     */
+    public void setLeaseLostListener(final LeaseLostListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Sets the window within which leases falling due are renewed together with the lease that woke the scheduler.
+     * The default is one second.
+     * 
+     * @param batchWindowInMs
+     *            The batch window, in milliseconds.
+     */
+    public synchronized void setBatchWindowInMs(final long batchWindowInMs) {
+        if (batchWindowInMs < 0) {
+            throw new IllegalArgumentException("The batch window must not be negative.");
+        }
+
+        this.batchWindowInMs = batchWindowInMs;
+    }
+
+    /**
+     * @return The number of leases currently held.
+     */
+    public synchronized int getLeaseCount() {
+        return this.schedule.size() + this.infiniteLeases.size() + this.renewing.size();
+    }
+
+    /**
+     * Acquires a lease on a blob and keeps it alive.
+     * 
+     * @param blob
+     *            The {@link CloudBlob} to lease.
+     * @param leaseTimeInSeconds
+     *            The lease duration, between 15 and 60 seconds, or -1 for an infinite lease.
+     * @param proposedLeaseId
+     *            The proposed lease ID, or <code>null</code>.
+     * @return The {@link Lease} that is kept alive.
+     * 
+     * @throws StorageException
+     *             If the lease could not be acquired.
+     */
+    @DoesServiceRequest
+    public Lease acquire(final CloudBlob blob, final int leaseTimeInSeconds, final String proposedLeaseId)
+            throws StorageException {
+        final long start = System.currentTimeMillis();
+        final String leaseId = blob.acquireLease(leaseTimeInSeconds, proposedLeaseId, null,
+                new BlobRequestOptions(this.options), null);
+        return this.add(this.createLease(blob, leaseId, leaseTimeInSeconds), start);
+    }
+
+    /**
+     * Acquires a lease on a container and keeps it alive.
+     * 
+     * @param container
+     *            The {@link CloudBlobContainer} to lease.
+     * @param leaseTimeInSeconds
+     *            The lease duration, between 15 and 60 seconds, or -1 for an infinite lease.
+     * @param proposedLeaseId
+     *            The proposed lease ID, or <code>null</code>.
+     * @return The {@link Lease} that is kept alive.
+     * 
+     * @throws StorageException
+     *             If the lease could not be acquired.
+     */
+    @DoesServiceRequest
+    public Lease acquire(final CloudBlobContainer container, final int leaseTimeInSeconds,
+            final String proposedLeaseId) throws StorageException {
+        final long start = System.currentTimeMillis();
+        final String leaseId = container.acquireLease(leaseTimeInSeconds, proposedLeaseId, null,
+                new BlobRequestOptions(this.options), null);
+        return this.add(this.createLease(container, leaseId, leaseTimeInSeconds), start);
+    }
+
+    /**
+     * Keeps alive a blob lease that was acquired, or last renewed, just before the call.
+     * 
+     * @param blob
+     *            The leased {@link CloudBlob}.
+     * @param leaseId
+     *            The lease ID.
+     * @param leaseTimeInSeconds
+     *            The lease duration, or -1 for an infinite lease.
+     * @return The {@link Lease} that is kept alive.
+     * 
+     * @throws StorageException
+     *             If the blob reference could not be copied.
+     */
+    public Lease keep(final CloudBlob blob, final String leaseId, final int leaseTimeInSeconds)
+            throws StorageException {
+        Utility.assertNotNullOrEmpty("leaseId", leaseId);
+        return this.add(this.createLease(blob, leaseId, leaseTimeInSeconds), System.currentTimeMillis());
+    }
+
+    /**
+     * Keeps alive a container lease that was acquired, or last renewed, just before the call.
+     * 
+     * @param container
+     *            The leased {@link CloudBlobContainer}.
+     * @param leaseId
+     *            The lease ID.
+     * @param leaseTimeInSeconds
+     *            The lease duration, or -1 for an infinite lease.
+     * @return The {@link Lease} that is kept alive.
+     */
+    public Lease keep(final CloudBlobContainer container, final String leaseId, final int leaseTimeInSeconds) {
+        Utility.assertNotNullOrEmpty("leaseId", leaseId);
+        return this.add(this.createLease(container, leaseId, leaseTimeInSeconds), System.currentTimeMillis());
+    }
+
+    /**
+     * Stops renewing a lease and releases it.
+     * 
+     * @param lease
+     *            The {@link Lease} to release.
+     * 
+     * @throws StorageException
+     *             If the release request failed; the lease is no longer renewed either way.
+     */
+    @DoesServiceRequest
+    public void release(final Lease lease) throws StorageException {
+        synchronized (this) {
+            if (lease.released) {
+                return;
+            }
+
+            lease.released = true;
+            this.schedule.remove(lease);
+            this.infiniteLeases.remove(lease);
+        }
+
+        if (!lease.lost) {
+            lease.release(new BlobRequestOptions(this.options));
+        }
+    }
+
+    /**
+     * Stops the scheduler and releases every lease still held, waiting for renewals in flight and then for the
+     * releases to complete.
+     * 
+     * @return The number of leases that could not be released.
+     */
+    @DoesServiceRequest
+    public int shutdown() {
+        final List<Lease> held;
+        synchronized (this) {
+            if (this.isShutdown) {
+                return 0;
+            }
+
+            this.isShutdown = true;
+            this.notifyAll();
+
+            // Renewals in flight put their lease back in the schedule, so that it is released below.
+            try {
+                while (!this.renewing.isEmpty()) {
+                    this.wait();
+                }
+            }
+            catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            held = new ArrayList<Lease>(this.schedule);
+            held.addAll(this.infiniteLeases);
+            this.schedule.clear();
+            this.infiniteLeases.clear();
+            this.notifyAll();
+        }
+
+        final List<Callable<Void>> releases = new ArrayList<Callable<Void>>();
+        for (final Lease lease : held) {
+            lease.released = true;
+            releases.add(new Callable<Void>() {
+                @Override
+                public Void call() throws StorageException {
+                    lease.release(new BlobRequestOptions(BlobLeaseKeeper.this.options));
+                    return null;
+                }
+            });
+        }
+
+        int failures = 0;
+        try {
+            for (final Future<Void> release : this.renewalPool.invokeAll(releases)) {
+                try {
+                    release.get();
+                }
+                catch (final ExecutionException e) {
+                    failures++;
+                }
+            }
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            this.renewalPool.shutdownNow();
+        }
+
+        return failures;
+    }
+
+    /**
+     * Schedules a new lease whose current term started at the given time.
+     */
+    private Lease add(final Lease lease, final long termStart) {
+        synchronized (this) {
+            if (this.isShutdown) {
+                throw new IllegalStateException("The lease keeper has been shut down.");
+            }
+
+            if (lease.durationInMs < 0) {
+                this.infiniteLeases.add(lease);
+            }
+            else {
+                this.scheduleRenewal(lease, termStart);
+            }
+        }
+
+        return lease;
+    }
+
+    /**
+     * Records the start of a lease term and queues the next renewal. Must be called while holding the lock.
+     */
+    private void scheduleRenewal(final Lease lease, final long termStart) {
+        lease.expiryTime = termStart + lease.durationInMs;
+        final double fraction = RENEWAL_FRACTION + RENEWAL_JITTER * this.random.nextDouble();
+        lease.nextRenewalTime = termStart + (long) (lease.durationInMs * fraction);
+        this.schedule.add(lease);
+        this.notifyAll();
+    }
+
+    /**
+     * Waits for leases to fall due and dispatches their renewals.
+     */
+    private void runScheduler() {
+        final List<Lease> batch = new ArrayList<Lease>();
+        while (true) {
+            synchronized (this) {
+                try {
+                    while (!this.isShutdown) {
+                        final Lease next = this.schedule.peek();
+                        final long delay = next == null ? 0 : next.nextRenewalTime - System.currentTimeMillis();
+                        if (next != null && delay <= 0) {
+                            break;
+                        }
+
+                        this.wait(delay);
+                    }
+                }
+                catch (final InterruptedException e) {
+                    return;
+                }
+
+                if (this.isShutdown) {
+                    return;
+                }
+
+                final long horizon = System.currentTimeMillis() + this.batchWindowInMs;
+                while (!this.schedule.isEmpty() && this.schedule.peek().nextRenewalTime <= horizon) {
+                    final Lease lease = this.schedule.poll();
+                    this.renewing.add(lease);
+                    batch.add(lease);
+                }
+            }
+
+            for (final Lease lease : batch) {
+                try {
+                    this.renewalPool.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            BlobLeaseKeeper.this.renew(lease);
+                        }
+                    });
+                }
+                catch (final RejectedExecutionException e) {
+                    // Only possible once shutdown has started; hand the lease back to be released.
+                    synchronized (this) {
+                        this.renewing.remove(lease);
+                        this.schedule.add(lease);
+                        this.notifyAll();
+                    }
+                }
+            }
+
+            batch.clear();
+        }
+    }
+
+    /**
+     * Renews a lease and schedules its next renewal, or reports it as lost.
+     */
+    private void renew(final Lease lease) {
+        final long termStart = System.currentTimeMillis();
+        StorageException failure = null;
+        try {
+            lease.renew(new BlobRequestOptions(this.options));
+        }
+        catch (final StorageException e) {
+            failure = e;
+        }
+
+        synchronized (this) {
+            this.renewing.remove(lease);
+            this.notifyAll();
+
+            if (lease.released) {
+                return;
+            }
+
+            if (this.isShutdown && (failure == null || !isLeaseGone(failure))) {
+                // Still held; shutdown releases it.
+                this.schedule.add(lease);
+                return;
+            }
+
+            if (failure == null) {
+                this.scheduleRenewal(lease, termStart);
+                return;
+            }
+
+            final long now = System.currentTimeMillis();
+            if (!isLeaseGone(failure) && now + RETRY_INTERVAL_IN_MS < lease.expiryTime) {
+                lease.nextRenewalTime = now + RETRY_INTERVAL_IN_MS;
+                this.schedule.add(lease);
+                this.notifyAll();
+                return;
+            }
+
+            lease.lost = true;
+        }
+
+        final LeaseLostListener currentListener = this.listener;
+        if (currentListener != null) {
+            currentListener.leaseLost(lease, failure);
+        }
+    }
+
+    /**
+     * Returns whether a renewal failure shows that the lease can no longer be renewed.
+     */
+    private static boolean isLeaseGone(final StorageException e) {
+        final int status = e.getHttpStatusCode();
+        return status == HttpURLConnection.HTTP_CONFLICT || status == HttpURLConnection.HTTP_PRECON_FAILED
+                || status == HttpURLConnection.HTTP_NOT_FOUND;
+    }
+
+    private Lease createLease(final CloudBlob leasedBlob, final String leaseId, final int leaseTimeInSeconds)
+            throws StorageException {
+        // Renewals update the ETag of the blob they are made on; use a copy so that the caller's blob keeps the ETag
+        // of its own requests.
+        final CloudBlob blob = leasedBlob.createAttemptCopy();
+        return new Lease(leaseId, leaseTimeInSeconds) {
+            @Override
+            public URI getUri() {
+                return blob.getUri();
+            }
+
+            @Override
+            void renew(final BlobRequestOptions options) throws StorageException {
+                blob.renewLease(this.getAccessCondition(), options, null);
+            }
+
+            @Override
+            void release(final BlobRequestOptions options) throws StorageException {
+                blob.releaseLease(this.getAccessCondition(), options, null);
+            }
+        };
+    }
+
+    private Lease createLease(final CloudBlobContainer container, final String leaseId, final int leaseTimeInSeconds) {
+        return new Lease(leaseId, leaseTimeInSeconds) {
+            @Override
+            public URI getUri() {
+                return container.getUri();
+            }
+
+            @Override
+            void renew(final BlobRequestOptions options) throws StorageException {
+                container.renewLease(this.getAccessCondition(), options, null);
+            }
+
+            @Override
+            void release(final BlobRequestOptions options) throws StorageException {
+                container.releaseLease(this.getAccessCondition(), options, null);
+            }
+        };
+    }
+}
@@ -35,7 +35,12 @@ public enum BlobListingDetails {
     /**
      * Specifies listing uncommitted blobs.
      */
-    UNCOMMITTED_BLOBS(4);
+    UNCOMMITTED_BLOBS(4),
+
+    /**
+     * Specifies listing the copy state of each blob that has been the destination of a copy operation.
+     */
+    COPY(8);
 
     /**
      * Returns the value of this enum.
@@ -37,6 +37,7 @@ import com.microsoft.windowsazure.services.core.storage.OperationContext;
 import com.microsoft.windowsazure.services.core.storage.StorageException;
 import com.microsoft.windowsazure.services.core.storage.utils.Base64;
 import com.microsoft.windowsazure.services.core.storage.utils.Utility;
+import com.microsoft.windowsazure.services.core.storage.utils.implementation.AsyncDigest;
 
 /**
  * The class is an append-only stream for writing into storage.
@@ -83,9 +84,10 @@ public final class BlobOutputStream extends OutputStream {
     BlobRequestOptions options;
 
     /**
-     * Holds the reference to the MD5 digest for the blob.
+     * Holds the reference to the MD5 digest for the blob, fed with each block as it is dispatched and hashed off the
+     * writer's thread.
      */
-    private MessageDigest md5Digest;
+    private AsyncDigest md5Digest;
 
     /**
      * Used for block blobs, holds the current BlockID Sequence number.
@@ -178,7 +180,7 @@ public final class BlobOutputStream extends OutputStream {
 
         if (this.options.getStoreBlobContentMD5()) {
             try {
-                this.md5Digest = MessageDigest.getInstance("MD5");
+                this.md5Digest = new AsyncDigest(MessageDigest.getInstance("MD5"));
             }
             catch (final NoSuchAlgorithmException e) {
                 // This wont happen, throw fatal.
@@ -316,7 +318,7 @@ public final class BlobOutputStream extends OutputStream {
     @DoesServiceRequest
     private void commit() throws StorageException, IOException {
         if (this.options.getStoreBlobContentMD5()) {
-            this.parentBlobRef.getProperties().setContentMD5(Base64.encode(this.md5Digest.digest()));
+            this.parentBlobRef.getProperties().setContentMD5(Base64.encode(this.md5Digest.await().digest()));
         }
 
         if (this.streamType == BlobType.BLOCK_BLOB) {
@@ -351,7 +353,13 @@ public final class BlobOutputStream extends OutputStream {
             this.waitForTaskToComplete();
         }
 
-        final ByteArrayInputStream bufferRef = new ByteArrayInputStream(this.outBuffer.toByteArray());
+        final byte[] bufferData = this.outBuffer.toByteArray();
+        final ByteArrayInputStream bufferRef = new ByteArrayInputStream(bufferData);
+
+        // Blocks are dispatched in order, so the blob MD5 can be fed from the dispatched buffer without a copy.
+        if (this.options.getStoreBlobContentMD5()) {
+            this.md5Digest.update(bufferData, bufferData.length);
+        }
 
         if (this.streamType == BlobType.BLOCK_BLOB) {
             final CloudBlockBlob blobRef = (CloudBlockBlob) this.parentBlobRef;
@@ -362,8 +370,24 @@ public final class BlobOutputStream extends OutputStream {
                 @Override
                 public Void call() {
                     try {
-                        blobRef.uploadBlock(blockID, bufferRef, writeLength, BlobOutputStream.this.accessCondition,
-                                BlobOutputStream.this.options, BlobOutputStream.this.opContext);
+                        // The transactional MD5 is computed here, in parallel per block, rather than by re-reading
+                        // the buffer through uploadBlock.
+                        String blockMD5 = null;
+                        if (BlobOutputStream.this.options.getUseTransactionalContentMD5()) {
+                            final MessageDigest blockDigest = MessageDigest.getInstance("MD5");
+                            blockDigest.update(bufferData);
+                            blockMD5 = Base64.encode(blockDigest.digest());
+                        }
+
+                        blobRef.uploadBlockInternal(blockID, blockMD5, bufferRef, writeLength,
+                                BlobOutputStream.this.accessCondition, BlobOutputStream.this.options,
+                                BlobOutputStream.this.opContext);
+                    }
+                    catch (final NoSuchAlgorithmException e) {
+                        synchronized (BlobOutputStream.this.lastErrorLock) {
+                            BlobOutputStream.this.streamFaulted = true;
+                            BlobOutputStream.this.lastError = Utility.initIOException(e);
+                        }
                     }
                     catch (final IOException e) {
                         synchronized (BlobOutputStream.this.lastErrorLock) {
@@ -596,11 +620,6 @@ public final class BlobOutputStream extends OutputStream {
             final int availableBufferBytes = this.internalWriteThreshold - this.currentBufferedBytes;
             final int nextWrite = Math.min(availableBufferBytes, length);
 
-            // If we need to set MD5 then update the digest accordingly
-            if (this.options.getStoreBlobContentMD5()) {
-                this.md5Digest.update(data, offset, nextWrite);
-            }
-
             // If Page blob and UseSparsePageBlob is true, then track first and
             // last non zero bytes.
             if (this.options.getUseSparsePageBlob()) {
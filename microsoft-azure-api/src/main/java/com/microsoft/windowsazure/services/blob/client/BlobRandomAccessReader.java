@@ -0,0 +1,522 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.services.blob.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.microsoft.windowsazure.services.core.storage.AccessCondition;
+import com.microsoft.windowsazure.services.core.storage.Constants;
+import com.microsoft.windowsazure.services.core.storage.DoesServiceRequest;
+import com.microsoft.windowsazure.services.core.storage.OperationContext;
+import com.microsoft.windowsazure.services.core.storage.StorageException;
+import com.microsoft.windowsazure.services.core.storage.utils.Utility;
+
+/**
+ * Provides random access reads over a blob, for readers that make many small reads at scattered offsets.
+ * <p>
+ * The blob is read in fixed-size, aligned blocks which are kept in a least recently used cache. A read that needs
+ * several uncached adjacent blocks fetches them with a single range request. Positional reads through
+ * {@link #read(ByteBuffer, long)} may be issued concurrently from many threads: the cache is only locked to look up
+ * and insert blocks, requests run outside any lock, and threads that need a block already being fetched wait for that
+ * request rather than issuing their own.
+ * <p>
+ * The blob length and ETag are captured when the reader is created and every range request is conditional on that
+ * ETag, so a blob modified while it is being read causes reads to fail rather than return mixed content.
+ * <p>
+ * The methods mirror <code>SeekableByteChannel</code>, which is not available on the Java versions this library
+ * supports, so the class implements <code>ReadableByteChannel</code>.
+ */
+public final class BlobRandomAccessReader implements ReadableByteChannel {
+    /**
+     * The default size of a cached block.
+     */
+    public static final int DEFAULT_BLOCK_SIZE_IN_BYTES = 256 * Constants.KB;
+
+    /**
+     * The default total size of cached blocks.
+     */
+    public static final long DEFAULT_CACHE_SIZE_IN_BYTES = 64L * Constants.MB;
+
+    /**
+     * The largest range fetched by a single request when coalescing uncached blocks.
+     */
+    private static final int MAX_FETCH_SIZE_IN_BYTES = 4 * Constants.MB;
+
+    /**
+     * Represents a block being fetched, which other readers may wait on.
+     */
+    private static final class PendingBlock {
+        private byte[] data;
+        private IOException error;
+        private boolean done;
+
+        synchronized void complete(final byte[] data, final IOException error) {
+            this.data = data;
+            this.error = error;
+            this.done = true;
+            this.notifyAll();
+        }
+
+        synchronized byte[] await() throws IOException {
+            while (!this.done) {
+                try {
+                    this.wait();
+                }
+                catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for a blob range.");
+                }
+            }
+
+            if (this.error != null) {
+                throw this.error;
+            }
+
+            return this.data;
+        }
+    }
+
+    /**
+     * Holds the blob being read.
+     */
+    private final CloudBlob blob;
+
+    /**
+     * Holds the condition applied to every range request, the ETag captured on open plus any lease.
+     */
+    private final AccessCondition readCondition;
+
+    /**
+     * Holds the options for range requests.
+     */
+    private final BlobRequestOptions options;
+
+    /**
+     * Holds the size of a cached block.
+     */
+    private final int blockSize;
+
+    /**
+     * Holds the maximum number of cached blocks.
+     */
+    private final int maxCachedBlocks;
+
+    /**
+     * Holds the length of the blob.
+     */
+    private final long length;
+
+    /**
+     * Holds the cached blocks in access order, guarded by itself.
+     */
+    private final LinkedHashMap<Long, byte[]> cache;
+
+    /**
+     * Holds the blocks currently being fetched.
+     */
+    private final ConcurrentHashMap<Long, PendingBlock> pending = new ConcurrentHashMap<Long, PendingBlock>();
+
+    /**
+     * Holds the position used by {@link #read(ByteBuffer)}, guarded by this.
+     */
+    private long position;
+
+    /**
+     * Indicates whether the reader is open.
+     */
+    private volatile boolean open = true;
+
+    /**
+     * Holds the number of blocks served from the cache.
+     */
+    private final AtomicLong cacheHitCount = new AtomicLong();
+
+    /**
+     * Holds the number of blocks fetched from the service.
+     */
+    private final AtomicLong cacheMissCount = new AtomicLong();
+
+    /**
+     * Holds the number of range requests made.
+     */
+    private final AtomicLong requestCount = new AtomicLong();
+
+    /**
+     * Creates a reader over the specified blob with the default block and cache sizes.
+     * 
+     * @param blob
+     *            A {@link CloudBlob} object that represents the blob to read.
+     * 
+     * @throws StorageException
+     *             If a storage service error occurred.
+     */
+    @DoesServiceRequest
+    public BlobRandomAccessReader(final CloudBlob blob) throws StorageException {
+        this(blob, DEFAULT_BLOCK_SIZE_IN_BYTES, DEFAULT_CACHE_SIZE_IN_BYTES, null, null, null);
+    }
+
+    /**
+     * Creates a reader over the specified blob using the specified block size, cache size, access condition, request
+     * options, and operation context. The blob attributes are retrieved to determine its length and ETag.
+     * 
+     * @param blob
+     *            A {@link CloudBlob} object that represents the blob to read.
+     * @param blockSizeInBytes
+     *            The size of a cached block; reads are fetched in whole blocks.
+     * @param cacheSizeInBytes
+     *            The total size of cached blocks.
+     * @param accessCondition
+     *            An {@link AccessCondition} object that represents the access conditions for the blob.
+     * @param options
+     *            A {@link BlobRequestOptions} object that specifies any additional options for the request. Specifying
+     *            <code>null</code> will use the default request options from the associated service client (
+     *            {@link CloudBlobClient}).
+     * @param opContext
+     *            An {@link OperationContext} object used to retrieve the blob attributes. Range requests are made from
+     *            several threads and each uses its own context.
+     * 
+     * @throws StorageException
+     *             If a storage service error occurred.
+     */
+    @DoesServiceRequest
+    public BlobRandomAccessReader(final CloudBlob blob, final int blockSizeInBytes, final long cacheSizeInBytes,
+            final AccessCondition accessCondition, BlobRequestOptions options, final OperationContext opContext)
+            throws StorageException {
+        if (blockSizeInBytes < 1 || blockSizeInBytes > MAX_FETCH_SIZE_IN_BYTES) {
+            throw new IllegalArgumentException(String.format("The block size must be between 1 byte and %d MB.",
+                    MAX_FETCH_SIZE_IN_BYTES / Constants.MB));
+        }
+
+        if (cacheSizeInBytes < blockSizeInBytes) {
+            throw new IllegalArgumentException("The cache size must be at least one block.");
+        }
+
+        if (options == null) {
+            options = new BlobRequestOptions();
+        }
+
+        options.applyDefaults(blob.blobServiceClient);
+
+        this.blob = blob;
+        this.options = options;
+        this.blockSize = blockSizeInBytes;
+        this.maxCachedBlocks = (int) Math.min(Integer.MAX_VALUE, cacheSizeInBytes / blockSizeInBytes);
+        this.cache = new LinkedHashMap<Long, byte[]>(16, 0.75f, true);
+
+        blob.downloadAttributes(accessCondition, options, opContext);
+        this.length = blob.getProperties().getLength();
+
+        this.readCondition = new AccessCondition();
+        this.readCondition.setIfMatch(blob.getProperties().getEtag());
+        if (accessCondition != null) {
+            this.readCondition.setLeaseID(accessCondition.getLeaseID());
+        }
+    }
+
+    /**
+     * Reads bytes into the buffer starting at the current position, and advances the position by the number of bytes
+     * read.
+     * 
+     * @param dst
+     *            The buffer to read into.
+     * @return The number of bytes read, or -1 if the position is at or past the end of the blob.
+     * @throws IOException
+     *             If an I/O error occurred, including a storage service error.
+     */
+    @Override
+    @DoesServiceRequest
+    public synchronized int read(final ByteBuffer dst) throws IOException {
+        final int read = this.read(dst, this.position);
+        if (read > 0) {
+            this.position += read;
+        }
+
+        return read;
+    }
+
+    /**
+     * Reads bytes into the buffer starting at the specified position, without changing the current position. This
+     * method may be called concurrently from several threads.
+     * 
+     * @param dst
+     *            The buffer to read into.
+     * @param position
+     *            The blob offset to read from.
+     * @return The number of bytes read, or -1 if the position is at or past the end of the blob.
+     * @throws IOException
+     *             If an I/O error occurred, including a storage service error.
+     */
+    @DoesServiceRequest
+    public int read(final ByteBuffer dst, final long position) throws IOException {
+        if (!this.open) {
+            throw new ClosedChannelException();
+        }
+
+        if (position < 0) {
+            throw new IllegalArgumentException("The position must not be negative.");
+        }
+
+        if (position >= this.length) {
+            return -1;
+        }
+
+        final int toRead = (int) Math.min(dst.remaining(), this.length - position);
+        if (toRead == 0) {
+            return 0;
+        }
+
+        final long firstBlock = position / this.blockSize;
+        final long lastBlock = (position + toRead - 1) / this.blockSize;
+        final byte[][] blocks = this.getBlocks(firstBlock, lastBlock);
+
+        long current = position;
+        int remaining = toRead;
+        for (final byte[] block : blocks) {
+            final int blockOffset = (int) (current % this.blockSize);
+            final int count = Math.min(remaining, block.length - blockOffset);
+            dst.put(block, blockOffset, count);
+            current += count;
+            remaining -= count;
+        }
+
+        return toRead;
+    }
+
+    /**
+     * Returns the position used by {@link #read(ByteBuffer)}.
+     * 
+     * @return The current position.
+     */
+    public synchronized long position() {
+        return this.position;
+    }
+
+    /**
+     * Sets the position used by {@link #read(ByteBuffer)}. Setting a position past the end of the blob is allowed;
+     * reads from it return -1.
+     * 
+     * @param newPosition
+     *            The new position.
+     * @return This reader.
+     */
+    public synchronized BlobRandomAccessReader position(final long newPosition) {
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("The position must not be negative.");
+        }
+
+        this.position = newPosition;
+        return this;
+    }
+
+    /**
+     * Returns the length of the blob when the reader was created.
+     * 
+     * @return The blob length, in bytes.
+     */
+    public long size() {
+        return this.length;
+    }
+
+    /**
+     * @return The number of blocks served from the cache.
+     */
+    public long getCacheHitCount() {
+        return this.cacheHitCount.get();
+    }
+
+    /**
+     * @return The number of blocks fetched from the service.
+     */
+    public long getCacheMissCount() {
+        return this.cacheMissCount.get();
+    }
+
+    /**
+     * @return The number of range requests made to the service.
+     */
+    public long getRequestCount() {
+        return this.requestCount.get();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return this.open;
+    }
+
+    /**
+     * Closes the reader and releases its cached blocks.
+     */
+    @Override
+    public void close() {
+        this.open = false;
+        synchronized (this.cache) {
+            this.cache.clear();
+        }
+    }
+
+    /**
+     * Returns the specified inclusive range of blocks, fetching uncached blocks with as few requests as possible.
+     */
+    @DoesServiceRequest
+    private byte[][] getBlocks(final long firstBlock, final long lastBlock) throws IOException {
+        final int count = (int) (lastBlock - firstBlock + 1);
+        final byte[][] blocks = new byte[count][];
+        final PendingBlock[] owned = new PendingBlock[count];
+        final PendingBlock[] awaited = new PendingBlock[count];
+
+        for (int m = 0; m < count; m++) {
+            final Long index = firstBlock + m;
+            blocks[m] = this.getCached(index);
+            if (blocks[m] != null) {
+                this.cacheHitCount.incrementAndGet();
+                continue;
+            }
+
+            final PendingBlock claim = new PendingBlock();
+            final PendingBlock existing = this.pending.putIfAbsent(index, claim);
+            if (existing != null) {
+                awaited[m] = existing;
+                continue;
+            }
+
+            // Another reader may have cached the block between the lookup and the claim.
+            blocks[m] = this.getCached(index);
+            if (blocks[m] != null) {
+                this.pending.remove(index);
+                claim.complete(blocks[m], null);
+                this.cacheHitCount.incrementAndGet();
+            }
+            else {
+                owned[m] = claim;
+            }
+        }
+
+        try {
+            this.fetchOwned(firstBlock, blocks, owned);
+        }
+        finally {
+            // Release any claim left unfinished by a failure so waiting readers do not hang.
+            final IOException abandoned = new IOException("The range request for this block failed.");
+            for (int m = 0; m < count; m++) {
+                if (owned[m] != null && blocks[m] == null) {
+                    this.pending.remove(firstBlock + m);
+                    owned[m].complete(null, abandoned);
+                }
+            }
+        }
+
+        for (int m = 0; m < count; m++) {
+            if (awaited[m] != null) {
+                blocks[m] = awaited[m].await();
+                this.cacheHitCount.incrementAndGet();
+            }
+        }
+
+        return blocks;
+    }
+
+    /**
+     * Fetches the blocks claimed by this reader, coalescing runs of adjacent claimed blocks into single requests.
+     */
+    @DoesServiceRequest
+    private void fetchOwned(final long firstBlock, final byte[][] blocks, final PendingBlock[] owned)
+            throws IOException {
+        final int maxRunBlocks = Math.max(1, MAX_FETCH_SIZE_IN_BYTES / this.blockSize);
+        int m = 0;
+        while (m < owned.length) {
+            if (owned[m] == null) {
+                m++;
+                continue;
+            }
+
+            final int runStart = m;
+            while (m < owned.length && owned[m] != null && m - runStart < maxRunBlocks) {
+                m++;
+            }
+
+            final long offset = (firstBlock + runStart) * this.blockSize;
+            final int runLength = (int) Math.min((long) (m - runStart) * this.blockSize, this.length - offset);
+            final byte[] data = this.fetchRange(offset, runLength);
+
+            for (int b = runStart; b < m; b++) {
+                final int dataOffset = (b - runStart) * this.blockSize;
+                final byte[] block = new byte[Math.min(this.blockSize, runLength - dataOffset)];
+                System.arraycopy(data, dataOffset, block, 0, block.length);
+
+                final Long index = firstBlock + b;
+                this.putCached(index, block);
+                blocks[b] = block;
+                this.pending.remove(index);
+                owned[b].complete(block, null);
+                this.cacheMissCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Downloads a range of the blob. Each request uses its own copy of the blob and operation context, as requests
+     * run concurrently.
+     */
+    @DoesServiceRequest
+    private byte[] fetchRange(final long offset, final int length) throws IOException {
+        final byte[] data = new byte[length];
+        this.requestCount.incrementAndGet();
+        try {
+            this.blob.createAttemptCopy().downloadRange(offset, length, data, 0, this.readCondition,
+                    new BlobRequestOptions(this.options), new OperationContext());
+        }
+        catch (final StorageException e) {
+            throw Utility.initIOException(e);
+        }
+
+        return data;
+    }
+
+    /**
+     * Returns a cached block, or <code>null</code>.
+     */
+    private byte[] getCached(final Long index) {
+        synchronized (this.cache) {
+            return this.cache.get(index);
+        }
+    }
+
+    /**
+     * Caches a block, evicting the least recently used blocks beyond the cache size.
+     */
+    private void putCached(final Long index, final byte[] block) {
+        if (!this.open) {
+            return;
+        }
+
+        synchronized (this.cache) {
+            this.cache.put(index, block);
+
+            final Iterator<Long> iterator = this.cache.keySet().iterator();
+            while (this.cache.size() > this.maxCachedBlocks && iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+            }
+        }
+    }
+}
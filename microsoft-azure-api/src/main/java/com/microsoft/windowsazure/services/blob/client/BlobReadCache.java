@@ -0,0 +1,596 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.services.blob.client;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.microsoft.windowsazure.services.core.storage.AccessCondition;
+import com.microsoft.windowsazure.services.core.storage.Constants;
+import com.microsoft.windowsazure.services.core.storage.DoesServiceRequest;
+import com.microsoft.windowsazure.services.core.storage.OperationContext;
+import com.microsoft.windowsazure.services.core.storage.StorageErrorCodeStrings;
+import com.microsoft.windowsazure.services.core.storage.StorageException;
+import com.microsoft.windowsazure.services.core.storage.utils.StreamMd5AndLength;
+import com.microsoft.windowsazure.services.core.storage.utils.Utility;
+import com.microsoft.windowsazure.services.core.storage.utils.implementation.ExecutionEngine;
+import com.microsoft.windowsazure.services.core.storage.utils.implementation.StorageOperation;
+
+/**
+ * Represents a read-through cache of blob content, held in memory or in a local directory.
+ * <p>
+ * A cached copy is served without contacting the service while it is younger than the revalidation interval. After
+ * that, the blob is requested with an <code>If-None-Match</code> condition on the cached ETag: a
+ * <code>304 Not Modified</code> response refreshes the cached copy, any other content replaces it. Entries are evicted
+ * in least recently used order once the total cached size exceeds the configured maximum; blobs larger than the
+ * maximum are never cached and are read from the service directly.
+ * <p>
+ * A single cache may be shared by many threads and blobs. A cache directory is treated as scratch space; its contents
+ * are not reused across instances.
+ */
+public final class BlobReadCache {
+    /**
+     * Represents a cached copy of a blob.
+     */
+    private static final class Entry {
+        final String etag;
+        final long length;
+        final byte[] data;
+        final File file;
+        volatile long validatedTime;
+
+        Entry(final String etag, final long length, final byte[] data, final File file) {
+            this.etag = etag;
+            this.length = length;
+            this.data = data;
+            this.file = file;
+        }
+
+        InputStream openStream() throws IOException {
+            if (this.data != null) {
+                return new ByteArrayInputStream(this.data);
+            }
+
+            return new BufferedInputStream(new FileInputStream(this.file), Constants.BUFFER_COPY_LENGTH);
+        }
+
+        int read(final long offset, final byte[] buffer, final int bufferOffset, final int length)
+                throws IOException {
+            final int count = (int) Math.max(0, Math.min(length, this.length - offset));
+            if (count == 0) {
+                return 0;
+            }
+
+            if (this.data != null) {
+                System.arraycopy(this.data, (int) offset, buffer, bufferOffset, count);
+                return count;
+            }
+
+            final RandomAccessFile raf = new RandomAccessFile(this.file, "r");
+            try {
+                raf.seek(offset);
+                raf.readFully(buffer, bufferOffset, count);
+            }
+            finally {
+                raf.close();
+            }
+
+            return count;
+        }
+
+        void discard() {
+            if (this.file != null && !this.file.delete()) {
+                // Still open by a reader on a platform that does not allow deleting open files.
+                this.file.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Marks a response that confirmed the cached copy.
+     */
+    private static final Entry NOT_MODIFIED = new Entry(null, 0, null, null);
+
+    /**
+     * Marks a response for a blob too large to cache.
+     */
+    private static final Entry TOO_LARGE = new Entry(null, 0, null, null);
+
+    /**
+     * Holds the maximum total size of cached content.
+     */
+    private final long maxSizeInBytes;
+
+    /**
+     * Holds the directory cached content is written to, or <code>null</code> to cache in memory.
+     */
+    private final File cacheDirectory;
+
+    /**
+     * Holds the cached entries in access order, guarded by this.
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    /**
+     * Holds the total size of cached content, guarded by this.
+     */
+    private long sizeInBytes;
+
+    /**
+     * Holds the time, in milliseconds, a cached copy is served before it is revalidated.
+     */
+    private volatile long revalidationIntervalInMs;
+
+    /**
+     * Holds the number of reads served from a cached copy.
+     */
+    private final AtomicLong hitCount = new AtomicLong();
+
+    /**
+     * Holds the number of reads that transferred the blob content.
+     */
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * Holds the number of content bytes that did not have to be transferred.
+     */
+    private final AtomicLong bytesSaved = new AtomicLong();
+
+    /**
+     * Creates an instance of the <code>BlobReadCache</code> class that caches content in memory.
+     * 
+     * @param maxSizeInBytes
+     *            The maximum total size, in bytes, of cached content.
+     */
+    public BlobReadCache(final long maxSizeInBytes) {
+        this(maxSizeInBytes, null);
+    }
+
+    /**
+     * Creates an instance of the <code>BlobReadCache</code> class that caches content in the specified directory.
+     * 
+     * @param maxSizeInBytes
+     *            The maximum total size, in bytes, of cached content.
+     * @param cacheDirectory
+     *            The directory to write cached content to, or <code>null</code> to cache in memory.
+     */
+    public BlobReadCache(final long maxSizeInBytes, final File cacheDirectory) {
+        if (maxSizeInBytes < 1) {
+            throw new IllegalArgumentException("The maximum cache size must be positive.");
+        }
+
+        if (cacheDirectory != null && !cacheDirectory.isDirectory() && !cacheDirectory.mkdirs()) {
+            throw new IllegalArgumentException(String.format("The cache directory %s could not be created.",
+                    cacheDirectory));
+        }
+
+        this.maxSizeInBytes = maxSizeInBytes;
+        this.cacheDirectory = cacheDirectory;
+    }
+
+    /**
+     * Returns the time a cached copy is served before it is revalidated with the service.
+     * 
+     * @return The revalidation interval, in milliseconds. Zero means every read is revalidated.
+     */
+    public long getRevalidationIntervalInMs() {
+        return this.revalidationIntervalInMs;
+    }
+
+    /**
+     * Sets the time a cached copy is served before it is revalidated with the service. The default is zero, so every
+     * read issues a conditional request; a 304 response costs a round trip but no content transfer.
+     * 
+     * @param revalidationIntervalInMs
+     *            The revalidation interval, in milliseconds.
+     */
+    public void setRevalidationIntervalInMs(final long revalidationIntervalInMs) {
+        if (revalidationIntervalInMs < 0) {
+            throw new IllegalArgumentException("The revalidation interval must not be negative.");
+        }
+
+        this.revalidationIntervalInMs = revalidationIntervalInMs;
+    }
+
+    /**
+     * @return The number of reads served from a cached copy, including copies confirmed by a 304 response.
+     */
+    public long getHitCount() {
+        return this.hitCount.get();
+    }
+
+    /**
+     * @return The number of reads that transferred the blob content from the service.
+     */
+    public long getMissCount() {
+        return this.missCount.get();
+    }
+
+    /**
+     * @return The number of content bytes served from cached copies rather than transferred.
+     */
+    public long getBytesSaved() {
+        return this.bytesSaved.get();
+    }
+
+    /**
+     * @return The total size, in bytes, of cached content.
+     */
+    public synchronized long getSizeInBytes() {
+        return this.sizeInBytes;
+    }
+
+    /**
+     * Removes the cached copy of a blob, if any.
+     * 
+     * @param blob
+     *            The blob to remove.
+     */
+    public synchronized void invalidate(final CloudBlob blob) {
+        final Entry entry = this.entries.remove(getKey(blob));
+        if (entry != null) {
+            this.sizeInBytes -= entry.length;
+            entry.discard();
+        }
+    }
+
+    /**
+     * Removes every cached copy.
+     */
+    public synchronized void clear() {
+        for (final Entry entry : this.entries.values()) {
+            entry.discard();
+        }
+
+        this.entries.clear();
+        this.sizeInBytes = 0;
+    }
+
+    /**
+     * Downloads the contents of a blob to a stream, serving it from the cache when possible.
+     * 
+     * @param blob
+     *            The blob to read.
+     * @param outStream
+     *            An <code>OutputStream</code> object that represents the target stream.
+     * @param options
+     *            A {@link BlobRequestOptions} object that specifies any additional options for the request. Specifying
+     *            <code>null</code> will use the default request options from the associated service client (
+     *            {@link CloudBlobClient}).
+     * @param opContext
+     *            An {@link OperationContext} object that represents the context for the current operation. This object
+     *            is used to track requests to the storage service, and to provide additional runtime information about
+     *            the operation.
+     * 
+     * @throws IOException
+     *             If an I/O exception occurred.
+     * @throws StorageException
+     *             If a storage service error occurred.
+     */
+    @DoesServiceRequest
+    public void download(final CloudBlob blob, final OutputStream outStream, BlobRequestOptions options,
+            OperationContext opContext) throws StorageException, IOException {
+        if (opContext == null) {
+            opContext = new OperationContext();
+        }
+
+        if (options == null) {
+            options = new BlobRequestOptions();
+        }
+
+        final Entry entry = this.getEntry(blob, options, opContext);
+        if (entry == null) {
+            blob.download(outStream, null, options, opContext);
+            return;
+        }
+
+        final InputStream cached = entry.openStream();
+        try {
+            Utility.writeToOutputStream(cached, outStream, -1, false, false, null, null);
+        }
+        finally {
+            cached.close();
+        }
+    }
+
+    /**
+     * Opens a stream over the contents of a blob, serving it from the cache when possible.
+     * 
+     * @param blob
+     *            The blob to read.
+     * @param options
+     *            A {@link BlobRequestOptions} object that specifies any additional options for the request. Specifying
+     *            <code>null</code> will use the default request options from the associated service client (
+     *            {@link CloudBlobClient}).
+     * @param opContext
+     *            An {@link OperationContext} object that represents the context for the current operation. This object
+     *            is used to track requests to the storage service, and to provide additional runtime information about
+     *            the operation.
+     * @return An <code>InputStream</code> object over the blob contents.
+     * 
+     * @throws IOException
+     *             If an I/O exception occurred.
+     * @throws StorageException
+     *             If a storage service error occurred.
+     */
+    @DoesServiceRequest
+    public InputStream openInputStream(final CloudBlob blob, BlobRequestOptions options, OperationContext opContext)
+            throws StorageException, IOException {
+        if (opContext == null) {
+            opContext = new OperationContext();
+        }
+
+        if (options == null) {
+            options = new BlobRequestOptions();
+        }
+
+        final Entry entry = this.getEntry(blob, options, opContext);
+        if (entry == null) {
+            return blob.openInputStream(null, options, opContext);
+        }
+
+        return entry.openStream();
+    }
+
+    /**
+     * Downloads a range of bytes from a blob into a byte array, serving it from the cache when possible.
+     * 
+     * @param blob
+     *            The blob to read.
+     * @param offset
+     *            The byte offset to use as the starting point for the source.
+     * @param length
+     *            The number of bytes to read.
+     * @param buffer
+     *            The byte buffer, as an array of bytes, to which the blob bytes are downloaded.
+     * @param bufferOffset
+     *            The byte offset to use as the starting point for the target.
+     * @param options
+     *            A {@link BlobRequestOptions} object that specifies any additional options for the request. Specifying
+     *            <code>null</code> will use the default request options from the associated service client (
+     *            {@link CloudBlobClient}).
+     * @param opContext
+     *            An {@link OperationContext} object that represents the context for the current operation. This object
+     *            is used to track requests to the storage service, and to provide additional runtime information about
+     *            the operation.
+     * @return The number of bytes copied, which is less than <code>length</code> when the range extends past the end
+     *         of the blob.
+     * 
+     * @throws IOException
+     *             If an I/O exception occurred.
+     * @throws StorageException
+     *             If a storage service error occurred.
+     */
+    @DoesServiceRequest
+    public int downloadRange(final CloudBlob blob, final long offset, final int length, final byte[] buffer,
+            final int bufferOffset, BlobRequestOptions options, OperationContext opContext) throws StorageException,
+            IOException {
+        if (offset < 0 || length < 0 || bufferOffset < 0 || length > buffer.length - bufferOffset) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        if (opContext == null) {
+            opContext = new OperationContext();
+        }
+
+        if (options == null) {
+            options = new BlobRequestOptions();
+        }
+
+        final Entry entry = this.getEntry(blob, options, opContext);
+        if (entry == null) {
+            blob.downloadRange(offset, length, buffer, bufferOffset, null, options, opContext);
+            return length;
+        }
+
+        return entry.read(offset, buffer, bufferOffset, length);
+    }
+
+    /**
+     * Returns a current cached copy of the blob, fetching or revalidating it as needed.
+     * 
+     * @return the cached entry, or <code>null</code> if the blob is too large to cache.
+     */
+    @DoesServiceRequest
+    private Entry getEntry(final CloudBlob blob, final BlobRequestOptions options, final OperationContext opContext)
+            throws StorageException, IOException {
+        final String key = getKey(blob);
+        Entry entry;
+        synchronized (this) {
+            entry = this.entries.get(key);
+        }
+
+        if (entry != null && System.currentTimeMillis() - entry.validatedTime < this.revalidationIntervalInMs) {
+            this.recordHit(entry);
+            return entry;
+        }
+
+        opContext.initialize();
+        options.applyDefaults(blob.blobServiceClient);
+
+        final Entry fetched = this.fetch(blob, entry, options, opContext);
+        if (fetched == TOO_LARGE) {
+            this.missCount.incrementAndGet();
+            this.invalidate(blob);
+            return null;
+        }
+        else if (fetched == NOT_MODIFIED) {
+            entry.validatedTime = System.currentTimeMillis();
+            this.recordHit(entry);
+            return entry;
+        }
+
+        this.missCount.incrementAndGet();
+        fetched.validatedTime = System.currentTimeMillis();
+        this.put(key, fetched);
+        return fetched;
+    }
+
+    /**
+     * Requests the blob content, conditional on the cached ETag when there is a cached copy.
+     */
+    @DoesServiceRequest
+    private Entry fetch(final CloudBlob blob, final Entry cached, final BlobRequestOptions options,
+            final OperationContext opContext) throws StorageException {
+        final AccessCondition condition = cached == null ? null : AccessCondition
+                .generateIfNoneMatchCondition(cached.etag);
+
+        final StorageOperation<CloudBlobClient, CloudBlob, Entry> impl = new StorageOperation<CloudBlobClient, CloudBlob, Entry>(
+                options) {
+            @Override
+            public Entry execute(final CloudBlobClient client, final CloudBlob blob, final OperationContext opContext)
+                    throws Exception {
+                final BlobRequestOptions blobOptions = (BlobRequestOptions) this.getRequestOptions();
+
+                final HttpURLConnection request = BlobRequest.get(blob.getTransformedAddress(opContext),
+                        blobOptions.getTimeoutIntervalInMs(), blob.snapshotID, condition, blobOptions, opContext);
+
+                client.getCredentials().signRequest(request, -1L);
+                final InputStream streamRef = ExecutionEngine.getInputStream(request, opContext, this.getResult());
+                ExecutionEngine.getResponseCode(this.getResult(), request, opContext);
+
+                if (this.getResult().getStatusCode() == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+                    streamRef.close();
+                    return NOT_MODIFIED;
+                }
+
+                if (this.getResult().getStatusCode() != HttpURLConnection.HTTP_OK) {
+                    this.setNonExceptionedRetryableFailure(true);
+                    return null;
+                }
+
+                final BlobAttributes retrievedAttributes = BlobResponse.getAttributes(request, blob.getUri(),
+                        blob.snapshotID, opContext);
+                blob.properties = retrievedAttributes.getProperties();
+                blob.metadata = retrievedAttributes.getMetadata();
+                blob.copyState = retrievedAttributes.getCopyState();
+
+                final long expectedLength = Long.parseLong(request
+                        .getHeaderField(Constants.HeaderConstants.CONTENT_LENGTH));
+                if (expectedLength > BlobReadCache.this.maxSizeInBytes) {
+                    request.disconnect();
+                    return TOO_LARGE;
+                }
+
+                final String contentMD5 = request.getHeaderField(Constants.HeaderConstants.CONTENT_MD5);
+                final boolean validateMD5 = !blobOptions.getDisableContentMD5Validation()
+                        && !Utility.isNullOrEmpty(contentMD5);
+
+                // Each attempt starts over with its own copy and digest.
+                opContext.setIntermediateMD5(null);
+                final File file = BlobReadCache.this.cacheDirectory == null ? null : File.createTempFile("blob",
+                        ".cache", BlobReadCache.this.cacheDirectory);
+                final OutputStream sink = file == null ? new ByteArrayOutputStream((int) expectedLength)
+                        : new FileOutputStream(file);
+
+                boolean complete = false;
+                try {
+                    final StreamMd5AndLength descriptor;
+                    try {
+                        descriptor = Utility.writeToOutputStream(streamRef, sink, -1, false, validateMD5,
+                                this.getResult(), opContext);
+                    }
+                    finally {
+                        sink.close();
+                        opContext.setIntermediateMD5(null);
+                    }
+
+                    if (descriptor.getLength() != expectedLength) {
+                        throw new StorageException(
+                                StorageErrorCodeStrings.OUT_OF_RANGE_INPUT,
+                                "An incorrect number of bytes was read from the connection. The connection may have been closed",
+                                Constants.HeaderConstants.HTTP_UNUSED_306, null, null);
+                    }
+
+                    if (validateMD5 && !contentMD5.equals(descriptor.getMd5())) {
+                        throw new StorageException(StorageErrorCodeStrings.INVALID_MD5, String.format(
+                                "Blob data corrupted (integrity check failed), Expected value is %s, retrieved %s",
+                                contentMD5, descriptor.getMd5()), Constants.HeaderConstants.HTTP_UNUSED_306, null,
+                                null);
+                    }
+
+                    complete = true;
+                }
+                finally {
+                    if (!complete && file != null) {
+                        file.delete();
+                    }
+                }
+
+                final byte[] data = file == null ? ((ByteArrayOutputStream) sink).toByteArray() : null;
+                return new Entry(blob.properties.getEtag(), expectedLength, data, file);
+            }
+        };
+
+        impl.setPartitionKey(blob.getUri().getPath());
+
+        return ExecutionEngine.executeWithRetry(blob.blobServiceClient, blob, impl, options.getRetryPolicyFactory(),
+                opContext);
+    }
+
+    /**
+     * Adds or replaces an entry and evicts least recently used entries until the cache fits its maximum size.
+     */
+    private synchronized void put(final String key, final Entry entry) {
+        final Entry previous = this.entries.put(key, entry);
+        if (previous != null) {
+            this.sizeInBytes -= previous.length;
+            previous.discard();
+        }
+
+        this.sizeInBytes += entry.length;
+
+        final Iterator<Map.Entry<String, Entry>> iterator = this.entries.entrySet().iterator();
+        while (this.sizeInBytes > this.maxSizeInBytes && iterator.hasNext()) {
+            final Entry eldest = iterator.next().getValue();
+            if (eldest == entry) {
+                continue;
+            }
+
+            iterator.remove();
+            this.sizeInBytes -= eldest.length;
+            eldest.discard();
+        }
+    }
+
+    /**
+     * Counts a read served from a cached entry.
+     */
+    private void recordHit(final Entry entry) {
+        this.hitCount.incrementAndGet();
+        this.bytesSaved.addAndGet(entry.length);
+    }
+
+    /**
+     * Returns the cache key for a blob, distinguishing snapshots.
+     */
+    private static String getKey(final CloudBlob blob) {
+        final String uri = blob.getUri().toString();
+        return blob.snapshotID == null ? uri : uri + "?snapshot=" + blob.snapshotID;
+    }
+}
@@ -622,6 +622,17 @@ final class BlobRequest {
                     sb.append("metadata");
                 }
 
+                if (listingContext.getListingDetails().contains(BlobListingDetails.COPY)) {
+                    if (!started) {
+                        started = true;
+                    }
+                    else {
+                        sb.append(",");
+                    }
+
+                    sb.append("copy");
+                }
+
                 builder.add("include", sb.toString());
             }
         }
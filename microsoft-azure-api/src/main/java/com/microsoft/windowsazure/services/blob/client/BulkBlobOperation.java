@@ -0,0 +1,287 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.services.blob.client;
+
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.microsoft.windowsazure.services.core.storage.AccessCondition;
+import com.microsoft.windowsazure.services.core.storage.OperationContext;
+import com.microsoft.windowsazure.services.core.storage.StorageException;
+import com.microsoft.windowsazure.services.core.storage.utils.Utility;
+
+/**
+ * Applies an operation to every blob in a listing, streaming the listing and running the operations in parallel.
+ * <p>
+ * The listing is read on the calling thread while at most twice the concurrent request count of operations are
+ * outstanding, so memory use does not grow with the number of blobs. Each operation is made with the retry policy of
+ * the request options, so transient failures are retried; operations that still fail are counted and reported in the
+ * {@link Result}. Use {@link CloudBlobContainer#deleteBlobs}, {@link CloudBlobContainer#uploadBlobMetadata} or
+ * {@link CloudBlobContainer#forEachBlob}, or their {@link CloudBlobDirectory} equivalents, to start a bulk operation.
+ */
+public final class BulkBlobOperation {
+    /**
+     * The maximum number of failures recorded individually in a {@link Result}.
+     */
+    public static final int MAX_RECORDED_FAILURES = 1000;
+
+    /**
+     * Represents an operation applied to each blob.
+     */
+    public interface BlobAction {
+        /**
+         * Applies the operation to a blob. Called concurrently from several threads.
+         * 
+         * @param blob
+         *            The {@link CloudBlob} returned by the listing, with the listing details that were requested.
+         * @param options
+         *            The {@link BlobRequestOptions} to use for requests made by the operation.
+         * @param opContext
+         *            An {@link OperationContext} for the requests made by the operation.
+         * 
+         * @throws StorageException
+         *             If a storage service error occurred.
+         */
+        void execute(CloudBlob blob, BlobRequestOptions options, OperationContext opContext) throws StorageException;
+    }
+
+    /**
+     * Receives progress notifications for a bulk operation.
+     */
+    public interface ProgressListener {
+        /**
+         * Called on the thread that started the bulk operation each time an operation on a blob finishes.
+         * 
+         * @param completedCount
+         *            The number of blobs processed successfully so far.
+         * @param failedCount
+         *            The number of blobs that could not be processed so far.
+         */
+        void progress(long completedCount, long failedCount);
+    }
+
+    /**
+     * Represents the outcome of a bulk operation.
+     */
+    public static final class Result {
+        private long completedCount;
+        private long failedCount;
+        private final Map<URI, StorageException> failures = new LinkedHashMap<URI, StorageException>();
+
+        /**
+         * @return The number of blobs processed successfully.
+         */
+        public long getCompletedCount() {
+            return this.completedCount;
+        }
+
+        /**
+         * @return The number of blobs that could not be processed.
+         */
+        public long getFailedCount() {
+            return this.failedCount;
+        }
+
+        /**
+         * @return The URIs of the blobs that could not be processed, with the error for each; at most
+         *         {@link #MAX_RECORDED_FAILURES} failures are recorded.
+         */
+        public Map<URI, StorageException> getFailures() {
+            return Collections.unmodifiableMap(this.failures);
+        }
+    }
+
+    /**
+     * Holds the outcome of the operation on a single blob.
+     */
+    private static final class Outcome {
+        final URI uri;
+        final StorageException error;
+
+        Outcome(final URI uri, final StorageException error) {
+            this.uri = uri;
+            this.error = error;
+        }
+    }
+
+    private BulkBlobOperation() {
+        // No op
+    }
+
+    /**
+     * Returns an action that deletes each blob; blobs that no longer exist count as deleted.
+     */
+    static BlobAction deleteAction(final DeleteSnapshotsOption deleteSnapshotsOption) {
+        Utility.assertNotNull("deleteSnapshotsOption", deleteSnapshotsOption);
+        return new BlobAction() {
+            @Override
+            public void execute(final CloudBlob blob, final BlobRequestOptions options,
+                    final OperationContext opContext) throws StorageException {
+                try {
+                    blob.delete(deleteSnapshotsOption, null, options, opContext);
+                }
+                catch (final StorageException e) {
+                    if (e.getHttpStatusCode() != HttpURLConnection.HTTP_NOT_FOUND) {
+                        throw e;
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns an action that merges metadata into the listed metadata of each blob and uploads it, failing for blobs
+     * changed since they were listed.
+     */
+    static BlobAction uploadMetadataAction(final Map<String, String> metadata) {
+        Utility.assertNotNull("metadata", metadata);
+        final Map<String, String> values = new LinkedHashMap<String, String>(metadata);
+        return new BlobAction() {
+            @Override
+            public void execute(final CloudBlob blob, final BlobRequestOptions options,
+                    final OperationContext opContext) throws StorageException {
+                blob.getMetadata().putAll(values);
+                blob.uploadMetadata(AccessCondition.generateIfMatchCondition(blob.getProperties().getEtag()), options,
+                        opContext);
+            }
+        };
+    }
+
+    /**
+     * Applies an action to every blob in a listing.
+     * 
+     * @param listing
+     *            The listing to process; blob directories in the listing are skipped.
+     * @param action
+     *            The {@link BlobAction} to apply.
+     * @param listener
+     *            The {@link ProgressListener} to notify, or <code>null</code>.
+     * @param options
+     *            The {@link BlobRequestOptions} for the operations, with defaults applied.
+     * @return The {@link Result} of the bulk operation.
+     * @throws StorageException
+     *             If the listing failed, or the bulk operation was interrupted.
+     */
+    static Result execute(final Iterable<ListBlobItem> listing, final BlobAction action,
+            final ProgressListener listener, final BlobRequestOptions options) throws StorageException {
+        final Result result = new Result();
+        final int concurrency = options.getConcurrentRequestCount();
+        final ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        final CompletionService<Outcome> completionService = new ExecutorCompletionService<Outcome>(executor);
+        int outstanding = 0;
+
+        try {
+            final Iterator<ListBlobItem> items = listing.iterator();
+            while (hasNext(items)) {
+                final ListBlobItem item = items.next();
+                if (!(item instanceof CloudBlob)) {
+                    continue;
+                }
+
+                final CloudBlob blob = (CloudBlob) item;
+                completionService.submit(new Callable<Outcome>() {
+                    @Override
+                    public Outcome call() {
+                        try {
+                            action.execute(blob, new BlobRequestOptions(options), new OperationContext());
+                            return new Outcome(blob.getUri(), null);
+                        }
+                        catch (final StorageException e) {
+                            return new Outcome(blob.getUri(), e);
+                        }
+                    }
+                });
+                outstanding++;
+
+                if (outstanding >= concurrency * 2) {
+                    record(result, waitForOutcome(completionService), listener);
+                    outstanding--;
+                }
+            }
+
+            for (; outstanding > 0; outstanding--) {
+                record(result, waitForOutcome(completionService), listener);
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        return result;
+    }
+
+    private static void record(final Result result, final Outcome outcome, final ProgressListener listener) {
+        if (outcome.error == null) {
+            result.completedCount++;
+        }
+        else {
+            result.failedCount++;
+            if (result.failures.size() < MAX_RECORDED_FAILURES) {
+                result.failures.put(outcome.uri, outcome.error);
+            }
+        }
+
+        if (listener != null) {
+            listener.progress(result.completedCount, result.failedCount);
+        }
+    }
+
+    private static Outcome waitForOutcome(final CompletionService<Outcome> completionService) throws StorageException {
+        try {
+            return completionService.take().get();
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Utility.generateNewUnexpectedStorageException(e);
+        }
+        catch (final ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            else if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+
+            throw Utility.generateNewUnexpectedStorageException((Exception) e.getCause());
+        }
+    }
+
+    /**
+     * Advances the listing, surfacing listing failures as storage exceptions.
+     */
+    private static boolean hasNext(final Iterator<ListBlobItem> items) throws StorageException {
+        try {
+            return items.hasNext();
+        }
+        catch (final NoSuchElementException e) {
+            if (e.getCause() instanceof StorageException) {
+                throw (StorageException) e.getCause();
+            }
+
+            throw e;
+        }
+    }
+}
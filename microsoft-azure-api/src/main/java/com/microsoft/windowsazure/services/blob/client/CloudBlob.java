@@ -31,6 +31,7 @@ import com.microsoft.windowsazure.services.blob.core.storage.SharedAccessSignatu
 import com.microsoft.windowsazure.services.core.storage.AccessCondition;
 import com.microsoft.windowsazure.services.core.storage.Constants;
 import com.microsoft.windowsazure.services.core.storage.DoesServiceRequest;
+import com.microsoft.windowsazure.services.core.storage.HedgingPolicy;
 import com.microsoft.windowsazure.services.core.storage.LeaseStatus;
 import com.microsoft.windowsazure.services.core.storage.OperationContext;
 import com.microsoft.windowsazure.services.core.storage.RetryNoRetry;
@@ -46,6 +47,7 @@ import com.microsoft.windowsazure.services.core.storage.utils.UriQueryBuilder;
 import com.microsoft.windowsazure.services.core.storage.utils.Utility;
 import com.microsoft.windowsazure.services.core.storage.utils.implementation.BaseResponse;
 import com.microsoft.windowsazure.services.core.storage.utils.implementation.ExecutionEngine;
+import com.microsoft.windowsazure.services.core.storage.utils.implementation.HedgedRequestExecutor;
 import com.microsoft.windowsazure.services.core.storage.utils.implementation.LeaseAction;
 import com.microsoft.windowsazure.services.core.storage.utils.implementation.StorageOperation;
 
@@ -311,6 +313,8 @@ public abstract class CloudBlob implements ListBlobItem {
             }
         };
 
+        impl.setPartitionKey(this.getUri().getPath());
+
         return ExecutionEngine.executeWithRetry(this.blobServiceClient, this, impl, options.getRetryPolicyFactory(),
                 opContext);
     }
@@ -425,6 +429,8 @@ public abstract class CloudBlob implements ListBlobItem {
             }
         };
 
+        impl.setPartitionKey(this.getUri().getPath());
+
         return ExecutionEngine.executeWithRetry(this.blobServiceClient, this, impl, options.getRetryPolicyFactory(),
                 opContext);
     }
@@ -558,6 +564,8 @@ public abstract class CloudBlob implements ListBlobItem {
             }
         };
 
+        impl.setPartitionKey(this.getUri().getPath());
+
         ExecutionEngine
                 .executeWithRetry(this.blobServiceClient, this, impl, options.getRetryPolicyFactory(), opContext);
     }
@@ -634,6 +642,8 @@ public abstract class CloudBlob implements ListBlobItem {
             }
         };
 
+        impl.setPartitionKey(this.getUri().getPath());
+
         ExecutionEngine
                 .executeWithRetry(this.blobServiceClient, this, impl, options.getRetryPolicyFactory(), opContext);
     }
@@ -718,6 +728,8 @@ public abstract class CloudBlob implements ListBlobItem {
             }
         };
 
+        impl.setPartitionKey(this.getUri().getPath());
+
         return ExecutionEngine.executeWithRetry(this.blobServiceClient, this, impl, options.getRetryPolicyFactory(),
                 opContext);
     }
@@ -798,6 +810,8 @@ public abstract class CloudBlob implements ListBlobItem {
             }
         };
 
+        impl.setPartitionKey(this.getUri().getPath());
+
         ExecutionEngine
                 .executeWithRetry(this.blobServiceClient, this, impl, options.getRetryPolicyFactory(), opContext);
     }
@@ -895,6 +909,8 @@ public abstract class CloudBlob implements ListBlobItem {
             }
         };
 
+        impl.setPartitionKey(this.getUri().getPath());
+
         return ExecutionEngine.executeWithRetry(this.blobServiceClient, this, impl, options.getRetryPolicyFactory(),
                 opContext);
     }
@@ -1005,6 +1021,7 @@ public abstract class CloudBlob implements ListBlobItem {
         try {
             // Executed with no retries so that the first failure will move out
             // to the read Stream.
+            impl.setPartitionKey(this.getUri().getPath());
             ExecutionEngine.executeWithRetry(this.blobServiceClient, this, impl, RetryNoRetry.getInstance(), opContext);
             opContext.setIntermediateMD5(null);
         }
@@ -1126,6 +1143,42 @@ public abstract class CloudBlob implements ListBlobItem {
 
         options.applyDefaults(this.blobServiceClient);
 
+        if (options.getHedgingPolicy() == null) {
+            this.downloadAttributesInternal(accessCondition, options, opContext);
+            return;
+        }
+
+        final BlobRequestOptions attemptOptions = options;
+        final CloudBlob winner = HedgedRequestExecutor.execute(options.getHedgingPolicy(), opContext,
+                new HedgedRequestExecutor.Attempt<CloudBlob>() {
+                    @Override
+                    public CloudBlob execute(final OperationContext attemptContext) throws StorageException {
+                        final CloudBlob attemptBlob = CloudBlob.this.createAttemptCopy();
+                        attemptBlob.downloadAttributesInternal(accessCondition, attemptOptions, attemptContext);
+                        return attemptBlob;
+                    }
+                });
+
+        this.properties = winner.properties;
+        this.metadata = winner.metadata;
+        this.copyState = winner.copyState;
+    }
+
+    /**
+     * Populates a blob's properties and metadata using the specified request options and operation context.
+     * 
+     * @param accessCondition
+     *            An {@link AccessCondition} object that represents the access conditions for the blob.
+     * @param options
+     *            A {@link BlobRequestOptions} object with its defaults applied.
+     * @param opContext
+     *            an object used to track the execution of the operation
+     * @throws StorageException
+     *             an exception representing any error which occurred during the operation.
+     */
+    @DoesServiceRequest
+    private void downloadAttributesInternal(final AccessCondition accessCondition, final BlobRequestOptions options,
+            final OperationContext opContext) throws StorageException {
         final StorageOperation<CloudBlobClient, CloudBlob, Void> impl = new StorageOperation<CloudBlobClient, CloudBlob, Void>(
                 options) {
             @Override
@@ -1168,6 +1221,8 @@ public abstract class CloudBlob implements ListBlobItem {
             }
         };
 
+        impl.setPartitionKey(this.getUri().getPath());
+
         ExecutionEngine
                 .executeWithRetry(this.blobServiceClient, this, impl, options.getRetryPolicyFactory(), opContext);
     }
@@ -1221,7 +1276,7 @@ public abstract class CloudBlob implements ListBlobItem {
      */
     @DoesServiceRequest
     public final void downloadRange(final long offset, final int length, final byte[] buffer, final int bufferOffet,
-            final AccessCondition accessCondition, final BlobRequestOptions options, final OperationContext opContext)
+            final AccessCondition accessCondition, final BlobRequestOptions options, OperationContext opContext)
             throws StorageException {
         if (offset < 0 || length <= 0) {
             throw new IndexOutOfBoundsException();
@@ -1233,8 +1288,35 @@ public abstract class CloudBlob implements ListBlobItem {
             throw new IndexOutOfBoundsException();
         }
 
+        if (opContext == null) {
+            opContext = new OperationContext();
+        }
+
         opContext.initialize();
-        this.downloadRangeInternal(offset, length, buffer, bufferOffet, accessCondition, options, opContext);
+
+        final HedgingPolicy hedgingPolicy = options != null ? options.getHedgingPolicy() : null;
+        if (hedgingPolicy == null) {
+            this.downloadRangeInternal(offset, length, buffer, bufferOffet, accessCondition, options, opContext);
+            return;
+        }
+
+        // Each attempt downloads into its own buffer so that a cancelled attempt cannot write into the caller's
+        final HedgedRangeAttempt winner = HedgedRequestExecutor.execute(hedgingPolicy, opContext,
+                new HedgedRequestExecutor.Attempt<HedgedRangeAttempt>() {
+                    @Override
+                    public HedgedRangeAttempt execute(final OperationContext attemptContext) throws StorageException {
+                        final HedgedRangeAttempt attempt = new HedgedRangeAttempt(CloudBlob.this.createAttemptCopy(),
+                                new byte[length]);
+                        attempt.blob.downloadRangeInternal(offset, length, attempt.data, 0, accessCondition,
+                                new BlobRequestOptions(options), attemptContext);
+                        return attempt;
+                    }
+                });
+
+        System.arraycopy(winner.data, 0, buffer, bufferOffet, length);
+        this.properties = winner.blob.properties;
+        this.metadata = winner.blob.metadata;
+        this.copyState = winner.blob.copyState;
     }
 
     /**
@@ -1369,10 +1451,41 @@ public abstract class CloudBlob implements ListBlobItem {
             }
         };
 
+        impl.setPartitionKey(this.getUri().getPath());
+
         ExecutionEngine
                 .executeWithRetry(this.blobServiceClient, this, impl, options.getRetryPolicyFactory(), opContext);
     }
 
+    /**
+     * Creates a copy of this blob that a hedged attempt or other concurrent request can populate without racing
+     * requests made through this instance.
+     * 
+     * @return A copy of this blob of the same blob type.
+     * @throws StorageException
+     *             an exception representing any error which occurred while copying the blob.
+     */
+    CloudBlob createAttemptCopy() throws StorageException {
+        if (this instanceof CloudPageBlob) {
+            return new CloudPageBlob((CloudPageBlob) this);
+        }
+
+        return new CloudBlockBlob((CloudBlockBlob) this);
+    }
+
+    /**
+     * Holds the blob and the data downloaded by a single hedged range download attempt.
+     */
+    private static final class HedgedRangeAttempt {
+        private final CloudBlob blob;
+        private final byte[] data;
+
+        private HedgedRangeAttempt(final CloudBlob blob, final byte[] data) {
+            this.blob = blob;
+            this.data = data;
+        }
+    }
+
     /**
      * Checks to see if the blob exists.
      * 
@@ -1455,6 +1568,8 @@ public abstract class CloudBlob implements ListBlobItem {
             }
         };
 
+        impl.setPartitionKey(this.getUri().getPath());
+
         return ExecutionEngine.executeWithRetry(this.blobServiceClient, this, impl, options.getRetryPolicyFactory(),
                 opContext);
     }
@@ -1933,6 +2048,8 @@ public abstract class CloudBlob implements ListBlobItem {
             }
         };
 
+        impl.setPartitionKey(this.getUri().getPath());
+
         ExecutionEngine
                 .executeWithRetry(this.blobServiceClient, this, impl, options.getRetryPolicyFactory(), opContext);
     }
@@ -2012,6 +2129,8 @@ public abstract class CloudBlob implements ListBlobItem {
             }
         };
 
+        impl.setPartitionKey(this.getUri().getPath());
+
         ExecutionEngine
                 .executeWithRetry(this.blobServiceClient, this, impl, options.getRetryPolicyFactory(), opContext);
     }
@@ -2101,6 +2220,8 @@ public abstract class CloudBlob implements ListBlobItem {
             }
         };
 
+        impl.setPartitionKey(this.getUri().getPath());
+
         ExecutionEngine
                 .executeWithRetry(this.blobServiceClient, this, impl, options.getRetryPolicyFactory(), opContext);
     }
@@ -2250,6 +2371,8 @@ public abstract class CloudBlob implements ListBlobItem {
             }
         };
 
+        impl.setPartitionKey(this.getUri().getPath());
+
         return ExecutionEngine.executeWithRetry(this.blobServiceClient, this, impl, options.getRetryPolicyFactory(),
                 opContext);
     }
@@ -2378,6 +2501,8 @@ public abstract class CloudBlob implements ListBlobItem {
             }
         };
 
+        impl.setPartitionKey(this.getUri().getPath());
+
         ExecutionEngine
                 .executeWithRetry(this.blobServiceClient, this, impl, options.getRetryPolicyFactory(), opContext);
     }
@@ -2452,6 +2577,8 @@ public abstract class CloudBlob implements ListBlobItem {
             }
         };
 
+        impl.setPartitionKey(this.getUri().getPath());
+
         ExecutionEngine
                 .executeWithRetry(this.blobServiceClient, this, impl, options.getRetryPolicyFactory(), opContext);
     }
@@ -2526,6 +2653,8 @@ public abstract class CloudBlob implements ListBlobItem {
             }
         };
 
+        impl.setPartitionKey(this.getUri().getPath());
+
         ExecutionEngine
                 .executeWithRetry(this.blobServiceClient, this, impl, options.getRetryPolicyFactory(), opContext);
     }
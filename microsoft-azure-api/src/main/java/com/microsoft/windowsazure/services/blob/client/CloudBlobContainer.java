@@ -1132,6 +1132,115 @@ public final class CloudBlobContainer {
         return resSegment;
     }
 
+    /**
+     * Deletes every blob whose name begins with the specified prefix, making the delete requests in parallel. Blobs
+     * that no longer exist when their delete request is made count as deleted.
+     * 
+     * @param prefix
+     *            A <code>String</code> that represents the blob name prefix, or <code>null</code> to delete every
+     *            blob in the container.
+     * @param deleteSnapshotsOption
+     *            A {@link DeleteSnapshotsOption} object that indicates whether to delete only blobs, only snapshots,
+     *            or both.
+     * @param listener
+     *            A {@link BulkBlobOperation.ProgressListener} to notify as blobs are deleted, or <code>null</code>.
+     * @param options
+     *            A {@link BlobRequestOptions} object that specifies any additional options for the request. Specifying
+     *            <code>null</code> will use the default request options from the associated service client (
+     *            {@link CloudBlobClient}). The concurrent request count bounds the number of deletes in flight.
+     * @param opContext
+     *            An {@link OperationContext} object that represents the context for the listing. Each delete request
+     *            uses its own context.
+     * 
+     * @return A {@link BulkBlobOperation.Result} object that describes the blobs deleted and the failures.
+     * 
+     * @throws StorageException
+     *             If the listing failed.
+     */
+    @DoesServiceRequest
+    public BulkBlobOperation.Result deleteBlobs(final String prefix,
+            final DeleteSnapshotsOption deleteSnapshotsOption, final BulkBlobOperation.ProgressListener listener,
+            final BlobRequestOptions options, final OperationContext opContext) throws StorageException {
+        return this.forEachBlob(prefix, null, BulkBlobOperation.deleteAction(deleteSnapshotsOption), listener,
+                options, opContext);
+    }
+
+    /**
+     * Sets metadata on every blob whose name begins with the specified prefix, making the requests in parallel. The
+     * specified values are merged into the existing metadata of each blob, which is read from the listing; a blob
+     * changed between the listing and its update is reported as a failure rather than overwritten.
+     * 
+     * @param prefix
+     *            A <code>String</code> that represents the blob name prefix, or <code>null</code> to update every
+     *            blob in the container.
+     * @param metadata
+     *            A <code>java.util.HashMap</code> object that contains the metadata names and values to set.
+     * @param listener
+     *            A {@link BulkBlobOperation.ProgressListener} to notify as blobs are updated, or <code>null</code>.
+     * @param options
+     *            A {@link BlobRequestOptions} object that specifies any additional options for the request. Specifying
+     *            <code>null</code> will use the default request options from the associated service client (
+     *            {@link CloudBlobClient}). The concurrent request count bounds the number of updates in flight.
+     * @param opContext
+     *            An {@link OperationContext} object that represents the context for the listing. Each update request
+     *            uses its own context.
+     * 
+     * @return A {@link BulkBlobOperation.Result} object that describes the blobs updated and the failures.
+     * 
+     * @throws StorageException
+     *             If the listing failed.
+     */
+    @DoesServiceRequest
+    public BulkBlobOperation.Result uploadBlobMetadata(final String prefix, final HashMap<String, String> metadata,
+            final BulkBlobOperation.ProgressListener listener, final BlobRequestOptions options,
+            final OperationContext opContext) throws StorageException {
+        return this.forEachBlob(prefix, EnumSet.of(BlobListingDetails.METADATA),
+                BulkBlobOperation.uploadMetadataAction(metadata), listener, options, opContext);
+    }
+
+    /**
+     * Applies an operation to every blob whose name begins with the specified prefix, streaming the listing and
+     * running the operations in parallel. This can be used, for example, to set blob properties in bulk.
+     * 
+     * @param prefix
+     *            A <code>String</code> that represents the blob name prefix, or <code>null</code> to process every
+     *            blob in the container.
+     * @param listingDetails
+     *            A <code>java.util.EnumSet</code> object that contains {@link BlobListingDetails} values that indicate
+     *            the details the listing returns for each blob, or <code>null</code>.
+     * @param action
+     *            The {@link BulkBlobOperation.BlobAction} to apply to each blob.
+     * @param listener
+     *            A {@link BulkBlobOperation.ProgressListener} to notify as blobs are processed, or <code>null</code>.
+     * @param options
+     *            A {@link BlobRequestOptions} object that specifies any additional options for the request. Specifying
+     *            <code>null</code> will use the default request options from the associated service client (
+     *            {@link CloudBlobClient}). The concurrent request count bounds the number of operations in flight.
+     * @param opContext
+     *            An {@link OperationContext} object that represents the context for the listing. Each operation uses
+     *            its own context.
+     * 
+     * @return A {@link BulkBlobOperation.Result} object that describes the blobs processed and the failures.
+     * 
+     * @throws StorageException
+     *             If the listing failed.
+     */
+    @DoesServiceRequest
+    public BulkBlobOperation.Result forEachBlob(final String prefix, final EnumSet<BlobListingDetails> listingDetails,
+            final BulkBlobOperation.BlobAction action, final BulkBlobOperation.ProgressListener listener,
+            BlobRequestOptions options, final OperationContext opContext) throws StorageException {
+        Utility.assertNotNull("action", action);
+
+        if (options == null) {
+            options = new BlobRequestOptions();
+        }
+
+        options.applyDefaults(this.blobServiceClient);
+
+        return BulkBlobOperation.execute(this.listBlobs(prefix, true, listingDetails, new BlobRequestOptions(options),
+                opContext), action, listener, options);
+    }
+
     /**
      * Returns a result segment of an enumerable collection of blob items in the container.
      * 
@@ -17,6 +17,7 @@ package com.microsoft.windowsazure.services.blob.client;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.EnumSet;
+import java.util.HashMap;
 
 import com.microsoft.windowsazure.services.core.storage.Constants;
 import com.microsoft.windowsazure.services.core.storage.DoesServiceRequest;
@@ -381,6 +382,117 @@ public final class CloudBlobDirectory implements ListBlobItem {
                 options, opContext);
     }
 
+    /**
+     * Deletes every blob in the directory, including subdirectories, whose name begins with the specified prefix,
+     * making the delete requests in parallel.
+     * 
+     * @param prefix
+     *            A <code>String</code> that represents the prefix of the blob name within the directory, or
+     *            <code>null</code> to delete every blob in the directory.
+     * @param deleteSnapshotsOption
+     *            A {@link DeleteSnapshotsOption} object that indicates whether to delete only blobs, only snapshots,
+     *            or both.
+     * @param listener
+     *            A {@link BulkBlobOperation.ProgressListener} to notify as blobs are deleted, or <code>null</code>.
+     * @param options
+     *            A {@link BlobRequestOptions} object that specifies any additional options for the request. Specifying
+     *            <code>null</code> will use the default request options from the associated service client (
+     *            {@link CloudBlobClient}).
+     * @param opContext
+     *            An {@link OperationContext} object that represents the context for the listing.
+     * 
+     * @return A {@link BulkBlobOperation.Result} object that describes the blobs deleted and the failures.
+     * 
+     * @throws StorageException
+     *             If the listing failed.
+     * @throws URISyntaxException
+     *             If the resource URI is invalid.
+     * @see CloudBlobContainer#deleteBlobs
+     */
+    @DoesServiceRequest
+    public BulkBlobOperation.Result deleteBlobs(final String prefix,
+            final DeleteSnapshotsOption deleteSnapshotsOption, final BulkBlobOperation.ProgressListener listener,
+            final BlobRequestOptions options, final OperationContext opContext) throws StorageException,
+            URISyntaxException {
+        return this.getContainer().deleteBlobs(
+                this.getPrefix().concat(prefix == null ? Constants.EMPTY_STRING : prefix), deleteSnapshotsOption,
+                listener, options, opContext);
+    }
+
+    /**
+     * Sets metadata on every blob in the directory, including subdirectories, whose name begins with the specified
+     * prefix, making the requests in parallel.
+     * 
+     * @param prefix
+     *            A <code>String</code> that represents the prefix of the blob name within the directory, or
+     *            <code>null</code> to update every blob in the directory.
+     * @param metadata
+     *            A <code>java.util.HashMap</code> object that contains the metadata names and values to set.
+     * @param listener
+     *            A {@link BulkBlobOperation.ProgressListener} to notify as blobs are updated, or <code>null</code>.
+     * @param options
+     *            A {@link BlobRequestOptions} object that specifies any additional options for the request. Specifying
+     *            <code>null</code> will use the default request options from the associated service client (
+     *            {@link CloudBlobClient}).
+     * @param opContext
+     *            An {@link OperationContext} object that represents the context for the listing.
+     * 
+     * @return A {@link BulkBlobOperation.Result} object that describes the blobs updated and the failures.
+     * 
+     * @throws StorageException
+     *             If the listing failed.
+     * @throws URISyntaxException
+     *             If the resource URI is invalid.
+     * @see CloudBlobContainer#uploadBlobMetadata
+     */
+    @DoesServiceRequest
+    public BulkBlobOperation.Result uploadBlobMetadata(final String prefix, final HashMap<String, String> metadata,
+            final BulkBlobOperation.ProgressListener listener, final BlobRequestOptions options,
+            final OperationContext opContext) throws StorageException, URISyntaxException {
+        return this.getContainer().uploadBlobMetadata(
+                this.getPrefix().concat(prefix == null ? Constants.EMPTY_STRING : prefix), metadata, listener,
+                options, opContext);
+    }
+
+    /**
+     * Applies an operation to every blob in the directory, including subdirectories, whose name begins with the
+     * specified prefix, running the operations in parallel.
+     * 
+     * @param prefix
+     *            A <code>String</code> that represents the prefix of the blob name within the directory, or
+     *            <code>null</code> to process every blob in the directory.
+     * @param listingDetails
+     *            A <code>java.util.EnumSet</code> object that contains {@link BlobListingDetails} values that indicate
+     *            the details the listing returns for each blob, or <code>null</code>.
+     * @param action
+     *            The {@link BulkBlobOperation.BlobAction} to apply to each blob.
+     * @param listener
+     *            A {@link BulkBlobOperation.ProgressListener} to notify as blobs are processed, or <code>null</code>.
+     * @param options
+     *            A {@link BlobRequestOptions} object that specifies any additional options for the request. Specifying
+     *            <code>null</code> will use the default request options from the associated service client (
+     *            {@link CloudBlobClient}).
+     * @param opContext
+     *            An {@link OperationContext} object that represents the context for the listing.
+     * 
+     * @return A {@link BulkBlobOperation.Result} object that describes the blobs processed and the failures.
+     * 
+     * @throws StorageException
+     *             If the listing failed.
+     * @throws URISyntaxException
+     *             If the resource URI is invalid.
+     * @see CloudBlobContainer#forEachBlob
+     */
+    @DoesServiceRequest
+    public BulkBlobOperation.Result forEachBlob(final String prefix, final EnumSet<BlobListingDetails> listingDetails,
+            final BulkBlobOperation.BlobAction action, final BulkBlobOperation.ProgressListener listener,
+            final BlobRequestOptions options, final OperationContext opContext) throws StorageException,
+            URISyntaxException {
+        return this.getContainer().forEachBlob(
+                this.getPrefix().concat(prefix == null ? Constants.EMPTY_STRING : prefix), listingDetails, action,
+                listener, options, opContext);
+    }
+
     /**
      * Returns a result segment of an enumerable collection of blob items in the directory.
      * 
@@ -16,10 +16,14 @@ package com.microsoft.windowsazure.services.blob.client;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 
 import com.microsoft.windowsazure.services.core.storage.AccessCondition;
@@ -216,6 +220,8 @@ public final class CloudBlockBlob extends CloudBlob {
             }
         };
 
+        impl.setPartitionKey(this.getUri().getPath());
+
         ExecutionEngine
                 .executeWithRetry(this.blobServiceClient, this, impl, options.getRetryPolicyFactory(), opContext);
     }
@@ -308,6 +314,8 @@ public final class CloudBlockBlob extends CloudBlob {
             }
         };
 
+        impl.setPartitionKey(this.getUri().getPath());
+
         return ExecutionEngine.executeWithRetry(this.blobServiceClient, this, impl, options.getRetryPolicyFactory(),
                 opContext);
     }
@@ -433,13 +441,16 @@ public final class CloudBlockBlob extends CloudBlob {
             sourceStream.mark(Constants.MAX_MARK_LENGTH);
         }
 
-        // If the stream is rewindable and the length is unknown or we need to
-        // set md5, then analyze the stream.
+        // If the stream is rewindable and the length is unknown, or we need to
+        // set md5 for a single put, then analyze the stream.
         // Note this read will abort at
         // serviceClient.getSingleBlobPutThresholdInBytes() bytes and return
         // -1 as length in which case we will revert to using a stream as it is
-        // over the single put threshold.
-        if (sourceStream.markSupported() && (length < 0 || options.getStoreBlobContentMD5())) {
+        // over the single put threshold. Streams known to be over the threshold
+        // are not pre-read, as BlobOutputStream computes the md5 as it uploads.
+        if (sourceStream.markSupported()
+                && (length < 0 || (options.getStoreBlobContentMD5() && length < this.blobServiceClient
+                        .getSingleBlobPutThresholdInBytes()))) {
             // If the stream is of unknown length or we need to calculate
             // the MD5, then we we need to read the stream contents first
 
@@ -465,6 +476,365 @@ public final class CloudBlockBlob extends CloudBlob {
         }
     }
 
+    /**
+     * Uploads the contents of a file to the block blob.
+     * 
+     * @param sourceFile
+     *            A <code>File</code> object that represents the file to upload.
+     * @throws IOException
+     *             If an I/O error occurred.
+     * @throws StorageException
+     *             If a storage service error occurred.
+     */
+    @DoesServiceRequest
+    public void uploadFromFile(final File sourceFile) throws StorageException, IOException {
+        this.uploadFromFile(sourceFile, null, null, null);
+    }
+
+    /**
+     * Uploads the contents of a file to the block blob, using the specified lease ID, request options, and operation
+     * context. See {@link #uploadFromChannel(FileChannel, long, long, AccessCondition, BlobRequestOptions,
+     * OperationContext)} for how the file is read and uploaded.
+     * 
+     * @param sourceFile
+     *            A <code>File</code> object that represents the file to upload.
+     * @param accessCondition
+     *            An {@link AccessCondition} object that represents the access conditions for the blob.
+     * @param options
+     *            A {@link BlobRequestOptions} object that specifies any additional options for the request. Specifying
+     *            <code>null</code> will use the default request options from the associated service client (
+     *            {@link CloudBlobClient}).
+     * @param opContext
+     *            An {@link OperationContext} object that represents the context for the current operation. This object
+     *            is used to track requests to the storage service, and to provide additional runtime information about
+     *            the operation.
+     * 
+     * @throws IOException
+     *             If an I/O error occurred.
+     * @throws StorageException
+     *             If a storage service error occurred.
+     */
+    @DoesServiceRequest
+    public void uploadFromFile(final File sourceFile, final AccessCondition accessCondition,
+            final BlobRequestOptions options, final OperationContext opContext) throws StorageException, IOException {
+        final FileInputStream fileStream = new FileInputStream(sourceFile);
+        try {
+            final FileChannel channel = fileStream.getChannel();
+            this.uploadFromChannel(channel, 0, channel.size(), accessCondition, options, opContext);
+        }
+        finally {
+            fileStream.close();
+        }
+    }
+
+    /**
+     * Uploads a region of a file channel to the block blob, using the specified lease ID, request options, and
+     * operation context.
+     * <p>
+     * Unlike {@link #upload(InputStream, long, AccessCondition, BlobRequestOptions, OperationContext)}, the data is
+     * read exactly once. Regions smaller than the single blob put threshold are uploaded in a single request; larger
+     * regions are split into blocks of {@link CloudBlobClient#getWriteBlockSizeInBytes()} bytes which are read with
+     * positional reads and uploaded in parallel, up to {@link BlobRequestOptions#getConcurrentRequestCount()} at a time.
+     * Per-block transactional MD5 values and the blob MD5 are computed from the same buffers as they are uploaded. The
+     * channel position is not modified, so the channel may be shared with other readers.
+     * 
+     * @param sourceChannel
+     *            A <code>FileChannel</code> object that represents the file to upload.
+     * @param offset
+     *            The position in the channel of the first byte to upload.
+     * @param length
+     *            The number of bytes to upload.
+     * @param accessCondition
+     *            An {@link AccessCondition} object that represents the access conditions for the blob.
+     * @param options
+     *            A {@link BlobRequestOptions} object that specifies any additional options for the request. Specifying
+     *            <code>null</code> will use the default request options from the associated service client (
+     *            {@link CloudBlobClient}).
+     * @param opContext
+     *            An {@link OperationContext} object that represents the context for the current operation. This object
+     *            is used to track requests to the storage service, and to provide additional runtime information about
+     *            the operation.
+     * 
+     * @throws IOException
+     *             If an I/O error occurred.
+     * @throws StorageException
+     *             If a storage service error occurred.
+     */
+    @DoesServiceRequest
+    public void uploadFromChannel(final FileChannel sourceChannel, final long offset, final long length,
+            final AccessCondition accessCondition, final BlobRequestOptions options, final OperationContext opContext)
+            throws StorageException, IOException {
+        this.uploadFromChannelInternal(sourceChannel, offset, length, accessCondition, options, opContext, false);
+    }
+
+    /**
+     * Uploads the contents of a file to the block blob so that an interrupted upload can be resumed, using the
+     * specified lease ID, request options, and operation context. See
+     * {@link #uploadFromChannelResumable(FileChannel, long, long, AccessCondition, BlobRequestOptions, OperationContext)}
+     * , including the constraint on uncommitted blocks staged by other upload methods.
+     * 
+     * @param sourceFile
+     *            A <code>File</code> object that represents the file to upload.
+     * @param accessCondition
+     *            An {@link AccessCondition} object that represents the access conditions for the blob.
+     * @param options
+     *            A {@link BlobRequestOptions} object that specifies any additional options for the request. Specifying
+     *            <code>null</code> will use the default request options from the associated service client (
+     *            {@link CloudBlobClient}).
+     * @param opContext
+     *            An {@link OperationContext} object that represents the context for the current operation. This object
+     *            is used to track requests to the storage service, and to provide additional runtime information about
+     *            the operation.
+     * 
+     * @throws IOException
+     *             If an I/O error occurred.
+     * @throws StorageException
+     *             If a storage service error occurred.
+     */
+    @DoesServiceRequest
+    public void uploadFromFileResumable(final File sourceFile, final AccessCondition accessCondition,
+            final BlobRequestOptions options, final OperationContext opContext) throws StorageException, IOException {
+        final FileInputStream fileStream = new FileInputStream(sourceFile);
+        try {
+            final FileChannel channel = fileStream.getChannel();
+            this.uploadFromChannelResumable(channel, 0, channel.size(), accessCondition, options, opContext);
+        }
+        finally {
+            fileStream.close();
+        }
+    }
+
+    /**
+     * Uploads a region of a file channel to the block blob so that an interrupted upload can be resumed, using the
+     * specified lease ID, request options, and operation context.
+     * <p>
+     * This behaves as {@link #uploadFromChannel(FileChannel, long, long, AccessCondition, BlobRequestOptions,
+     * OperationContext)}, except that block IDs are derived from the block index and the MD5 of the block content
+     * rather than chosen at random. Before uploading, the uncommitted block list of the blob is retrieved and blocks
+     * already staged by an earlier, interrupted call for the same data are not sent again. Calling this method again
+     * after a failure therefore only transfers the blocks that are missing. The block size used by the earlier call,
+     * {@link CloudBlobClient#getWriteBlockSizeInBytes()}, must not have changed for its blocks to be reused.
+     * <p>
+     * Since the service requires all block IDs of a blob to have the same length, the blob must not hold uncommitted
+     * blocks staged by other upload methods. If it does, the upload fails with a {@link StorageException} before any
+     * block is sent.
+     * 
+     * @param sourceChannel
+     *            A <code>FileChannel</code> object that represents the file to upload.
+     * @param offset
+     *            The position in the channel of the first byte to upload.
+     * @param length
+     *            The number of bytes to upload.
+     * @param accessCondition
+     *            An {@link AccessCondition} object that represents the access conditions for the blob.
+     * @param options
+     *            A {@link BlobRequestOptions} object that specifies any additional options for the request. Specifying
+     *            <code>null</code> will use the default request options from the associated service client (
+     *            {@link CloudBlobClient}).
+     * @param opContext
+     *            An {@link OperationContext} object that represents the context for the current operation. This object
+     *            is used to track requests to the storage service, and to provide additional runtime information about
+     *            the operation.
+     * 
+     * @throws IOException
+     *             If an I/O error occurred.
+     * @throws StorageException
+     *             If a storage service error occurred.
+     */
+    @DoesServiceRequest
+    public void uploadFromChannelResumable(final FileChannel sourceChannel, final long offset, final long length,
+            final AccessCondition accessCondition, final BlobRequestOptions options, final OperationContext opContext)
+            throws StorageException, IOException {
+        this.uploadFromChannelInternal(sourceChannel, offset, length, accessCondition, options, opContext, true);
+    }
+
+    /**
+     * Uploads the source stream data to the blob, sending only the blocks the blob does not already hold.
+     * 
+     * @param sourceStream
+     *            An <code>InputStream</code> object that represents the input stream to write to the block blob.
+     * @throws IOException
+     *             If an I/O error occurred.
+     * @throws StorageException
+     *             If a storage service error occurred.
+     */
+    @DoesServiceRequest
+    public void uploadDeduplicated(final InputStream sourceStream) throws StorageException, IOException {
+        this.uploadDeduplicated(sourceStream, null, null, null);
+    }
+
+    /**
+     * Uploads the source stream data to the blob, sending only the blocks the blob does not already hold, using the
+     * specified lease ID, request options, and operation context.
+     * <p>
+     * This suits content that is uploaded repeatedly with small changes. The stream is split into blocks at boundaries
+     * chosen from the content itself, so an insertion or deletion only changes the blocks around it. Blocks average
+     * about 1.5 MB and never exceed 4 MB. Each block ID is derived from the length and MD5 of the block content. The
+     * committed and uncommitted block lists of the blob are retrieved first. A block the blob already holds, or that
+     * occurred earlier in the stream, is referenced in the committed block list without being uploaded again; the
+     * others are uploaded in parallel, up to {@link BlobRequestOptions#getConcurrentRequestCount()} at a time.
+     * <p>
+     * Blocks are only reused from a blob previously written by this method, since the service requires all block IDs
+     * of a blob to have the same length. Uncommitted blocks staged by other upload methods cause the upload to fail.
+     * 
+     * @param sourceStream
+     *            An <code>InputStream</code> object that represents the input stream to write to the block blob. It is
+     *            read to its end but not closed.
+     * @param accessCondition
+     *            An {@link AccessCondition} object that represents the access conditions for the blob.
+     * @param options
+     *            A {@link BlobRequestOptions} object that specifies any additional options for the request. Specifying
+     *            <code>null</code> will use the default request options from the associated service client (
+     *            {@link CloudBlobClient}).
+     * @param opContext
+     *            An {@link OperationContext} object that represents the context for the current operation. This object
+     *            is used to track requests to the storage service, and to provide additional runtime information about
+     *            the operation.
+     * 
+     * @throws IOException
+     *             If an I/O error occurred.
+     * @throws StorageException
+     *             If a storage service error occurred.
+     */
+    @DoesServiceRequest
+    public void uploadDeduplicated(final InputStream sourceStream, final AccessCondition accessCondition,
+            BlobRequestOptions options, OperationContext opContext) throws StorageException, IOException {
+        Utility.assertNotNull("sourceStream", sourceStream);
+        assertNoWriteOperationForSnapshot();
+
+        if (opContext == null) {
+            opContext = new OperationContext();
+        }
+
+        if (options == null) {
+            options = new BlobRequestOptions();
+        }
+
+        opContext.initialize();
+        options.applyDefaults(this.blobServiceClient);
+
+        final DedupBlockUploader uploader = new DedupBlockUploader(this, accessCondition, options, opContext);
+        uploader.setExistingBlocks(this.downloadExistingBlockList(BlockListingFilter.ALL, accessCondition, options,
+                opContext));
+
+        final ArrayList<BlockEntry> blockList = uploader.uploadBlocks(sourceStream);
+
+        if (options.getStoreBlobContentMD5()) {
+            this.properties.setContentMD5(uploader.getContentMD5());
+        }
+
+        this.commitBlockList(blockList, accessCondition, options, opContext);
+    }
+
+    /**
+     * Uploads a region of a file channel to the block blob.
+     * 
+     * @param sourceChannel
+     *            the channel to read from.
+     * @param offset
+     *            the position in the channel of the first byte to upload.
+     * @param length
+     *            the number of bytes to upload.
+     * @param accessCondition
+     *            An {@link AccessCondition} object that represents the access conditions for the blob.
+     * @param options
+     *            An object that specifies any additional options for the request
+     * @param opContext
+     *            an object used to track the execution of the operation
+     * @param resumable
+     *            <code>true</code> to use deterministic block IDs and skip blocks that are already staged.
+     * @throws StorageException
+     *             If a storage service error occurred.
+     * @throws IOException
+     *             If an I/O error occurred.
+     */
+    @DoesServiceRequest
+    private void uploadFromChannelInternal(final FileChannel sourceChannel, final long offset, final long length,
+            final AccessCondition accessCondition, BlobRequestOptions options, OperationContext opContext,
+            final boolean resumable) throws StorageException, IOException {
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException("Offset and length must be greater than or equal to 0.");
+        }
+
+        assertNoWriteOperationForSnapshot();
+
+        if (opContext == null) {
+            opContext = new OperationContext();
+        }
+
+        if (options == null) {
+            options = new BlobRequestOptions();
+        }
+
+        opContext.initialize();
+        options.applyDefaults(this.blobServiceClient);
+
+        if (length < this.blobServiceClient.getSingleBlobPutThresholdInBytes()) {
+            final byte[] data = new byte[(int) length];
+            FileBlockUploader.readFully(sourceChannel, data, offset);
+
+            if (options.getStoreBlobContentMD5()) {
+                final MessageDigest digest = FileBlockUploader.createDigest();
+                digest.update(data);
+                this.properties.setContentMD5(Base64.encode(digest.digest()));
+            }
+
+            this.uploadFullBlob(new ByteArrayInputStream(data), length, accessCondition, options, opContext);
+            return;
+        }
+
+        final FileBlockUploader uploader = new FileBlockUploader(this, sourceChannel, offset, length,
+                this.blobServiceClient.getWriteBlockSizeInBytes(), accessCondition, options, opContext);
+
+        if (resumable) {
+            uploader.setExistingBlocks(this.downloadExistingBlockList(BlockListingFilter.UNCOMMITTED, accessCondition,
+                    options, opContext));
+        }
+
+        final ArrayList<BlockEntry> blockList = uploader.uploadBlocks();
+
+        if (options.getStoreBlobContentMD5()) {
+            this.properties.setContentMD5(uploader.getContentMD5());
+        }
+
+        this.commitBlockList(blockList, accessCondition, options, opContext);
+    }
+
+    /**
+     * Returns the blocks of the blob, or an empty list if the blob does not exist yet.
+     * 
+     * @param blockListingFilter
+     *            A {@link BlockListingFilter} value that specifies which blocks to return.
+     * @param accessCondition
+     *            An {@link AccessCondition} object whose lease ID, if any, is used for the request.
+     * @param options
+     *            An object that specifies any additional options for the request
+     * @param opContext
+     *            an object used to track the execution of the operation
+     * @return the blocks.
+     * @throws StorageException
+     *             If a storage service error occurred.
+     */
+    @DoesServiceRequest
+    private ArrayList<BlockEntry> downloadExistingBlockList(final BlockListingFilter blockListingFilter,
+            final AccessCondition accessCondition, final BlobRequestOptions options, final OperationContext opContext)
+            throws StorageException {
+        // Only the lease applies; conditions on the committed blob are checked when the block list is committed.
+        final AccessCondition leaseCondition = accessCondition == null || accessCondition.getLeaseID() == null ? null
+                : AccessCondition.generateLeaseCondition(accessCondition.getLeaseID());
+
+        try {
+            return this.downloadBlockList(blockListingFilter, leaseCondition, options, opContext);
+        }
+        catch (final StorageException e) {
+            if (e.getHttpStatusCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+                return new ArrayList<BlockEntry>();
+            }
+
+            throw e;
+        }
+    }
+
     /**
      * Uploads a block to the block blob, using the specified block ID and lease ID.
      * 
@@ -601,7 +971,7 @@ public final class CloudBlockBlob extends CloudBlob {
      * @throws IOException
      */
     @DoesServiceRequest
-    private void uploadBlockInternal(final String blockId, final String md5, final InputStream sourceStream,
+    void uploadBlockInternal(final String blockId, final String md5, final InputStream sourceStream,
             final long length, final AccessCondition accessCondition, final BlobRequestOptions options,
             final OperationContext opContext) throws StorageException, IOException {
 
@@ -636,6 +1006,8 @@ public final class CloudBlockBlob extends CloudBlob {
             }
         };
 
+        impl.setPartitionKey(this.getUri().getPath());
+
         ExecutionEngine
                 .executeWithRetry(this.blobServiceClient, this, impl, options.getRetryPolicyFactory(), opContext);
 
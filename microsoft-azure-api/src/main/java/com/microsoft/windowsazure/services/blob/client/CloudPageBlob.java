@@ -14,11 +14,15 @@
  */
 package com.microsoft.windowsazure.services.blob.client;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
 import java.net.URI;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
@@ -284,6 +288,8 @@ public final class CloudPageBlob extends CloudBlob {
             }
         };
 
+        impl.setPartitionKey(this.getUri().getPath());
+
         ExecutionEngine
                 .executeWithRetry(this.blobServiceClient, this, impl, options.getRetryPolicyFactory(), opContext);
     }
@@ -367,6 +373,8 @@ public final class CloudPageBlob extends CloudBlob {
             }
         };
 
+        impl.setPartitionKey(this.getUri().getPath());
+
         return ExecutionEngine.executeWithRetry(this.blobServiceClient, this, impl, options.getRetryPolicyFactory(),
                 opContext);
     }
@@ -496,6 +504,8 @@ public final class CloudPageBlob extends CloudBlob {
             }
         };
 
+        impl.setPartitionKey(this.getUri().getPath());
+
         ExecutionEngine
                 .executeWithRetry(this.blobServiceClient, this, impl, options.getRetryPolicyFactory(), opContext);
     }
@@ -582,6 +592,166 @@ public final class CloudPageBlob extends CloudBlob {
         }
     }
 
+    /**
+     * Uploads the contents of a file to the page blob, sending only the pages that are not all zeros.
+     * 
+     * @param sourceFile
+     *            A <code>File</code> object that represents the file to upload. Its length must be a multiple of 512.
+     * 
+     * @throws IOException
+     *             If an I/O exception occurred.
+     * @throws StorageException
+     *             If a storage service error occurred.
+     */
+    @DoesServiceRequest
+    public void uploadFromFile(final File sourceFile) throws StorageException, IOException {
+        this.uploadFromFile(sourceFile, null, null, null);
+    }
+
+    /**
+     * Uploads the contents of a file to the page blob, sending only the pages that are not all zeros, using the
+     * specified lease ID, request options, and operation context.
+     * <p>
+     * The page blob is created with the length of the file. The file is then scanned for pages that contain data, and
+     * adjacent pages with data are written in ranges of up to 4 MB, up to
+     * {@link BlobRequestOptions#getConcurrentRequestCount()} ranges at a time. For mostly empty files such as virtual
+     * disk images this transfers only the populated part of the file.
+     * 
+     * @param sourceFile
+     *            A <code>File</code> object that represents the file to upload. Its length must be a multiple of 512.
+     * @param accessCondition
+     *            An {@link AccessCondition} object that represents the access conditions for the blob.
+     * @param options
+     *            A {@link BlobRequestOptions} object that specifies any additional options for the request. Specifying
+     *            <code>null</code> will use the default request options from the associated service client (
+     *            {@link CloudBlobClient}).
+     * @param opContext
+     *            An {@link OperationContext} object that represents the context for the current operation. This object
+     *            is used to track requests to the storage service, and to provide additional runtime information about
+     *            the operation.
+     * 
+     * @throws IOException
+     *             If an I/O exception occurred.
+     * @throws StorageException
+     *             If a storage service error occurred.
+     */
+    @DoesServiceRequest
+    public void uploadFromFile(final File sourceFile, final AccessCondition accessCondition,
+            BlobRequestOptions options, OperationContext opContext) throws StorageException, IOException {
+        assertNoWriteOperationForSnapshot();
+
+        if (opContext == null) {
+            opContext = new OperationContext();
+        }
+
+        if (options == null) {
+            options = new BlobRequestOptions();
+        }
+
+        opContext.initialize();
+        options.applyDefaults(this.blobServiceClient);
+
+        if (options.getStoreBlobContentMD5()) {
+            throw new IllegalArgumentException("Blob Level MD5 is not supported for PageBlob");
+        }
+
+        final FileInputStream fileStream = new FileInputStream(sourceFile);
+        try {
+            final FileChannel channel = fileStream.getChannel();
+            final long length = channel.size();
+            if (length % BlobConstants.PAGE_SIZE != 0) {
+                throw new IllegalArgumentException("Page data must be multiple of 512!");
+            }
+
+            this.create(length, accessCondition, options, opContext);
+            new SparsePageTransfer(this, channel, accessCondition, options, opContext).upload(length);
+        }
+        finally {
+            fileStream.close();
+        }
+    }
+
+    /**
+     * Downloads the contents of the page blob to a file, fetching only the populated page ranges.
+     * 
+     * @param destinationFile
+     *            A <code>File</code> object that represents the file to write. Any existing content is replaced.
+     * 
+     * @throws IOException
+     *             If an I/O exception occurred.
+     * @throws StorageException
+     *             If a storage service error occurred.
+     */
+    @DoesServiceRequest
+    public void downloadToFile(final File destinationFile) throws StorageException, IOException {
+        this.downloadToFile(destinationFile, null, null, null);
+    }
+
+    /**
+     * Downloads the contents of the page blob to a file, fetching only the populated page ranges, using the specified
+     * lease ID, request options, and operation context.
+     * <p>
+     * The file is set to the length of the blob and each populated page range is downloaded, in pieces of up to 4 MB
+     * and up to {@link BlobRequestOptions#getConcurrentRequestCount()} at a time, and written at its offset. Ranges
+     * that were never written are not transferred and are left as holes, which take no space on file systems that
+     * support sparse files. The blob ETag is checked on every request so a blob modified during the download fails
+     * rather than producing a mixed copy.
+     * 
+     * @param destinationFile
+     *            A <code>File</code> object that represents the file to write. Any existing content is replaced.
+     * @param accessCondition
+     *            An {@link AccessCondition} object that represents the access conditions for the blob.
+     * @param options
+     *            A {@link BlobRequestOptions} object that specifies any additional options for the request. Specifying
+     *            <code>null</code> will use the default request options from the associated service client (
+     *            {@link CloudBlobClient}).
+     * @param opContext
+     *            An {@link OperationContext} object that represents the context for the current operation. This object
+     *            is used to track requests to the storage service, and to provide additional runtime information about
+     *            the operation.
+     * 
+     * @throws IOException
+     *             If an I/O exception occurred.
+     * @throws StorageException
+     *             If a storage service error occurred.
+     */
+    @DoesServiceRequest
+    public void downloadToFile(final File destinationFile, final AccessCondition accessCondition,
+            BlobRequestOptions options, OperationContext opContext) throws StorageException, IOException {
+        if (opContext == null) {
+            opContext = new OperationContext();
+        }
+
+        if (options == null) {
+            options = new BlobRequestOptions();
+        }
+
+        opContext.initialize();
+        options.applyDefaults(this.blobServiceClient);
+
+        this.downloadAttributes(accessCondition, options, opContext);
+
+        final AccessCondition etagLockCondition = new AccessCondition();
+        etagLockCondition.setIfMatch(this.getProperties().getEtag());
+        if (accessCondition != null) {
+            etagLockCondition.setLeaseID(accessCondition.getLeaseID());
+        }
+
+        final ArrayList<PageRange> pageRanges = this.downloadPageRanges(etagLockCondition, options, opContext);
+
+        final RandomAccessFile file = new RandomAccessFile(destinationFile, "rw");
+        try {
+            // Truncate first so regions not rewritten read as zeros rather than old content.
+            file.setLength(0);
+            file.setLength(this.getProperties().getLength());
+            new SparsePageTransfer(this, file.getChannel(), etagLockCondition, options, opContext)
+                    .download(pageRanges);
+        }
+        finally {
+            file.close();
+        }
+    }
+
     /**
      * Uploads a range of contiguous pages, up to 4 MB in size, at the specified offset in the page blob.
      * 
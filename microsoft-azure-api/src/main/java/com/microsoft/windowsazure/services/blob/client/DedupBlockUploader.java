@@ -0,0 +1,411 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.services.blob.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.microsoft.windowsazure.services.core.storage.AccessCondition;
+import com.microsoft.windowsazure.services.core.storage.Constants;
+import com.microsoft.windowsazure.services.core.storage.DoesServiceRequest;
+import com.microsoft.windowsazure.services.core.storage.OperationContext;
+import com.microsoft.windowsazure.services.core.storage.StorageException;
+import com.microsoft.windowsazure.services.core.storage.utils.Base64;
+import com.microsoft.windowsazure.services.core.storage.utils.Utility;
+
+/**
+ * RESERVED FOR INTERNAL USE. Uploads a stream as content-addressed blocks so that data the blob already holds is not
+ * sent again.
+ * <p>
+ * Block boundaries are chosen from the content with a rolling gear hash rather than at fixed offsets, so an insertion
+ * or deletion only changes the blocks around it and the following blocks keep their boundaries. Each block ID is
+ * derived from the block length and the MD5 of its content. A block whose ID and size already appear in the committed
+ * or uncommitted block list of the blob, or that occurred earlier in the same stream, is referenced without being
+ * uploaded.
+ */
+class DedupBlockUploader {
+    /**
+     * The default smallest block, other than the last.
+     */
+    static final int DEFAULT_MIN_BLOCK_SIZE = 512 * Constants.KB;
+
+    /**
+     * The default largest block, which is the largest block the service accepts.
+     */
+    static final int DEFAULT_MAX_BLOCK_SIZE = 4 * Constants.MB;
+
+    /**
+     * The default number of hash bits that must be zero at a boundary, giving blocks about 1 MB longer than the
+     * minimum on average.
+     */
+    static final int DEFAULT_BOUNDARY_BITS = 20;
+
+    /**
+     * Holds the random value mixed into the rolling hash for each byte value. The seed is fixed so boundaries, and
+     * therefore block IDs, are the same across runs and processes.
+     */
+    private static final long[] GEAR = new long[256];
+
+    static {
+        final Random random = new Random(0x2545F4914F6CDD1DL);
+        for (int m = 0; m < GEAR.length; m++) {
+            GEAR[m] = random.nextLong();
+        }
+    }
+
+    /**
+     * Holds the blob the blocks are uploaded to.
+     */
+    private final CloudBlockBlob blob;
+
+    /**
+     * Holds the smallest block, other than the last.
+     */
+    private final int minBlockSize;
+
+    /**
+     * Holds the largest block.
+     */
+    private final int maxBlockSize;
+
+    /**
+     * Holds the number of high bits of the rolling hash that must be zero at a boundary.
+     */
+    private final int boundaryBits;
+
+    /**
+     * Holds the {@link AccessCondition} object that represents the access conditions for the blob.
+     */
+    private final AccessCondition accessCondition;
+
+    /**
+     * Holds the options for the upload.
+     */
+    private final BlobRequestOptions options;
+
+    /**
+     * Holds the OperationContext for the upload.
+     */
+    private final OperationContext opContext;
+
+    /**
+     * Holds the digest for the whole blob, or <code>null</code> if the blob MD5 is not being stored.
+     */
+    private final MessageDigest blobDigest;
+
+    /**
+     * Holds the sizes of the blocks the blob already has, keyed by block ID.
+     */
+    private final Map<String, Long> existingBlocks = new HashMap<String, Long>();
+
+    /**
+     * Holds the number of blocks sent to the service.
+     */
+    private final AtomicInteger uploadedBlockCount = new AtomicInteger();
+
+    /**
+     * Holds the number of bytes sent to the service.
+     */
+    private final AtomicLong uploadedBytes = new AtomicLong();
+
+    /**
+     * Holds the Base64 encoded MD5 of the whole stream once {@link #uploadBlocks(InputStream)} completes.
+     */
+    private String contentMD5;
+
+    /**
+     * Initializes a new instance of the DedupBlockUploader class with the default block sizes.
+     * 
+     * @param blob
+     *            the blob to upload the blocks to.
+     * @param accessCondition
+     *            An {@link AccessCondition} object that represents the access conditions for the blob.
+     * @param options
+     *            An object that specifies any additional options for the request, defaults must already be applied.
+     * @param opContext
+     *            an object used to track the execution of the operation
+     */
+    DedupBlockUploader(final CloudBlockBlob blob, final AccessCondition accessCondition,
+            final BlobRequestOptions options, final OperationContext opContext) {
+        this(blob, DEFAULT_MIN_BLOCK_SIZE, DEFAULT_MAX_BLOCK_SIZE, DEFAULT_BOUNDARY_BITS, accessCondition, options,
+                opContext);
+    }
+
+    /**
+     * Initializes a new instance of the DedupBlockUploader class.
+     * 
+     * @param blob
+     *            the blob to upload the blocks to.
+     * @param minBlockSize
+     *            the smallest block, other than the last.
+     * @param maxBlockSize
+     *            the largest block.
+     * @param boundaryBits
+     *            the number of high bits of the rolling hash that must be zero at a boundary.
+     * @param accessCondition
+     *            An {@link AccessCondition} object that represents the access conditions for the blob.
+     * @param options
+     *            An object that specifies any additional options for the request, defaults must already be applied.
+     * @param opContext
+     *            an object used to track the execution of the operation
+     */
+    DedupBlockUploader(final CloudBlockBlob blob, final int minBlockSize, final int maxBlockSize,
+            final int boundaryBits, final AccessCondition accessCondition, final BlobRequestOptions options,
+            final OperationContext opContext) {
+        if (minBlockSize < 1 || maxBlockSize < minBlockSize) {
+            throw new IllegalArgumentException(
+                    "Block sizes must be positive and the minimum must not exceed the maximum.");
+        }
+
+        if (options.getConcurrentRequestCount() == null || options.getConcurrentRequestCount() < 1) {
+            throw new IllegalArgumentException("ConcurrentRequestCount");
+        }
+
+        this.blob = blob;
+        this.minBlockSize = minBlockSize;
+        this.maxBlockSize = maxBlockSize;
+        this.boundaryBits = boundaryBits;
+        this.accessCondition = accessCondition;
+        this.options = options;
+        this.opContext = opContext;
+        this.blobDigest = options.getStoreBlobContentMD5() ? FileBlockUploader.createDigest() : null;
+    }
+
+    /**
+     * Supplies the blocks the blob already has, which are referenced instead of being uploaded again.
+     * 
+     * @param blocks
+     *            the committed and uncommitted blocks of the blob.
+     */
+    void setExistingBlocks(final Iterable<BlockEntry> blocks) {
+        for (final BlockEntry entry : blocks) {
+            this.existingBlocks.put(entry.getId(), entry.getSize());
+        }
+    }
+
+    /**
+     * Returns the number of blocks that were sent to the service.
+     * 
+     * @return the number of blocks uploaded.
+     */
+    int getUploadedBlockCount() {
+        return this.uploadedBlockCount.get();
+    }
+
+    /**
+     * Returns the number of bytes that were sent to the service.
+     * 
+     * @return the number of bytes uploaded.
+     */
+    long getUploadedBytes() {
+        return this.uploadedBytes.get();
+    }
+
+    /**
+     * Returns the Base64 encoded MD5 of the uploaded stream.
+     * 
+     * @return the MD5 of the stream, or <code>null</code> if the blob MD5 is not being stored.
+     */
+    String getContentMD5() {
+        return this.contentMD5;
+    }
+
+    /**
+     * Reads the stream to its end, uploading the blocks the blob does not already have, and returns the block list to
+     * commit in order.
+     * 
+     * @param sourceStream
+     *            the stream to upload.
+     * @return an <code>ArrayList</code> of {@link BlockEntry} objects in block order.
+     * @throws StorageException
+     *             an exception representing any error which occurred during the operation.
+     * @throws IOException
+     *             if an I/O error occurs reading the stream.
+     */
+    @DoesServiceRequest
+    ArrayList<BlockEntry> uploadBlocks(final InputStream sourceStream) throws StorageException, IOException {
+        final ArrayList<BlockEntry> blocks = new ArrayList<BlockEntry>();
+        final Set<String> dispatchedBlocks = new HashSet<String>();
+        final int concurrency = this.options.getConcurrentRequestCount();
+
+        final ExecutorService threadExecutor = Executors.newFixedThreadPool(concurrency);
+        final CompletionService<Void> completionService = new ExecutorCompletionService<Void>(threadExecutor);
+        int outstandingRequests = 0;
+
+        try {
+            byte[] buffer = new byte[this.maxBlockSize];
+            int fill = 0;
+            boolean endOfStream = false;
+
+            while (!endOfStream || fill > 0) {
+                while (!endOfStream && fill < buffer.length) {
+                    final int read = sourceStream.read(buffer, fill, buffer.length - fill);
+                    if (read < 0) {
+                        endOfStream = true;
+                    }
+                    else {
+                        fill += read;
+                    }
+                }
+
+                if (fill == 0) {
+                    break;
+                }
+
+                int blockLength = findBoundary(buffer, fill, this.minBlockSize, this.boundaryBits);
+                if (blockLength < 0) {
+                    // No boundary: the buffer is either full or holds the rest of the stream.
+                    blockLength = fill;
+                }
+
+                final byte[] data = buffer;
+                final int length = blockLength;
+                buffer = new byte[this.maxBlockSize];
+                System.arraycopy(data, length, buffer, 0, fill - length);
+                fill -= length;
+
+                final MessageDigest blockDigest = FileBlockUploader.createDigest();
+                blockDigest.update(data, 0, length);
+                final byte[] md5Bytes = blockDigest.digest();
+                if (this.blobDigest != null) {
+                    this.blobDigest.update(data, 0, length);
+                }
+
+                final String blockId = getContentBlockId(length, md5Bytes);
+                blocks.add(new BlockEntry(blockId, BlockSearchMode.LATEST));
+
+                final Long existingSize = this.existingBlocks.get(blockId);
+                if ((existingSize != null && existingSize == length) || !dispatchedBlocks.add(blockId)) {
+                    continue;
+                }
+
+                // Bound the number of buffers held in memory, as BlobOutputStream does.
+                if (outstandingRequests >= concurrency * 2) {
+                    FileBlockUploader.waitForTaskToComplete(completionService);
+                    outstandingRequests--;
+                }
+
+                final String md5 = this.options.getUseTransactionalContentMD5() ? Base64.encode(md5Bytes) : null;
+                completionService.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        DedupBlockUploader.this.putBlock(blockId, data, length, md5);
+                        DedupBlockUploader.this.uploadedBlockCount.incrementAndGet();
+                        DedupBlockUploader.this.uploadedBytes.addAndGet(length);
+                        return null;
+                    }
+                });
+                outstandingRequests++;
+            }
+
+            while (outstandingRequests > 0) {
+                FileBlockUploader.waitForTaskToComplete(completionService);
+                outstandingRequests--;
+            }
+        }
+        finally {
+            threadExecutor.shutdownNow();
+        }
+
+        if (this.blobDigest != null) {
+            this.contentMD5 = Base64.encode(this.blobDigest.digest());
+        }
+
+        return blocks;
+    }
+
+    /**
+     * Uploads a block to the blob. Split out so tests can observe the blocks without a service.
+     * 
+     * @param blockId
+     *            the Base64 Encoded Block ID
+     * @param data
+     *            the buffer holding the block data at its start.
+     * @param length
+     *            the length of the block.
+     * @param md5
+     *            the Base64 encoded MD5 of the block, or <code>null</code> if transactional MD5 is not in use.
+     * @throws StorageException
+     *             an exception representing any error which occurred during the operation.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    @DoesServiceRequest
+    protected void putBlock(final String blockId, final byte[] data, final int length, final String md5)
+            throws StorageException, IOException {
+        this.blob.uploadBlockInternal(blockId, md5, new ByteArrayInputStream(data, 0, length), length,
+                this.accessCondition, this.options, this.opContext);
+    }
+
+    /**
+     * Returns the length of the first block in the buffer: the position just after the first byte, at or past the
+     * minimum block size, where the high bits of the rolling hash are all zero.
+     * 
+     * @param data
+     *            the buffer, starting at the beginning of a block.
+     * @param length
+     *            the number of bytes in the buffer.
+     * @param minBlockSize
+     *            the smallest block.
+     * @param boundaryBits
+     *            the number of high bits of the hash that must be zero.
+     * @return the length of the block, or -1 if the buffer holds no boundary.
+     */
+    static int findBoundary(final byte[] data, final int length, final int minBlockSize, final int boundaryBits) {
+        final int shift = 64 - boundaryBits;
+
+        // Bytes before the minimum cannot end a block; the 64 before it prime the hash window.
+        long hash = 0;
+        for (int m = Math.max(0, minBlockSize - 64); m < length; m++) {
+            hash = (hash << 1) + GEAR[data[m] & 0xff];
+            if (m + 1 >= minBlockSize && hash >>> shift == 0) {
+                return m + 1;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Returns a block ID derived from the block length and the MD5 of its content. All such IDs have the same length.
+     * 
+     * @param length
+     *            the length of the block.
+     * @param md5
+     *            the MD5 of the block content.
+     * @return the Base64 encoded block ID.
+     */
+    static String getContentBlockId(final long length, final byte[] md5) {
+        final byte[] id = new byte[8 + md5.length];
+        System.arraycopy(Utility.getBytesFromLong(length), 0, id, 0, 8);
+        System.arraycopy(md5, 0, id, 8, md5.length);
+        return Base64.encode(id);
+    }
+}
@@ -0,0 +1,457 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.services.blob.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.microsoft.windowsazure.services.core.storage.AccessCondition;
+import com.microsoft.windowsazure.services.core.storage.Constants;
+import com.microsoft.windowsazure.services.core.storage.DoesServiceRequest;
+import com.microsoft.windowsazure.services.core.storage.OperationContext;
+import com.microsoft.windowsazure.services.core.storage.StorageErrorCodeStrings;
+import com.microsoft.windowsazure.services.core.storage.StorageException;
+import com.microsoft.windowsazure.services.core.storage.utils.Base64;
+import com.microsoft.windowsazure.services.core.storage.utils.Utility;
+
+/**
+ * RESERVED FOR INTERNAL USE. Uploads a region of a file as a set of blocks in parallel. Each block is read exactly
+ * once with a positional read into its own buffer; the per-block transactional MD5 is computed by the worker that
+ * uploads the block, and the whole-blob MD5 is built incrementally in block order as buffers become available, so no
+ * separate pre-read pass over the file is needed.
+ * <p>
+ * When existing blocks are supplied the upload is resumable: block IDs are derived from the block index and the MD5
+ * of the block content, and blocks the service already holds with the same ID and size are not sent again.
+ */
+class FileBlockUploader {
+    /**
+     * Holds the length of the block IDs of a resumable upload.
+     */
+    private static final int DETERMINISTIC_BLOCK_ID_LENGTH = getDeterministicBlockId(0, new byte[16]).length();
+
+    /**
+     * Holds the random number generator used to create starting blockIDs.
+     */
+    private static Random blockSequenceGenerator = new Random();
+
+    /**
+     * Holds the blob the blocks are uploaded to.
+     */
+    private final CloudBlockBlob blob;
+
+    /**
+     * Holds the channel to read the file data from.
+     */
+    private final FileChannel sourceChannel;
+
+    /**
+     * Holds the position in the channel of the first byte to upload.
+     */
+    private final long offset;
+
+    /**
+     * Holds the number of bytes to upload.
+     */
+    private final long length;
+
+    /**
+     * Holds the size of each block, the last block may be shorter.
+     */
+    private final int blockSize;
+
+    /**
+     * Holds the {@link AccessCondition} object that represents the access conditions for the blob.
+     */
+    private final AccessCondition accessCondition;
+
+    /**
+     * Holds the options for the upload.
+     */
+    private final BlobRequestOptions options;
+
+    /**
+     * Holds the OperationContext for the upload.
+     */
+    private final OperationContext opContext;
+
+    /**
+     * Holds the digest for the whole blob, or <code>null</code> if the blob MD5 is not being stored.
+     */
+    private final MessageDigest blobDigest;
+
+    /**
+     * Holds the block buffers that are ready to be hashed but are waiting on an earlier block, keyed by block index.
+     */
+    private final HashMap<Integer, byte[]> pendingDigestBlocks = new HashMap<Integer, byte[]>();
+
+    /**
+     * Holds the sizes of blocks already staged on the service keyed by block ID, or <code>null</code> when block IDs
+     * are not deterministic.
+     */
+    private Map<String, Long> existingBlocks;
+
+    /**
+     * Holds the number of blocks sent to the service.
+     */
+    private final AtomicInteger uploadedBlockCount = new AtomicInteger();
+
+    /**
+     * Holds the index of the next block to feed into the whole-blob digest.
+     */
+    private int nextDigestBlock;
+
+    /**
+     * Holds the Base64 encoded MD5 of the whole uploaded region once {@link #uploadBlocks()} completes.
+     */
+    private String contentMD5;
+
+    /**
+     * Initializes a new instance of the FileBlockUploader class.
+     * 
+     * @param blob
+     *            the blob to upload the blocks to.
+     * @param sourceChannel
+     *            the channel to read the file data from.
+     * @param offset
+     *            the position in the channel of the first byte to upload.
+     * @param length
+     *            the number of bytes to upload.
+     * @param blockSize
+     *            the size of each block in bytes.
+     * @param accessCondition
+     *            An {@link AccessCondition} object that represents the access conditions for the blob.
+     * @param options
+     *            An object that specifies any additional options for the request, defaults must already be applied.
+     * @param opContext
+     *            an object used to track the execution of the operation
+     * @throws StorageException
+     *             an exception representing any error which occurred during the operation.
+     */
+    FileBlockUploader(final CloudBlockBlob blob, final FileChannel sourceChannel, final long offset,
+            final long length, final int blockSize, final AccessCondition accessCondition,
+            final BlobRequestOptions options, final OperationContext opContext) throws StorageException {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Block size must be a positive number of bytes.");
+        }
+
+        if (options.getConcurrentRequestCount() == null || options.getConcurrentRequestCount() < 1) {
+            throw new IllegalArgumentException("ConcurrentRequestCount");
+        }
+
+        this.blob = blob;
+        this.sourceChannel = sourceChannel;
+        this.offset = offset;
+        this.length = length;
+        this.blockSize = blockSize;
+        this.accessCondition = accessCondition;
+        this.options = options;
+        this.opContext = opContext;
+        this.blobDigest = options.getStoreBlobContentMD5() ? createDigest() : null;
+    }
+
+    /**
+     * Reads and uploads every block of the region, returning the block list to commit in order.
+     * 
+     * @return an <code>ArrayList</code> of {@link BlockEntry} objects in block order.
+     * @throws StorageException
+     *             an exception representing any error which occurred during the operation.
+     * @throws IOException
+     *             if an I/O error occurs reading the file.
+     */
+    @DoesServiceRequest
+    ArrayList<BlockEntry> uploadBlocks() throws StorageException, IOException {
+        final int blockCount = (int) ((this.length + this.blockSize - 1) / this.blockSize);
+        final BlockEntry[] blocks = new BlockEntry[blockCount];
+        final int concurrency = this.options.getConcurrentRequestCount();
+
+        long blockIdSequenceNumber = (long) (blockSequenceGenerator.nextInt(Integer.MAX_VALUE))
+                + blockSequenceGenerator.nextInt(Integer.MAX_VALUE - 100000);
+
+        final ExecutorService threadExecutor = Executors.newFixedThreadPool(Math.min(concurrency,
+                Math.max(1, blockCount)));
+        final CompletionService<Void> completionService = new ExecutorCompletionService<Void>(threadExecutor);
+        int outstandingRequests = 0;
+
+        try {
+            for (int m = 0; m < blockCount; m++) {
+                // Bound the number of buffers held in memory, as BlobOutputStream does.
+                if (outstandingRequests >= concurrency * 2) {
+                    waitForTaskToComplete(completionService);
+                    outstandingRequests--;
+                }
+
+                // Deterministic IDs depend on the block content, so are assigned by the worker once it is read.
+                final String blockId = this.existingBlocks == null ? Base64.encode(Utility
+                        .getBytesFromLong(blockIdSequenceNumber++)) : null;
+                final int blockIndex = m;
+                final long blockOffset = (long) m * this.blockSize;
+                final int blockLength = (int) Math.min(this.blockSize, this.length - blockOffset);
+
+                completionService.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        blocks[blockIndex] = FileBlockUploader.this.uploadBlock(blockIndex, blockId, blockOffset,
+                                blockLength);
+                        return null;
+                    }
+                });
+                outstandingRequests++;
+            }
+
+            while (outstandingRequests > 0) {
+                waitForTaskToComplete(completionService);
+                outstandingRequests--;
+            }
+        }
+        finally {
+            threadExecutor.shutdownNow();
+        }
+
+        if (this.blobDigest != null) {
+            this.contentMD5 = Base64.encode(this.blobDigest.digest());
+        }
+
+        return new ArrayList<BlockEntry>(Arrays.asList(blocks));
+    }
+
+    /**
+     * Makes the upload resumable: block IDs are derived from the block index and content, and blocks whose ID and
+     * size match an existing block are not uploaded again.
+     * 
+     * @param existingBlocks
+     *            the blocks already staged on the service, typically the uncommitted block list of the blob.
+     * @throws StorageException
+     *             if an existing block has an ID of another length, which the service would reject alongside the IDs
+     *             of this upload.
+     */
+    void setExistingBlocks(final Iterable<BlockEntry> existingBlocks) throws StorageException {
+        this.existingBlocks = new HashMap<String, Long>();
+        for (final BlockEntry entry : existingBlocks) {
+            if (entry.getId().length() != DETERMINISTIC_BLOCK_ID_LENGTH) {
+                throw new StorageException(StorageErrorCodeStrings.INVALID_INPUT, String.format(
+                        "The blob has uncommitted block %s staged by another upload; its ID length differs from the "
+                                + "block IDs of a resumable upload. Commit or discard the uncommitted blocks first.",
+                        entry.getId()), Constants.HeaderConstants.HTTP_UNUSED_306, null, null);
+            }
+
+            this.existingBlocks.put(entry.getId(), entry.getSize());
+        }
+    }
+
+    /**
+     * Returns the number of blocks that were sent to the service, which for a resumed upload excludes blocks already
+     * staged.
+     * 
+     * @return the number of blocks uploaded.
+     */
+    int getUploadedBlockCount() {
+        return this.uploadedBlockCount.get();
+    }
+
+    /**
+     * Returns the Base64 encoded MD5 of the uploaded region.
+     * 
+     * @return the MD5 of the uploaded region, or <code>null</code> if the blob MD5 is not being stored.
+     */
+    String getContentMD5() {
+        return this.contentMD5;
+    }
+
+    /**
+     * Uploads a block to the blob. Split out so tests can observe the blocks without a service.
+     * 
+     * @param blockId
+     *            the Base64 Encoded Block ID
+     * @param data
+     *            the block data.
+     * @param md5
+     *            the Base64 encoded MD5 of the block, or <code>null</code> if transactional MD5 is not in use.
+     * @throws StorageException
+     *             an exception representing any error which occurred during the operation.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    @DoesServiceRequest
+    protected void putBlock(final String blockId, final byte[] data, final String md5) throws StorageException,
+            IOException {
+        this.blob.uploadBlockInternal(blockId, md5, new ByteArrayInputStream(data), data.length,
+                this.accessCondition, this.options, this.opContext);
+    }
+
+    /**
+     * Reads, hashes and uploads a single block, returning its entry for the block list.
+     */
+    @DoesServiceRequest
+    private BlockEntry uploadBlock(final int blockIndex, String blockId, final long blockOffset,
+            final int blockLength) throws StorageException, IOException {
+        final byte[] data = new byte[blockLength];
+        readFully(this.sourceChannel, data, this.offset + blockOffset);
+
+        String md5 = null;
+        byte[] md5Bytes = null;
+        if (this.options.getUseTransactionalContentMD5() || this.existingBlocks != null) {
+            final MessageDigest blockDigest = createDigest();
+            blockDigest.update(data);
+            md5Bytes = blockDigest.digest();
+            md5 = Base64.encode(md5Bytes);
+        }
+
+        if (this.blobDigest != null) {
+            this.digestInOrder(blockIndex, data);
+        }
+
+        boolean staged = false;
+        if (this.existingBlocks != null) {
+            blockId = getDeterministicBlockId(blockIndex, md5Bytes);
+            final Long existingSize = this.existingBlocks.get(blockId);
+            staged = existingSize != null && existingSize == blockLength;
+        }
+
+        if (!staged) {
+            this.putBlock(blockId, data, this.options.getUseTransactionalContentMD5() ? md5 : null);
+            this.uploadedBlockCount.incrementAndGet();
+        }
+
+        return new BlockEntry(blockId, BlockSearchMode.LATEST);
+    }
+
+    /**
+     * Returns a block ID derived from the block index and the MD5 of its content. All such IDs have the same length.
+     * 
+     * @param blockIndex
+     *            the index of the block.
+     * @param md5
+     *            the MD5 of the block content.
+     * @return the Base64 encoded block ID.
+     */
+    static String getDeterministicBlockId(final int blockIndex, final byte[] md5) {
+        final byte[] id = new byte[8 + md5.length];
+        System.arraycopy(Utility.getBytesFromLong(blockIndex), 0, id, 0, 8);
+        System.arraycopy(md5, 0, id, 8, md5.length);
+        return Base64.encode(id);
+    }
+
+    /**
+     * Feeds a block into the whole-blob digest, buffering it if earlier blocks have not been read yet.
+     */
+    private synchronized void digestInOrder(final int blockIndex, final byte[] data) {
+        this.pendingDigestBlocks.put(blockIndex, data);
+
+        byte[] next;
+        while ((next = this.pendingDigestBlocks.remove(this.nextDigestBlock)) != null) {
+            this.blobDigest.update(next);
+            this.nextDigestBlock++;
+        }
+    }
+
+    /**
+     * Fills the buffer with a positional read from the channel, leaving the channel position untouched.
+     * 
+     * @param channel
+     *            the channel to read from.
+     * @param data
+     *            the buffer to fill.
+     * @param position
+     *            the position in the channel of the first byte to read.
+     * @throws IOException
+     *             if an I/O error occurs, or the channel ends before the buffer is filled.
+     */
+    static void readFully(final FileChannel channel, final byte[] data, final long position) throws IOException {
+        readFully(channel, ByteBuffer.wrap(data), position);
+    }
+
+    /**
+     * Fills the remaining part of the buffer with a positional read from the channel, leaving the channel position
+     * untouched. The first byte read is placed at the current position of the buffer.
+     * 
+     * @param channel
+     *            the channel to read from.
+     * @param buffer
+     *            the buffer to fill.
+     * @param position
+     *            the position in the channel of the first byte to read.
+     * @throws IOException
+     *             if an I/O error occurs, or the channel ends before the buffer is filled.
+     */
+    static void readFully(final FileChannel channel, final ByteBuffer buffer, final long position) throws IOException {
+        final int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, position + buffer.position() - start);
+            if (read < 0) {
+                throw new EOFException("The file is shorter than the specified length.");
+            }
+        }
+    }
+
+    /**
+     * Waits for one block to complete, surfacing any error it raised.
+     */
+    static void waitForTaskToComplete(final CompletionService<Void> completionService)
+            throws StorageException, IOException {
+        try {
+            completionService.take().get();
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Utility.initIOException(e);
+        }
+        catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof StorageException) {
+                throw (StorageException) cause;
+            }
+            else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+
+            throw Utility.initIOException(e);
+        }
+    }
+
+    /**
+     * Creates an MD5 digest.
+     * 
+     * @return a new MD5 <code>MessageDigest</code>.
+     */
+    static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        }
+        catch (final NoSuchAlgorithmException e) {
+            // This wont happen, throw fatal.
+            throw new IllegalStateException(e);
+        }
+    }
+}
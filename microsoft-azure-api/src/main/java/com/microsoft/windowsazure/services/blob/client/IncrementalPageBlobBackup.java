@@ -0,0 +1,516 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.services.blob.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.microsoft.windowsazure.services.core.storage.Constants;
+import com.microsoft.windowsazure.services.core.storage.DoesServiceRequest;
+import com.microsoft.windowsazure.services.core.storage.OperationContext;
+import com.microsoft.windowsazure.services.core.storage.StorageException;
+import com.microsoft.windowsazure.services.core.storage.utils.Base64;
+import com.microsoft.windowsazure.services.core.storage.utils.Utility;
+
+/**
+ * Backs up a page blob snapshot to a local file or another page blob, transferring only what changed since the
+ * previous backup.
+ * <p>
+ * The snapshot is divided into 4 MB chunks. The populated page ranges of each chunk are downloaded, up to
+ * {@link BlobRequestOptions#getConcurrentRequestCount()} chunks at a time, and the chunk is hashed. A chunk is written
+ * to the target only when its hash differs from the one recorded in the previous {@link PageBlobBackupManifest}; a
+ * chunk that no longer has populated pages is cleared without being read. Page ranges on the blob written by the
+ * target are limited to the populated ranges of the snapshot, so the target stays as sparse as the source.
+ * <p>
+ * An incremental backup assumes the target still holds the backup described by the previous manifest. When there is
+ * no previous manifest, or the blob length has changed, the whole snapshot is copied. The manifest returned by each
+ * backup should be saved for the next one; it can also be used to {@link PageBlobBackupManifest#verify(File) verify}
+ * a backup file.
+ * <p>
+ * An instance runs one backup at a time.
+ */
+public class IncrementalPageBlobBackup {
+    /**
+     * The size of the chunks that are compared between backups. It is also the largest page range read or written by
+     * a single request.
+     */
+    static final int CHUNK_SIZE = 4 * Constants.MB;
+
+    /**
+     * Holds the snapshot to back up.
+     */
+    private final CloudPageBlob snapshot;
+
+    /**
+     * Holds the manifest of the previous backup, or <code>null</code> for a full backup.
+     */
+    private final PageBlobBackupManifest previous;
+
+    /**
+     * Holds the number of page bytes read from the snapshot by the last backup.
+     */
+    private final AtomicLong bytesRead = new AtomicLong();
+
+    /**
+     * Holds the number of bytes written or cleared in the target by the last backup.
+     */
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    /**
+     * Holds the number of chunks written or cleared by the last backup.
+     */
+    private final AtomicInteger changedChunkCount = new AtomicInteger();
+
+    /**
+     * Creates an instance of the <code>IncrementalPageBlobBackup</code> class.
+     * 
+     * @param snapshot
+     *            A {@link CloudPageBlob} object that represents the snapshot to back up.
+     * @param previous
+     *            The {@link PageBlobBackupManifest} returned by the previous backup to the same target, or
+     *            <code>null</code> to copy the whole snapshot.
+     */
+    public IncrementalPageBlobBackup(final CloudPageBlob snapshot, final PageBlobBackupManifest previous) {
+        Utility.assertNotNull("snapshot", snapshot);
+        if (!snapshot.isSnapshot()) {
+            throw new IllegalArgumentException("The blob to back up must be a snapshot.");
+        }
+
+        this.snapshot = snapshot;
+        this.previous = previous;
+    }
+
+    /**
+     * @return The number of page bytes read from the snapshot by the last backup.
+     */
+    public long getBytesRead() {
+        return this.bytesRead.get();
+    }
+
+    /**
+     * @return The number of bytes written or cleared in the target by the last backup.
+     */
+    public long getBytesWritten() {
+        return this.bytesWritten.get();
+    }
+
+    /**
+     * @return The number of chunks written or cleared in the target by the last backup.
+     */
+    public int getChangedChunkCount() {
+        return this.changedChunkCount.get();
+    }
+
+    /**
+     * Backs up the snapshot to a local file, using the specified request options and operation context.
+     * 
+     * @param file
+     *            A <code>File</code> object that represents the backup file. For an incremental backup it must hold
+     *            the backup described by the previous manifest.
+     * @param options
+     *            A {@link BlobRequestOptions} object that specifies any additional options for the request. Specifying
+     *            <code>null</code> will use the default request options from the associated service client (
+     *            {@link CloudBlobClient}).
+     * @param opContext
+     *            An {@link OperationContext} object that represents the context for the current operation. This object
+     *            is used to track requests to the storage service, and to provide additional runtime information about
+     *            the operation.
+     * @return The {@link PageBlobBackupManifest} describing the new backup.
+     * 
+     * @throws StorageException
+     *             If a storage service error occurred.
+     * @throws IOException
+     *             If an I/O error occurred writing the file.
+     */
+    @DoesServiceRequest
+    public PageBlobBackupManifest backupToFile(final File file, BlobRequestOptions options, OperationContext opContext)
+            throws StorageException, IOException {
+        if (opContext == null) {
+            opContext = new OperationContext();
+        }
+
+        if (options == null) {
+            options = new BlobRequestOptions();
+        }
+
+        opContext.initialize();
+        options.applyDefaults(this.snapshot.getServiceClient());
+
+        final long length = this.getSourceLength(options, opContext);
+        final boolean incremental = this.isIncremental(length);
+
+        final RandomAccessFile output = new RandomAccessFile(file, "rw");
+        try {
+            if (!incremental) {
+                // Truncate first so regions not rewritten read as zeros rather than old content.
+                output.setLength(0);
+            }
+
+            output.setLength(length);
+            return this.backup(new FileTarget(output.getChannel()), length, incremental, options, opContext);
+        }
+        finally {
+            output.close();
+        }
+    }
+
+    /**
+     * Backs up the snapshot to a page blob, using the specified request options and operation context.
+     * 
+     * @param target
+     *            A {@link CloudPageBlob} object that represents the backup blob. For an incremental backup it must hold
+     *            the backup described by the previous manifest; otherwise it is created, replacing any existing blob.
+     * @param options
+     *            A {@link BlobRequestOptions} object that specifies any additional options for the request. Specifying
+     *            <code>null</code> will use the default request options from the associated service client (
+     *            {@link CloudBlobClient}).
+     * @param opContext
+     *            An {@link OperationContext} object that represents the context for the current operation. This object
+     *            is used to track requests to the storage service, and to provide additional runtime information about
+     *            the operation.
+     * @return The {@link PageBlobBackupManifest} describing the new backup.
+     * 
+     * @throws StorageException
+     *             If a storage service error occurred.
+     * @throws IOException
+     *             If an I/O error occurred.
+     */
+    @DoesServiceRequest
+    public PageBlobBackupManifest backupToPageBlob(final CloudPageBlob target, BlobRequestOptions options,
+            OperationContext opContext) throws StorageException, IOException {
+        Utility.assertNotNull("target", target);
+
+        if (opContext == null) {
+            opContext = new OperationContext();
+        }
+
+        if (options == null) {
+            options = new BlobRequestOptions();
+        }
+
+        opContext.initialize();
+        options.applyDefaults(this.snapshot.getServiceClient());
+
+        final long length = this.getSourceLength(options, opContext);
+        final boolean incremental = this.isIncremental(length);
+        if (!incremental) {
+            this.createTarget(target, length, options, opContext);
+        }
+
+        return this.backup(new PageBlobTarget(target), length, incremental, options, opContext);
+    }
+
+    /**
+     * Returns whether the previous manifest can be used as the base of this backup.
+     */
+    private boolean isIncremental(final long length) {
+        return this.previous != null && this.previous.getChunkSize() == CHUNK_SIZE
+                && this.previous.getLength() == length;
+    }
+
+    /**
+     * Copies the changed chunks of the snapshot to the target and returns the new manifest.
+     */
+    private PageBlobBackupManifest backup(final Target target, final long length, final boolean incremental,
+            final BlobRequestOptions options, final OperationContext opContext) throws StorageException, IOException {
+        this.bytesRead.set(0);
+        this.bytesWritten.set(0);
+        this.changedChunkCount.set(0);
+
+        final Map<Long, List<PageRange>> chunkRanges = splitIntoChunks(this.getSourcePageRanges(options, opContext));
+        final Map<Long, String> previousHashes = incremental ? this.previous.getChunkHashes()
+                : new TreeMap<Long, String>();
+        final Map<Long, String> hashes = new ConcurrentSkipListMap<Long, String>();
+
+        final int concurrency = options.getConcurrentRequestCount();
+        final ExecutorService threadExecutor = Executors.newFixedThreadPool(concurrency);
+        final CompletionService<Void> completionService = new ExecutorCompletionService<Void>(threadExecutor);
+        int outstandingRequests = 0;
+        try {
+            // Chunks that held pages last time but hold none now only need clearing.
+            for (final Long index : previousHashes.keySet()) {
+                if (!chunkRanges.containsKey(index)) {
+                    final long offset = index * CHUNK_SIZE;
+                    final int chunkLength = (int) Math.min(CHUNK_SIZE, length - offset);
+                    target.clear(offset, chunkLength, options, opContext);
+                    this.bytesWritten.addAndGet(chunkLength);
+                    this.changedChunkCount.incrementAndGet();
+                }
+            }
+
+            for (final Map.Entry<Long, List<PageRange>> entry : chunkRanges.entrySet()) {
+                final long index = entry.getKey();
+                final List<PageRange> ranges = entry.getValue();
+                final String previousHash = previousHashes.get(index);
+
+                if (outstandingRequests >= concurrency * 2) {
+                    FileBlockUploader.waitForTaskToComplete(completionService);
+                    outstandingRequests--;
+                }
+
+                completionService.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        IncrementalPageBlobBackup.this.backupChunk(target, length, index, ranges, previousHash,
+                                hashes, options, opContext);
+                        return null;
+                    }
+                });
+                outstandingRequests++;
+            }
+
+            while (outstandingRequests > 0) {
+                FileBlockUploader.waitForTaskToComplete(completionService);
+                outstandingRequests--;
+            }
+        }
+        finally {
+            threadExecutor.shutdownNow();
+        }
+
+        return new PageBlobBackupManifest(this.snapshot.getSnapshotID(), length, CHUNK_SIZE,
+                new TreeMap<Long, String>(hashes));
+    }
+
+    /**
+     * Reads the populated ranges of one chunk, records its hash and writes it to the target if it changed.
+     */
+    private void backupChunk(final Target target, final long length, final long index, final List<PageRange> ranges,
+            final String previousHash, final Map<Long, String> hashes, final BlobRequestOptions options,
+            final OperationContext opContext) throws StorageException, IOException {
+        final long chunkStart = index * CHUNK_SIZE;
+        final byte[] chunk = new byte[(int) Math.min(CHUNK_SIZE, length - chunkStart)];
+
+        for (final PageRange range : ranges) {
+            final int rangeLength = (int) (range.getEndOffset() + 1 - range.getStartOffset());
+            this.getPages(range.getStartOffset(), chunk, (int) (range.getStartOffset() - chunkStart), rangeLength,
+                    options, opContext);
+            this.bytesRead.addAndGet(rangeLength);
+        }
+
+        final MessageDigest digest = FileBlockUploader.createDigest();
+        final String hash = Base64.encode(digest.digest(chunk));
+        hashes.put(index, hash);
+
+        if (!hash.equals(previousHash)) {
+            target.write(chunkStart, chunk, ranges, previousHash != null, options, opContext);
+            this.changedChunkCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Splits page ranges at chunk boundaries and groups the pieces by chunk index.
+     * 
+     * @param pageRanges
+     *            the populated page ranges, in offset order.
+     * @return the pieces of the ranges that fall in each chunk, by chunk index.
+     */
+    static SortedMap<Long, List<PageRange>> splitIntoChunks(final List<PageRange> pageRanges) {
+        final SortedMap<Long, List<PageRange>> chunks = new TreeMap<Long, List<PageRange>>();
+        for (final PageRange pageRange : pageRanges) {
+            long start = pageRange.getStartOffset();
+            final long end = pageRange.getEndOffset() + 1;
+            while (start < end) {
+                final long index = start / CHUNK_SIZE;
+                final long pieceEnd = Math.min(end, (index + 1) * CHUNK_SIZE);
+
+                List<PageRange> pieces = chunks.get(index);
+                if (pieces == null) {
+                    pieces = new ArrayList<PageRange>();
+                    chunks.put(index, pieces);
+                }
+
+                pieces.add(new PageRange(start, pieceEnd - 1));
+                start = pieceEnd;
+            }
+        }
+
+        return chunks;
+    }
+
+    /**
+     * Fetches the length of the snapshot. Split out so tests can run without a service.
+     */
+    @DoesServiceRequest
+    long getSourceLength(final BlobRequestOptions options, final OperationContext opContext)
+            throws StorageException {
+        this.snapshot.downloadAttributes(null, options, opContext);
+        return this.snapshot.getProperties().getLength();
+    }
+
+    /**
+     * Lists the populated page ranges of the snapshot. Split out so tests can run without a service.
+     */
+    @DoesServiceRequest
+    List<PageRange> getSourcePageRanges(final BlobRequestOptions options, final OperationContext opContext)
+            throws StorageException {
+        return this.snapshot.downloadPageRanges(null, options, opContext);
+    }
+
+    /**
+     * Reads a range of pages from the snapshot. Split out so tests can run without a service.
+     */
+    @DoesServiceRequest
+    void getPages(final long offset, final byte[] buffer, final int bufferOffset, final int length,
+            final BlobRequestOptions options, final OperationContext opContext) throws StorageException, IOException {
+        this.snapshot.downloadRange(offset, length, buffer, bufferOffset, null, options, opContext);
+    }
+
+    /**
+     * Creates the target blob with the specified length. Split out so tests can run without a service.
+     */
+    @DoesServiceRequest
+    void createTarget(final CloudPageBlob target, final long length, final BlobRequestOptions options,
+            final OperationContext opContext) throws StorageException {
+        target.create(length, null, options, opContext);
+    }
+
+    /**
+     * Writes a range of pages to the target blob. Split out so tests can run without a service.
+     */
+    @DoesServiceRequest
+    void putPages(final CloudPageBlob target, final long offset, final byte[] buffer, final int bufferOffset,
+            final int length, final BlobRequestOptions options, final OperationContext opContext)
+            throws StorageException, IOException {
+        target.uploadPages(new ByteArrayInputStream(buffer, bufferOffset, length), offset, length, null, options,
+                opContext);
+    }
+
+    /**
+     * Clears a range of pages in the target blob. Split out so tests can run without a service.
+     */
+    @DoesServiceRequest
+    void clearPages(final CloudPageBlob target, final long offset, final long length,
+            final BlobRequestOptions options, final OperationContext opContext) throws StorageException, IOException {
+        target.clearPages(offset, length, null, options, opContext);
+    }
+
+    /**
+     * Represents the destination of a backup.
+     */
+    private interface Target {
+        /**
+         * Writes a changed chunk.
+         * 
+         * @param offset
+         *            the offset of the chunk.
+         * @param chunk
+         *            the chunk content, zero outside the populated ranges.
+         * @param ranges
+         *            the populated ranges of the chunk.
+         * @param hadContent
+         *            whether the target may hold non-zero content for the chunk.
+         */
+        void write(long offset, byte[] chunk, List<PageRange> ranges, boolean hadContent, BlobRequestOptions options,
+                OperationContext opContext) throws StorageException, IOException;
+
+        /**
+         * Zeros a chunk that no longer has populated pages.
+         */
+        void clear(long offset, int length, BlobRequestOptions options, OperationContext opContext)
+                throws StorageException, IOException;
+    }
+
+    /**
+     * Writes whole chunks to a local file.
+     */
+    private final class FileTarget implements Target {
+        private final FileChannel channel;
+
+        FileTarget(final FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(final long offset, final byte[] chunk, final List<PageRange> ranges,
+                final boolean hadContent, final BlobRequestOptions options, final OperationContext opContext)
+                throws IOException {
+            this.writeFully(offset, chunk);
+            IncrementalPageBlobBackup.this.bytesWritten.addAndGet(chunk.length);
+        }
+
+        @Override
+        public void clear(final long offset, final int length, final BlobRequestOptions options,
+                final OperationContext opContext) throws IOException {
+            this.writeFully(offset, new byte[length]);
+        }
+
+        private void writeFully(final long offset, final byte[] data) throws IOException {
+            final ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                this.channel.write(buffer, offset + buffer.position());
+            }
+        }
+    }
+
+    /**
+     * Writes the populated ranges of chunks to a page blob and clears the rest.
+     */
+    private final class PageBlobTarget implements Target {
+        private final CloudPageBlob blob;
+
+        PageBlobTarget(final CloudPageBlob blob) {
+            this.blob = blob;
+        }
+
+        @Override
+        public void write(final long offset, final byte[] chunk, final List<PageRange> ranges,
+                final boolean hadContent, final BlobRequestOptions options, final OperationContext opContext)
+                throws StorageException, IOException {
+            long gapStart = offset;
+            for (final PageRange range : ranges) {
+                final int rangeLength = (int) (range.getEndOffset() + 1 - range.getStartOffset());
+                if (hadContent && range.getStartOffset() > gapStart) {
+                    IncrementalPageBlobBackup.this.clearPages(this.blob, gapStart, range.getStartOffset() - gapStart,
+                            options, opContext);
+                }
+
+                IncrementalPageBlobBackup.this.putPages(this.blob, range.getStartOffset(), chunk,
+                        (int) (range.getStartOffset() - offset), rangeLength, options, opContext);
+                IncrementalPageBlobBackup.this.bytesWritten.addAndGet(rangeLength);
+                gapStart = range.getEndOffset() + 1;
+            }
+
+            if (hadContent && offset + chunk.length > gapStart) {
+                IncrementalPageBlobBackup.this.clearPages(this.blob, gapStart, offset + chunk.length - gapStart,
+                        options, opContext);
+            }
+        }
+
+        @Override
+        public void clear(final long offset, final int length, final BlobRequestOptions options,
+                final OperationContext opContext) throws StorageException, IOException {
+            IncrementalPageBlobBackup.this.clearPages(this.blob, offset, length, options, opContext);
+        }
+    }
+}
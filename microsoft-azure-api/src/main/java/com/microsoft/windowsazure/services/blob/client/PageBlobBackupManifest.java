@@ -0,0 +1,207 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.services.blob.client;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import com.microsoft.windowsazure.services.core.storage.utils.Base64;
+
+/**
+ * Describes the content of a page blob snapshot captured by an {@link IncrementalPageBlobBackup}.
+ * <p>
+ * The blob is divided into fixed-size chunks. The manifest records the MD5 hash of every chunk that contains populated
+ * pages; every other chunk reads as zeros. The next incremental backup compares against these hashes to find the
+ * chunks that changed, and {@link #verify(File)} checks a backup file against them.
+ * <p>
+ * The manifest is stored as UTF-8 text: a header line, the snapshot ID, blob length and chunk size, then one line per
+ * populated chunk holding the chunk index and its Base64-encoded MD5 hash.
+ */
+public final class PageBlobBackupManifest {
+    /**
+     * The header that identifies the manifest format.
+     */
+    private static final String HEADER = "PageBlobBackupManifest 1";
+
+    private final String snapshotID;
+    private final long length;
+    private final int chunkSize;
+    private final SortedMap<Long, String> chunkHashes;
+
+    /**
+     * Creates an instance of the <code>PageBlobBackupManifest</code> class.
+     * 
+     * @param snapshotID
+     *            The snapshot ID of the backed-up blob.
+     * @param length
+     *            The length of the blob, in bytes.
+     * @param chunkSize
+     *            The size of each chunk, in bytes.
+     * @param chunkHashes
+     *            The Base64-encoded MD5 hashes of the populated chunks, by chunk index.
+     */
+    PageBlobBackupManifest(final String snapshotID, final long length, final int chunkSize,
+            final SortedMap<Long, String> chunkHashes) {
+        this.snapshotID = snapshotID;
+        this.length = length;
+        this.chunkSize = chunkSize;
+        this.chunkHashes = chunkHashes;
+    }
+
+    /**
+     * @return The snapshot ID of the backed-up blob.
+     */
+    public String getSnapshotID() {
+        return this.snapshotID;
+    }
+
+    /**
+     * @return The length of the blob, in bytes.
+     */
+    public long getLength() {
+        return this.length;
+    }
+
+    /**
+     * @return The size of each chunk, in bytes.
+     */
+    public int getChunkSize() {
+        return this.chunkSize;
+    }
+
+    /**
+     * @return The Base64-encoded MD5 hashes of the populated chunks, by chunk index.
+     */
+    public Map<Long, String> getChunkHashes() {
+        return Collections.unmodifiableMap(this.chunkHashes);
+    }
+
+    /**
+     * Writes the manifest to a stream.
+     * 
+     * @param outStream
+     *            The stream to write to; it is flushed but not closed.
+     * 
+     * @throws IOException
+     *             If an I/O error occurs.
+     */
+    public void write(final OutputStream outStream) throws IOException {
+        final Writer writer = new OutputStreamWriter(outStream, "UTF-8");
+        writer.write(HEADER + "\n");
+        writer.write(this.snapshotID + "\n");
+        writer.write(this.length + "\n");
+        writer.write(this.chunkSize + "\n");
+        for (final Map.Entry<Long, String> entry : this.chunkHashes.entrySet()) {
+            writer.write(entry.getKey() + " " + entry.getValue() + "\n");
+        }
+        writer.flush();
+    }
+
+    /**
+     * Reads a manifest written by {@link #write(OutputStream)}.
+     * 
+     * @param inStream
+     *            The stream to read from; it is not closed.
+     * @return The {@link PageBlobBackupManifest} read.
+     * 
+     * @throws IOException
+     *             If an I/O error occurs, or the stream does not hold a manifest.
+     */
+    public static PageBlobBackupManifest read(final InputStream inStream) throws IOException {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(inStream, "UTF-8"));
+        if (!HEADER.equals(reader.readLine())) {
+            throw new IOException("The stream does not contain a page blob backup manifest.");
+        }
+
+        try {
+            final String snapshotID = reader.readLine();
+            final long length = Long.parseLong(reader.readLine());
+            final int chunkSize = Integer.parseInt(reader.readLine());
+            final SortedMap<Long, String> chunkHashes = new TreeMap<Long, String>();
+
+            String line;
+            while ((line = reader.readLine()) != null && line.length() > 0) {
+                final int separator = line.indexOf(' ');
+                chunkHashes.put(Long.parseLong(line.substring(0, separator)), line.substring(separator + 1));
+            }
+
+            return new PageBlobBackupManifest(snapshotID, length, chunkSize, chunkHashes);
+        }
+        catch (final RuntimeException e) {
+            final IOException ex = new IOException("The page blob backup manifest is malformed.");
+            ex.initCause(e);
+            throw ex;
+        }
+    }
+
+    /**
+     * Checks that a backup file matches the manifest: it has the blob length, each populated chunk has the recorded
+     * hash, and every other chunk is zero.
+     * 
+     * @param file
+     *            The backup file to check.
+     * @return <code>true</code> if the file matches the manifest.
+     * 
+     * @throws IOException
+     *             If an I/O error occurs reading the file.
+     */
+    public boolean verify(final File file) throws IOException {
+        final RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            if (input.length() != this.length) {
+                return false;
+            }
+
+            final byte[] chunk = new byte[this.chunkSize];
+            final MessageDigest digest = FileBlockUploader.createDigest();
+            for (long index = 0; index * this.chunkSize < this.length; index++) {
+                final int chunkLength = (int) Math.min(this.chunkSize, this.length - index * this.chunkSize);
+                input.readFully(chunk, 0, chunkLength);
+
+                final String expected = this.chunkHashes.get(index);
+                if (expected == null) {
+                    for (int m = 0; m < chunkLength; m++) {
+                        if (chunk[m] != 0) {
+                            return false;
+                        }
+                    }
+                }
+                else {
+                    digest.update(chunk, 0, chunkLength);
+                    if (!expected.equals(Base64.encode(digest.digest()))) {
+                        return false;
+                    }
+                }
+            }
+
+            return true;
+        }
+        finally {
+            input.close();
+        }
+    }
+}
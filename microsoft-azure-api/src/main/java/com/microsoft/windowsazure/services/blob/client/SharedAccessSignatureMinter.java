@@ -0,0 +1,366 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.services.blob.client;
+
+import java.io.UnsupportedEncodingException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.microsoft.windowsazure.services.core.storage.Constants;
+import com.microsoft.windowsazure.services.core.storage.StorageCredentials;
+import com.microsoft.windowsazure.services.core.storage.StorageCredentialsAccountAndKey;
+import com.microsoft.windowsazure.services.core.storage.StorageException;
+import com.microsoft.windowsazure.services.core.storage.utils.Base64;
+import com.microsoft.windowsazure.services.core.storage.utils.PathUtility;
+import com.microsoft.windowsazure.services.core.storage.utils.Utility;
+
+/**
+ * Generates blob shared access signatures at a high rate.
+ * <p>
+ * Signatures are generated from a {@link Template}, which fixes the permissions and validity period (or the stored
+ * access policy) once, so that the constant parts of the string-to-sign and of the query string are built only once.
+ * The expiry time of a template's signatures is rounded up to a multiple of its bucket duration, so that every
+ * signature generated within a bucket has the same expiry; the signature for a blob is then computed once per bucket
+ * and served from a cache afterwards. HMAC computation uses a <code>Mac</code> initialized once per thread, instead of
+ * the per-key lock taken by {@link CloudBlob#generateSharedAccessSignature}.
+ * <p>
+ * The signatures produced are identical to those returned by {@link CloudBlob#generateSharedAccessSignature} for the
+ * equivalent policy. Instances are safe for use by multiple threads.
+ */
+public class SharedAccessSignatureMinter {
+    /**
+     * The default maximum number of signatures cached per template and bucket.
+     */
+    public static final int DEFAULT_MAX_CACHED_SIGNATURES = 10000;
+
+    /**
+     * Represents the fixed parts of the shared access signatures generated for a policy.
+     */
+    public static final class Template {
+        private final String permissions;
+        private final String groupPolicyIdentifier;
+        private final long validityInMs;
+        private final long bucketInMs;
+        private volatile Bucket current;
+
+        private Template(final String permissions, final String groupPolicyIdentifier, final long validityInMs,
+                final long bucketInMs) {
+            this.permissions = permissions;
+            this.groupPolicyIdentifier = groupPolicyIdentifier;
+            this.validityInMs = validityInMs;
+            this.bucketInMs = bucketInMs;
+        }
+    }
+
+    /**
+     * Holds the parts of the signatures that depend on the expiry time, and the signatures cached for it.
+     */
+    private static final class Bucket {
+        final long expiryTime;
+        final String stringToSignPrefix;
+        final String stringToSignSuffix;
+        final String queryPrefix;
+        final ConcurrentHashMap<String, String> signatures = new ConcurrentHashMap<String, String>();
+
+        Bucket(final long expiryTime, final String stringToSignPrefix, final String stringToSignSuffix,
+                final String queryPrefix) {
+            this.expiryTime = expiryTime;
+            this.stringToSignPrefix = stringToSignPrefix;
+            this.stringToSignSuffix = stringToSignSuffix;
+            this.queryPrefix = queryPrefix;
+        }
+    }
+
+    private final byte[] key;
+    private final String canonicalPrefix;
+    private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>();
+    private final AtomicLong computedCount = new AtomicLong();
+    private final AtomicLong cachedCount = new AtomicLong();
+    private int maxCachedSignatures = DEFAULT_MAX_CACHED_SIGNATURES;
+
+    /**
+     * Creates an instance of the <code>SharedAccessSignatureMinter</code> class.
+     * 
+     * @param client
+     *            The {@link CloudBlobClient} whose account key signs the signatures.
+     */
+    public SharedAccessSignatureMinter(final CloudBlobClient client) {
+        Utility.assertNotNull("client", client);
+        final StorageCredentials credentials = client.getCredentials();
+        if (!(credentials instanceof StorageCredentialsAccountAndKey)) {
+            throw new IllegalArgumentException(
+                    "Cannot create Shared Access Signature unless the Account Key credentials are used by the BlobServiceClient.");
+        }
+
+        this.key = ((StorageCredentialsAccountAndKey) credentials).getCredentials().exportKey();
+
+        String endpointPath = client.getEndpoint().getPath();
+        if (endpointPath.endsWith("/")) {
+            endpointPath = endpointPath.substring(0, endpointPath.length() - 1);
+        }
+
+        this.canonicalPrefix = client.isUsePathStyleUris() ? endpointPath : PathUtility
+                .getCanonicalPathFromCredentials(credentials, endpointPath);
+    }
+
+    /**
+     * Sets the maximum number of signatures cached per template and bucket. The default is
+     * {@link #DEFAULT_MAX_CACHED_SIGNATURES}; zero disables caching.
+     * 
+     * @param maxCachedSignatures
+     *            The maximum number of cached signatures.
+     */
+    public void setMaxCachedSignatures(final int maxCachedSignatures) {
+        if (maxCachedSignatures < 0) {
+            throw new IllegalArgumentException("The maximum number of cached signatures must not be negative.");
+        }
+
+        this.maxCachedSignatures = maxCachedSignatures;
+    }
+
+    /**
+     * @return The number of signatures computed, rather than served from the cache.
+     */
+    public long getComputedCount() {
+        return this.computedCount.get();
+    }
+
+    /**
+     * @return The number of signatures served from the cache.
+     */
+    public long getCachedCount() {
+        return this.cachedCount.get();
+    }
+
+    /**
+     * Creates a template for signatures with an ad hoc policy.
+     * 
+     * @param permissions
+     *            The {@link SharedAccessBlobPermissions} granted by the signatures.
+     * @param validityInSeconds
+     *            The minimum time for which the signatures are valid, in seconds.
+     * @param bucketInSeconds
+     *            The granularity of the expiry time, in seconds. Signatures are valid for up to this much longer than
+     *            the minimum validity, and a signature is computed at most once per bucket for each blob.
+     * @return The {@link Template}.
+     */
+    public Template createTemplate(final EnumSet<SharedAccessBlobPermissions> permissions,
+            final int validityInSeconds, final int bucketInSeconds) {
+        Utility.assertNotNull("permissions", permissions);
+        if (validityInSeconds < 1 || bucketInSeconds < 1) {
+            throw new IllegalArgumentException("The validity and bucket durations must be positive.");
+        }
+
+        return new Template(SharedAccessBlobPolicy.permissionsToString(permissions), null, validityInSeconds * 1000L,
+                bucketInSeconds * 1000L);
+    }
+
+    /**
+     * Creates a template for signatures that refer to a stored access policy of the container.
+     * 
+     * @param groupPolicyIdentifier
+     *            The identifier of the stored access policy.
+     * @return The {@link Template}.
+     */
+    public Template createTemplate(final String groupPolicyIdentifier) {
+        Utility.assertNotNullOrEmpty("groupPolicyIdentifier", groupPolicyIdentifier);
+        return new Template(Constants.EMPTY_STRING, groupPolicyIdentifier, 0, 0);
+    }
+
+    /**
+     * Returns a shared access signature for a blob.
+     * 
+     * @param template
+     *            The {@link Template} of the signature.
+     * @param blob
+     *            The {@link CloudBlob} to grant access to; snapshots are not supported.
+     * @return A <code>String</code> that represents the shared access signature query string.
+     * 
+     * @throws InvalidKeyException
+     *             If the account key is not valid.
+     * @throws StorageException
+     *             If the resource name could not be decoded.
+     */
+    public String generateSharedAccessSignature(final Template template, final CloudBlob blob)
+            throws InvalidKeyException, StorageException {
+        if (blob.isSnapshot()) {
+            throw new IllegalArgumentException(
+                    "Cannot create Shared Access Signature for snapshots. Perform the operation on the root blob instead.");
+        }
+
+        return this.generate(template, this.getBucket(template), Utility.safeDecode(blob.getCanonicalName(true)));
+    }
+
+    /**
+     * Returns shared access signatures for several blobs, all with the same expiry time.
+     * 
+     * @param template
+     *            The {@link Template} of the signatures.
+     * @param blobPaths
+     *            The paths of the blobs, each in the form <i>container/blob-name</i> and not URL-encoded.
+     * @return An array of <code>String</code> objects that represent the shared access signature query strings, in
+     *         the order of the paths.
+     * 
+     * @throws InvalidKeyException
+     *             If the account key is not valid.
+     */
+    public String[] generateSharedAccessSignatures(final Template template, final String... blobPaths)
+            throws InvalidKeyException {
+        final Bucket bucket = this.getBucket(template);
+        final String[] signatures = new String[blobPaths.length];
+        final StringBuilder resourceName = new StringBuilder(this.canonicalPrefix.length() + 64);
+
+        for (int m = 0; m < blobPaths.length; m++) {
+            Utility.assertNotNullOrEmpty("blobPath", blobPaths[m]);
+            resourceName.setLength(0);
+            resourceName.append(this.canonicalPrefix);
+            if (blobPaths[m].charAt(0) != '/') {
+                resourceName.append('/');
+            }
+            resourceName.append(blobPaths[m]);
+            signatures[m] = this.generate(template, bucket, resourceName.toString());
+        }
+
+        return signatures;
+    }
+
+    /**
+     * Returns the current time, in milliseconds.
+     */
+    long getCurrentTime() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the bucket of a template for the current time, creating it when the expiry time has moved on.
+     */
+    private Bucket getBucket(final Template template) {
+        long expiryTime = Long.MAX_VALUE;
+        if (template.bucketInMs > 0) {
+            final long earliestExpiry = this.getCurrentTime() + template.validityInMs;
+            expiryTime = (earliestExpiry + template.bucketInMs - 1) / template.bucketInMs * template.bucketInMs;
+        }
+
+        final Bucket current = template.current;
+        if (current != null && current.expiryTime == expiryTime) {
+            return current;
+        }
+
+        final Bucket bucket = createBucket(template, expiryTime);
+        template.current = bucket;
+        return bucket;
+    }
+
+    /**
+     * Builds the constant parts of the string-to-sign and query string for an expiry time. The query parameters are
+     * in the order the service documents: sv, se, sp, sr, si, sig.
+     */
+    private static Bucket createBucket(final Template template, final long expiryTime) {
+        final String expiry = expiryTime == Long.MAX_VALUE ? Constants.EMPTY_STRING : Utility
+                .getUTCTimeOrEmpty(new Date(expiryTime));
+        final String identifier = template.groupPolicyIdentifier == null ? Constants.EMPTY_STRING
+                : template.groupPolicyIdentifier;
+
+        try {
+            final String stringToSignPrefix = template.permissions + "\n" + Constants.EMPTY_STRING + "\n" + expiry
+                    + "\n";
+            final String stringToSignSuffix = "\n" + Utility.safeDecode(identifier) + "\n"
+                    + Constants.HeaderConstants.TARGET_STORAGE_VERSION;
+
+            final StringBuilder query = new StringBuilder();
+            query.append(Constants.QueryConstants.SIGNED_VERSION).append('=')
+                    .append(Utility.safeEncode(Constants.HeaderConstants.TARGET_STORAGE_VERSION));
+            if (expiry.length() > 0) {
+                query.append('&').append(Constants.QueryConstants.SIGNED_EXPIRY).append('=')
+                        .append(Utility.safeEncode(expiry));
+            }
+            if (template.permissions.length() > 0) {
+                query.append('&').append(Constants.QueryConstants.SIGNED_PERMISSIONS).append('=')
+                        .append(template.permissions);
+            }
+            query.append('&').append(Constants.QueryConstants.SIGNED_RESOURCE).append("=b");
+            if (identifier.length() > 0) {
+                query.append('&').append(Constants.QueryConstants.SIGNED_IDENTIFIER).append('=')
+                        .append(Utility.safeEncode(identifier));
+            }
+            query.append('&').append(Constants.QueryConstants.SIGNATURE).append('=');
+
+            return new Bucket(expiryTime, stringToSignPrefix, stringToSignSuffix, query.toString());
+        }
+        catch (final StorageException e) {
+            // Encoding only fails if UTF-8 is not supported.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the signature for a canonical resource name, from the cache of the bucket if present.
+     */
+    private String generate(final Template template, final Bucket bucket, final String resourceName)
+            throws InvalidKeyException {
+        final String cached = bucket.signatures.get(resourceName);
+        if (cached != null) {
+            this.cachedCount.incrementAndGet();
+            return cached;
+        }
+
+        final String stringToSign = bucket.stringToSignPrefix + resourceName + bucket.stringToSignSuffix;
+        final String signature;
+        try {
+            signature = bucket.queryPrefix
+                    + Utility.safeEncode(Base64.encode(this.getMac().doFinal(stringToSign.getBytes("UTF8"))));
+        }
+        catch (final UnsupportedEncodingException e) {
+            throw new IllegalArgumentException(e);
+        }
+        catch (final StorageException e) {
+            throw new IllegalStateException(e);
+        }
+
+        this.computedCount.incrementAndGet();
+        if (bucket.signatures.size() < this.maxCachedSignatures) {
+            bucket.signatures.put(resourceName, signature);
+        }
+
+        return signature;
+    }
+
+    /**
+     * Returns the HMAC-SHA256 <code>Mac</code> of the current thread, initialized with the account key.
+     */
+    private Mac getMac() throws InvalidKeyException {
+        Mac mac = this.macs.get();
+        if (mac == null) {
+            try {
+                mac = Mac.getInstance("HmacSHA256");
+            }
+            catch (final NoSuchAlgorithmException e) {
+                throw new IllegalArgumentException(e);
+            }
+
+            mac.init(new SecretKeySpec(this.key, "HmacSHA256"));
+            this.macs.set(mac);
+        }
+
+        return mac;
+    }
+}
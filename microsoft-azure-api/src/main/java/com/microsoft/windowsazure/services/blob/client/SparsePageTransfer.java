@@ -0,0 +1,341 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.services.blob.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.microsoft.windowsazure.services.core.storage.AccessCondition;
+import com.microsoft.windowsazure.services.core.storage.Constants;
+import com.microsoft.windowsazure.services.core.storage.DoesServiceRequest;
+import com.microsoft.windowsazure.services.core.storage.OperationContext;
+import com.microsoft.windowsazure.services.core.storage.StorageException;
+
+/**
+ * RESERVED FOR INTERNAL USE. Transfers page blob data between a file and the service in parallel, skipping empty
+ * pages.
+ * <p>
+ * On upload the file is scanned a page at a time, comparing eight bytes per step, and runs of non-empty pages are
+ * coalesced into writes of up to 4 MB which are issued in parallel; empty pages are never sent, as a new page blob
+ * reads as zeros. On download only the populated page ranges are fetched, in parallel, and written at their offsets so
+ * unpopulated regions remain holes in the file on file systems that support sparse files.
+ */
+class SparsePageTransfer {
+    /**
+     * The largest range written or read by a single request.
+     */
+    static final int MAX_RANGE_SIZE = 4 * Constants.MB;
+
+    /**
+     * The size of the chunks the file is scanned in.
+     */
+    private static final int SCAN_CHUNK_SIZE = 4 * Constants.MB;
+
+    /**
+     * Holds the blob to transfer to or from.
+     */
+    private final CloudPageBlob blob;
+
+    /**
+     * Holds the channel to read from or write to.
+     */
+    private final FileChannel channel;
+
+    /**
+     * Holds the {@link AccessCondition} object that represents the access conditions for the blob.
+     */
+    private final AccessCondition accessCondition;
+
+    /**
+     * Holds the options for the transfer.
+     */
+    private final BlobRequestOptions options;
+
+    /**
+     * Holds the OperationContext for the transfer.
+     */
+    private final OperationContext opContext;
+
+    /**
+     * Holds the number of bytes sent or received.
+     */
+    private final AtomicLong bytesTransferred = new AtomicLong();
+
+    /**
+     * Initializes a new instance of the SparsePageTransfer class.
+     * 
+     * @param blob
+     *            the page blob to transfer to or from.
+     * @param channel
+     *            the channel to read from or write to.
+     * @param accessCondition
+     *            An {@link AccessCondition} object that represents the access conditions for the blob.
+     * @param options
+     *            An object that specifies any additional options for the request, defaults must already be applied.
+     * @param opContext
+     *            an object used to track the execution of the operation
+     */
+    SparsePageTransfer(final CloudPageBlob blob, final FileChannel channel, final AccessCondition accessCondition,
+            final BlobRequestOptions options, final OperationContext opContext) {
+        if (options.getConcurrentRequestCount() == null || options.getConcurrentRequestCount() < 1) {
+            throw new IllegalArgumentException("ConcurrentRequestCount");
+        }
+
+        this.blob = blob;
+        this.channel = channel;
+        this.accessCondition = accessCondition;
+        this.options = options;
+        this.opContext = opContext;
+    }
+
+    /**
+     * Returns the number of page bytes sent to or received from the service.
+     * 
+     * @return the number of bytes transferred.
+     */
+    long getBytesTransferred() {
+        return this.bytesTransferred.get();
+    }
+
+    /**
+     * Uploads the non-empty pages of the first <code>length</code> bytes of the channel to an existing page blob of at
+     * least that length.
+     * 
+     * @param length
+     *            the number of bytes to upload, a multiple of 512.
+     * @throws StorageException
+     *             an exception representing any error which occurred during the operation.
+     * @throws IOException
+     *             if an I/O error occurs reading the file.
+     */
+    @DoesServiceRequest
+    void upload(final long length) throws StorageException, IOException {
+        final ParallelRequests requests = new ParallelRequests();
+        try {
+            final ByteBuffer chunk = ByteBuffer.allocate(SCAN_CHUNK_SIZE);
+            byte[] range = null;
+            int rangeFill = 0;
+            long rangeStart = 0;
+
+            for (long chunkStart = 0; chunkStart < length; chunkStart += SCAN_CHUNK_SIZE) {
+                final int chunkLength = (int) Math.min(SCAN_CHUNK_SIZE, length - chunkStart);
+                chunk.clear();
+                chunk.limit(chunkLength);
+                FileBlockUploader.readFully(this.channel, chunk, chunkStart);
+
+                for (int page = 0; page < chunkLength; page += BlobConstants.PAGE_SIZE) {
+                    if (isEmptyPage(chunk, page)) {
+                        if (rangeFill > 0) {
+                            this.dispatchPut(requests, rangeStart, range, rangeFill);
+                            range = null;
+                            rangeFill = 0;
+                        }
+
+                        continue;
+                    }
+
+                    if (range == null) {
+                        range = new byte[MAX_RANGE_SIZE];
+                        rangeStart = chunkStart + page;
+                    }
+
+                    System.arraycopy(chunk.array(), page, range, rangeFill, BlobConstants.PAGE_SIZE);
+                    rangeFill += BlobConstants.PAGE_SIZE;
+
+                    if (rangeFill == MAX_RANGE_SIZE) {
+                        this.dispatchPut(requests, rangeStart, range, rangeFill);
+                        range = null;
+                        rangeFill = 0;
+                    }
+                }
+            }
+
+            if (rangeFill > 0) {
+                this.dispatchPut(requests, rangeStart, range, rangeFill);
+            }
+
+            requests.awaitAll();
+        }
+        finally {
+            requests.shutdown();
+        }
+    }
+
+    /**
+     * Downloads the specified page ranges, writing each at its offset in the channel.
+     * 
+     * @param pageRanges
+     *            the populated page ranges of the blob.
+     * @throws StorageException
+     *             an exception representing any error which occurred during the operation.
+     * @throws IOException
+     *             if an I/O error occurs writing the file.
+     */
+    @DoesServiceRequest
+    void download(final List<PageRange> pageRanges) throws StorageException, IOException {
+        final ParallelRequests requests = new ParallelRequests();
+        try {
+            for (final PageRange pageRange : pageRanges) {
+                final long end = pageRange.getEndOffset() + 1;
+                for (long start = pageRange.getStartOffset(); start < end; start += MAX_RANGE_SIZE) {
+                    final long offset = start;
+                    final int length = (int) Math.min(MAX_RANGE_SIZE, end - start);
+
+                    requests.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            final byte[] data = new byte[length];
+                            SparsePageTransfer.this.getPages(offset, data);
+                            SparsePageTransfer.this.bytesTransferred.addAndGet(length);
+
+                            final ByteBuffer buffer = ByteBuffer.wrap(data);
+                            while (buffer.hasRemaining()) {
+                                SparsePageTransfer.this.channel.write(buffer, offset + buffer.position());
+                            }
+                            return null;
+                        }
+                    });
+                }
+            }
+
+            requests.awaitAll();
+        }
+        finally {
+            requests.shutdown();
+        }
+    }
+
+    /**
+     * Writes a range of pages to the blob. Split out so tests can observe the ranges without a service.
+     * 
+     * @param offset
+     *            the offset of the first page.
+     * @param data
+     *            the page data, a multiple of 512 bytes.
+     * @throws StorageException
+     *             an exception representing any error which occurred during the operation.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    @DoesServiceRequest
+    protected void putPages(final long offset, final byte[] data) throws StorageException, IOException {
+        this.blob.uploadPages(new ByteArrayInputStream(data), offset, data.length, this.accessCondition,
+                this.options, this.opContext);
+    }
+
+    /**
+     * Reads a range of pages from the blob. Split out so tests can observe the ranges without a service.
+     * 
+     * @param offset
+     *            the offset of the first page.
+     * @param data
+     *            the buffer to fill.
+     * @throws StorageException
+     *             an exception representing any error which occurred during the operation.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    @DoesServiceRequest
+    protected void getPages(final long offset, final byte[] data) throws StorageException, IOException {
+        this.blob.downloadRange(offset, data.length, data, 0, this.accessCondition, this.options, this.opContext);
+    }
+
+    /**
+     * Submits a write of the filled part of a range buffer, which the caller hands over.
+     */
+    private void dispatchPut(final ParallelRequests requests, final long offset, final byte[] range, final int fill)
+            throws StorageException, IOException {
+        final byte[] data;
+        if (fill == range.length) {
+            data = range;
+        }
+        else {
+            data = new byte[fill];
+            System.arraycopy(range, 0, data, 0, fill);
+        }
+
+        requests.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                SparsePageTransfer.this.putPages(offset, data);
+                SparsePageTransfer.this.bytesTransferred.addAndGet(data.length);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Returns whether the page starting at the specified position of the buffer is all zeros, comparing a long at a
+     * time.
+     * 
+     * @param buffer
+     *            the buffer holding the page.
+     * @param position
+     *            the position of the page in the buffer.
+     * @return <code>true</code> if every byte of the page is zero.
+     */
+    static boolean isEmptyPage(final ByteBuffer buffer, final int position) {
+        final int end = position + BlobConstants.PAGE_SIZE;
+        for (int m = position; m < end; m += 8) {
+            if (buffer.getLong(m) != 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Runs requests on a fixed pool, bounding the number outstanding so that buffers waiting to be sent or written do
+     * not accumulate.
+     */
+    private final class ParallelRequests {
+        private final int concurrency = SparsePageTransfer.this.options.getConcurrentRequestCount();
+        private final ExecutorService threadExecutor = Executors.newFixedThreadPool(this.concurrency);
+        private final CompletionService<Void> completionService = new ExecutorCompletionService<Void>(
+                this.threadExecutor);
+        private int outstandingRequests;
+
+        void submit(final Callable<Void> request) throws StorageException, IOException {
+            if (this.outstandingRequests >= this.concurrency * 2) {
+                FileBlockUploader.waitForTaskToComplete(this.completionService);
+                this.outstandingRequests--;
+            }
+
+            this.completionService.submit(request);
+            this.outstandingRequests++;
+        }
+
+        void awaitAll() throws StorageException, IOException {
+            while (this.outstandingRequests > 0) {
+                FileBlockUploader.waitForTaskToComplete(this.completionService);
+                this.outstandingRequests--;
+            }
+        }
+
+        void shutdown() {
+            this.threadExecutor.shutdownNow();
+        }
+    }
+}
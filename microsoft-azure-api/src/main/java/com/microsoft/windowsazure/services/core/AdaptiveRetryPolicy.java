@@ -0,0 +1,138 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.services.core;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Random;
+
+import com.microsoft.windowsazure.services.core.ServiceFilter.Request;
+import com.microsoft.windowsazure.services.core.ServiceFilter.Response;
+import com.microsoft.windowsazure.services.core.utils.EndpointCircuitBreaker;
+import com.microsoft.windowsazure.services.core.utils.RetryBudget;
+import com.microsoft.windowsazure.services.core.utils.ThrottlingBackoff;
+
+/**
+ * A throttling-aware retry policy. Backoffs use decorrelated jitter, honor the server's <code>Retry-After</code>
+ * header, draw from a retry budget shared by every request using the policy, and stop once the circuit for the
+ * request's endpoint has been opened by repeated failures.
+ */
+public class AdaptiveRetryPolicy extends RetryPolicy {
+    private final int minBackoff;
+    private final int maxBackoff;
+    private final int maximumAttempts;
+    private final int[] retryableStatusCodes;
+    private final RetryBudget retryBudget;
+    private final EndpointCircuitBreaker circuitBreaker;
+    private final Random randRef;
+    private final String endpoint;
+    private int previousBackoff;
+    private int nextBackoff;
+
+    public AdaptiveRetryPolicy(int[] retryableStatusCodes) {
+        this(DEFAULT_MIN_BACKOFF, DEFAULT_MAX_BACKOFF, DEFAULT_CLIENT_RETRY_COUNT, retryableStatusCodes,
+                new RetryBudget(), new EndpointCircuitBreaker());
+    }
+
+    public AdaptiveRetryPolicy(int minBackoff, int maxBackoff, int maximumAttempts, int[] retryableStatusCodes,
+            RetryBudget retryBudget, EndpointCircuitBreaker circuitBreaker) {
+        this(minBackoff, maxBackoff, maximumAttempts, sortedCopy(retryableStatusCodes), retryBudget, circuitBreaker,
+                new Random(), "");
+    }
+
+    private AdaptiveRetryPolicy(int minBackoff, int maxBackoff, int maximumAttempts, int[] retryableStatusCodes,
+            RetryBudget retryBudget, EndpointCircuitBreaker circuitBreaker, Random randRef, String endpoint) {
+        this.minBackoff = minBackoff;
+        this.maxBackoff = maxBackoff;
+        this.maximumAttempts = maximumAttempts;
+        this.retryableStatusCodes = retryableStatusCodes;
+        this.retryBudget = retryBudget;
+        this.circuitBreaker = circuitBreaker;
+        this.randRef = randRef;
+        this.endpoint = endpoint;
+        this.previousBackoff = minBackoff;
+        this.nextBackoff = minBackoff;
+    }
+
+    public RetryBudget getRetryBudget() {
+        return retryBudget;
+    }
+
+    public EndpointCircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    @Override
+    public RetryPolicy createInstance(Request request) {
+        return new AdaptiveRetryPolicy(minBackoff, maxBackoff, maximumAttempts, retryableStatusCodes, retryBudget,
+                circuitBreaker, randRef, getEndpoint(request.getURI()));
+    }
+
+    @Override
+    public boolean shouldRetry(int retryCount, Response response, Exception error) {
+        if (response == null) {
+            circuitBreaker.recordFailure(endpoint);
+            return false;
+        }
+
+        // Don't retry if not retryable status code; the endpoint answered, so it counts as healthy
+        if (Arrays.binarySearch(this.retryableStatusCodes, response.getStatus()) < 0) {
+            circuitBreaker.recordSuccess(endpoint);
+            return false;
+        }
+
+        circuitBreaker.recordFailure(endpoint);
+
+        if (retryCount >= this.maximumAttempts)
+            return false;
+
+        if (!circuitBreaker.allowRequest(endpoint))
+            return false;
+
+        int backoff = ThrottlingBackoff.nextDecorrelatedJitter(randRef, minBackoff, maxBackoff, previousBackoff);
+        long retryAfter = ThrottlingBackoff.parseRetryAfter(response.getHeaders().getFirst(ThrottlingBackoff.RETRY_AFTER),
+                new Date());
+
+        // The server asked for a longer pause than we are willing to wait
+        if (retryAfter > maxBackoff)
+            return false;
+
+        if (!retryBudget.tryAcquire())
+            return false;
+
+        previousBackoff = backoff;
+        nextBackoff = (int) Math.max(backoff, retryAfter);
+        return true;
+    }
+
+    @Override
+    public int calculateBackoff(int retryCount, Response response, Exception error) {
+        return nextBackoff;
+    }
+
+    private static int[] sortedCopy(int[] values) {
+        int[] result = Arrays.copyOf(values, values.length);
+        Arrays.sort(result);
+        return result;
+    }
+
+    private static String getEndpoint(URI uri) {
+        if (uri == null || uri.getAuthority() == null) {
+            return "";
+        }
+        return uri.getScheme() + "://" + uri.getAuthority();
+    }
+}
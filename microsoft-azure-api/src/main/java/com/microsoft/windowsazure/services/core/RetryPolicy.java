@@ -14,6 +14,7 @@
  */
 package com.microsoft.windowsazure.services.core;
 
+import com.microsoft.windowsazure.services.core.ServiceFilter.Request;
 import com.microsoft.windowsazure.services.core.ServiceFilter.Response;
 
 public abstract class RetryPolicy {
@@ -25,4 +26,12 @@ public abstract class RetryPolicy {
     public abstract boolean shouldRetry(int retryCount, Response response, Exception error);
 
     public abstract int calculateBackoff(int retryCount, Response response, Exception error);
+
+    /**
+     * Returns the policy used to evaluate the retries of a single request. The default shares this instance across
+     * all requests; policies that keep per-request state return a fresh instance.
+     */
+    public RetryPolicy createInstance(Request request) {
+        return this;
+    }
 }
@@ -33,6 +33,7 @@ public class RetryPolicyFilter implements ServiceFilter {
         if (request.getProperties().containsKey("RetryPolicy"))
             return next.handle(request);
         request.getProperties().put("RetryPolicy", this);
+        RetryPolicy policy = retryPolicy.createInstance(request);
 
         // Retry the operation as long as retry policy tells us to do so
         for (int retryCount = 0;; ++retryCount) {
@@ -52,7 +53,7 @@ public class RetryPolicyFilter implements ServiceFilter {
             }
 
             // Determine if we should retry according to retry policy
-            boolean shouldRetry = retryPolicy.shouldRetry(retryCount, response, error);
+            boolean shouldRetry = policy.shouldRetry(retryCount, response, error);
             if (!shouldRetry) {
                 if (error != null)
                     throw error;
@@ -65,7 +66,7 @@ public class RetryPolicyFilter implements ServiceFilter {
             }
 
             // Backoff for some time according to retry policy
-            int backoffTime = retryPolicy.calculateBackoff(retryCount, response, error);
+            int backoffTime = policy.calculateBackoff(retryCount, response, error);
             log.info(String.format("Request failed. Backing off for %1s milliseconds before retrying (retryCount=%2d)",
                     backoffTime, retryCount));
             backoff(backoffTime);
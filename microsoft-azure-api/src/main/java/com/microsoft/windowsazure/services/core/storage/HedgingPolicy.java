@@ -0,0 +1,236 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.services.core.storage;
+
+import java.util.Arrays;
+
+/**
+ * Represents an opt-in policy for hedging latency-sensitive idempotent reads.
+ * <p>
+ * When a {@link RequestOptions} object carries a hedging policy, supported read operations (downloading a blob range,
+ * downloading blob attributes and retrieving a table entity) issue a second, identical request if the first one has
+ * not completed within the hedge delay. The first request to succeed wins and the other one is cancelled.
+ * <p>
+ * The hedge delay is the configured percentile of the latencies recently observed by operations using this policy, so
+ * only the slowest requests are duplicated. Until enough latencies have been observed, the initial delay is used. Share
+ * one instance between the operations of a workload so that the percentile and the hedging metrics reflect all of them.
+ */
+public final class HedgingPolicy {
+
+    /**
+     * Represents the default percentile of observed latencies after which a hedge is issued.
+     */
+    public static final double DEFAULT_PERCENTILE = 0.95;
+
+    /**
+     * Represents the default hedge delay, in milliseconds, used until enough latencies have been observed.
+     */
+    public static final int DEFAULT_INITIAL_DELAY_IN_MS = 500;
+
+    /**
+     * Represents the default minimum hedge delay, in milliseconds.
+     */
+    public static final int DEFAULT_MINIMUM_DELAY_IN_MS = 10;
+
+    /**
+     * Represents the number of recent latencies the percentile is computed over.
+     */
+    private static final int SAMPLE_WINDOW = 256;
+
+    /**
+     * Represents the number of latencies that must be observed before the percentile is used.
+     */
+    private static final int MINIMUM_SAMPLES = 20;
+
+    /**
+     * Holds the percentile of observed latencies after which a hedge is issued.
+     */
+    private final double percentile;
+
+    /**
+     * Holds the hedge delay used until enough latencies have been observed.
+     */
+    private final int initialDelayInMs;
+
+    /**
+     * Holds the minimum hedge delay.
+     */
+    private final int minimumDelayInMs;
+
+    /**
+     * Holds the ring buffer of recent latencies.
+     */
+    private final long[] samples = new long[SAMPLE_WINDOW];
+
+    /**
+     * Holds the number of latencies observed.
+     */
+    private long sampleCount;
+
+    /**
+     * Holds the hedge delay computed from the current samples, or -1 if it must be recomputed.
+     */
+    private long cachedDelayInMs = -1;
+
+    /**
+     * Holds the number of operations executed with this policy.
+     */
+    private long operationCount;
+
+    /**
+     * Holds the number of hedge requests issued.
+     */
+    private long hedgeCount;
+
+    /**
+     * Holds the number of operations won by the hedge request.
+     */
+    private long hedgeWinCount;
+
+    /**
+     * Holds the total latency, in milliseconds, of slow first requests that still won.
+     */
+    private long slowPrimaryLatencyInMs;
+
+    /**
+     * Holds the number of slow first requests that still won.
+     */
+    private long slowPrimaryCount;
+
+    /**
+     * Holds the estimated latency saved by hedging, in milliseconds.
+     */
+    private long latencySavedInMs;
+
+    /**
+     * Creates an instance of the <code>HedgingPolicy</code> class using the default percentile and delays.
+     */
+    public HedgingPolicy() {
+        this(DEFAULT_PERCENTILE, DEFAULT_INITIAL_DELAY_IN_MS, DEFAULT_MINIMUM_DELAY_IN_MS);
+    }
+
+    /**
+     * Creates an instance of the <code>HedgingPolicy</code> class using the specified percentile and delays.
+     * 
+     * @param percentile
+     *            The percentile, between 0 and 1, of observed latencies after which a hedge is issued.
+     * @param initialDelayInMs
+     *            The hedge delay, in milliseconds, used until enough latencies have been observed.
+     * @param minimumDelayInMs
+     *            The minimum hedge delay, in milliseconds.
+     */
+    public HedgingPolicy(final double percentile, final int initialDelayInMs, final int minimumDelayInMs) {
+        if (percentile <= 0 || percentile > 1) {
+            throw new IllegalArgumentException("percentile");
+        }
+
+        this.percentile = percentile;
+        this.initialDelayInMs = initialDelayInMs;
+        this.minimumDelayInMs = minimumDelayInMs;
+    }
+
+    /**
+     * Returns the delay, in milliseconds, after which a hedge request should be issued.
+     * 
+     * @return The current hedge delay in milliseconds.
+     */
+    public synchronized long getHedgeDelayInMs() {
+        if (this.sampleCount < MINIMUM_SAMPLES) {
+            return Math.max(this.minimumDelayInMs, this.initialDelayInMs);
+        }
+
+        if (this.cachedDelayInMs < 0) {
+            final int count = (int) Math.min(this.sampleCount, SAMPLE_WINDOW);
+            final long[] sorted = Arrays.copyOf(this.samples, count);
+            Arrays.sort(sorted);
+            final int index = Math.min(count - 1, (int) Math.ceil(this.percentile * count) - 1);
+            this.cachedDelayInMs = Math.max(this.minimumDelayInMs, sorted[Math.max(0, index)]);
+        }
+
+        return this.cachedDelayInMs;
+    }
+
+    /**
+     * Reserved for internal use. Records the outcome of an operation executed with this policy.
+     * 
+     * @param latencyInMs
+     *            The latency of the operation, in milliseconds.
+     * @param hedged
+     *            <code>true</code> if a hedge request was issued.
+     * @param hedgeWon
+     *            <code>true</code> if the hedge request completed first.
+     */
+    public synchronized void recordOperation(final long latencyInMs, final boolean hedged, final boolean hedgeWon) {
+        this.operationCount++;
+        this.samples[(int) (this.sampleCount % SAMPLE_WINDOW)] = latencyInMs;
+        this.sampleCount++;
+        this.cachedDelayInMs = -1;
+
+        if (hedged) {
+            this.hedgeCount++;
+            if (hedgeWon) {
+                this.hedgeWinCount++;
+                // The cancelled first request would have taken at least as long as slow first requests usually do
+                if (this.slowPrimaryCount > 0) {
+                    this.latencySavedInMs += Math.max(0, this.slowPrimaryLatencyInMs / this.slowPrimaryCount
+                            - latencyInMs);
+                }
+            }
+            else {
+                this.slowPrimaryLatencyInMs += latencyInMs;
+                this.slowPrimaryCount++;
+            }
+        }
+    }
+
+    /**
+     * @return the number of operations executed with this policy.
+     */
+    public synchronized long getOperationCount() {
+        return this.operationCount;
+    }
+
+    /**
+     * @return the number of hedge requests issued.
+     */
+    public synchronized long getHedgeCount() {
+        return this.hedgeCount;
+    }
+
+    /**
+     * @return the number of operations won by the hedge request.
+     */
+    public synchronized long getHedgeWinCount() {
+        return this.hedgeWinCount;
+    }
+
+    /**
+     * @return the fraction of operations for which a hedge request was issued.
+     */
+    public synchronized double getHedgeRate() {
+        return this.operationCount == 0 ? 0 : (double) this.hedgeCount / this.operationCount;
+    }
+
+    /**
+     * Returns the estimated latency saved by hedging. Each operation won by the hedge request is credited with the
+     * difference between the average latency of slow first requests that were hedged but still won, and its own
+     * latency.
+     * 
+     * @return the estimated latency saved, in milliseconds.
+     */
+    public synchronized long getLatencySavedInMs() {
+        return this.latencySavedInMs;
+    }
+}
@@ -32,6 +32,11 @@ public class RequestOptions {
      */
     private Integer timeoutIntervalInMs;
 
+    /**
+     * The {@link HedgingPolicy} to use for supported read requests, or <code>null</code> to not hedge requests.
+     */
+    private HedgingPolicy hedgingPolicy;
+
     /**
      * Creates an instance of the <code>RequestOptions</code> class.
      */
@@ -49,6 +54,7 @@ public class RequestOptions {
     public RequestOptions(final RequestOptions other) {
         this.setTimeoutIntervalInMs(other.getTimeoutIntervalInMs());
         this.setRetryPolicyFactory(other.getRetryPolicyFactory());
+        this.setHedgingPolicy(other.getHedgingPolicy());
     }
 
     /**
@@ -67,6 +73,13 @@ public class RequestOptions {
         }
     }
 
+    /**
+     * @return the hedgingPolicy
+     */
+    public final HedgingPolicy getHedgingPolicy() {
+        return this.hedgingPolicy;
+    }
+
     /**
      * @return the retryPolicyFactory
      */
@@ -81,6 +94,14 @@ public class RequestOptions {
         return this.timeoutIntervalInMs;
     }
 
+    /**
+     * @param hedgingPolicy
+     *            the hedgingPolicy to set, or <code>null</code> to not hedge requests
+     */
+    public final void setHedgingPolicy(final HedgingPolicy hedgingPolicy) {
+        this.hedgingPolicy = hedgingPolicy;
+    }
+
     /**
      * @param retryPolicyFactory
      *            the retryPolicyFactory to set
@@ -0,0 +1,352 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.services.core.storage;
+
+import java.net.HttpURLConnection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Represents an optional client-side governor that shapes the rate of outgoing requests to stay within the
+ * scalability targets of a storage account and of its individual partitions.
+ * <p>
+ * Requests draw from a token bucket kept per storage account and, when a partition rate is configured, from a second
+ * bucket kept per partition (a blob, a queue, or a table partition key). A request that finds its bucket empty waits
+ * inside the client until its turn comes, instead of being sent and rejected by the service. The rate of a bucket is
+ * reduced multiplicatively whenever the service responds with <code>503 Server Busy</code>, and grows back additively
+ * with each successful response until it reaches the configured rate.
+ * <p>
+ * A single governor may be shared by the {@link com.microsoft.windowsazure.services.blob.client.CloudBlobClient},
+ * {@link com.microsoft.windowsazure.services.queue.client.CloudQueueClient} and
+ * {@link com.microsoft.windowsazure.services.table.client.CloudTableClient} of the same account, so that their
+ * requests are counted against the same account target. Use {@link ServiceClient#setRequestRateGovernor} to enable
+ * it on a client.
+ */
+public final class RequestRateGovernor {
+
+    /**
+     * Represents the fraction of the current rate kept after a throttling response.
+     */
+    public static final double DEFAULT_DECREASE_FACTOR = 0.7;
+
+    /**
+     * Represents the fraction of the configured rate a bucket is allowed to fall to.
+     */
+    public static final double DEFAULT_MINIMUM_RATE_FRACTION = 0.05;
+
+    /**
+     * Represents the number of successful responses it takes to grow back by the configured rate.
+     */
+    private static final int SUCCESSES_TO_RECOVER = 100;
+
+    /**
+     * Represents the minimum interval, in nanoseconds, between two rate decreases of the same bucket, so that a burst
+     * of throttled requests that were already in flight is counted as a single signal.
+     */
+    private static final long DECREASE_INTERVAL_IN_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+    /**
+     * Represents the default time, in nanoseconds, after which the bucket of a partition that received no request is
+     * discarded.
+     */
+    private static final long DEFAULT_PARTITION_IDLE_TIMEOUT_IN_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    /**
+     * Holds the configured requests per second per account.
+     */
+    private final double accountRequestsPerSecond;
+
+    /**
+     * Holds the configured requests per second per partition, or zero if partitions are not shaped.
+     */
+    private final double partitionRequestsPerSecond;
+
+    /**
+     * Holds the buckets for each account.
+     */
+    private final ConcurrentMap<String, AdaptiveTokenBucket> accountBuckets = new ConcurrentHashMap<String, AdaptiveTokenBucket>();
+
+    /**
+     * Holds the buckets for each partition, keyed by account and partition.
+     */
+    private final ConcurrentMap<String, AdaptiveTokenBucket> partitionBuckets = new ConcurrentHashMap<String, AdaptiveTokenBucket>();
+
+    /**
+     * Holds the time, in nanoseconds, after which an idle partition bucket is discarded.
+     */
+    private final long partitionIdleTimeoutInNanos;
+
+    /**
+     * Holds the time, in nanoseconds, at which idle partition buckets are next swept.
+     */
+    private final AtomicLong nextSweep;
+
+    /**
+     * Creates an instance of the <code>RequestRateGovernor</code> class that shapes requests per account only.
+     * 
+     * @param accountRequestsPerSecond
+     *            The maximum number of requests per second to send to a storage account.
+     */
+    public RequestRateGovernor(final double accountRequestsPerSecond) {
+        this(accountRequestsPerSecond, 0);
+    }
+
+    /**
+     * Creates an instance of the <code>RequestRateGovernor</code> class that shapes requests per account and per
+     * partition.
+     * 
+     * @param accountRequestsPerSecond
+     *            The maximum number of requests per second to send to a storage account.
+     * @param partitionRequestsPerSecond
+     *            The maximum number of requests per second to send to a single partition, or zero to not shape
+     *            requests per partition.
+     */
+    public RequestRateGovernor(final double accountRequestsPerSecond, final double partitionRequestsPerSecond) {
+        this(accountRequestsPerSecond, partitionRequestsPerSecond, DEFAULT_PARTITION_IDLE_TIMEOUT_IN_NANOS);
+    }
+
+    /**
+     * Reserved for internal use. Creates an instance of the <code>RequestRateGovernor</code> class with the specified
+     * partition idle timeout.
+     * 
+     * @param accountRequestsPerSecond
+     *            The maximum number of requests per second to send to a storage account.
+     * @param partitionRequestsPerSecond
+     *            The maximum number of requests per second to send to a single partition, or zero to not shape
+     *            requests per partition.
+     * @param partitionIdleTimeoutInNanos
+     *            The time, in nanoseconds, after which the bucket of a partition that received no request is discarded.
+     */
+    RequestRateGovernor(final double accountRequestsPerSecond, final double partitionRequestsPerSecond,
+            final long partitionIdleTimeoutInNanos) {
+        if (accountRequestsPerSecond <= 0) {
+            throw new IllegalArgumentException("accountRequestsPerSecond");
+        }
+
+        if (partitionRequestsPerSecond < 0) {
+            throw new IllegalArgumentException("partitionRequestsPerSecond");
+        }
+
+        this.accountRequestsPerSecond = accountRequestsPerSecond;
+        this.partitionRequestsPerSecond = partitionRequestsPerSecond;
+        this.partitionIdleTimeoutInNanos = partitionIdleTimeoutInNanos;
+        this.nextSweep = new AtomicLong(System.nanoTime() + partitionIdleTimeoutInNanos);
+    }
+
+    /**
+     * Waits until a request to the specified account and partition may be sent.
+     * 
+     * @param account
+     *            A <code>String</code> that identifies the storage account.
+     * @param partition
+     *            A <code>String</code> that identifies the partition, or <code>null</code> if the request does not
+     *            target a single partition.
+     * @throws InterruptedException
+     *             If the thread was interrupted while waiting.
+     */
+    public void acquire(final String account, final String partition) throws InterruptedException {
+        long waitInNanos = getBucket(this.accountBuckets, account, this.accountRequestsPerSecond).reserve();
+
+        if (partition != null && this.partitionRequestsPerSecond > 0) {
+            sweepIdlePartitions();
+            waitInNanos = Math.max(waitInNanos,
+                    getBucket(this.partitionBuckets, account + "/" + partition, this.partitionRequestsPerSecond)
+                            .reserve());
+        }
+
+        if (waitInNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitInNanos);
+        }
+    }
+
+    /**
+     * Adapts the rates of the specified account and partition to the status code returned by the service.
+     * 
+     * @param account
+     *            A <code>String</code> that identifies the storage account.
+     * @param partition
+     *            A <code>String</code> that identifies the partition, or <code>null</code>.
+     * @param statusCode
+     *            The HTTP status code of the response, or a value that is not positive if no response was received.
+     */
+    public void onResponse(final String account, final String partition, final int statusCode) {
+        if (statusCode <= 0) {
+            return;
+        }
+
+        final boolean throttled = statusCode == HttpURLConnection.HTTP_UNAVAILABLE;
+        final boolean succeeded = statusCode < 400;
+        if (!throttled && !succeeded) {
+            return;
+        }
+
+        update(this.accountBuckets.get(account), throttled);
+        if (partition != null && this.partitionRequestsPerSecond > 0) {
+            update(this.partitionBuckets.get(account + "/" + partition), throttled);
+        }
+    }
+
+    /**
+     * Returns the rate, in requests per second, currently enforced for the specified account.
+     * 
+     * @param account
+     *            A <code>String</code> that identifies the storage account.
+     * @return The current rate for the account.
+     */
+    public double getCurrentAccountRate(final String account) {
+        final AdaptiveTokenBucket bucket = this.accountBuckets.get(account);
+        return bucket == null ? this.accountRequestsPerSecond : bucket.getRate();
+    }
+
+    /**
+     * Returns the rate, in requests per second, currently enforced for the specified partition.
+     * 
+     * @param account
+     *            A <code>String</code> that identifies the storage account.
+     * @param partition
+     *            A <code>String</code> that identifies the partition.
+     * @return The current rate for the partition.
+     */
+    public double getCurrentPartitionRate(final String account, final String partition) {
+        final AdaptiveTokenBucket bucket = this.partitionBuckets.get(account + "/" + partition);
+        return bucket == null ? this.partitionRequestsPerSecond : bucket.getRate();
+    }
+
+    /**
+     * Reserved for internal use. Returns the number of partitions for which a bucket is currently kept.
+     * 
+     * @return The number of partition buckets.
+     */
+    int getPartitionBucketCount() {
+        return this.partitionBuckets.size();
+    }
+
+    /**
+     * Discards the buckets of partitions that received no request for the idle timeout, so that a client touching
+     * many partitions over its lifetime does not keep a bucket for each of them. At most one thread sweeps per idle
+     * timeout; a discarded partition simply starts over with a full bucket at the configured rate.
+     */
+    private void sweepIdlePartitions() {
+        final long now = System.nanoTime();
+        final long sweepAt = this.nextSweep.get();
+        if (now - sweepAt < 0 || !this.nextSweep.compareAndSet(sweepAt, now + this.partitionIdleTimeoutInNanos)) {
+            return;
+        }
+
+        for (final Map.Entry<String, AdaptiveTokenBucket> entry : this.partitionBuckets.entrySet()) {
+            if (entry.getValue().isIdleSince(now - this.partitionIdleTimeoutInNanos)) {
+                this.partitionBuckets.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private static void update(final AdaptiveTokenBucket bucket, final boolean throttled) {
+        if (bucket == null) {
+            return;
+        }
+
+        if (throttled) {
+            bucket.decrease();
+        }
+        else {
+            bucket.increase();
+        }
+    }
+
+    private static AdaptiveTokenBucket getBucket(final ConcurrentMap<String, AdaptiveTokenBucket> buckets,
+            final String key, final double rate) {
+        AdaptiveTokenBucket bucket = buckets.get(key);
+        if (bucket == null) {
+            final AdaptiveTokenBucket newBucket = new AdaptiveTokenBucket(rate);
+            bucket = buckets.putIfAbsent(key, newBucket);
+            if (bucket == null) {
+                bucket = newBucket;
+            }
+        }
+        return bucket;
+    }
+
+    /**
+     * A token bucket whose rate adapts to throttling. Tokens may go negative: each negative token is a reservation
+     * held by a request waiting for its turn, which keeps waiting requests in arrival order.
+     */
+    private static final class AdaptiveTokenBucket {
+        private final double maximumRate;
+        private final double minimumRate;
+        private double rate;
+        private double tokens;
+        private long lastRefill;
+        private long lastDecrease;
+
+        AdaptiveTokenBucket(final double maximumRate) {
+            this.maximumRate = maximumRate;
+            this.minimumRate = maximumRate * DEFAULT_MINIMUM_RATE_FRACTION;
+            this.rate = maximumRate;
+            this.tokens = getCapacity();
+            this.lastRefill = System.nanoTime();
+            this.lastDecrease = this.lastRefill - DECREASE_INTERVAL_IN_NANOS;
+        }
+
+        synchronized long reserve() {
+            refill();
+            this.tokens -= 1;
+            if (this.tokens >= 0) {
+                return 0;
+            }
+            return (long) (-this.tokens / this.rate * TimeUnit.SECONDS.toNanos(1));
+        }
+
+        synchronized void decrease() {
+            final long now = System.nanoTime();
+            if (now - this.lastDecrease < DECREASE_INTERVAL_IN_NANOS) {
+                return;
+            }
+            refill();
+            this.lastDecrease = now;
+            this.rate = Math.max(this.minimumRate, this.rate * DEFAULT_DECREASE_FACTOR);
+            this.tokens = Math.min(this.tokens, getCapacity());
+        }
+
+        synchronized void increase() {
+            refill();
+            this.rate = Math.min(this.maximumRate, this.rate + this.maximumRate / SUCCESSES_TO_RECOVER);
+        }
+
+        synchronized double getRate() {
+            return this.rate;
+        }
+
+        synchronized boolean isIdleSince(final long time) {
+            return this.lastRefill - time < 0;
+        }
+
+        /**
+         * Allows bursts of up to a tenth of a second worth of requests.
+         */
+        private double getCapacity() {
+            return Math.max(1, this.rate / 10);
+        }
+
+        private void refill() {
+            final long now = System.nanoTime();
+            this.tokens = Math.min(getCapacity(), this.tokens + (now - this.lastRefill) * this.rate
+                    / TimeUnit.SECONDS.toNanos(1));
+            this.lastRefill = now;
+        }
+    }
+}
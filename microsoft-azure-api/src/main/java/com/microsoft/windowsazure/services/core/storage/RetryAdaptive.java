@@ -0,0 +1,232 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.services.core.storage;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Date;
+import java.util.Random;
+
+import com.microsoft.windowsazure.services.core.utils.EndpointCircuitBreaker;
+import com.microsoft.windowsazure.services.core.utils.RetryBudget;
+import com.microsoft.windowsazure.services.core.utils.ThrottlingBackoff;
+
+/**
+ * Represents a throttling-aware retry policy. Backoff intervals are computed with decorrelated jitter so that clients
+ * which were throttled at the same moment do not retry in lockstep, a <code>Retry-After</code> header returned by the
+ * service is honored, retries are drawn from a token-bucket budget shared by every operation created from the same
+ * factory, and retries stop while the circuit for the target endpoint is open.
+ * 
+ * This class extends the {@link com.microsoft.windowsazure.services.core.storage.RetryPolicy} class and implements the
+ * {@link com.microsoft.windowsazure.services.core.storage.RetryPolicyFactory} interface. Assign a single instance to a
+ * service client so that the budget and circuit breaker are client-wide.
+ */
+public final class RetryAdaptive extends RetryPolicy implements RetryPolicyFactory {
+
+    /**
+     * Holds the random number generator used to calculate jittered backoff intervals.
+     */
+    private final Random randRef;
+
+    /**
+     * Holds the maximum backoff interval to enforce.
+     */
+    private final int resolvedMaxBackoff;
+
+    /**
+     * Holds the retry budget shared by all instances created from this factory.
+     */
+    private final RetryBudget retryBudget;
+
+    /**
+     * Holds the per-endpoint circuit breaker shared by all instances created from this factory.
+     */
+    private final EndpointCircuitBreaker circuitBreaker;
+
+    /**
+     * Holds the backoff interval chosen for the previous retry of the current operation.
+     */
+    private int previousBackoff;
+
+    /**
+     * Creates an instance of the <code>RetryAdaptive</code> class using the default backoff bounds, retry count, retry
+     * budget and circuit breaker settings.
+     */
+    public RetryAdaptive() {
+        this(RetryPolicy.DEFAULT_MIN_BACKOFF, RetryPolicy.DEFAULT_MAX_BACKOFF, RetryPolicy.DEFAULT_CLIENT_RETRY_COUNT);
+    }
+
+    /**
+     * Creates an instance of the <code>RetryAdaptive</code> class using the specified backoff bounds and maximum retry
+     * attempts, and the default retry budget and circuit breaker settings.
+     * 
+     * @param minBackoff
+     *            The minimum backoff interval, in milliseconds, between retries.
+     * @param maxBackoff
+     *            The maximum backoff interval, in milliseconds, between retries.
+     * @param maxAttempts
+     *            The maximum number of retry attempts.
+     */
+    public RetryAdaptive(final int minBackoff, final int maxBackoff, final int maxAttempts) {
+        this(minBackoff, maxBackoff, maxAttempts, new RetryBudget(), new EndpointCircuitBreaker());
+    }
+
+    /**
+     * Creates an instance of the <code>RetryAdaptive</code> class using the specified backoff bounds, maximum retry
+     * attempts, retry budget and circuit breaker.
+     * 
+     * @param minBackoff
+     *            The minimum backoff interval, in milliseconds, between retries.
+     * @param maxBackoff
+     *            The maximum backoff interval, in milliseconds, between retries. A <code>Retry-After</code> longer
+     *            than this interval ends the retries.
+     * @param maxAttempts
+     *            The maximum number of retry attempts.
+     * @param retryBudget
+     *            The {@link RetryBudget} that retries are drawn from.
+     * @param circuitBreaker
+     *            The {@link EndpointCircuitBreaker} that tracks failures per endpoint.
+     */
+    public RetryAdaptive(final int minBackoff, final int maxBackoff, final int maxAttempts,
+            final RetryBudget retryBudget, final EndpointCircuitBreaker circuitBreaker) {
+        this(minBackoff, maxBackoff, maxAttempts, retryBudget, circuitBreaker, new Random());
+    }
+
+    /**
+     * Creates a per-operation instance that shares its budget, circuit breaker and random source with the factory.
+     */
+    private RetryAdaptive(final int minBackoff, final int maxBackoff, final int maxAttempts,
+            final RetryBudget retryBudget, final EndpointCircuitBreaker circuitBreaker, final Random randRef) {
+        super(minBackoff, maxAttempts);
+        this.resolvedMaxBackoff = maxBackoff;
+        this.retryBudget = retryBudget;
+        this.circuitBreaker = circuitBreaker;
+        this.randRef = randRef;
+        this.previousBackoff = minBackoff;
+    }
+
+    /**
+     * @return the {@link RetryBudget} shared by operations using this policy.
+     */
+    public RetryBudget getRetryBudget() {
+        return this.retryBudget;
+    }
+
+    /**
+     * @return the {@link EndpointCircuitBreaker} shared by operations using this policy.
+     */
+    public EndpointCircuitBreaker getCircuitBreaker() {
+        return this.circuitBreaker;
+    }
+
+    /**
+     * Generates a new retry policy for the current request attempt.
+     * 
+     * @param opContext
+     *            An {@link OperationContext} object that represents the context for the current operation. This object
+     *            is used to track requests to the storage service, and to provide additional runtime information about
+     *            the operation.
+     * 
+     * @return A {@link RetryPolicy} object that represents the retry policy for the current request attempt.
+     */
+    @Override
+    public RetryPolicy createInstance(final OperationContext opContext) {
+        return new RetryAdaptive(this.deltaBackoffIntervalInMs, this.resolvedMaxBackoff, this.maximumAttempts,
+                this.retryBudget, this.circuitBreaker, this.randRef);
+    }
+
+    /**
+     * Determines if the operation should be retried and how long to wait until the next retry.
+     * 
+     * @param currentRetryCount
+     *            The number of retries for the given operation. A value of zero signifies this is the first error
+     *            encountered.
+     * @param statusCode
+     *            The status code for the last operation.
+     * @param lastException
+     *            A <code>Exception</code> object that represents the last exception encountered.
+     * @param opContext
+     *            An {@link OperationContext} object that represents the context for the current operation. This object
+     *            is used to track requests to the storage service, and to provide additional runtime information about
+     *            the operation.
+     * 
+     * @return A {@link RetryResult} object that represents the retry result, indicating whether the operation should be
+     *         retried and how long to backoff.
+     */
+    @Override
+    public RetryResult shouldRetry(final int currentRetryCount, final int statusCode, final Exception lastException,
+            final OperationContext opContext) {
+        final HttpURLConnection request = opContext == null ? null : opContext.getCurrentRequestObject();
+        final String endpoint = getEndpoint(request);
+
+        if (statusCode >= 400 && statusCode < 500 || statusCode == HttpURLConnection.HTTP_NOT_IMPLEMENTED
+                || statusCode == HttpURLConnection.HTTP_VERSION) {
+            // the endpoint answered, so it counts as healthy
+            this.circuitBreaker.recordSuccess(endpoint);
+            return new RetryResult(-1, false);
+        }
+
+        this.circuitBreaker.recordFailure(endpoint);
+
+        if (currentRetryCount >= this.maximumAttempts || !this.circuitBreaker.allowRequest(endpoint)) {
+            return new RetryResult(-1, false);
+        }
+
+        // Only consult the headers if a response was actually received, otherwise the connection would try to connect
+        // again.
+        long retryAfter = -1;
+        if (request != null && statusCode > 0) {
+            retryAfter = ThrottlingBackoff.parseRetryAfter(request.getHeaderField(ThrottlingBackoff.RETRY_AFTER),
+                    new Date());
+        }
+
+        if (retryAfter > this.resolvedMaxBackoff || !this.retryBudget.tryAcquire()) {
+            return new RetryResult(-1, false);
+        }
+
+        final int backoff = ThrottlingBackoff.nextDecorrelatedJitter(this.randRef, this.deltaBackoffIntervalInMs,
+                this.resolvedMaxBackoff, this.previousBackoff);
+        this.previousBackoff = backoff;
+
+        return new RetryResult((int) Math.max(backoff, retryAfter), true);
+    }
+
+    /**
+     * Resets the failure count of the endpoint the successful request was sent to, so that only consecutive failures
+     * open its circuit.
+     * 
+     * @param opContext
+     *            An {@link OperationContext} object that represents the context for the current operation. This object
+     *            is used to track requests to the storage service, and to provide additional runtime information about
+     *            the operation.
+     */
+    @Override
+    public void onSuccess(final OperationContext opContext) {
+        final HttpURLConnection request = opContext == null ? null : opContext.getCurrentRequestObject();
+        this.circuitBreaker.recordSuccess(getEndpoint(request));
+    }
+
+    /**
+     * Returns the key used to track the circuit of the endpoint the request was sent to.
+     */
+    private static String getEndpoint(final HttpURLConnection request) {
+        if (request == null) {
+            return "";
+        }
+
+        final URL url = request.getURL();
+        return url.getProtocol() + "://" + url.getAuthority();
+    }
+}
@@ -93,4 +93,17 @@ public abstract class RetryPolicy {
      */
     public abstract RetryResult shouldRetry(int currentRetryCount, int statusCode, Exception lastException,
             OperationContext opContext);
+
+    /**
+     * Notifies the policy that an attempt of the operation succeeded. The default implementation does nothing;
+     * policies that track the health of an endpoint across operations use it to learn that the endpoint recovered.
+     * 
+     * @param opContext
+     *            An {@link OperationContext} object that represents the context for the current operation. This object
+     *            is used to track requests to the storage service, and to provide additional runtime information about
+     *            the operation.
+     */
+    public void onSuccess(final OperationContext opContext) {
+        // no-op by default
+    }
 }
@@ -52,6 +52,11 @@ public abstract class ServiceClient {
      */
     protected RetryPolicyFactory retryPolicyFactory = new RetryExponentialRetry();
 
+    /**
+     * Holds the optional governor used to shape the rate of requests made via the service client.
+     */
+    protected RequestRateGovernor requestRateGovernor;
+
     /**
      * Holds the default server and client timeout for requests made by the service client.
      */
@@ -190,6 +195,31 @@ public abstract class ServiceClient {
         return this.retryPolicyFactory;
     }
 
+    /**
+     * Returns the request rate governor currently in effect for this service client.
+     * 
+     * @return A {@link RequestRateGovernor} object that represents the current request rate governor, or
+     *         <code>null</code> if requests are not shaped.
+     */
+    public final RequestRateGovernor getRequestRateGovernor() {
+        return this.requestRateGovernor;
+    }
+
+    /**
+     * Returns the key identifying the storage account of this service client to the {@link RequestRateGovernor}.
+     * The account name is used when it is known, so that clients for different services of the same account share a
+     * rate; otherwise the host of the endpoint is used.
+     * 
+     * @return A <code>String</code> that identifies the storage account.
+     */
+    public final String getRequestRateAccountKey() {
+        if (this.credentials != null && this.credentials.getAccountName() != null) {
+            return this.credentials.getAccountName();
+        }
+
+        return this.endpoint.getHost();
+    }
+
     /**
      * Returns the timeout value for requests made to the service. For more information about the timeout, see
      * {@link #setTimeoutInMs}.
@@ -239,6 +269,18 @@ public abstract class ServiceClient {
         this.retryPolicyFactory = retryPolicyFactory;
     }
 
+    /**
+     * Sets the RequestRateGovernor object used to shape the rate of requests made via this service client. Requests
+     * that exceed the rate wait inside the client instead of being sent. Specify <code>null</code> to send requests
+     * without shaping, which is the default.
+     * 
+     * @param requestRateGovernor
+     *            the RequestRateGovernor object to use when making service requests.
+     */
+    public void setRequestRateGovernor(final RequestRateGovernor requestRateGovernor) {
+        this.requestRateGovernor = requestRateGovernor;
+    }
+
     /**
      * Sets the timeout to use when making requests to the storage service.
      * <p>
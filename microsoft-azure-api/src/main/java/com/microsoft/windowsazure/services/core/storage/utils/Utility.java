@@ -52,6 +52,7 @@ import com.microsoft.windowsazure.services.core.storage.StorageCredentialsShared
 import com.microsoft.windowsazure.services.core.storage.StorageErrorCode;
 import com.microsoft.windowsazure.services.core.storage.StorageException;
 import com.microsoft.windowsazure.services.core.storage.StorageExtendedErrorInformation;
+import com.microsoft.windowsazure.services.core.storage.utils.implementation.AsyncDigest;
 import com.microsoft.windowsazure.services.core.storage.utils.implementation.StorageErrorResponse;
 
 /**
@@ -1008,25 +1009,38 @@ public final class Utility {
             writeLength = Long.MAX_VALUE;
         }
 
+        // Hash on a background thread so reading the next buffer overlaps with hashing the previous one. Each buffer
+        // is handed over once written and exchanged for a free one, so the data is neither copied nor read twice.
+        final AsyncDigest asyncDigest = calculateMD5 ? new AsyncDigest(opContext.getIntermediateMD5()) : null;
+
         int count = -1;
-        final byte[] retrievedBuff = new byte[Constants.BUFFER_COPY_LENGTH];
+        byte[] retrievedBuff = new byte[Constants.BUFFER_COPY_LENGTH];
         int nextCopy = (int) Math.min(retrievedBuff.length, writeLength - retVal.getLength());
 
-        count = sourceStream.read(retrievedBuff, 0, nextCopy);
+        try {
+            count = sourceStream.read(retrievedBuff, 0, nextCopy);
 
-        while (nextCopy > 0 && count != -1) {
-            outStream.write(retrievedBuff, 0, count);
-            if (calculateMD5) {
-                opContext.getIntermediateMD5().update(retrievedBuff, 0, count);
-            }
+            while (nextCopy > 0 && count != -1) {
+                outStream.write(retrievedBuff, 0, count);
+                if (calculateMD5) {
+                    retrievedBuff = asyncDigest.exchange(retrievedBuff, count);
+                }
 
-            retVal.setLength(retVal.getLength() + count);
-            if (opContext != null) {
-                opContext.setCurrentOperationByteCount(opContext.getCurrentOperationByteCount() + count);
-            }
+                retVal.setLength(retVal.getLength() + count);
+                if (opContext != null) {
+                    opContext.setCurrentOperationByteCount(opContext.getCurrentOperationByteCount() + count);
+                }
 
-            nextCopy = (int) Math.min(retrievedBuff.length, writeLength - retVal.getLength());
-            count = sourceStream.read(retrievedBuff, 0, nextCopy);
+                nextCopy = (int) Math.min(retrievedBuff.length, writeLength - retVal.getLength());
+                count = sourceStream.read(retrievedBuff, 0, nextCopy);
+            }
+        }
+        finally {
+            // The intermediate MD5 must cover exactly the bytes written even on failure, as a resumed download
+            // continues from it.
+            if (calculateMD5) {
+                asyncDigest.await();
+            }
         }
 
         outStream.flush();
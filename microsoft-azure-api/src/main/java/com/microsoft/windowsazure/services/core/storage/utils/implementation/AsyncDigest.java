@@ -0,0 +1,283 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.services.core.storage.utils.implementation;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.MessageDigest;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * RESERVED FOR INTERNAL USE. Feeds a {@link MessageDigest} on a background thread so that the thread moving the data
+ * is not stalled by hashing. Callers hand over ownership of each buffer; buffers are hashed in the order they were
+ * handed over. The thread producing data only waits if hashing falls behind by more than the configured number of
+ * bytes, or when it asks for the finished digest.
+ */
+public final class AsyncDigest {
+    /**
+     * The default maximum number of bytes waiting to be hashed before producers are made to wait.
+     */
+    public static final long DEFAULT_MAX_PENDING_BYTES = 32L * 1024 * 1024;
+
+    /**
+     * The maximum number of hashed buffers retained for reuse by {@link #exchange(byte[], int)}.
+     */
+    private static final int MAX_FREE_BUFFERS = 4;
+
+    /**
+     * Holds the shared pool hashing runs on, daemon threads so an abandoned digest never keeps the VM alive.
+     */
+    private static final ExecutorService DIGEST_EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger threadNumber = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "storage-digest-" + this.threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * A buffer waiting to be hashed.
+     */
+    private static final class Chunk {
+        final byte[] data;
+        final int length;
+        final boolean recycle;
+
+        Chunk(final byte[] data, final int length, final boolean recycle) {
+            this.data = data;
+            this.length = length;
+            this.recycle = recycle;
+        }
+    }
+
+    /**
+     * Holds the digest being fed, only touched by the drain task until {@link #await()} returns.
+     */
+    private final MessageDigest digest;
+
+    /**
+     * Holds the maximum number of bytes waiting to be hashed.
+     */
+    private final long maxPendingBytes;
+
+    /**
+     * Holds the buffers waiting to be hashed, guarded by this.
+     */
+    private final LinkedList<Chunk> pending = new LinkedList<Chunk>();
+
+    /**
+     * Holds hashed buffers available for reuse, guarded by this.
+     */
+    private final LinkedList<byte[]> freeBuffers = new LinkedList<byte[]>();
+
+    /**
+     * Holds the number of bytes waiting to be hashed, guarded by this.
+     */
+    private long pendingBytes;
+
+    /**
+     * Indicates whether a drain task is scheduled or running, guarded by this.
+     */
+    private boolean draining;
+
+    /**
+     * Holds any error raised while hashing, guarded by this.
+     */
+    private RuntimeException failure;
+
+    /**
+     * Creates an instance that feeds the specified digest.
+     * 
+     * @param digest
+     *            the digest to update.
+     */
+    public AsyncDigest(final MessageDigest digest) {
+        this(digest, DEFAULT_MAX_PENDING_BYTES);
+    }
+
+    /**
+     * Creates an instance that feeds the specified digest.
+     * 
+     * @param digest
+     *            the digest to update.
+     * @param maxPendingBytes
+     *            the maximum number of bytes waiting to be hashed before producers are made to wait.
+     */
+    public AsyncDigest(final MessageDigest digest, final long maxPendingBytes) {
+        if (digest == null) {
+            throw new IllegalArgumentException("digest");
+        }
+
+        if (maxPendingBytes < 1) {
+            throw new IllegalArgumentException("maxPendingBytes must be positive.");
+        }
+
+        this.digest = digest;
+        this.maxPendingBytes = maxPendingBytes;
+    }
+
+    /**
+     * Queues the first <code>length</code> bytes of the buffer to be hashed. The caller must not modify the buffer
+     * afterwards.
+     * 
+     * @param data
+     *            the buffer to hash.
+     * @param length
+     *            the number of bytes of the buffer to hash.
+     * @throws IOException
+     *             if interrupted while waiting for hashing to catch up.
+     */
+    public void update(final byte[] data, final int length) throws IOException {
+        this.enqueue(new Chunk(data, length, false));
+    }
+
+    /**
+     * Queues the first <code>length</code> bytes of the buffer to be hashed and returns a buffer of the same size the
+     * caller may fill next, reusing a previously hashed buffer when one is available. The caller must not modify the
+     * buffer it handed over afterwards.
+     * 
+     * @param data
+     *            the buffer to hash.
+     * @param length
+     *            the number of bytes of the buffer to hash.
+     * @return a buffer of the same size as <code>data</code> that the caller owns.
+     * @throws IOException
+     *             if interrupted while waiting for hashing to catch up.
+     */
+    public byte[] exchange(final byte[] data, final int length) throws IOException {
+        this.enqueue(new Chunk(data, length, true));
+
+        synchronized (this) {
+            while (!this.freeBuffers.isEmpty()) {
+                final byte[] free = this.freeBuffers.removeFirst();
+                if (free.length == data.length) {
+                    return free;
+                }
+            }
+        }
+
+        return new byte[data.length];
+    }
+
+    /**
+     * Waits for every queued buffer to be hashed. After this returns the digest may be read or finished by the caller.
+     * 
+     * @return the digest that was fed.
+     * @throws IOException
+     *             if interrupted while waiting.
+     */
+    public MessageDigest await() throws IOException {
+        synchronized (this) {
+            while (this.draining) {
+                this.waitInterruptibly();
+            }
+
+            if (this.failure != null) {
+                throw this.failure;
+            }
+        }
+
+        return this.digest;
+    }
+
+    /**
+     * Adds a chunk, waiting if too many bytes are already outstanding, and schedules the drain task if needed.
+     */
+    private void enqueue(final Chunk chunk) throws IOException {
+        if (chunk.length <= 0) {
+            return;
+        }
+
+        synchronized (this) {
+            while (this.pendingBytes > 0 && this.pendingBytes + chunk.length > this.maxPendingBytes) {
+                this.waitInterruptibly();
+            }
+
+            this.pending.addLast(chunk);
+            this.pendingBytes += chunk.length;
+
+            if (this.draining) {
+                return;
+            }
+
+            this.draining = true;
+        }
+
+        DIGEST_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                AsyncDigest.this.drain();
+            }
+        });
+    }
+
+    /**
+     * Hashes queued chunks until the queue is empty.
+     */
+    private void drain() {
+        while (true) {
+            final Chunk chunk;
+            synchronized (this) {
+                if (this.pending.isEmpty() || this.failure != null) {
+                    this.pending.clear();
+                    this.pendingBytes = 0;
+                    this.draining = false;
+                    this.notifyAll();
+                    return;
+                }
+
+                chunk = this.pending.removeFirst();
+            }
+
+            try {
+                this.digest.update(chunk.data, 0, chunk.length);
+            }
+            catch (final RuntimeException e) {
+                synchronized (this) {
+                    this.failure = e;
+                }
+            }
+
+            synchronized (this) {
+                this.pendingBytes -= chunk.length;
+                if (chunk.recycle && this.freeBuffers.size() < MAX_FREE_BUFFERS) {
+                    this.freeBuffers.addLast(chunk.data);
+                }
+                this.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Waits on this object, converting interruption into an <code>InterruptedIOException</code>. Must be called while
+     * holding the lock.
+     */
+    private void waitInterruptibly() throws IOException {
+        try {
+            this.wait();
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for MD5 calculation.");
+        }
+    }
+}
@@ -27,6 +27,7 @@ import java.util.concurrent.TimeoutException;
 import javax.xml.stream.XMLStreamException;
 
 import com.microsoft.windowsazure.services.core.storage.OperationContext;
+import com.microsoft.windowsazure.services.core.storage.RequestRateGovernor;
 import com.microsoft.windowsazure.services.core.storage.RequestResult;
 import com.microsoft.windowsazure.services.core.storage.ResponseReceivedEvent;
 import com.microsoft.windowsazure.services.core.storage.RetryNoRetry;
@@ -35,6 +36,7 @@ import com.microsoft.windowsazure.services.core.storage.RetryPolicyFactory;
 import com.microsoft.windowsazure.services.core.storage.RetryResult;
 import com.microsoft.windowsazure.services.core.storage.SendingRequestEvent;
 import com.microsoft.windowsazure.services.core.storage.StorageErrorCodeStrings;
+import com.microsoft.windowsazure.services.core.storage.ServiceClient;
 import com.microsoft.windowsazure.services.core.storage.StorageException;
 import com.microsoft.windowsazure.services.table.client.TableServiceException;
 
@@ -103,17 +105,28 @@ public final class ExecutionEngine {
         StorageException translatedException = null;
         final long startTime = new Date().getTime();
 
+        final RequestRateGovernor governor = client instanceof ServiceClient ? ((ServiceClient) client)
+                .getRequestRateGovernor() : null;
+        final String accountKey = governor != null ? ((ServiceClient) client).getRequestRateAccountKey() : null;
+        final String partitionKey = governor != null ? task.getPartitionKey() : null;
+
         while (true) {
             try {
                 // reset result flags
                 task.initialize(opContext);
 
+                // wait for our turn if the client shapes its request rate
+                if (governor != null) {
+                    governor.acquire(accountKey, partitionKey);
+                }
+
                 final RESULT_TYPE result = task.execute(client, parentObject, opContext);
 
                 opContext.setClientTimeInMs(new Date().getTime() - startTime);
 
                 if (!task.isNonExceptionedRetryableFailure()) {
                     // Success return result, the rest of the return paths throw.
+                    policy.onSuccess(opContext);
                     return result;
                 }
                 else {
@@ -186,6 +199,14 @@ public final class ExecutionEngine {
                 task.getResult().setException(e);
                 throw e;
             }
+            catch (final InterruptedException e) {
+                // Interrupted while waiting for the governor, restore the flag and throw
+                Thread.currentThread().interrupt();
+                translatedException = StorageException
+                        .translateException(getLastRequestObject(opContext), e, opContext);
+                task.getResult().setException(translatedException);
+                throw translatedException;
+            }
             catch (final Exception e) {
                 // Non Retryable, just throw
                 translatedException = StorageException
@@ -193,6 +214,11 @@ public final class ExecutionEngine {
                 task.getResult().setException(translatedException);
                 throw translatedException;
             }
+            finally {
+                if (governor != null) {
+                    governor.onResponse(accountKey, partitionKey, task.getResult().getStatusCode());
+                }
+            }
 
             // Evaluate Retry Policy
             retryRes = policy.shouldRetry(currentRetryCount, task.getResult().getStatusCode(), task.getResult()
@@ -0,0 +1,232 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.services.core.storage.utils.implementation;
+
+import java.net.HttpURLConnection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.microsoft.windowsazure.services.core.storage.HedgingPolicy;
+import com.microsoft.windowsazure.services.core.storage.OperationContext;
+import com.microsoft.windowsazure.services.core.storage.RequestResult;
+import com.microsoft.windowsazure.services.core.storage.StorageException;
+import com.microsoft.windowsazure.services.core.storage.utils.Utility;
+
+/**
+ * RESERVED FOR INTERNAL USE. A class that executes idempotent read operations under a {@link HedgingPolicy}: if the
+ * first attempt has not completed within the hedge delay, a second attempt is started, the first attempt to succeed
+ * wins and the other one is cancelled.
+ */
+public final class HedgedRequestExecutor {
+
+    /**
+     * Represents a single attempt of a hedged operation. Attempts may run concurrently, so they must not share mutable
+     * state.
+     * 
+     * @param <R>
+     *            The type of the expected result
+     */
+    public interface Attempt<R> {
+        /**
+         * Executes the attempt.
+         * 
+         * @param opContext
+         *            an object used to track the execution of this attempt
+         * @return the result of the attempt
+         * @throws StorageException
+         *             an exception representing any error which occurred during the attempt.
+         */
+        R execute(OperationContext opContext) throws StorageException;
+    }
+
+    /**
+     * Holds the threads that run the attempts.
+     */
+    private static final ExecutorService ATTEMPT_EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger threadNumber = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "storage-hedged-request-" + this.threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Executes a hedged operation.
+     * 
+     * @param <R>
+     *            The type of the expected result
+     * @param policy
+     *            the hedging policy to apply
+     * @param opContext
+     *            an object used to track the execution of the operation; the request results of the winning attempt
+     *            are appended to it
+     * @param attempt
+     *            the attempt to execute once, or twice if the first attempt is slow
+     * @return the result of the winning attempt
+     * @throws StorageException
+     *             the exception of the first attempt if no attempt succeeded.
+     */
+    public static <R> R execute(final HedgingPolicy policy, final OperationContext opContext, final Attempt<R> attempt)
+            throws StorageException {
+        final long startTime = System.nanoTime();
+        final CompletionService<R> completionService = new ExecutorCompletionService<R>(ATTEMPT_EXECUTOR);
+
+        final OperationContext primaryContext = createAttemptContext(opContext);
+        final Future<R> primary = completionService.submit(createCallable(attempt, primaryContext));
+        OperationContext hedgeContext = null;
+        Future<R> hedge = null;
+        int outstanding = 1;
+        StorageException primaryException = null;
+        StorageException hedgeException = null;
+
+        try {
+            Future<R> completed = completionService.poll(policy.getHedgeDelayInMs(), TimeUnit.MILLISECONDS);
+            if (completed == null) {
+                hedgeContext = createAttemptContext(opContext);
+                hedge = completionService.submit(createCallable(attempt, hedgeContext));
+                outstanding++;
+            }
+
+            while (true) {
+                if (completed == null) {
+                    completed = completionService.take();
+                }
+                outstanding--;
+
+                final boolean isHedge = completed == hedge;
+                try {
+                    final R result = completed.get();
+
+                    if (isHedge) {
+                        cancel(primary, primaryContext);
+                    }
+                    else if (hedge != null) {
+                        cancel(hedge, hedgeContext);
+                    }
+
+                    final long elapsedInMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+                    policy.recordOperation(elapsedInMs, hedge != null, isHedge);
+                    complete(opContext, isHedge ? hedgeContext : primaryContext, elapsedInMs);
+                    return result;
+                }
+                catch (final ExecutionException e) {
+                    if (isHedge) {
+                        hedgeException = translateException(e.getCause());
+                    }
+                    else {
+                        primaryException = translateException(e.getCause());
+                    }
+                }
+
+                if (outstanding == 0) {
+                    final long elapsedInMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+                    complete(opContext, primaryContext, elapsedInMs);
+                    throw primaryException != null ? primaryException : hedgeException;
+                }
+
+                completed = null;
+            }
+        }
+        catch (final InterruptedException e) {
+            cancel(primary, primaryContext);
+            if (hedge != null) {
+                cancel(hedge, hedgeContext);
+            }
+
+            // Restore the interrupted status
+            Thread.currentThread().interrupt();
+            throw Utility.generateNewUnexpectedStorageException(e);
+        }
+    }
+
+    /**
+     * Creates the context of an attempt, forwarding events to the listeners of the operation.
+     */
+    private static OperationContext createAttemptContext(final OperationContext opContext) {
+        final OperationContext attemptContext = new OperationContext();
+        attemptContext.setSendingRequestEventHandler(opContext.getSendingRequestEventHandler());
+        attemptContext.setResponseReceivedEventHandler(opContext.getResponseReceivedEventHandler());
+        return attemptContext;
+    }
+
+    private static <R> Callable<R> createCallable(final Attempt<R> attempt, final OperationContext attemptContext) {
+        return new Callable<R>() {
+            @Override
+            public R call() throws Exception {
+                return attempt.execute(attemptContext);
+            }
+        };
+    }
+
+    /**
+     * Cancels an attempt, closing its connection so that the response is not transferred.
+     */
+    private static void cancel(final Future<?> future, final OperationContext attemptContext) {
+        if (future.isDone()) {
+            return;
+        }
+
+        future.cancel(true);
+        final HttpURLConnection request = attemptContext.getCurrentRequestObject();
+        if (request != null) {
+            request.disconnect();
+        }
+    }
+
+    /**
+     * Copies the results of the attempt that determined the outcome into the context of the operation.
+     */
+    private static void complete(final OperationContext opContext, final OperationContext attemptContext,
+            final long elapsedInMs) {
+        for (final RequestResult result : attemptContext.getRequestResults()) {
+            opContext.appendRequestResult(result);
+        }
+
+        opContext.setCurrentRequestObject(attemptContext.getCurrentRequestObject());
+        opContext.setClientTimeInMs(elapsedInMs);
+    }
+
+    private static StorageException translateException(final Throwable cause) {
+        if (cause instanceof StorageException) {
+            return (StorageException) cause;
+        }
+        else if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        else if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+
+        return Utility.generateNewUnexpectedStorageException((Exception) cause);
+    }
+
+    /**
+     * Private Default Ctor.
+     */
+    private HedgedRequestExecutor() {
+        // No op
+    }
+}
@@ -53,6 +53,11 @@ public abstract class StorageOperation<C, P, R> {
      */
     private RequestResult result;
 
+    /**
+     * Holds the key of the partition the operation targets, if known.
+     */
+    private String partitionKey;
+
     /**
      * Default Ctor.
      */
@@ -92,6 +97,13 @@ public abstract class StorageOperation<C, P, R> {
         return this.exceptionReference;
     }
 
+    /**
+     * @return the key of the partition the operation targets, or <code>null</code> if unknown.
+     */
+    public final String getPartitionKey() {
+        return this.partitionKey;
+    }
+
     /**
      * @return the requestOptions
      */
@@ -159,6 +171,14 @@ public abstract class StorageOperation<C, P, R> {
         this.nonExceptionedRetryableFailure = nonExceptionedRetryableFailure;
     }
 
+    /**
+     * @param partitionKey
+     *            the key of the partition the operation targets
+     */
+    public final void setPartitionKey(final String partitionKey) {
+        this.partitionKey = partitionKey;
+    }
+
     /**
      * @param requestOptions
      *            the requestOptions to set
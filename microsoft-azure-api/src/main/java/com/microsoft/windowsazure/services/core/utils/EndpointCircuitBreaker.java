@@ -0,0 +1,113 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.services.core.utils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Tracks consecutive failures per endpoint and opens a circuit for an endpoint once a threshold is reached. While a
+ * circuit is open, callers should fail fast instead of retrying. Once the open interval has elapsed a single failure
+ * re-opens the circuit, while a success (or a quiet period longer than the failure window) closes it again.
+ */
+public class EndpointCircuitBreaker {
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final int DEFAULT_FAILURE_WINDOW_IN_MS = 1000 * 30;
+    public static final int DEFAULT_OPEN_INTERVAL_IN_MS = 1000 * 15;
+
+    private final int failureThreshold;
+    private final long failureWindowInMs;
+    private final long openIntervalInMs;
+    private final ConcurrentMap<String, EndpointState> endpoints = new ConcurrentHashMap<String, EndpointState>();
+
+    public EndpointCircuitBreaker() {
+        this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_FAILURE_WINDOW_IN_MS, DEFAULT_OPEN_INTERVAL_IN_MS);
+    }
+
+    public EndpointCircuitBreaker(int failureThreshold, long failureWindowInMs, long openIntervalInMs) {
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException("failureThreshold");
+        }
+
+        this.failureThreshold = failureThreshold;
+        this.failureWindowInMs = failureWindowInMs;
+        this.openIntervalInMs = openIntervalInMs;
+    }
+
+    public boolean allowRequest(String endpoint) {
+        EndpointState state = endpoints.get(endpoint);
+        if (state == null) {
+            return true;
+        }
+        synchronized (state) {
+            return currentTimeMillis() >= state.openUntil;
+        }
+    }
+
+    public boolean isOpen(String endpoint) {
+        return !allowRequest(endpoint);
+    }
+
+    public void recordSuccess(String endpoint) {
+        EndpointState state = endpoints.get(endpoint);
+        if (state == null) {
+            return;
+        }
+        synchronized (state) {
+            state.consecutiveFailures = 0;
+            state.openUntil = 0;
+        }
+    }
+
+    public void recordFailure(String endpoint) {
+        EndpointState state = getState(endpoint);
+        synchronized (state) {
+            long now = currentTimeMillis();
+            if (now - state.lastFailure > failureWindowInMs) {
+                state.consecutiveFailures = 0;
+            }
+            state.lastFailure = now;
+            state.consecutiveFailures++;
+
+            if (state.consecutiveFailures >= failureThreshold) {
+                state.openUntil = now + openIntervalInMs;
+                // Half-open: the next failure after the interval re-opens the circuit immediately
+                state.consecutiveFailures = failureThreshold - 1;
+            }
+        }
+    }
+
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    private EndpointState getState(String endpoint) {
+        EndpointState state = endpoints.get(endpoint);
+        if (state == null) {
+            EndpointState newState = new EndpointState();
+            state = endpoints.putIfAbsent(endpoint, newState);
+            if (state == null) {
+                state = newState;
+            }
+        }
+        return state;
+    }
+
+    private static class EndpointState {
+        int consecutiveFailures;
+        long lastFailure;
+        long openUntil;
+    }
+}
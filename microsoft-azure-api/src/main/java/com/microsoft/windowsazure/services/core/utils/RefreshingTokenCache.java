@@ -0,0 +1,220 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.services.core.utils;
+
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.microsoft.windowsazure.services.core.ServiceException;
+
+/**
+ * Caches access tokens per scope and refreshes them ahead of time.
+ * <p>
+ * Each token that has been used is refreshed in the background once 40% of its lifetime has passed. A request that
+ * finds its token past half its lifetime, for instance because the scope was idle when the background refresh came
+ * due, keeps using the token and starts an immediate background refresh. A request only waits for the issuing service
+ * when there is no token for the scope or the token has actually expired; that acquisition is single-flight per
+ * scope, so other threads needing the same scope wait for it rather than acquiring their own.
+ * <p>
+ * A token that was not used since it was acquired is not refreshed, and its scope is dropped once the token expires.
+ */
+public class RefreshingTokenCache {
+
+    /**
+     * Acquires tokens from the issuing service.
+     */
+    public interface TokenSource {
+        AcquiredToken acquire(String scope) throws ServiceException;
+    }
+
+    /**
+     * A token together with its lifetime as reported by the issuing service.
+     */
+    public static class AcquiredToken {
+        private final String accessToken;
+        private final long expiresInSeconds;
+
+        public AcquiredToken(String accessToken, long expiresInSeconds) {
+            this.accessToken = accessToken;
+            this.expiresInSeconds = expiresInSeconds;
+        }
+
+        public String getAccessToken() {
+            return accessToken;
+        }
+
+        public long getExpiresInSeconds() {
+            return expiresInSeconds;
+        }
+    }
+
+    private static final long BACKGROUND_RETRY_MILLIS = 5000;
+
+    private static final ScheduledExecutorService refresher = Executors
+            .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "token-refresh");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final TokenSource source;
+    private final DateFactory dateFactory;
+    private final ConcurrentMap<String, ScopeState> scopes = new ConcurrentHashMap<String, ScopeState>();
+
+    public RefreshingTokenCache(TokenSource source, DateFactory dateFactory) {
+        this.source = source;
+        this.dateFactory = dateFactory;
+    }
+
+    /**
+     * Returns a token for the scope. Waits for a new token only if there is no token or the current one has expired.
+     */
+    public String getAccessToken(String scope) throws ServiceException {
+        ScopeState state = scopes.get(scope);
+        if (state == null) {
+            ScopeState created = new ScopeState();
+            state = scopes.putIfAbsent(scope, created);
+            if (state == null) {
+                state = created;
+            }
+        }
+
+        ActiveToken current = state.current;
+        Date now = dateFactory.getDate();
+        if (current != null && now.before(current.expiresUtc)) {
+            state.used = true;
+            if (!now.before(current.refreshUtc)) {
+                // past half its lifetime; refresh in the background rather than making this request wait
+                requestRefresh(scope, state, current);
+            }
+            return current.accessToken;
+        }
+
+        state.lock.lock();
+        try {
+            current = state.current;
+            now = dateFactory.getDate();
+            if (current == null || !now.before(current.expiresUtc)) {
+                current = acquire(scope, state, now);
+            }
+            state.used = true;
+            return current.accessToken;
+        }
+        finally {
+            state.lock.unlock();
+        }
+    }
+
+    private ActiveToken acquire(String scope, ScopeState state, Date now) throws ServiceException {
+        AcquiredToken token = source.acquire(scope);
+        long lifetimeMillis = token.getExpiresInSeconds() * 1000;
+
+        ActiveToken active = new ActiveToken(token.getAccessToken(), new Date(now.getTime() + lifetimeMillis / 2),
+                new Date(now.getTime() + lifetimeMillis));
+        state.current = active;
+        state.used = false;
+        scheduleRefresh(scope, state, active, lifetimeMillis * 2 / 5);
+        return active;
+    }
+
+    private void scheduleRefresh(final String scope, final ScopeState state, final ActiveToken token, long delayMillis) {
+        refresher.schedule(new Runnable() {
+            @Override
+            public void run() {
+                refreshInBackground(scope, state, token);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void requestRefresh(String scope, ScopeState state, ActiveToken token) {
+        if (state.refreshPending.compareAndSet(false, true)) {
+            scheduleRefresh(scope, state, token, 0);
+        }
+    }
+
+    private void refreshInBackground(final String scope, final ScopeState state, final ActiveToken token) {
+        state.refreshPending.set(false);
+        if (!state.used) {
+            // nobody asked for this scope since the token was acquired; forget it once the token expires
+            long remaining = token.expiresUtc.getTime() - dateFactory.getDate().getTime();
+            refresher.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (state.current == token) {
+                        scopes.remove(scope, state);
+                    }
+                }
+            }, Math.max(remaining, 0), TimeUnit.MILLISECONDS);
+            return;
+        }
+
+        if (!state.lock.tryLock()) {
+            // a request thread is acquiring a token for this scope right now
+            return;
+        }
+        boolean retry = false;
+        try {
+            if (state.current != token) {
+                return;
+            }
+            acquire(scope, state, dateFactory.getDate());
+        }
+        catch (ServiceException e) {
+            // keep the current token and try again while it is still valid; after that request threads acquire
+            retry = dateFactory.getDate().getTime() + BACKGROUND_RETRY_MILLIS < token.expiresUtc.getTime();
+        }
+        catch (RuntimeException e) {
+            // the request path surfaces acquisition failures; the background refresh only gives up early
+        }
+        finally {
+            state.lock.unlock();
+        }
+
+        if (retry) {
+            // requests that find the token stale meanwhile do not schedule attempts of their own
+            state.refreshPending.set(true);
+            scheduleRefresh(scope, state, token, BACKGROUND_RETRY_MILLIS);
+        }
+    }
+
+    private static class ScopeState {
+        private final ReentrantLock lock = new ReentrantLock();
+        private volatile ActiveToken current;
+        private volatile boolean used;
+        private final AtomicBoolean refreshPending = new AtomicBoolean();
+    }
+
+    private static class ActiveToken {
+        private final String accessToken;
+        private final Date refreshUtc;
+        private final Date expiresUtc;
+
+        ActiveToken(String accessToken, Date refreshUtc, Date expiresUtc) {
+            this.accessToken = accessToken;
+            this.refreshUtc = refreshUtc;
+            this.expiresUtc = expiresUtc;
+        }
+    }
+}
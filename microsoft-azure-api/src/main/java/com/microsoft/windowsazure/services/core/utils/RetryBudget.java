@@ -0,0 +1,73 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.services.core.utils;
+
+/**
+ * A token bucket that bounds the rate at which retries may be issued by all requests sharing it. Each retry consumes
+ * one token; tokens are refilled continuously up to the bucket capacity. When the bucket is empty, retries are refused
+ * so that a throttled service is not hit by a synchronized wave of retry traffic.
+ */
+public class RetryBudget {
+    public static final int DEFAULT_CAPACITY = 100;
+    public static final double DEFAULT_REFILL_PER_SECOND = 10;
+
+    private final double capacity;
+    private final double refillPerNano;
+    private double tokens;
+    private long lastRefill;
+
+    public RetryBudget() {
+        this(DEFAULT_CAPACITY, DEFAULT_REFILL_PER_SECOND);
+    }
+
+    public RetryBudget(int capacity, double refillPerSecond) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity");
+        }
+        if (refillPerSecond < 0) {
+            throw new IllegalArgumentException("refillPerSecond");
+        }
+
+        this.capacity = capacity;
+        this.refillPerNano = refillPerSecond / 1000000000d;
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Attempts to withdraw a single retry token.
+     * 
+     * @return <code>true</code> if a token was available and a retry may be issued; otherwise <code>false</code>.
+     */
+    public synchronized boolean tryAcquire() {
+        refill();
+        if (tokens < 1) {
+            return false;
+        }
+        tokens -= 1;
+        return true;
+    }
+
+    public synchronized int getAvailableTokens() {
+        refill();
+        return (int) tokens;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * refillPerNano);
+        lastRefill = now;
+    }
+}
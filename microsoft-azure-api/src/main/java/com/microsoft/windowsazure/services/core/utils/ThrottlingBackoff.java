@@ -0,0 +1,80 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.services.core.utils;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Backoff computations shared by the throttling-aware retry policies.
+ */
+public final class ThrottlingBackoff {
+    public static final String RETRY_AFTER = "Retry-After";
+
+    private static final String RFC1123_PATTERN = "EEE, dd MMM yyyy HH:mm:ss z";
+
+    private ThrottlingBackoff() {
+    }
+
+    /**
+     * Computes the next "decorrelated jitter" backoff: a random interval between the minimum and three times the
+     * previous backoff, capped at the maximum. Unlike a backoff derived from the retry count alone, concurrent clients
+     * that failed at the same moment spread their retries out instead of retrying in lockstep.
+     */
+    public static int nextDecorrelatedJitter(Random random, int minBackoff, int maxBackoff, int previousBackoff) {
+        long upper = Math.max((long) minBackoff, (long) previousBackoff * 3);
+        long range = Math.max(1, upper - minBackoff);
+        long next = minBackoff + (long) (random.nextDouble() * range);
+        return (int) Math.min(maxBackoff, next);
+    }
+
+    /**
+     * Parses a <code>Retry-After</code> header value, given either as delta-seconds or as an HTTP date.
+     * 
+     * @return the requested delay in milliseconds, or -1 if the value is absent or not understood.
+     */
+    public static long parseRetryAfter(String value, Date now) {
+        if (value == null) {
+            return -1;
+        }
+
+        String trimmed = value.trim();
+        if (trimmed.length() == 0) {
+            return -1;
+        }
+
+        try {
+            long seconds = Long.parseLong(trimmed);
+            return seconds < 0 ? -1 : seconds * 1000;
+        }
+        catch (NumberFormatException e) {
+            // Fall through to the HTTP date form
+        }
+
+        try {
+            SimpleDateFormat format = new SimpleDateFormat(RFC1123_PATTERN, Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            Date retryAt = format.parse(trimmed);
+            return Math.max(0, retryAt.getTime() - now.getTime());
+        }
+        catch (ParseException e) {
+            return -1;
+        }
+    }
+}
@@ -17,13 +17,13 @@ package com.microsoft.windowsazure.services.media.implementation;
 
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.Date;
 
 import javax.inject.Named;
-import javax.management.timer.Timer;
 
 import com.microsoft.windowsazure.services.core.ServiceException;
 import com.microsoft.windowsazure.services.core.utils.DateFactory;
+import com.microsoft.windowsazure.services.core.utils.RefreshingTokenCache;
+import com.microsoft.windowsazure.services.core.utils.RefreshingTokenCache.AcquiredToken;
 import com.microsoft.windowsazure.services.media.MediaConfiguration;
 
 /**
@@ -31,12 +31,11 @@ import com.microsoft.windowsazure.services.media.MediaConfiguration;
  * 
  */
 public class OAuthTokenManager {
-    private final DateFactory dateFactory;
     private final URI acsBaseUri;
     private final String clientId;
     private final String clientSecret;
     private final OAuthContract contract;
-    private ActiveToken activeToken;
+    private final RefreshingTokenCache activeTokens;
     private final String scope;
 
     /**
@@ -66,12 +65,18 @@ public class OAuthTokenManager {
             @Named(MediaConfiguration.OAUTH_CLIENT_SECRET) String clientSecret,
             @Named(MediaConfiguration.OAUTH_SCOPE) String scope) throws URISyntaxException {
         this.contract = contract;
-        this.dateFactory = dateFactory;
         this.acsBaseUri = new URI(oAuthUri);
         this.clientId = clientId;
         this.clientSecret = clientSecret;
         this.scope = scope;
-        this.activeToken = null;
+        this.activeTokens = new RefreshingTokenCache(new RefreshingTokenCache.TokenSource() {
+            @Override
+            public AcquiredToken acquire(String scope) throws ServiceException {
+                OAuthTokenResponse oAuth2TokenResponse = OAuthTokenManager.this.contract.getAccessToken(acsBaseUri,
+                        OAuthTokenManager.this.clientId, OAuthTokenManager.this.clientSecret, scope);
+                return new AcquiredToken(oAuth2TokenResponse.getAccessToken(), oAuth2TokenResponse.getExpiresIn());
+            }
+        }, dateFactory);
     }
 
     /**
@@ -86,17 +91,7 @@ public class OAuthTokenManager {
      * @throws URISyntaxException
      */
     public String getAccessToken() throws ServiceException, URISyntaxException {
-        Date now = dateFactory.getDate();
-        if (this.activeToken == null || now.after(this.activeToken.getExpiresUtc())) {
-            OAuthTokenResponse oAuth2TokenResponse = contract.getAccessToken(acsBaseUri, clientId, clientSecret, scope);
-            Date expiresUtc = new Date(now.getTime() + oAuth2TokenResponse.getExpiresIn() * Timer.ONE_SECOND / 2);
-
-            ActiveToken newToken = new ActiveToken();
-            newToken.setAccessToken(oAuth2TokenResponse.getAccessToken());
-            newToken.setExpiresUtc(expiresUtc);
-
-            this.activeToken = newToken;
-        }
-        return this.activeToken.getAccessToken();
+        // the token is refreshed in the background before it goes stale, so callers rarely wait on ACS
+        return activeTokens.getAccessToken(scope);
     }
 }
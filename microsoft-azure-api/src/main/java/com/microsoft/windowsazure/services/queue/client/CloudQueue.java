@@ -231,6 +231,8 @@ public final class CloudQueue {
             }
         };
 
+        impl.setPartitionKey(this.getUri().getPath());
+
         ExecutionEngine.executeWithRetry(this.queueServiceClient, this, impl, options.getRetryPolicyFactory(),
                 opContext);
     }
@@ -296,6 +298,8 @@ public final class CloudQueue {
             }
         };
 
+        impl.setPartitionKey(this.getUri().getPath());
+
         ExecutionEngine.executeWithRetry(this.queueServiceClient, this, impl, options.getRetryPolicyFactory(),
                 opContext);
     }
@@ -362,6 +366,8 @@ public final class CloudQueue {
             }
         };
 
+        impl.setPartitionKey(this.getUri().getPath());
+
         ExecutionEngine.executeWithRetry(this.queueServiceClient, this, impl, options.getRetryPolicyFactory(),
                 opContext);
     }
@@ -456,6 +462,8 @@ public final class CloudQueue {
             }
         };
 
+        impl.setPartitionKey(this.getUri().getPath());
+
         return ExecutionEngine.executeWithRetry(this.queueServiceClient, this, impl, options.getRetryPolicyFactory(),
                 opContext);
     }
@@ -519,6 +527,8 @@ public final class CloudQueue {
             }
         };
 
+        impl.setPartitionKey(this.getUri().getPath());
+
         ExecutionEngine.executeWithRetry(this.queueServiceClient, this, impl, options.getRetryPolicyFactory(),
                 opContext);
 
@@ -595,6 +605,8 @@ public final class CloudQueue {
             }
         };
 
+        impl.setPartitionKey(this.getUri().getPath());
+
         return ExecutionEngine.executeWithRetry(this.queueServiceClient, this, impl, options.getRetryPolicyFactory(),
                 opContext);
 
@@ -677,6 +689,8 @@ public final class CloudQueue {
             }
         };
 
+        impl.setPartitionKey(this.getUri().getPath());
+
         ExecutionEngine.executeWithRetry(this.queueServiceClient, this, impl, options.getRetryPolicyFactory(),
                 opContext);
     }
@@ -746,6 +760,8 @@ public final class CloudQueue {
             }
         };
 
+        impl.setPartitionKey(this.getUri().getPath());
+
         ExecutionEngine.executeWithRetry(this.queueServiceClient, this, impl, options.getRetryPolicyFactory(),
                 opContext);
     }
@@ -822,6 +838,8 @@ public final class CloudQueue {
             }
         };
 
+        impl.setPartitionKey(this.getUri().getPath());
+
         return ExecutionEngine.executeWithRetry(this.queueServiceClient, this, impl, options.getRetryPolicyFactory(),
                 opContext);
     }
@@ -1033,6 +1051,8 @@ public final class CloudQueue {
             }
         };
 
+        impl.setPartitionKey(this.getUri().getPath());
+
         return ExecutionEngine.executeWithRetry(this.queueServiceClient, this, impl, options.getRetryPolicyFactory(),
                 opContext);
     }
@@ -1167,6 +1187,8 @@ public final class CloudQueue {
             }
         };
 
+        impl.setPartitionKey(this.getUri().getPath());
+
         return ExecutionEngine.executeWithRetry(this.queueServiceClient, this, impl, options.getRetryPolicyFactory(),
                 opContext);
     }
@@ -1308,6 +1330,8 @@ public final class CloudQueue {
             }
         };
 
+        impl.setPartitionKey(this.getUri().getPath());
+
         ExecutionEngine.executeWithRetry(this.queueServiceClient, this, impl, options.getRetryPolicyFactory(),
                 opContext);
     }
@@ -1376,6 +1400,8 @@ public final class CloudQueue {
             }
         };
 
+        impl.setPartitionKey(this.getUri().getPath());
+
         ExecutionEngine.executeWithRetry(this.queueServiceClient, this, impl, options.getRetryPolicyFactory(),
                 opContext);
 
@@ -1455,6 +1481,8 @@ public final class CloudQueue {
             }
         };
 
+        impl.setPartitionKey(this.getUri().getPath());
+
         ExecutionEngine.executeWithRetry(this.queueServiceClient, this, impl, options.getRetryPolicyFactory(),
                 opContext);
     }
@@ -1532,6 +1560,8 @@ public final class CloudQueue {
             }
         };
 
+        impl.setPartitionKey(this.getUri().getPath());
+
         return ExecutionEngine.executeWithRetry(this.queueServiceClient, this, impl, options.getRetryPolicyFactory(),
                 opContext);
     }
@@ -21,8 +21,10 @@ import com.microsoft.windowsazure.services.core.UserAgentFilter;
 import com.microsoft.windowsazure.services.serviceBus.implementation.BrokerPropertiesMapper;
 import com.microsoft.windowsazure.services.serviceBus.implementation.EntryModelProvider;
 import com.microsoft.windowsazure.services.serviceBus.implementation.MarshallerProvider;
+import com.microsoft.windowsazure.services.serviceBus.implementation.MessageBodyStreamWriter;
 import com.microsoft.windowsazure.services.serviceBus.implementation.ServiceBusExceptionProcessor;
 import com.microsoft.windowsazure.services.serviceBus.implementation.ServiceBusRestProxy;
+import com.microsoft.windowsazure.services.serviceBus.implementation.UnmarshallerProvider;
 import com.sun.jersey.api.client.config.ClientConfig;
 import com.sun.jersey.api.json.JSONConfiguration;
 
@@ -48,9 +50,15 @@ public class Exports implements Builder.Exports {
                 // need to avoid certain element prefixes, which the service does not ignore
                 instance.getSingletons().add(new MarshallerProvider());
 
+                // reuse cached contexts and per-thread unmarshallers when reading atom responses
+                instance.getSingletons().add(new UnmarshallerProvider());
+
                 // add body reader/writer for EntryModel<?> descendant classes
                 instance.getClasses().add(EntryModelProvider.class);
 
+                // send message bodies of known length without buffering them
+                instance.getClasses().add(MessageBodyStreamWriter.class);
+
                 return instance;
             }
         });
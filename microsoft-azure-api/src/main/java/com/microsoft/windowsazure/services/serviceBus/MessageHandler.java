@@ -0,0 +1,34 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.services.serviceBus;
+
+import com.microsoft.windowsazure.services.serviceBus.models.BrokeredMessage;
+
+/**
+ * Processes messages delivered by a {@link MessagePump}.
+ */
+public interface MessageHandler {
+
+    /**
+     * Processes a peek-locked message. The pump deletes the message when this method returns normally and unlocks it,
+     * making it available for redelivery, when this method throws.
+     * 
+     * @param message
+     *            A {@link BrokeredMessage} object that represents the locked message.
+     * @throws Exception
+     *             If the message could not be processed.
+     */
+    void onMessage(BrokeredMessage message) throws Exception;
+}
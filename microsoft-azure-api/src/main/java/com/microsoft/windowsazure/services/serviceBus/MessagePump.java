@@ -0,0 +1,602 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.services.serviceBus;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.microsoft.windowsazure.services.core.ServiceException;
+import com.microsoft.windowsazure.services.serviceBus.models.BrokeredMessage;
+import com.microsoft.windowsazure.services.serviceBus.models.ReceiveMessageOptions;
+
+/**
+ * Receives messages from a queue or subscription and dispatches them to a {@link MessageHandler}.
+ * <p>
+ * A single <code>receiveQueueMessage</code> call costs one long-poll round trip per message. The pump instead keeps
+ * several peek-lock long-polls outstanding and places the messages they return in a bounded prefetch buffer, from
+ * which a pool of handler threads takes them. The prefetch count bounds the number of messages that are locked but
+ * not yet being handled, counting outstanding receives, so the pump never locks more messages than it can hold.
+ * <p>
+ * From the moment a message is received until its handler returns, the message lock is renewed periodically so that
+ * neither buffered messages nor slow handlers lose it. A message is deleted when its handler returns and unlocked when
+ * its handler throws. Messages still buffered when the pump is
+ * stopped are unlocked so that other consumers can receive them immediately.
+ * <p>
+ * When session ordering is enabled, messages that share a <code>SessionId</code> are handled one at a time in the
+ * order they were received, while messages of different sessions are handled concurrently. Each session with
+ * buffered messages occupies at most one handler thread, and a session goes to the back of the line after each of
+ * its messages, so a busy session cannot hold the handlers while other sessions wait. A session may only buffer a
+ * limited number of messages; once its lane is full, receiving pauses until the session's handler catches up, so a
+ * busy session cannot take the whole prefetch buffer either.
+ */
+public class MessagePump {
+
+    /**
+     * The default number of concurrent long-polls.
+     */
+    public static final int DEFAULT_RECEIVER_COUNT = 4;
+
+    /**
+     * The default number of messages that may be locked ahead of the handlers.
+     */
+    public static final int DEFAULT_PREFETCH_COUNT = 16;
+
+    /**
+     * The default number of handler threads.
+     */
+    public static final int DEFAULT_HANDLER_COUNT = 4;
+
+    /**
+     * The default server-side timeout, in seconds, of each long-poll.
+     */
+    public static final int DEFAULT_RECEIVE_TIMEOUT_SECONDS = 30;
+
+    /**
+     * The default interval, in milliseconds, at which the lock of a message being handled is renewed. This is below
+     * the 30 second default lock duration of a queue or subscription.
+     */
+    public static final long DEFAULT_LOCK_RENEWAL_INTERVAL_MILLIS = 20000;
+
+    /**
+     * The default number of messages a single session may buffer when session ordering is enabled.
+     */
+    public static final int DEFAULT_MAX_BUFFERED_PER_SESSION = 4;
+
+    private static final long POLL_INTERVAL_MILLIS = 100;
+    private static final long RECEIVE_ERROR_BACKOFF_MILLIS = 1000;
+
+    private final ServiceBusContract service;
+    private final MessageSource source;
+    private final MessageHandler handler;
+
+    private int receiverCount = DEFAULT_RECEIVER_COUNT;
+    private boolean sessionOrdered;
+    private int prefetchCount = DEFAULT_PREFETCH_COUNT;
+    private int handlerCount = DEFAULT_HANDLER_COUNT;
+    private int receiveTimeoutSeconds = DEFAULT_RECEIVE_TIMEOUT_SECONDS;
+    private long lockRenewalIntervalMillis = DEFAULT_LOCK_RENEWAL_INTERVAL_MILLIS;
+    private int maxBufferedPerSession = DEFAULT_MAX_BUFFERED_PER_SESSION;
+
+    private volatile boolean running;
+    private BlockingQueue<MessageLane> readyLanes;
+    private Map<String, MessageLane> sessionLanes;
+    private final AtomicInteger bufferedCount = new AtomicInteger();
+    private Semaphore prefetchPermits;
+    private ExecutorService receivers;
+    private ExecutorService handlers;
+    private ScheduledExecutorService lockRenewer;
+
+    private final AtomicLong receiveCount = new AtomicLong();
+    private final AtomicLong emptyReceiveCount = new AtomicLong();
+    private final AtomicLong receiveErrorCount = new AtomicLong();
+    private final AtomicLong totalReceiveMillis = new AtomicLong();
+    private final AtomicLong totalPrefetchWaitMillis = new AtomicLong();
+    private final AtomicLong dispatchedCount = new AtomicLong();
+    private final AtomicLong completedCount = new AtomicLong();
+    private final AtomicLong abandonedCount = new AtomicLong();
+    private final AtomicLong completionErrorCount = new AtomicLong();
+    private final AtomicLong totalHandlerMillis = new AtomicLong();
+    private final AtomicLong lockRenewalCount = new AtomicLong();
+    private final AtomicLong lockRenewalErrorCount = new AtomicLong();
+
+    MessagePump(ServiceBusContract service, MessageSource source, MessageHandler handler) {
+        if (service == null || source == null || handler == null) {
+            throw new IllegalArgumentException();
+        }
+        this.service = service;
+        this.source = source;
+        this.handler = handler;
+    }
+
+    /**
+     * Creates a pump that receives from a queue.
+     * 
+     * @param service
+     *            A {@link ServiceBusContract} object used to receive and complete messages.
+     * @param queuePath
+     *            A <code>String</code> object that represents the name of the queue.
+     * @param handler
+     *            A {@link MessageHandler} object that processes each message.
+     * @return A <code>MessagePump</code> object that has not been started.
+     */
+    public static MessagePump forQueue(ServiceBusContract service, final String queuePath, MessageHandler handler) {
+        return new MessagePump(service, new MessageSource() {
+            @Override
+            BrokeredMessage receive(ServiceBusContract service, ReceiveMessageOptions options)
+                    throws ServiceException {
+                return service.receiveQueueMessage(queuePath, options).getValue();
+            }
+
+            @Override
+            void renewLock(ServiceBusContract service, BrokeredMessage message) throws ServiceException {
+                service.renewQueueLock(queuePath, message.getMessageId(), message.getLockToken());
+            }
+        }, handler);
+    }
+
+    /**
+     * Creates a pump that receives from a subscription.
+     * 
+     * @param service
+     *            A {@link ServiceBusContract} object used to receive and complete messages.
+     * @param topicPath
+     *            A <code>String</code> object that represents the name of the topic.
+     * @param subscriptionName
+     *            A <code>String</code> object that represents the name of the subscription.
+     * @param handler
+     *            A {@link MessageHandler} object that processes each message.
+     * @return A <code>MessagePump</code> object that has not been started.
+     */
+    public static MessagePump forSubscription(ServiceBusContract service, final String topicPath,
+            final String subscriptionName, MessageHandler handler) {
+        return new MessagePump(service, new MessageSource() {
+            @Override
+            BrokeredMessage receive(ServiceBusContract service, ReceiveMessageOptions options)
+                    throws ServiceException {
+                return service.receiveSubscriptionMessage(topicPath, subscriptionName, options).getValue();
+            }
+
+            @Override
+            void renewLock(ServiceBusContract service, BrokeredMessage message) throws ServiceException {
+                service.renewSubscriptionLock(topicPath, subscriptionName, message.getMessageId(),
+                        message.getLockToken());
+            }
+        }, handler);
+    }
+
+    /**
+     * Sets the number of concurrent long-polls. This is ignored when session ordering is enabled.
+     */
+    public MessagePump setReceiverCount(int receiverCount) {
+        checkPositive(receiverCount);
+        checkNotRunning();
+        this.receiverCount = receiverCount;
+        return this;
+    }
+
+    /**
+     * Sets whether messages that share a session are handled serially in the order they were received. The receive
+     * operations do not lock a session to one receiver, so concurrent long-polls could return the messages of a
+     * session out of order; an ordered pump therefore keeps a single long-poll outstanding and gets its concurrency
+     * from handling different sessions in parallel. Messages without a session are not ordered.
+     */
+    public MessagePump setSessionOrdered(boolean sessionOrdered) {
+        checkNotRunning();
+        this.sessionOrdered = sessionOrdered;
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of messages that may be locked ahead of the handlers, including outstanding receives.
+     * Keep this low enough that buffered messages are handled well within the lock duration.
+     */
+    public MessagePump setPrefetchCount(int prefetchCount) {
+        checkPositive(prefetchCount);
+        checkNotRunning();
+        this.prefetchCount = prefetchCount;
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of messages a single session may buffer when session ordering is enabled. When the
+     * next received message belongs to a session that is full, receiving pauses until that session has room.
+     */
+    public MessagePump setMaxBufferedPerSession(int maxBufferedPerSession) {
+        checkPositive(maxBufferedPerSession);
+        checkNotRunning();
+        this.maxBufferedPerSession = maxBufferedPerSession;
+        return this;
+    }
+
+    /**
+     * Sets the number of handler threads.
+     */
+    public MessagePump setHandlerCount(int handlerCount) {
+        checkPositive(handlerCount);
+        checkNotRunning();
+        this.handlerCount = handlerCount;
+        return this;
+    }
+
+    /**
+     * Sets the server-side timeout, in seconds, of each long-poll.
+     */
+    public MessagePump setReceiveTimeoutSeconds(int receiveTimeoutSeconds) {
+        checkPositive(receiveTimeoutSeconds);
+        checkNotRunning();
+        this.receiveTimeoutSeconds = receiveTimeoutSeconds;
+        return this;
+    }
+
+    /**
+     * Sets the interval, in milliseconds, at which the lock of a buffered or handled message is renewed.
+     */
+    public MessagePump setLockRenewalIntervalMillis(long lockRenewalIntervalMillis) {
+        checkPositive(lockRenewalIntervalMillis);
+        checkNotRunning();
+        this.lockRenewalIntervalMillis = lockRenewalIntervalMillis;
+        return this;
+    }
+
+    /**
+     * Starts receiving and dispatching messages.
+     */
+    public synchronized void start() {
+        checkNotRunning();
+        int receiverThreads = sessionOrdered ? 1 : receiverCount;
+        readyLanes = new LinkedBlockingQueue<MessageLane>();
+        sessionLanes = new HashMap<String, MessageLane>();
+        bufferedCount.set(0);
+        prefetchPermits = new Semaphore(prefetchCount);
+        receivers = Executors.newFixedThreadPool(receiverThreads, new DaemonThreadFactory("MessagePump-receiver-"));
+        handlers = Executors.newFixedThreadPool(handlerCount, new DaemonThreadFactory("MessagePump-handler-"));
+        lockRenewer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("MessagePump-lock-renewal-"));
+        running = true;
+
+        for (int i = 0; i < receiverThreads; i++) {
+            receivers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    receiveLoop();
+                }
+            });
+        }
+        for (int i = 0; i < handlerCount; i++) {
+            handlers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    handleLoop();
+                }
+            });
+        }
+    }
+
+    /**
+     * Stops the pump. Handlers in progress are allowed to finish, buffered messages are unlocked, and this method
+     * returns once the outstanding long-polls have completed, which may take up to the receive timeout.
+     * 
+     * @throws InterruptedException
+     *             If the calling thread is interrupted while waiting.
+     */
+    public synchronized void stop() throws InterruptedException {
+        if (!running) {
+            return;
+        }
+        running = false;
+
+        handlers.shutdown();
+        while (!handlers.awaitTermination(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+            // wait for in-flight handlers
+        }
+        receivers.shutdown();
+        while (!receivers.awaitTermination(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+            // wait for outstanding long-polls
+        }
+        lockRenewer.shutdownNow();
+
+        // every lane that still holds messages is back in the ready queue once the handlers have exited
+        MessageLane lane;
+        while ((lane = readyLanes.poll()) != null) {
+            for (PrefetchedMessage prefetched : lane.pending) {
+                bufferedCount.decrementAndGet();
+                abandon(prefetched.message);
+            }
+        }
+        sessionLanes.clear();
+    }
+
+    /**
+     * Returns whether the pump is running.
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Returns a snapshot of the pump's counters.
+     */
+    public MessagePumpStats getStats() {
+        return new MessagePumpStats(receiveCount.get(), emptyReceiveCount.get(), receiveErrorCount.get(),
+                totalReceiveMillis.get(), totalPrefetchWaitMillis.get(), dispatchedCount.get(), completedCount.get(),
+                abandonedCount.get(), completionErrorCount.get(), totalHandlerMillis.get(), lockRenewalCount.get(),
+                lockRenewalErrorCount.get(), bufferedCount.get());
+    }
+
+    private void receiveLoop() {
+        ReceiveMessageOptions options = new ReceiveMessageOptions().setPeekLock().setTimeout(receiveTimeoutSeconds);
+        try {
+            while (running) {
+                // reserve room in the buffer before locking a message on the service
+                if (!prefetchPermits.tryAcquire(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    continue;
+                }
+                BrokeredMessage message = null;
+                long started = System.currentTimeMillis();
+                try {
+                    message = source.receive(service, options);
+                }
+                catch (ServiceException e) {
+                    receiveErrorCount.incrementAndGet();
+                    prefetchPermits.release();
+                    Thread.sleep(RECEIVE_ERROR_BACKOFF_MILLIS);
+                    continue;
+                }
+                catch (RuntimeException e) {
+                    // a filter or deserialization failure must not end the receiver for good
+                    receiveErrorCount.incrementAndGet();
+                    prefetchPermits.release();
+                    Thread.sleep(RECEIVE_ERROR_BACKOFF_MILLIS);
+                    continue;
+                }
+                long received = System.currentTimeMillis();
+
+                if (message == null) {
+                    emptyReceiveCount.incrementAndGet();
+                    prefetchPermits.release();
+                }
+                else if (!running) {
+                    prefetchPermits.release();
+                    abandon(message);
+                }
+                else {
+                    receiveCount.incrementAndGet();
+                    totalReceiveMillis.addAndGet(received - started);
+                    PrefetchedMessage prefetched = new PrefetchedMessage(message, received,
+                            scheduleLockRenewal(message));
+                    if (!enqueue(prefetched)) {
+                        prefetched.renewal.cancel(false);
+                        prefetchPermits.release();
+                        abandon(message);
+                    }
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Adds a message to the lane of its session, waiting while that lane is full. Returns false if the pump was
+     * stopped while waiting.
+     */
+    private boolean enqueue(PrefetchedMessage prefetched) throws InterruptedException {
+        String sessionId = sessionOrdered ? prefetched.message.getSessionId() : null;
+        synchronized (sessionLanes) {
+            MessageLane lane = (sessionId == null) ? null : sessionLanes.get(sessionId);
+            while (lane != null && lane.pending.size() >= maxBufferedPerSession) {
+                if (!running) {
+                    return false;
+                }
+                sessionLanes.wait(POLL_INTERVAL_MILLIS);
+                lane = sessionLanes.get(sessionId);
+            }
+            if (lane == null) {
+                lane = new MessageLane(sessionId);
+                if (sessionId != null) {
+                    sessionLanes.put(sessionId, lane);
+                }
+            }
+            bufferedCount.incrementAndGet();
+            lane.pending.add(prefetched);
+            if (!lane.scheduled) {
+                lane.scheduled = true;
+                readyLanes.add(lane);
+            }
+        }
+        return true;
+    }
+
+    private void handleLoop() {
+        try {
+            while (running) {
+                MessageLane lane = readyLanes.poll(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                if (lane == null) {
+                    continue;
+                }
+                PrefetchedMessage prefetched;
+                synchronized (sessionLanes) {
+                    prefetched = lane.pending.poll();
+                    // a receiver may be waiting for room in this lane
+                    sessionLanes.notifyAll();
+                }
+                bufferedCount.decrementAndGet();
+                prefetchPermits.release();
+                dispatchedCount.incrementAndGet();
+                totalPrefetchWaitMillis.addAndGet(System.currentTimeMillis() - prefetched.receivedMillis);
+                try {
+                    dispatch(prefetched);
+                }
+                finally {
+                    synchronized (sessionLanes) {
+                        if (lane.pending.isEmpty()) {
+                            lane.scheduled = false;
+                            if (lane.sessionId != null) {
+                                sessionLanes.remove(lane.sessionId);
+                            }
+                        }
+                        else {
+                            // to the back of the line, so that other sessions get a turn
+                            readyLanes.add(lane);
+                        }
+                    }
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private ScheduledFuture<?> scheduleLockRenewal(final BrokeredMessage message) {
+        return lockRenewer.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    source.renewLock(service, message);
+                    lockRenewalCount.incrementAndGet();
+                }
+                catch (ServiceException e) {
+                    lockRenewalErrorCount.incrementAndGet();
+                }
+                catch (RuntimeException e) {
+                    // an exception escaping a fixed-rate task would cancel every later renewal
+                    lockRenewalErrorCount.incrementAndGet();
+                }
+            }
+        }, lockRenewalIntervalMillis, lockRenewalIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void dispatch(PrefetchedMessage prefetched) {
+        BrokeredMessage message = prefetched.message;
+        boolean handled = false;
+        long started = System.currentTimeMillis();
+        try {
+            handler.onMessage(message);
+            handled = true;
+        }
+        catch (Throwable t) {
+            // the message is unlocked below so that it can be redelivered, and the handler thread keeps running
+        }
+        finally {
+            prefetched.renewal.cancel(false);
+            totalHandlerMillis.addAndGet(System.currentTimeMillis() - started);
+        }
+
+        if (handled) {
+            complete(message);
+        }
+        else {
+            abandon(message);
+        }
+    }
+
+    private void complete(BrokeredMessage message) {
+        try {
+            service.deleteMessage(message);
+            completedCount.incrementAndGet();
+        }
+        catch (Exception e) {
+            completionErrorCount.incrementAndGet();
+        }
+    }
+
+    private void abandon(BrokeredMessage message) {
+        try {
+            service.unlockMessage(message);
+            abandonedCount.incrementAndGet();
+        }
+        catch (Exception e) {
+            completionErrorCount.incrementAndGet();
+        }
+    }
+
+    private void checkNotRunning() {
+        if (running) {
+            throw new IllegalStateException("The message pump is already running.");
+        }
+    }
+
+    private static void checkPositive(long value) {
+        if (value <= 0) {
+            throw new IllegalArgumentException();
+        }
+    }
+
+    /**
+     * Receives from and renews locks on a particular queue or subscription.
+     */
+    abstract static class MessageSource {
+        abstract BrokeredMessage receive(ServiceBusContract service, ReceiveMessageOptions options)
+                throws ServiceException;
+
+        abstract void renewLock(ServiceBusContract service, BrokeredMessage message) throws ServiceException;
+    }
+
+    /**
+     * The buffered messages of one session, handled by at most one thread at a time. Without session ordering every
+     * message gets a lane of its own.
+     */
+    private static class MessageLane {
+        private final String sessionId;
+        private final Queue<PrefetchedMessage> pending = new ArrayDeque<PrefetchedMessage>();
+        private boolean scheduled;
+
+        MessageLane(String sessionId) {
+            this.sessionId = sessionId;
+        }
+    }
+
+    private static class PrefetchedMessage {
+        private final BrokeredMessage message;
+        private final long receivedMillis;
+        private final ScheduledFuture<?> renewal;
+
+        PrefetchedMessage(BrokeredMessage message, long receivedMillis, ScheduledFuture<?> renewal) {
+            this.message = message;
+            this.receivedMillis = receivedMillis;
+            this.renewal = renewal;
+        }
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        DaemonThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.services.serviceBus;
+
+/**
+ * A point-in-time snapshot of the counters kept by a {@link MessagePump}. Comparing the average receive time with the
+ * average handler time shows whether a pump is bound by the service round trip or by message processing.
+ */
+public final class MessagePumpStats {
+
+    private final long receiveCount;
+    private final long emptyReceiveCount;
+    private final long receiveErrorCount;
+    private final long totalReceiveMillis;
+    private final long totalPrefetchWaitMillis;
+    private final long dispatchedCount;
+    private final long completedCount;
+    private final long abandonedCount;
+    private final long completionErrorCount;
+    private final long totalHandlerMillis;
+    private final long lockRenewalCount;
+    private final long lockRenewalErrorCount;
+    private final int bufferedCount;
+
+    MessagePumpStats(long receiveCount, long emptyReceiveCount, long receiveErrorCount, long totalReceiveMillis,
+            long totalPrefetchWaitMillis, long dispatchedCount, long completedCount, long abandonedCount, long completionErrorCount,
+            long totalHandlerMillis, long lockRenewalCount, long lockRenewalErrorCount, int bufferedCount) {
+        this.receiveCount = receiveCount;
+        this.emptyReceiveCount = emptyReceiveCount;
+        this.receiveErrorCount = receiveErrorCount;
+        this.totalReceiveMillis = totalReceiveMillis;
+        this.totalPrefetchWaitMillis = totalPrefetchWaitMillis;
+        this.dispatchedCount = dispatchedCount;
+        this.completedCount = completedCount;
+        this.abandonedCount = abandonedCount;
+        this.completionErrorCount = completionErrorCount;
+        this.totalHandlerMillis = totalHandlerMillis;
+        this.lockRenewalCount = lockRenewalCount;
+        this.lockRenewalErrorCount = lockRenewalErrorCount;
+        this.bufferedCount = bufferedCount;
+    }
+
+    /**
+     * Returns the number of messages received.
+     */
+    public long getReceiveCount() {
+        return receiveCount;
+    }
+
+    /**
+     * Returns the number of long-polls that timed out without a message.
+     */
+    public long getEmptyReceiveCount() {
+        return emptyReceiveCount;
+    }
+
+    /**
+     * Returns the number of receive calls that failed.
+     */
+    public long getReceiveErrorCount() {
+        return receiveErrorCount;
+    }
+
+    /**
+     * Returns the average duration, in milliseconds, of a receive call that returned a message.
+     */
+    public double getAverageReceiveMillis() {
+        return average(totalReceiveMillis, receiveCount);
+    }
+
+    /**
+     * Returns the average time, in milliseconds, a message waited in the prefetch buffer before a handler took it.
+     */
+    public double getAveragePrefetchWaitMillis() {
+        return average(totalPrefetchWaitMillis, dispatchedCount);
+    }
+
+    /**
+     * Returns the number of messages passed to the handler.
+     */
+    public long getDispatchedCount() {
+        return dispatchedCount;
+    }
+
+    /**
+     * Returns the number of messages that were handled and deleted.
+     */
+    public long getCompletedCount() {
+        return completedCount;
+    }
+
+    /**
+     * Returns the number of messages that were unlocked because the handler failed or the pump stopped.
+     */
+    public long getAbandonedCount() {
+        return abandonedCount;
+    }
+
+    /**
+     * Returns the number of delete or unlock calls that failed.
+     */
+    public long getCompletionErrorCount() {
+        return completionErrorCount;
+    }
+
+    /**
+     * Returns the average time, in milliseconds, spent in the message handler.
+     */
+    public double getAverageHandlerMillis() {
+        return average(totalHandlerMillis, dispatchedCount);
+    }
+
+    /**
+     * Returns the number of successful lock renewals.
+     */
+    public long getLockRenewalCount() {
+        return lockRenewalCount;
+    }
+
+    /**
+     * Returns the number of lock renewals that failed.
+     */
+    public long getLockRenewalErrorCount() {
+        return lockRenewalErrorCount;
+    }
+
+    /**
+     * Returns the number of messages waiting in the prefetch buffer.
+     */
+    public int getBufferedCount() {
+        return bufferedCount;
+    }
+
+    private static double average(long total, long count) {
+        return count == 0 ? 0 : (double) total / count;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("received=%d (empty=%d, errors=%d, avg %.1f ms), buffered=%d (avg wait %.1f ms), "
+                + "dispatched=%d, completed=%d, abandoned=%d (errors=%d), handler avg %.1f ms, renewals=%d (errors=%d)",
+                receiveCount, emptyReceiveCount, receiveErrorCount, getAverageReceiveMillis(), bufferedCount,
+                getAveragePrefetchWaitMillis(), dispatchedCount, completedCount, abandonedCount, completionErrorCount,
+                getAverageHandlerMillis(), lockRenewalCount, lockRenewalErrorCount);
+    }
+}
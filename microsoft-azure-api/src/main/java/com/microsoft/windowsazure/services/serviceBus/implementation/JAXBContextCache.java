@@ -0,0 +1,61 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.services.serviceBus.implementation;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.ws.rs.ext.ContextResolver;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+
+/**
+ * Process-wide cache of JAXB contexts for the Service Bus Atom entry models. Building a context walks the whole
+ * annotated type graph, so it is done at most once per type rather than once per request.
+ */
+final class JAXBContextCache {
+
+    private static final ConcurrentMap<Class<?>, JAXBContext> contexts = new ConcurrentHashMap<Class<?>, JAXBContext>();
+
+    private JAXBContextCache() {
+    }
+
+    /**
+     * Returns the context supplied by the resolver if there is one, otherwise the cached context for the type.
+     */
+    static JAXBContext get(ContextResolver<JAXBContext> resolver, Class<?> type) throws JAXBException {
+        JAXBContext context = null;
+        if (resolver != null) {
+            context = resolver.getContext(type);
+        }
+        if (context == null) {
+            context = get(type);
+        }
+        return context;
+    }
+
+    static JAXBContext get(Class<?> type) throws JAXBException {
+        JAXBContext context = contexts.get(type);
+        if (context == null) {
+            // two threads may race to build the same context; both results are equivalent and only one is kept
+            JAXBContext created = JAXBContext.newInstance(type);
+            context = contexts.putIfAbsent(type, created);
+            if (context == null) {
+                context = created;
+            }
+        }
+        return context;
+    }
+}
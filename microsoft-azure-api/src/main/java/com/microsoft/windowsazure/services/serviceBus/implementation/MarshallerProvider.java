@@ -14,6 +14,9 @@
  */
 package com.microsoft.windowsazure.services.serviceBus.implementation;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.ext.ContextResolver;
@@ -23,18 +26,44 @@ import javax.xml.bind.JAXBException;
 import javax.xml.bind.Marshaller;
 import javax.xml.bind.PropertyException;
 
+/**
+ * Supplies marshallers configured with the namespace prefixes the service expects. Marshallers are not thread safe
+ * and Jersey never hands them back, so each thread keeps its own configured marshaller per type and reuses it for
+ * every request instead of building a new one.
+ */
 @Provider
 @Produces("application/atom+xml")
 public class MarshallerProvider implements ContextResolver<Marshaller> {
 
+    private static final com.sun.xml.bind.marshaller.NamespacePrefixMapper mapper = new NamespacePrefixMapperImpl();
+
     @Context
     private ContextResolver<JAXBContext> jaxbContextResolver;
 
+    private final ThreadLocal<Map<Class<?>, Marshaller>> marshallers = new ThreadLocal<Map<Class<?>, Marshaller>>() {
+        @Override
+        protected Map<Class<?>, Marshaller> initialValue() {
+            return new HashMap<Class<?>, Marshaller>();
+        }
+    };
+
     @Override
     public Marshaller getContext(Class<?> type) {
+        Map<Class<?>, Marshaller> pool = marshallers.get();
+        Marshaller marshaller = pool.get(type);
+        if (marshaller == null) {
+            marshaller = createMarshaller(type);
+            if (marshaller != null) {
+                pool.put(type, marshaller);
+            }
+        }
+        return marshaller;
+    }
+
+    private Marshaller createMarshaller(Class<?> type) {
         Marshaller marshaller;
         try {
-            marshaller = getJAXBContext(type).createMarshaller();
+            marshaller = JAXBContextCache.get(jaxbContextResolver, type).createMarshaller();
         }
         catch (JAXBException e) {
             return null;
@@ -42,7 +71,6 @@ public class MarshallerProvider implements ContextResolver<Marshaller> {
         catch (Exception e) {
             return null;
         }
-        com.sun.xml.bind.marshaller.NamespacePrefixMapper mapper = new NamespacePrefixMapperImpl();
         try {
             marshaller.setProperty("com.sun.xml.bind.namespacePrefixMapper", mapper);
         }
@@ -52,15 +80,4 @@ public class MarshallerProvider implements ContextResolver<Marshaller> {
         return marshaller;
     }
 
-    private JAXBContext getJAXBContext(Class<?> type) throws Exception {
-        JAXBContext context = null;
-        if (jaxbContextResolver != null) {
-            context = jaxbContextResolver.getContext(type);
-        }
-        if (context == null) {
-            context = JAXBContext.newInstance(type);
-        }
-        return context;
-    }
-
 }
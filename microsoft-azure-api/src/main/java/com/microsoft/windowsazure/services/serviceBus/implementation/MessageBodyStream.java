@@ -0,0 +1,38 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.services.serviceBus.implementation;
+
+import java.io.FilterInputStream;
+import java.io.InputStream;
+
+/**
+ * The body of a message being sent, together with its length when known. Mark and reset are passed through to the
+ * body, so a retry policy filter can rewind it exactly as it would the body stream itself.
+ */
+public class MessageBodyStream extends FilterInputStream {
+    private final long length;
+
+    public MessageBodyStream(InputStream body, long length) {
+        super(body);
+        this.length = length;
+    }
+
+    /**
+     * Returns the length of the body, or -1 if it is not known.
+     */
+    public long getLength() {
+        return length;
+    }
+}
@@ -0,0 +1,60 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.services.serviceBus.implementation;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyWriter;
+
+/**
+ * Writes a {@link MessageBodyStream} as a request entity. Unlike the default <code>InputStream</code> provider, the
+ * writer reports the body length to Jersey when it is known, so the connection streams the body with a fixed content
+ * length instead of buffering a copy of it to find the length. The body is not closed after writing, so that a retry
+ * policy filter can reset it and send it again.
+ * <p>
+ * Without this writer, the body is still sent, through the default provider, but buffered.
+ */
+public class MessageBodyStreamWriter implements MessageBodyWriter<MessageBodyStream> {
+
+    private static final int COPY_BUFFER_SIZE = 8 * 1024;
+
+    @Override
+    public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return MessageBodyStream.class.isAssignableFrom(type);
+    }
+
+    @Override
+    public long getSize(MessageBodyStream t, Class<?> type, Type genericType, Annotation[] annotations,
+            MediaType mediaType) {
+        return t.getLength();
+    }
+
+    @Override
+    public void writeTo(MessageBodyStream t, Class<?> type, Type genericType, Annotation[] annotations,
+            MediaType mediaType, MultivaluedMap<String, Object> httpHeaders, OutputStream entityStream)
+            throws IOException, WebApplicationException {
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        int read;
+        while ((read = t.read(buffer)) != -1) {
+            entityStream.write(buffer, 0, read);
+        }
+    }
+}
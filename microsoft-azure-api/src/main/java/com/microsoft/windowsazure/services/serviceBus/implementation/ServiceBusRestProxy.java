@@ -73,6 +73,9 @@ public class ServiceBusRestProxy implements ServiceBusContract {
 
     ServiceFilter[] filters;
 
+    // the base resource with the proxy's filters attached; built on first use and shared by all requests
+    private volatile WebResource resource;
+
     @Inject
     public ServiceBusRestProxy(Client channel, WrapFilter authFilter, UserAgentFilter userAgentFilter,
             ServiceBusConnectionSettings connectionSettings, BrokerPropertiesMapper mapper) {
@@ -107,14 +110,21 @@ public class ServiceBusRestProxy implements ServiceBusContract {
 
     public void setChannel(Client channel) {
         this.channel = channel;
+        this.resource = null;
     }
 
-    private WebResource getResource() {
-        WebResource resource = getChannel().resource(uri).queryParam("api-version", "2012-08");
-        for (ServiceFilter filter : filters) {
-            resource.addFilter(new ClientFilterAdapter(filter));
+    WebResource getResource() {
+        // resources derived with path() or queryParam() share this resource's filter chain, so the chain is built
+        // once rather than for every request; filters must never be added to the shared resource after this point
+        WebResource current = resource;
+        if (current == null) {
+            current = getChannel().resource(uri).queryParam("api-version", "2012-08");
+            for (ServiceFilter filter : filters) {
+                current.addFilter(new ClientFilterAdapter(filter));
+            }
+            resource = current;
         }
-        return resource;
+        return current;
     }
 
     @Override
@@ -131,7 +141,10 @@ public class ServiceBusRestProxy implements ServiceBusContract {
             request.header(entry.getKey(), customPropertiesMapper.toString(entry.getValue()));
         }
 
-        request.post(message.getBody());
+        // the body stays a resettable InputStream for retries; its length lets a registered
+        // MessageBodyStreamWriter stream it instead of buffering it
+        InputStream body = message.getBody();
+        request.post(body == null ? null : new MessageBodyStream(body, message.getBodyLength()));
     }
 
     @Override
@@ -215,7 +228,7 @@ public class ServiceBusRestProxy implements ServiceBusContract {
 
         InputStream body = clientResult.getEntityInputStream();
         if (body != null) {
-            message.setBody(body);
+            message.setBody(body, clientResult.getLength());
         }
 
         for (String key : clientResult.getHeaders().keySet()) {
@@ -0,0 +1,65 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.services.serviceBus.implementation;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.ext.ContextResolver;
+import javax.ws.rs.ext.Provider;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Unmarshaller;
+
+/**
+ * Supplies unmarshallers for Atom responses from the shared context cache, keeping one unmarshaller per type on each
+ * thread so that reading an entry or feed does not build a new one every time.
+ */
+@Provider
+@Produces("application/atom+xml")
+public class UnmarshallerProvider implements ContextResolver<Unmarshaller> {
+
+    @Context
+    private ContextResolver<JAXBContext> jaxbContextResolver;
+
+    private final ThreadLocal<Map<Class<?>, Unmarshaller>> unmarshallers = new ThreadLocal<Map<Class<?>, Unmarshaller>>() {
+        @Override
+        protected Map<Class<?>, Unmarshaller> initialValue() {
+            return new HashMap<Class<?>, Unmarshaller>();
+        }
+    };
+
+    @Override
+    public Unmarshaller getContext(Class<?> type) {
+        Map<Class<?>, Unmarshaller> pool = unmarshallers.get();
+        Unmarshaller unmarshaller = pool.get(type);
+        if (unmarshaller == null) {
+            try {
+                unmarshaller = JAXBContextCache.get(jaxbContextResolver, type).createUnmarshaller();
+            }
+            catch (JAXBException e) {
+                return null;
+            }
+            catch (Exception e) {
+                return null;
+            }
+            pool.put(type, unmarshaller);
+        }
+        return unmarshaller;
+    }
+
+}
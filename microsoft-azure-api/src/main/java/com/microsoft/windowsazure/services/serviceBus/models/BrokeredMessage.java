@@ -15,8 +15,10 @@
 package com.microsoft.windowsazure.services.serviceBus.models;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
@@ -29,6 +31,7 @@ import com.microsoft.windowsazure.services.serviceBus.implementation.BrokerPrope
 public class BrokeredMessage {
     BrokerProperties brokerProperties;
     InputStream body;
+    long bodyLength = -1;
     String contentType;
     Date date;
     Map<String, Object> customProperties;
@@ -51,6 +54,20 @@ public class BrokeredMessage {
         this.body = body;
     }
 
+    /**
+     * Creates an instance of the <code>Message</code> class using the specified <code>InputStream</code> of known
+     * length. A body of known length is streamed to the service as it is read rather than buffered first.
+     * 
+     * @param body
+     *            An <code>InputStream</code> object that represents the body of the message.
+     * @param length
+     *            The number of bytes that will be read from the body.
+     */
+    public BrokeredMessage(InputStream body, long length) {
+        this(new BrokerProperties());
+        setBody(body, length);
+    }
+
     /**
      * Creates an instance of the <code>Message</code> class using the specified byte array.
      * 
@@ -59,7 +76,9 @@ public class BrokeredMessage {
      */
     public BrokeredMessage(byte[] body) {
         this(new BrokerProperties());
-        this.body = (body == null) ? null : new ByteArrayInputStream(body);
+        if (body != null) {
+            setBody(new ByteArrayInputStream(body), body.length);
+        }
     }
 
     /**
@@ -72,7 +91,10 @@ public class BrokeredMessage {
     public BrokeredMessage(String body) {
         this(new BrokerProperties());
         try {
-            this.body = (body == null) ? null : new ByteArrayInputStream(body.getBytes("UTF-8"));
+            if (body != null) {
+                byte[] bytes = body.getBytes("UTF-8");
+                setBody(new ByteArrayInputStream(bytes), bytes.length);
+            }
         }
         catch (UnsupportedEncodingException e) {
             throw new RuntimeException(e);
@@ -117,9 +139,91 @@ public class BrokeredMessage {
      */
     public BrokeredMessage setBody(InputStream body) {
         this.body = body;
+        this.bodyLength = -1;
         return this;
     }
 
+    /**
+     * Specifies the body of the message and its length.
+     * 
+     * @param body
+     *            An <code>InputStream</code> object that represents the body of the message.
+     * @param length
+     *            The number of bytes that will be read from the body, or -1 if the length is not known.
+     * 
+     * @return A <code>Message</code> object that represents the updated message.
+     */
+    public BrokeredMessage setBody(InputStream body, long length) {
+        if (length < -1) {
+            throw new IllegalArgumentException("length");
+        }
+        this.body = body;
+        this.bodyLength = (body == null) ? -1 : length;
+        return this;
+    }
+
+    /**
+     * Returns the length of the body of the message.
+     * 
+     * @return The number of bytes in the body, or -1 if the length is not known.
+     */
+    public long getBodyLength() {
+        return bodyLength;
+    }
+
+    /**
+     * Reads the remaining body of the message into a buffer taken from the specified pool and closes the body stream.
+     * The returned buffer is positioned at zero with its limit at the end of the body; return it to the pool with
+     * {@link ByteBufferPool#release(ByteBuffer)} once it is no longer needed.
+     * 
+     * @param pool
+     *            A {@link ByteBufferPool} object from which the buffer is taken.
+     * 
+     * @return A <code>ByteBuffer</code> object that contains the body, or <code>null</code> if the message has no
+     *         body.
+     * @throws IOException
+     *             If the body could not be read.
+     */
+    public ByteBuffer readBody(ByteBufferPool pool) throws IOException {
+        if (body == null) {
+            return null;
+        }
+
+        ByteBuffer buffer = pool.acquire(bodyLength > 0 ? (int) bodyLength : ByteBufferPool.MIN_CAPACITY);
+        try {
+            while (true) {
+                if (!buffer.hasRemaining()) {
+                    int next = body.read();
+                    if (next < 0) {
+                        break;
+                    }
+                    // the length was not declared or was understated; move to the next size up
+                    ByteBuffer larger = pool.acquire(buffer.capacity() * 2);
+                    buffer.flip();
+                    larger.put(buffer);
+                    larger.put((byte) next);
+                    pool.release(buffer);
+                    buffer = larger;
+                }
+                int read = body.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                if (read < 0) {
+                    break;
+                }
+                buffer.position(buffer.position() + read);
+            }
+        }
+        catch (IOException e) {
+            pool.release(buffer);
+            throw e;
+        }
+        finally {
+            body.close();
+        }
+
+        buffer.flip();
+        return buffer;
+    }
+
     /**
      * Returns the content type of the message.
      * 
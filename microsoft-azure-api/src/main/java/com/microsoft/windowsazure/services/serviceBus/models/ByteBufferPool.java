@@ -0,0 +1,136 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.services.serviceBus.models;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of heap byte buffers for reading message bodies, so that consumers of large messages reuse buffers instead
+ * of allocating a new array for every message. Buffers are pooled in power-of-two sizes; requests larger than the
+ * largest pooled size are allocated and dropped as usual.
+ */
+public class ByteBufferPool {
+
+    /**
+     * The smallest buffer handed out by a pool.
+     */
+    public static final int MIN_CAPACITY = 4 * 1024;
+
+    /**
+     * The default largest pooled buffer, which holds the largest message the service accepts.
+     */
+    public static final int DEFAULT_MAX_POOLED_CAPACITY = 256 * 1024;
+
+    /**
+     * The default number of idle buffers kept for each size.
+     */
+    public static final int DEFAULT_BUFFERS_PER_SIZE = 16;
+
+    private final int maxPooledCapacity;
+    private final int buffersPerSize;
+    private final Queue<ByteBuffer>[] pools;
+    private final AtomicInteger[] pooledCounts;
+
+    /**
+     * Creates a pool with the default limits.
+     */
+    public ByteBufferPool() {
+        this(DEFAULT_MAX_POOLED_CAPACITY, DEFAULT_BUFFERS_PER_SIZE);
+    }
+
+    /**
+     * Creates a pool.
+     * 
+     * @param maxPooledCapacity
+     *            The capacity of the largest buffer to keep; rounded up to a power of two.
+     * @param buffersPerSize
+     *            The number of idle buffers to keep for each size.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public ByteBufferPool(int maxPooledCapacity, int buffersPerSize) {
+        if (maxPooledCapacity < MIN_CAPACITY || buffersPerSize < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.maxPooledCapacity = roundUp(maxPooledCapacity);
+        this.buffersPerSize = buffersPerSize;
+
+        int sizes = indexOf(this.maxPooledCapacity) + 1;
+        this.pools = new Queue[sizes];
+        this.pooledCounts = new AtomicInteger[sizes];
+        for (int i = 0; i < sizes; i++) {
+            pools[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+            pooledCounts[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * Returns a cleared buffer with at least the specified capacity.
+     * 
+     * @param minCapacity
+     *            The number of bytes the buffer must hold.
+     * 
+     * @return A <code>ByteBuffer</code> object positioned at zero with its limit at its capacity.
+     */
+    public ByteBuffer acquire(int minCapacity) {
+        int capacity = roundUp(Math.max(minCapacity, MIN_CAPACITY));
+        if (capacity > maxPooledCapacity) {
+            return ByteBuffer.allocate(minCapacity);
+        }
+
+        int index = indexOf(capacity);
+        ByteBuffer buffer = pools[index].poll();
+        if (buffer == null) {
+            return ByteBuffer.allocate(capacity);
+        }
+        pooledCounts[index].decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. Buffers that were not handed out by a pool of this size are ignored.
+     * 
+     * @param buffer
+     *            A <code>ByteBuffer</code> object that is no longer used by the caller.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.hasArray()) {
+            return;
+        }
+        int capacity = buffer.capacity();
+        if (capacity < MIN_CAPACITY || capacity > maxPooledCapacity || Integer.bitCount(capacity) != 1) {
+            return;
+        }
+
+        int index = indexOf(capacity);
+        if (pooledCounts[index].incrementAndGet() > buffersPerSize) {
+            pooledCounts[index].decrementAndGet();
+            return;
+        }
+        pools[index].offer(buffer);
+    }
+
+    private static int roundUp(int capacity) {
+        int highest = Integer.highestOneBit(capacity);
+        return highest == capacity ? capacity : highest << 1;
+    }
+
+    private static int indexOf(int capacity) {
+        return Integer.numberOfTrailingZeros(capacity) - Integer.numberOfTrailingZeros(MIN_CAPACITY);
+    }
+}
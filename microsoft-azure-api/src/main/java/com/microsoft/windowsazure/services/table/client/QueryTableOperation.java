@@ -22,10 +22,12 @@ import java.text.ParseException;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
 
+import com.microsoft.windowsazure.services.core.storage.HedgingPolicy;
 import com.microsoft.windowsazure.services.core.storage.OperationContext;
 import com.microsoft.windowsazure.services.core.storage.StorageException;
 import com.microsoft.windowsazure.services.core.storage.utils.Utility;
 import com.microsoft.windowsazure.services.core.storage.utils.implementation.ExecutionEngine;
+import com.microsoft.windowsazure.services.core.storage.utils.implementation.HedgedRequestExecutor;
 import com.microsoft.windowsazure.services.core.storage.utils.implementation.StorageOperation;
 
 /**
@@ -219,6 +221,10 @@ public class QueryTableOperation extends TableOperation {
             }
         };
 
+        if (!isTableEntry) {
+            impl.setPartitionKey(tableName + "/" + this.getPartitionKey());
+        }
+
         return ExecutionEngine.executeWithRetry(client, this, impl, options.getRetryPolicyFactory(), opContext);
     }
 
@@ -235,6 +241,38 @@ public class QueryTableOperation extends TableOperation {
         this.clazzType = clazzType;
     }
 
+    /**
+     * Reserved for internal use. Performs a retrieve operation under the {@link HedgingPolicy} of the request options:
+     * if the first request has not completed within the hedge delay, a duplicate request is issued, and the first
+     * response wins.
+     * 
+     * @param client
+     *            A {@link CloudTableClient} instance specifying the Table service endpoint and storage account
+     *            credentials to use.
+     * @param tableName
+     *            A <code>String</code> containing the name of the table to query.
+     * @param options
+     *            A {@link TableRequestOptions} object that specifies execution options such as retry policy and timeout
+     *            settings for the operation.
+     * @param opContext
+     *            An {@link OperationContext} object for tracking the current operation.
+     * @return
+     *         A {@link TableResult} containing the results of the query operation.
+     * 
+     * @throws StorageException
+     *             if an error occurs in the storage operation.
+     */
+    protected TableResult performHedgedRetrieve(final CloudTableClient client, final String tableName,
+            final TableRequestOptions options, final OperationContext opContext) throws StorageException {
+        return HedgedRequestExecutor.execute(options.getHedgingPolicy(), opContext,
+                new HedgedRequestExecutor.Attempt<TableResult>() {
+                    @Override
+                    public TableResult execute(final OperationContext attemptContext) throws StorageException {
+                        return QueryTableOperation.this.performRetrieve(client, tableName, options, attemptContext);
+                    }
+                });
+    }
+
     /**
      * Reserved for internal use. Sets the PartitionKey value for the entity to retrieve.
      * 
@@ -491,6 +491,8 @@ public class TableBatchOperation extends ArrayList<TableOperation> {
             }
         };
 
+        impl.setPartitionKey(tableName + "/" + this.partitionKey);
+
         return ExecutionEngine.executeWithRetry(client, this, impl, options.getRetryPolicyFactory(), opContext);
     }
 
@@ -279,6 +279,10 @@ public class TableOperation {
             }
         };
 
+        if (!isTableEntry) {
+            impl.setPartitionKey(tableName + "/" + this.getEntity().getPartitionKey());
+        }
+
         return ExecutionEngine.executeWithRetry(client, this, impl, options.getRetryPolicyFactory(), opContext);
     }
 
@@ -371,6 +375,10 @@ public class TableOperation {
             }
         };
 
+        if (!isTableEntry) {
+            impl.setPartitionKey(tableName + "/" + this.getEntity().getPartitionKey());
+        }
+
         return ExecutionEngine.executeWithRetry(client, this, impl, options.getRetryPolicyFactory(), opContext);
     }
 
@@ -438,6 +446,8 @@ public class TableOperation {
             }
         };
 
+        impl.setPartitionKey(tableName + "/" + this.getEntity().getPartitionKey());
+
         return ExecutionEngine.executeWithRetry(client, this, impl, options.getRetryPolicyFactory(), opContext);
     }
 
@@ -504,6 +514,8 @@ public class TableOperation {
             }
         };
 
+        impl.setPartitionKey(tableName + "/" + this.getEntity().getPartitionKey());
+
         return ExecutionEngine.executeWithRetry(client, this, impl, options.getRetryPolicyFactory(), opContext);
     }
 
@@ -560,6 +572,9 @@ public class TableOperation {
             return this.performUpdate(client, tableName, options, opContext);
         }
         else if (this.getOperationType() == TableOperationType.RETRIEVE) {
+            if (options.getHedgingPolicy() != null) {
+                return ((QueryTableOperation) this).performHedgedRetrieve(client, tableName, options, opContext);
+            }
             return ((QueryTableOperation) this).performRetrieve(client, tableName, options, opContext);
         }
         else {
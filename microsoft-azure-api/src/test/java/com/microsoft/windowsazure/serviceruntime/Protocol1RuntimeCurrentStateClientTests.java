@@ -15,9 +15,16 @@
 package com.microsoft.windowsazure.serviceruntime;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.math.BigInteger;
+import java.util.Calendar;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 import static org.junit.Assert.*;
@@ -113,4 +120,178 @@ public class Protocol1RuntimeCurrentStateClientTests {
 
         fail();
     }
+
+    /**
+     * Writes to a file and counts the writes; the first write can be held until released.
+     */
+    private static class CountingFileChannel implements OutputChannel {
+        final FileOutputChannel channel = new FileOutputChannel();
+        final AtomicInteger writes = new AtomicInteger();
+        final CountDownLatch firstWriteStarted = new CountDownLatch(1);
+        final CountDownLatch releaseFirstWrite;
+
+        CountingFileChannel(CountDownLatch releaseFirstWrite) {
+            this.releaseFirstWrite = releaseFirstWrite;
+        }
+
+        @Override
+        public OutputStream getOutputStream(String name) {
+            if (writes.incrementAndGet() == 1) {
+                firstWriteStarted.countDown();
+                try {
+                    releaseFirstWrite.await(5, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            return channel.getOutputStream(name);
+        }
+    }
+
+    private static CurrentState busyState(int incarnation) {
+        Calendar expiration = Calendar.getInstance();
+        expiration.clear();
+        expiration.set(2030, 0, 1);
+
+        return new AcquireCurrentState("client", BigInteger.valueOf(incarnation), CurrentStatus.BUSY, expiration);
+    }
+
+    private static String readFile(File file) throws IOException {
+        FileInputStream input = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = input.read(buffer)) > 0) {
+                content.write(buffer, 0, read);
+            }
+            return content.toString("UTF-8");
+        }
+        finally {
+            input.close();
+        }
+    }
+
+    private static String serialize(CurrentState state) throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        new XmlCurrentStateSerializer().serialize(state, stream);
+        return stream.toString("UTF-8");
+    }
+
+    @Test
+    public void publishedStatesAreCoalescedToTheLatest() throws Exception {
+        File file = File.createTempFile("currentstate", ".xml");
+        CountDownLatch release = new CountDownLatch(1);
+        CountingFileChannel channel = new CountingFileChannel(release);
+        Protocol1RuntimeCurrentStateClient client = new Protocol1RuntimeCurrentStateClient(
+                new XmlCurrentStateSerializer(), channel);
+        client.setEndpoint(file.getAbsolutePath());
+
+        client.publishCurrentState(busyState(1));
+        assertTrue(channel.firstWriteStarted.await(5, TimeUnit.SECONDS));
+
+        for (int i = 2; i <= 50; i++) {
+            client.publishCurrentState(busyState(i));
+        }
+
+        release.countDown();
+        client.flush();
+
+        assertThat(channel.writes.get(), is(2));
+        assertThat(readFile(file), is(serialize(busyState(50))));
+        file.delete();
+    }
+
+    @Test
+    public void unchangedStateIsNotRewritten() throws Exception {
+        File file = File.createTempFile("currentstate", ".xml");
+        CountingFileChannel channel = new CountingFileChannel(new CountDownLatch(0));
+        Protocol1RuntimeCurrentStateClient client = new Protocol1RuntimeCurrentStateClient(
+                new XmlCurrentStateSerializer(), channel);
+        client.setEndpoint(file.getAbsolutePath());
+
+        client.publishCurrentState(busyState(1));
+        client.flush();
+        client.publishCurrentState(busyState(1));
+        client.flush();
+        client.publishCurrentState(new ReleaseCurrentState("client"));
+        client.flush();
+
+        assertThat(channel.writes.get(), is(2));
+        assertThat(readFile(file), is(serialize(new ReleaseCurrentState("client"))));
+        file.delete();
+    }
+
+    @Test
+    public void lastStateIsRewrittenOnHeartbeat() throws Exception {
+        File file = File.createTempFile("currentstate", ".xml");
+        CountingFileChannel channel = new CountingFileChannel(new CountDownLatch(0));
+        Protocol1RuntimeCurrentStateClient client = new Protocol1RuntimeCurrentStateClient(
+                new XmlCurrentStateSerializer(), channel, 100);
+        client.setEndpoint(file.getAbsolutePath());
+
+        client.publishCurrentState(busyState(1));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (channel.writes.get() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertThat(channel.writes.get(), greaterThanOrEqualTo(3));
+        assertThat(readFile(file), is(serialize(busyState(1))));
+        file.delete();
+    }
+
+    @Test
+    public void failedWriteIsRetriedOnHeartbeatOnly() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        CurrentStateSerializer serializer = new CurrentStateSerializer() {
+            @Override
+            public void serialize(CurrentState state, OutputStream stream) {
+                attempts.incrementAndGet();
+                throw new IllegalStateException("serialization failed");
+            }
+        };
+        File file = File.createTempFile("currentstate", ".xml");
+        Protocol1RuntimeCurrentStateClient client = new Protocol1RuntimeCurrentStateClient(serializer,
+                new CountingFileChannel(new CountDownLatch(0)), 100);
+        client.setEndpoint(file.getAbsolutePath());
+
+        client.publishCurrentState(busyState(1));
+        Thread.sleep(450);
+
+        assertThat(attempts.get(), lessThanOrEqualTo(6));
+        file.delete();
+    }
+
+    @Test
+    public void setCurrentStateSupersedesPublishedState() throws Exception {
+        File file = File.createTempFile("currentstate", ".xml");
+        CountDownLatch release = new CountDownLatch(1);
+        CountingFileChannel channel = new CountingFileChannel(release);
+        final Protocol1RuntimeCurrentStateClient client = new Protocol1RuntimeCurrentStateClient(
+                new XmlCurrentStateSerializer(), channel);
+        client.setEndpoint(file.getAbsolutePath());
+
+        client.publishCurrentState(busyState(1));
+        assertTrue(channel.firstWriteStarted.await(5, TimeUnit.SECONDS));
+        client.publishCurrentState(busyState(2));
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                client.setCurrentState(busyState(3));
+            }
+        });
+        writer.start();
+        Thread.sleep(100);
+        release.countDown();
+        writer.join();
+        client.flush();
+
+        assertThat(channel.writes.get(), is(2));
+        assertThat(readFile(file), is(serialize(busyState(3))));
+        file.delete();
+    }
 }
@@ -0,0 +1,101 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.microsoft.windowsazure.serviceruntime;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ *
+ */
+public class RoleEnvironmentDiffTests {
+    private static RoleInstance instance(String id, int updateDomain, String address) {
+        Map<String, RoleInstanceEndpoint> endpoints = new HashMap<String, RoleInstanceEndpoint>();
+        endpoints.put("Http", new RoleInstanceEndpoint("http", new InetSocketAddress(address, 80)));
+        return new RoleInstance(id, 0, updateDomain, endpoints);
+    }
+
+    private static RoleEnvironmentData data(Map<String, String> settings, RoleInstance... webInstances) {
+        Map<String, RoleInstance> instances = new HashMap<String, RoleInstance>();
+        for (RoleInstance instance : webInstances) {
+            instances.put(instance.getId(), instance);
+        }
+
+        Map<String, Role> roles = new HashMap<String, Role>();
+        roles.put("WebRole", new Role("WebRole", instances));
+        roles.put("WorkerRole", new Role("WorkerRole", new HashMap<String, RoleInstance>()));
+
+        return new RoleEnvironmentData("deployment", settings, new HashMap<String, LocalResource>(), null, roles,
+                false);
+    }
+
+    private static Map<String, String> settings(String... pairs) {
+        Map<String, String> settings = new HashMap<String, String>();
+        for (int i = 0; i < pairs.length; i += 2) {
+            settings.put(pairs[i], pairs[i + 1]);
+        }
+        return settings;
+    }
+
+    @Test
+    public void identicalEnvironmentsHaveNoChanges() {
+        RoleEnvironmentData current = data(settings("a", "1"), instance("web_0", 0, "10.0.0.4"));
+        RoleEnvironmentData next = data(settings("a", "1"), instance("web_0", 0, "10.0.0.4"));
+
+        assertThat(RoleEnvironmentDiff.calculateChanges(current, next).isEmpty(), is(true));
+    }
+
+    @Test
+    public void settingChangesAreReportedByName() {
+        RoleEnvironmentData current = data(settings("a", "1", "b", "2"));
+        RoleEnvironmentData next = data(settings("a", "1", "b", "3", "c", "4"));
+
+        List<RoleEnvironmentChange> changes = RoleEnvironmentDiff.calculateChanges(current, next);
+
+        assertThat(changes.size(), is(2));
+        assertThat(changes.contains(new RoleEnvironmentConfigurationSettingChange("b")), is(true));
+        assertThat(changes.contains(new RoleEnvironmentConfigurationSettingChange("c")), is(true));
+    }
+
+    @Test
+    public void topologyChangesAreReportedOncePerRole() {
+        RoleEnvironmentData current = data(settings(), instance("web_0", 0, "10.0.0.4"),
+                instance("web_1", 1, "10.0.0.5"));
+
+        // Moved endpoint.
+        List<RoleEnvironmentChange> changes = RoleEnvironmentDiff.calculateChanges(current,
+                data(settings(), instance("web_0", 0, "10.0.0.4"), instance("web_1", 1, "10.0.0.9")));
+        assertThat(changes.size(), is(1));
+        assertThat(changes.get(0), is((RoleEnvironmentChange) new RoleEnvironmentTopologyChange("WebRole")));
+
+        // Instance replaced by another with the same count.
+        changes = RoleEnvironmentDiff.calculateChanges(current,
+                data(settings(), instance("web_0", 0, "10.0.0.4"), instance("web_2", 1, "10.0.0.5")));
+        assertThat(changes.size(), is(1));
+
+        // Instance added, and update domain changed.
+        changes = RoleEnvironmentDiff.calculateChanges(current,
+                data(settings(), instance("web_0", 2, "10.0.0.4"), instance("web_1", 1, "10.0.0.5"),
+                        instance("web_2", 0, "10.0.0.6")));
+        assertThat(changes.size(), is(1));
+    }
+}
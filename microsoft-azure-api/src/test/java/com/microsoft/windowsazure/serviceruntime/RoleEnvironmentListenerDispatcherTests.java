@@ -0,0 +1,114 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.microsoft.windowsazure.serviceruntime;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ *
+ */
+public class RoleEnvironmentListenerDispatcherTests {
+    @Test
+    public void changingListenerCanCancel() {
+        RoleEnvironmentListenerDispatcher dispatcher = new RoleEnvironmentListenerDispatcher(1000);
+        RoleEnvironmentChangingListener cancelling = new RoleEnvironmentChangingListener() {
+            @Override
+            public void roleEnvironmentChanging(RoleEnvironmentChangingEvent event) {
+                event.cancel();
+            }
+        };
+
+        List<RoleEnvironmentChange> changes = new ArrayList<RoleEnvironmentChange>();
+        assertThat(dispatcher.raiseChanging(Arrays.asList(cancelling), new RoleEnvironmentChangingEvent(changes)),
+                is(true));
+        assertThat(dispatcher.raiseChanging(new ArrayList<RoleEnvironmentChangingListener>(),
+                new RoleEnvironmentChangingEvent(changes)), is(false));
+    }
+
+    @Test
+    public void hungChangingListenerTimesOut() {
+        RoleEnvironmentListenerDispatcher dispatcher = new RoleEnvironmentListenerDispatcher(100);
+        final CountDownLatch never = new CountDownLatch(1);
+        RoleEnvironmentChangingListener hung = new RoleEnvironmentChangingListener() {
+            @Override
+            public void roleEnvironmentChanging(RoleEnvironmentChangingEvent event) {
+                try {
+                    never.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+
+        long start = System.currentTimeMillis();
+        boolean cancelled = dispatcher.raiseChanging(Arrays.asList(hung), new RoleEnvironmentChangingEvent(
+                new ArrayList<RoleEnvironmentChange>()));
+
+        assertThat(cancelled, is(false));
+        assertThat(System.currentTimeMillis() - start, lessThan(5000L));
+    }
+
+    @Test
+    public void changesArrivingDuringNotificationAreCoalesced() throws Exception {
+        RoleEnvironmentListenerDispatcher dispatcher = new RoleEnvironmentListenerDispatcher(5000);
+        final CountDownLatch firstStarted = new CountDownLatch(1);
+        final CountDownLatch releaseFirst = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(2);
+        final List<Integer> eventSizes = Collections.synchronizedList(new ArrayList<Integer>());
+
+        RoleEnvironmentChangedListener slow = new RoleEnvironmentChangedListener() {
+            @Override
+            public void roleEnvironmentChanged(RoleEnvironmentChangedEvent event) {
+                eventSizes.add(event.getChanges().size());
+                firstStarted.countDown();
+                try {
+                    releaseFirst.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                done.countDown();
+            }
+        };
+        List<RoleEnvironmentChangedListener> listeners = Arrays.asList(slow);
+
+        long start = System.currentTimeMillis();
+        dispatcher.raiseChanged(listeners, Arrays.asList((RoleEnvironmentChange) new RoleEnvironmentTopologyChange(
+                "WebRole")));
+        assertThat(System.currentTimeMillis() - start, lessThan(1000L));
+        assertThat(firstStarted.await(5, TimeUnit.SECONDS), is(true));
+
+        dispatcher.raiseChanged(listeners, Arrays.asList((RoleEnvironmentChange) new RoleEnvironmentTopologyChange(
+                "WebRole")));
+        dispatcher.raiseChanged(listeners,
+                Arrays.asList((RoleEnvironmentChange) new RoleEnvironmentConfigurationSettingChange("a")));
+        releaseFirst.countDown();
+
+        assertThat(done.await(5, TimeUnit.SECONDS), is(true));
+        Thread.sleep(100);
+        assertThat(eventSizes, is(Arrays.asList(1, 2)));
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.microsoft.windowsazure.serviceruntime;
+
+import java.io.InputStream;
+
+/**
+ * Measures the role startup path: reading the recorded goal states and role environment through a
+ * {@link FileInputChannel}. The first parse in a fresh JVM includes creating the JAXB context; the following parses
+ * show the warm cost. Not run by the build; run the main method from the test classpath, optionally passing the
+ * number of warm iterations.
+ */
+public final class RoleStartupBenchmark {
+    private RoleStartupBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        InputChannel channel = new FileInputChannel();
+        String goalStatePath = XmlGoalStateDeserializerTests.fixturePath("GoalStates.chunked");
+        String environmentPath = XmlGoalStateDeserializerTests.fixturePath("RoleEnvironment.xml");
+
+        long start = System.nanoTime();
+        parseStartupDocuments(channel, goalStatePath, environmentPath);
+        long cold = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            parseStartupDocuments(channel, goalStatePath, environmentPath);
+        }
+        long warm = (System.nanoTime() - start) / iterations;
+
+        System.out.println(String.format("Startup documents: cold parse %d us, warm parse %d us over %d iterations",
+                cold / 1000, warm / 1000, iterations));
+    }
+
+    private static void parseStartupDocuments(InputChannel channel, String goalStatePath, String environmentPath)
+            throws Exception {
+        InputStream stream = channel.getInputStream(goalStatePath);
+        int goalStates = 0;
+
+        try {
+            ChunkedGoalStateDeserializer deserializer = new ChunkedGoalStateDeserializer();
+            deserializer.initialize(stream);
+
+            while (deserializer.deserialize() != null) {
+                goalStates++;
+            }
+        }
+        finally {
+            stream.close();
+        }
+
+        stream = channel.getInputStream(environmentPath);
+        RoleEnvironmentData data;
+
+        try {
+            data = new XmlRoleEnvironmentDataDeserializer().deserialize(stream);
+        }
+        finally {
+            stream.close();
+        }
+
+        if (goalStates == 0 || data.getRoles().size() != 2) {
+            throw new IllegalStateException("The recorded startup documents were not parsed.");
+        }
+    }
+}
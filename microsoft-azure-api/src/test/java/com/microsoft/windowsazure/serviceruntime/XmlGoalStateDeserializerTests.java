@@ -14,15 +14,67 @@
  */
 package com.microsoft.windowsazure.serviceruntime;
 
-/*
- * import org.junit.Test;
- * import static org.junit.Assert.*;
- * import static org.hamcrest.Matchers.*;
- */
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+
+import org.junit.Test;
 
 /**
  *
  */
 public class XmlGoalStateDeserializerTests {
+    static String fixturePath(String name) throws URISyntaxException {
+        return new File(XmlGoalStateDeserializerTests.class.getResource("/serviceruntime/" + name).toURI())
+                .getAbsolutePath();
+    }
+
+    @Test
+    public void chunkedDeserializerReadsRecordedGoalStates() throws Exception {
+        InputStream stream = new FileInputChannel().getInputStream(fixturePath("GoalStates.chunked"));
+        ChunkedGoalStateDeserializer deserializer = new ChunkedGoalStateDeserializer();
+
+        try {
+            deserializer.initialize(stream);
+
+            GoalState first = deserializer.deserialize();
+            GoalState second = deserializer.deserialize();
+            GoalState third = deserializer.deserialize();
+
+            assertThat(first.getIncarnation().intValue(), is(1));
+            assertThat(first.getExpectedState(), is(ExpectedState.STARTED));
+            assertThat(first.getEnvironmentPath(), is("C:\\Config\\RoleEnvironment1.xml"));
+            assertThat(first.getCurrentStateEndpoint(), is("\\\\.\\pipe\\CurrentState"));
+            assertThat(second.getIncarnation().intValue(), is(2));
+            assertThat(third.getIncarnation().intValue(), is(3));
+            assertThat(third.getExpectedState(), is(ExpectedState.STOPPED));
+            assertThat(deserializer.deserialize(), is(nullValue()));
+        }
+        finally {
+            stream.close();
+        }
+    }
+
+    @Test
+    public void chunkedDeserializerSkipsContentAfterDocument() {
+        String document = "<?xml version=\"1.0\" encoding=\"utf-8\"?><GoalState><Incarnation>7</Incarnation>"
+                + "<ExpectedState>Started</ExpectedState><CurrentStateEndpoint>statepath</CurrentStateEndpoint>"
+                + "<Deadline>2011-03-08T03:27:44.0Z</Deadline></GoalState>";
+        ChunkedGoalStateDeserializer deserializer = new ChunkedGoalStateDeserializer();
+
+        deserializer.initialize(new MockInputChannel(new String[] { document + "\r\n\r\n  ", document })
+                .getInputStream(null));
+
+        assertThat(deserializer.deserialize().getIncarnation().intValue(), is(7));
+        assertThat(deserializer.deserialize().getIncarnation().intValue(), is(7));
+        assertThat(deserializer.deserialize(), is(nullValue()));
+    }
 
+    @Test
+    public void contextIsSharedAcrossDocuments() throws Exception {
+        assertThat(RuntimeJaxbContext.get(), is(sameInstance(RuntimeJaxbContext.get())));
+    }
 }
@@ -0,0 +1,55 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.microsoft.windowsazure.serviceruntime;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.InputStream;
+
+import org.junit.Test;
+
+/**
+ *
+ */
+public class XmlRoleEnvironmentDataDeserializerTests {
+    private static RoleEnvironmentData readFixture(InputChannel channel, String path) throws Exception {
+        InputStream stream = channel.getInputStream(path);
+
+        try {
+            return new XmlRoleEnvironmentDataDeserializer().deserialize(stream);
+        }
+        finally {
+            stream.close();
+        }
+    }
+
+    @Test
+    public void deserializeReadsRecordedRoleEnvironment() throws Exception {
+        RoleEnvironmentData data = readFixture(new FileInputChannel(),
+                XmlGoalStateDeserializerTests.fixturePath("RoleEnvironment.xml"));
+
+        assertThat(data.getDeploymentId(), is("a1b2c3d4e5f64718293a4b5c6d7e8f90"));
+        assertThat(data.isEmulated(), is(false));
+        assertThat(data.getConfigurationSettings().get("QueueName"), is("work-items"));
+        assertThat(data.getLocalResources().get("Scratch").getMaximumSizeInMegabytes(), is(1024));
+        assertThat(data.getRoles().size(), is(2));
+        assertThat(data.getRoles().get("WorkerRole").getInstances().size(), is(40));
+        assertThat(data.getRoles().get("WebRole").getInstances().size(), is(24));
+        assertThat(data.getCurrentInstance().getRole().getName(), is("WorkerRole"));
+        assertThat(data.getRoles().get("WebRole").getInstances().get("WebRole_IN_3").getInstanceEndpoints()
+                .get("Http").getIpEndPoint().getPort(), is(80));
+    }
+}
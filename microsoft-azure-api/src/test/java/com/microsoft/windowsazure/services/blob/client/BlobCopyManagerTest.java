@@ -0,0 +1,308 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.services.blob.client;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class BlobCopyManagerTest {
+
+    /**
+     * Copy state of a destination blob. The behavior of a copy depends on the source name: "ok-" copies complete
+     * synchronously, "slow-" copies complete on the third poll, "flaky-" copies fail on their first attempt and
+     * "stuck-" copies never complete.
+     */
+    private static final class Destination {
+        String source;
+        int attempt;
+        int polls;
+        boolean aborted;
+    }
+
+    private final List<String> sourceBlobs = new ArrayList<String>();
+    private final Map<String, Destination> destinations = new HashMap<String, Destination>();
+    private final AtomicInteger copyRequests = new AtomicInteger();
+    private final AtomicInteger abortRequests = new AtomicInteger();
+    private final AtomicInteger headRequests = new AtomicInteger();
+    private final AtomicInteger copyListings = new AtomicInteger();
+    private int maxPendingCopies;
+    private HttpServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                synchronized (destinations) {
+                    try {
+                        dispatch(exchange);
+                    }
+                    finally {
+                        exchange.close();
+                    }
+                }
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private String base() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    private void dispatch(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        Headers requestHeaders = exchange.getRequestHeaders();
+
+        if ("list".equals(query.get("comp"))) {
+            if (path.equals("/source")) {
+                sendListing(exchange, "/source", sourceBlobs, false);
+            }
+            else {
+                if ("copy".equals(query.get("include"))) {
+                    copyListings.incrementAndGet();
+                }
+
+                String prefix = query.get("prefix") == null ? "" : query.get("prefix");
+                List<String> names = new ArrayList<String>();
+                for (String name : destinations.keySet()) {
+                    if (name.startsWith(prefix) && name.indexOf('/', prefix.length()) < 0) {
+                        names.add(name);
+                        poll(destinations.get(name));
+                    }
+                }
+                sendListing(exchange, "/dest", names, true);
+            }
+        }
+        else if (path.startsWith("/dest/") && "PUT".equals(exchange.getRequestMethod())) {
+            String name = path.substring("/dest/".length());
+            if ("abort".equals(requestHeaders.getFirst("x-ms-copy-action"))) {
+                abortRequests.incrementAndGet();
+                destinations.get(name).aborted = true;
+                exchange.sendResponseHeaders(202, -1);
+                return;
+            }
+
+            copyRequests.incrementAndGet();
+            String source = requestHeaders.getFirst("x-ms-copy-source");
+            Destination destination = destinations.get(name);
+            if (destination == null) {
+                destination = new Destination();
+                destinations.put(name, destination);
+            }
+            destination.source = source.substring(source.lastIndexOf('/') + 1);
+            destination.attempt++;
+            destination.polls = 0;
+            destination.aborted = false;
+
+            int pending = 0;
+            for (Destination other : destinations.values()) {
+                if ("pending".equals(status(other))) {
+                    pending++;
+                }
+            }
+            maxPendingCopies = Math.max(maxPendingCopies, pending);
+            addCopyHeaders(exchange.getResponseHeaders(), name, destination);
+            exchange.getResponseHeaders().add("ETag", "\"0x1\"");
+            exchange.sendResponseHeaders(202, -1);
+        }
+        else if (path.startsWith("/dest/") && "HEAD".equals(exchange.getRequestMethod())) {
+            headRequests.incrementAndGet();
+            String name = path.substring("/dest/".length());
+            Destination destination = destinations.get(name);
+            poll(destination);
+            exchange.getResponseHeaders().add("x-ms-blob-type", "BlockBlob");
+            exchange.getResponseHeaders().add("ETag", "\"0x1\"");
+            addCopyHeaders(exchange.getResponseHeaders(), name, destination);
+            exchange.sendResponseHeaders(200, -1);
+        }
+        else {
+            exchange.sendResponseHeaders(400, -1);
+        }
+    }
+
+    private static void poll(Destination destination) {
+        destination.polls++;
+    }
+
+    private static String status(Destination destination) {
+        if (destination.aborted) {
+            return "aborted";
+        }
+
+        String source = destination.source;
+        int pendingPolls = source.startsWith("ok-") ? 0 : source.startsWith("slow-") ? 2 : source
+                .startsWith("flaky-") ? 1 : Integer.MAX_VALUE;
+        if (destination.polls <= pendingPolls - 1 || pendingPolls == Integer.MAX_VALUE) {
+            return "pending";
+        }
+
+        return source.startsWith("flaky-") && destination.attempt == 1 ? "failed" : "success";
+    }
+
+    private static void addCopyHeaders(Headers headers, String name, Destination destination) {
+        headers.add("x-ms-copy-id", "copy-" + name + "-" + destination.attempt);
+        headers.add("x-ms-copy-status", status(destination));
+        headers.add("x-ms-copy-progress", Math.min(destination.polls, 3) * 100 + "/300");
+    }
+
+    private void sendListing(HttpExchange exchange, String container, List<String> names, boolean includeCopy)
+            throws IOException {
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?><EnumerationResults><Blobs>");
+        for (String name : names) {
+            xml.append("<Blob><Name>").append(name).append("</Name><Url>").append(base()).append(container)
+                    .append('/').append(name).append("</Url><Properties><BlobType>BlockBlob</BlobType></Properties>");
+            if (includeCopy) {
+                Destination destination = destinations.get(name);
+                xml.append("<CopyId>copy-").append(name).append('-').append(destination.attempt)
+                        .append("</CopyId><CopyStatus>").append(status(destination)).append("</CopyStatus>");
+            }
+            xml.append("</Blob>");
+        }
+        xml.append("</Blobs><NextMarker /></EnumerationResults>");
+
+        byte[] body = xml.toString().getBytes("UTF-8");
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+    }
+
+    private static Map<String, String> parseQuery(String query) throws IOException {
+        Map<String, String> result = new HashMap<String, String>();
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                int separator = pair.indexOf('=');
+                if (separator > 0) {
+                    result.put(pair.substring(0, separator), URLDecoder.decode(pair.substring(separator + 1), "UTF-8"));
+                }
+            }
+        }
+        return result;
+    }
+
+    private BlobCopyManager manager() throws Exception {
+        CloudBlobClient client = new CloudBlobClient(new URI(base()));
+        BlobCopyManager manager = new BlobCopyManager(client.getContainerReference("source"), "data/",
+                client.getContainerReference("dest"), "backup/");
+        manager.setPollIntervalInMs(5, 20);
+        return manager;
+    }
+
+    @Test
+    public void copiesRetriesAndPollsUntilComplete() throws Exception {
+        sourceBlobs.add("data/ok-1");
+        sourceBlobs.add("data/slow-1");
+        sourceBlobs.add("data/flaky-1");
+
+        BlobCopyManager.Result result = manager().copy(null, null);
+
+        assertEquals(3, result.getSucceededCount());
+        assertTrue(result.getFailedBlobs().isEmpty());
+        assertEquals(0, result.getAbortedCount());
+        assertEquals(4, result.getStartedCount());
+        assertEquals(4, copyRequests.get());
+        assertEquals(2, destinations.get("backup/flaky-1").attempt);
+        assertEquals(1, destinations.get("backup/slow-1").attempt);
+    }
+
+    @Test
+    public void abortsCopiesThatExceedTheTimeout() throws Exception {
+        sourceBlobs.add("data/ok-1");
+        sourceBlobs.add("data/stuck-1");
+
+        BlobCopyManager manager = manager();
+        manager.setMaxAttempts(2);
+        manager.setCopyTimeoutInMs(50);
+        BlobCopyManager.Result result = manager.copy(null, null);
+
+        assertEquals(1, result.getSucceededCount());
+        assertEquals(2, result.getAbortedCount());
+        assertEquals(2, abortRequests.get());
+        assertEquals(1, result.getFailedBlobs().size());
+        assertTrue(result.getFailedBlobs().keySet().iterator().next().endsWith("/dest/backup/stuck-1"));
+    }
+
+    @Test
+    public void pollsCopiesInOneDirectoryWithAListing() throws Exception {
+        for (int i = 0; i < 6; i++) {
+            sourceBlobs.add("data/slow-" + i);
+        }
+
+        BlobCopyManager.Result result = manager().copy(null, null);
+
+        assertEquals(6, result.getSucceededCount());
+        assertTrue(copyListings.get() > 0);
+        assertEquals(0, headRequests.get());
+    }
+
+    @Test
+    public void pollsCopiesInALargeDirectoryOneByOne() throws Exception {
+        for (int i = 0; i <= 5000; i++) {
+            Destination existing = new Destination();
+            existing.source = "ok-" + i;
+            existing.attempt = 1;
+            destinations.put("backup/old-" + i, existing);
+        }
+        sourceBlobs.add("data/slow-1");
+        sourceBlobs.add("data/slow-2");
+
+        BlobCopyManager.Result result = manager().copy(null, null);
+
+        assertEquals(2, result.getSucceededCount());
+        assertTrue(copyListings.get() <= 1);
+        assertTrue(headRequests.get() > 0);
+    }
+
+    @Test
+    public void boundsTheNumberOfPendingCopies() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            sourceBlobs.add("data/slow-" + i);
+        }
+
+        BlobCopyManager manager = manager();
+        manager.setMaxPendingCopies(2);
+        BlobCopyManager.Result result = manager.copy(null, null);
+
+        assertEquals(5, result.getSucceededCount());
+        assertEquals(5, copyRequests.get());
+        assertEquals(2, maxPendingCopies);
+    }
+}
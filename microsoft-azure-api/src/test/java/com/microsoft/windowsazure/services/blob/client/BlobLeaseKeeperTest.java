@@ -0,0 +1,211 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.services.blob.client;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.microsoft.windowsazure.services.core.storage.StorageException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class BlobLeaseKeeperTest {
+
+    /**
+     * Answers lease requests, counting them by path and action; renewals of paths in {@link #lostPaths} fail with
+     * 409, and renewals of {@link #slowPath} wait for {@link #slowRenewalRelease}.
+     */
+    private final Map<String, Integer> requestCounts = new HashMap<String, Integer>();
+    private final Set<String> lostPaths = new HashSet<String>();
+    private volatile String slowPath;
+    private final CountDownLatch slowRenewalStarted = new CountDownLatch(1);
+    private final CountDownLatch slowRenewalRelease = new CountDownLatch(1);
+    private HttpServer server;
+    private CloudBlobClient client;
+    private BlobLeaseKeeper keeper;
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String path = exchange.getRequestURI().getPath();
+                String action = exchange.getRequestHeaders().getFirst("x-ms-lease-action").toLowerCase();
+                boolean lost;
+                synchronized (requestCounts) {
+                    String key = action + " " + path;
+                    requestCounts.put(key, count(key) + 1);
+                    lost = lostPaths.contains(path);
+                }
+
+                // Renewals are far enough apart for pooled connections to go stale; do not reuse them.
+                exchange.getResponseHeaders().add("Connection", "close");
+                if ("renew".equals(action) && path.equals(slowPath)) {
+                    slowRenewalStarted.countDown();
+                    try {
+                        slowRenewalRelease.await(5, TimeUnit.SECONDS);
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+
+                if ("renew".equals(action) && lost) {
+                    exchange.sendResponseHeaders(409, -1);
+                }
+                else if ("acquire".equals(action)) {
+                    exchange.getResponseHeaders().add("x-ms-lease-id", "lease-" + path);
+                    exchange.sendResponseHeaders(201, -1);
+                }
+                else {
+                    exchange.sendResponseHeaders(200, -1);
+                }
+                exchange.close();
+            }
+        });
+        server.start();
+
+        String base = "http://127.0.0.1:" + server.getAddress().getPort();
+        client = new CloudBlobClient(new URI(base));
+        BlobRequestOptions options = new BlobRequestOptions();
+        options.setConcurrentRequestCount(4);
+        keeper = new BlobLeaseKeeper(options);
+    }
+
+    @After
+    public void tearDown() {
+        keeper.shutdown();
+        server.stop(0);
+    }
+
+    private int count(String key) {
+        synchronized (requestCounts) {
+            Integer count = requestCounts.get(key);
+            return count == null ? 0 : count;
+        }
+    }
+
+    private CloudBlockBlob blob(String name) throws Exception {
+        return client.getContainerReference("leases").getBlockBlobReference(name);
+    }
+
+    @Test
+    public void renewsLeasesBeforeExpiryAndReleasesOnShutdown() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            keeper.keep(blob("partition-" + i), "lease-" + i, 1);
+        }
+        assertEquals(20, keeper.getLeaseCount());
+
+        Thread.sleep(1500);
+
+        for (int i = 0; i < 20; i++) {
+            assertTrue(count("renew /leases/partition-" + i) >= 1);
+        }
+
+        assertEquals(0, keeper.shutdown());
+        assertEquals(0, keeper.getLeaseCount());
+        for (int i = 0; i < 20; i++) {
+            assertEquals(1, count("release /leases/partition-" + i));
+        }
+    }
+
+    @Test
+    public void notifiesWhenALeaseIsLost() throws Exception {
+        synchronized (requestCounts) {
+            lostPaths.add("/leases/lost");
+        }
+
+        final CountDownLatch notified = new CountDownLatch(1);
+        final AtomicReference<BlobLeaseKeeper.Lease> lostLease = new AtomicReference<BlobLeaseKeeper.Lease>();
+        final AtomicReference<StorageException> cause = new AtomicReference<StorageException>();
+        keeper.setLeaseLostListener(new BlobLeaseKeeper.LeaseLostListener() {
+            @Override
+            public void leaseLost(BlobLeaseKeeper.Lease lease, StorageException e) {
+                lostLease.set(lease);
+                cause.set(e);
+                notified.countDown();
+            }
+        });
+
+        BlobLeaseKeeper.Lease kept = keeper.keep(blob("kept"), "lease-kept", 1);
+        BlobLeaseKeeper.Lease lost = keeper.keep(blob("lost"), "lease-lost", 1);
+
+        assertTrue(notified.await(5, TimeUnit.SECONDS));
+        assertSame(lost, lostLease.get());
+        assertEquals(409, cause.get().getHttpStatusCode());
+        assertTrue(lost.isLost());
+        assertFalse(kept.isLost());
+        assertEquals(1, keeper.getLeaseCount());
+
+        keeper.shutdown();
+        assertEquals(1, count("release /leases/kept"));
+        assertEquals(0, count("release /leases/lost"));
+    }
+
+    @Test
+    public void shutdownReleasesLeaseWhoseRenewalIsInFlight() throws Exception {
+        slowPath = "/leases/slow";
+        keeper.keep(blob("slow"), "lease-slow", 1);
+        assertTrue(slowRenewalStarted.await(5, TimeUnit.SECONDS));
+        assertEquals(1, keeper.getLeaseCount());
+
+        final AtomicReference<Integer> failures = new AtomicReference<Integer>();
+        Thread stopper = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                failures.set(keeper.shutdown());
+            }
+        });
+        stopper.start();
+        Thread.sleep(100);
+        slowRenewalRelease.countDown();
+        stopper.join(5000);
+
+        assertEquals(Integer.valueOf(0), failures.get());
+        assertEquals(1, count("release /leases/slow"));
+    }
+
+    @Test
+    public void acquiresAndReleasesContainerLeases() throws Exception {
+        CloudBlobContainer container = client.getContainerReference("leader");
+        BlobLeaseKeeper.Lease lease = keeper.acquire(container, -1, null);
+
+        assertEquals("lease-/leader", lease.getLeaseId());
+        assertEquals(1, keeper.getLeaseCount());
+
+        keeper.release(lease);
+        keeper.release(lease);
+
+        assertEquals(0, keeper.getLeaseCount());
+        assertEquals(1, count("release /leader"));
+        assertEquals(0, count("renew /leader"));
+    }
+}
@@ -0,0 +1,189 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.services.blob.client;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class BlobRandomAccessReaderTest {
+    private static final int BLOCK = 1024;
+
+    private byte[] contents;
+    private volatile String etag = "\"v1\"";
+    private final AtomicInteger rangeRequests = new AtomicInteger();
+    private HttpServer server;
+
+    /**
+     * Serves HEAD and ranged GET requests for a single blob.
+     */
+    @Before
+    public void setUp() throws IOException {
+        contents = new byte[20 * BLOCK + 100];
+        new Random(11).nextBytes(contents);
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().add("ETag", etag);
+                exchange.getResponseHeaders().add("x-ms-blob-type", "BlockBlob");
+
+                if ("HEAD".equals(exchange.getRequestMethod())) {
+                    exchange.getResponseHeaders().add("Content-Length", String.valueOf(contents.length));
+                    exchange.sendResponseHeaders(200, -1);
+                    exchange.close();
+                    return;
+                }
+
+                String ifMatch = exchange.getRequestHeaders().getFirst("If-Match");
+                if (ifMatch != null && !ifMatch.equals(etag)) {
+                    exchange.sendResponseHeaders(412, -1);
+                    exchange.close();
+                    return;
+                }
+
+                rangeRequests.incrementAndGet();
+                String[] range = exchange.getRequestHeaders().getFirst("x-ms-range").substring(6).split("-");
+                int start = Integer.parseInt(range[0]);
+                int end = Math.min(Integer.parseInt(range[1]), contents.length - 1);
+                exchange.sendResponseHeaders(206, end - start + 1);
+                OutputStream body = exchange.getResponseBody();
+                body.write(contents, start, end - start + 1);
+                exchange.close();
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private BlobRandomAccessReader open(long cacheSize) throws Exception {
+        String base = "http://127.0.0.1:" + server.getAddress().getPort();
+        CloudBlockBlob blob = new CloudBlockBlob(new URI(base + "/container/data.parquet"), new CloudBlobClient(
+                new URI(base)));
+        return new BlobRandomAccessReader(blob, BLOCK, cacheSize, null, null, null);
+    }
+
+    private void assertRead(BlobRandomAccessReader reader, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        assertEquals(length, reader.read(buffer, position));
+        assertTrue(Arrays.equals(Arrays.copyOfRange(contents, (int) position, (int) position + length),
+                buffer.array()));
+    }
+
+    @Test
+    public void adjacentMissesAreCoalescedAndHitsAreCached() throws Exception {
+        BlobRandomAccessReader reader = open(100 * BLOCK);
+        assertEquals(contents.length, reader.size());
+
+        // Footer read, then a read spanning three blocks, then reads within cached blocks.
+        assertRead(reader, contents.length - 50, 50);
+        assertRead(reader, 2 * BLOCK + 10, 2 * BLOCK + 20);
+        assertRead(reader, 3 * BLOCK, 100);
+        assertRead(reader, contents.length - 100, 100);
+
+        assertEquals(2, rangeRequests.get());
+        assertEquals(2, reader.getRequestCount());
+        assertEquals(4, reader.getCacheMissCount());
+
+        // Blocks 1 and 5 are missing around cached 2..4; each is fetched on its own.
+        assertRead(reader, BLOCK, 5 * BLOCK);
+        assertEquals(4, rangeRequests.get());
+    }
+
+    @Test
+    public void sequentialReadsAdvancePositionAndEndWithMinusOne() throws Exception {
+        BlobRandomAccessReader reader = open(4 * BLOCK);
+        ByteBuffer all = ByteBuffer.allocate(contents.length);
+        ByteBuffer chunk = ByteBuffer.allocate(700);
+        int read;
+        while ((read = reader.read(chunk)) != -1) {
+            chunk.flip();
+            all.put(chunk);
+            chunk.clear();
+            assertTrue(read > 0);
+        }
+
+        assertTrue(Arrays.equals(contents, all.array()));
+        assertEquals(contents.length, reader.position());
+        reader.position(5);
+        assertRead(reader, 5, 10);
+    }
+
+    @Test
+    public void concurrentReadersShareFetches() throws Exception {
+        final BlobRandomAccessReader reader = open(100 * BLOCK);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        final CountDownLatch start = new CountDownLatch(1);
+        Future<?>[] futures = new Future<?>[16];
+        for (int m = 0; m < futures.length; m++) {
+            final int position = (m % 4) * BLOCK + m;
+            futures[m] = executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+                    assertRead(reader, position, 200);
+                    return null;
+                }
+            });
+        }
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        assertEquals(4, reader.getCacheMissCount());
+    }
+
+    @Test(expected = IOException.class)
+    public void modifiedBlobFailsReads() throws Exception {
+        BlobRandomAccessReader reader = open(100 * BLOCK);
+        etag = "\"v2\"";
+        reader.read(ByteBuffer.allocate(10), 0);
+    }
+
+    @Test(expected = java.nio.channels.ClosedChannelException.class)
+    public void closedReaderRejectsReads() throws Exception {
+        BlobRandomAccessReader reader = open(100 * BLOCK);
+        reader.close();
+        reader.read(ByteBuffer.allocate(10), 0);
+    }
+}
@@ -0,0 +1,199 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.services.blob.client;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class BlobReadCacheTest {
+
+    /**
+     * Serves blobs from memory with ETags, answering matching If-None-Match requests with 304.
+     */
+    private final Map<String, byte[]> contents = new HashMap<String, byte[]>();
+    private final Map<String, String> etags = new HashMap<String, String>();
+    private final AtomicInteger fullResponses = new AtomicInteger();
+    private final AtomicInteger notModifiedResponses = new AtomicInteger();
+    private HttpServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String path = exchange.getRequestURI().getPath();
+                byte[] data;
+                String etag;
+                synchronized (contents) {
+                    data = contents.get(path);
+                    etag = etags.get(path);
+                }
+
+                if (data == null) {
+                    exchange.sendResponseHeaders(404, -1);
+                }
+                else if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    notModifiedResponses.incrementAndGet();
+                    exchange.getResponseHeaders().add("ETag", etag);
+                    exchange.sendResponseHeaders(304, -1);
+                }
+                else {
+                    fullResponses.incrementAndGet();
+                    exchange.getResponseHeaders().add("ETag", etag);
+                    exchange.getResponseHeaders().add("x-ms-blob-type", "BlockBlob");
+                    exchange.sendResponseHeaders(200, data.length);
+                    OutputStream body = exchange.getResponseBody();
+                    body.write(data);
+                }
+                exchange.close();
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private void putBlob(String path, byte[] data, String etag) {
+        synchronized (contents) {
+            contents.put(path, data);
+            etags.put(path, etag);
+        }
+    }
+
+    private CloudBlockBlob blob(String path) throws Exception {
+        String base = "http://127.0.0.1:" + server.getAddress().getPort();
+        return new CloudBlockBlob(new URI(base + path), new CloudBlobClient(new URI(base)));
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] download(BlobReadCache cache, CloudBlob blob) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        cache.download(blob, out, null, null);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void revalidatesWithIfNoneMatchAndCountsHits() throws Exception {
+        byte[] data = randomBytes(5000);
+        putBlob("/container/config", data, "\"v1\"");
+        BlobReadCache cache = new BlobReadCache(1024 * 1024);
+
+        assertTrue(Arrays.equals(data, download(cache, blob("/container/config"))));
+        assertTrue(Arrays.equals(data, download(cache, blob("/container/config"))));
+
+        assertEquals(1, fullResponses.get());
+        assertEquals(1, notModifiedResponses.get());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(data.length, cache.getBytesSaved());
+
+        byte[] updated = randomBytes(6000);
+        putBlob("/container/config", updated, "\"v2\"");
+        CloudBlockBlob blob = blob("/container/config");
+        assertTrue(Arrays.equals(updated, download(cache, blob)));
+        assertEquals("\"v2\"", blob.getProperties().getEtag());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(updated.length, cache.getSizeInBytes());
+    }
+
+    @Test
+    public void revalidationIntervalAvoidsRequests() throws Exception {
+        byte[] data = randomBytes(3000);
+        putBlob("/container/model", data, "\"v1\"");
+        BlobReadCache cache = new BlobReadCache(1024 * 1024);
+        cache.setRevalidationIntervalInMs(60000);
+
+        download(cache, blob("/container/model"));
+        byte[] range = new byte[100];
+        assertEquals(100, cache.downloadRange(blob("/container/model"), 2900, 100, range, 0, null, null));
+        assertTrue(Arrays.equals(Arrays.copyOfRange(data, 2900, 3000), range));
+
+        InputStream stream = cache.openInputStream(blob("/container/model"), null, null);
+        assertEquals(data[0] & 0xFF, stream.read());
+        stream.close();
+
+        assertEquals(1, fullResponses.get());
+        assertEquals(0, notModifiedResponses.get());
+        assertEquals(2, cache.getHitCount());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedAndDiskEntriesAreDeleted() throws Exception {
+        File directory = new File(System.getProperty("java.io.tmpdir"), "blobreadcache-" + System.nanoTime());
+        putBlob("/container/a", randomBytes(400), "\"a\"");
+        putBlob("/container/b", randomBytes(400), "\"b\"");
+        putBlob("/container/c", randomBytes(400), "\"c\"");
+        BlobReadCache cache = new BlobReadCache(1000, directory);
+        cache.setRevalidationIntervalInMs(60000);
+
+        download(cache, blob("/container/a"));
+        download(cache, blob("/container/b"));
+        download(cache, blob("/container/a"));
+        download(cache, blob("/container/c"));
+
+        assertEquals(800, cache.getSizeInBytes());
+        assertEquals(2, directory.listFiles().length);
+
+        // b was least recently used and must be fetched again, a is still cached.
+        download(cache, blob("/container/a"));
+        assertEquals(3, fullResponses.get());
+        download(cache, blob("/container/b"));
+        assertEquals(4, fullResponses.get());
+
+        cache.clear();
+        assertEquals(0, directory.listFiles().length);
+        directory.delete();
+    }
+
+    @Test
+    public void blobsLargerThanCacheAreNotCached() throws Exception {
+        byte[] data = randomBytes(2000);
+        putBlob("/container/big", data, "\"big\"");
+        BlobReadCache cache = new BlobReadCache(1000);
+
+        assertTrue(Arrays.equals(data, download(cache, blob("/container/big"))));
+        assertEquals(0, cache.getSizeInBytes());
+        assertEquals(1, cache.getMissCount());
+    }
+}
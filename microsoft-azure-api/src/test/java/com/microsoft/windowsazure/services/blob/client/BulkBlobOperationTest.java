@@ -0,0 +1,257 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.services.blob.client;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.microsoft.windowsazure.services.core.storage.OperationContext;
+import com.microsoft.windowsazure.services.core.storage.RetryLinearRetry;
+import com.microsoft.windowsazure.services.core.storage.StorageException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class BulkBlobOperationTest {
+
+    /**
+     * Serves a container of blobs with metadata and ETags. Deleting a "conflict-" blob fails with 409, and the first
+     * delete of a "busy-" blob fails with 503.
+     */
+    private final TreeMap<String, Map<String, String>> blobs = new TreeMap<String, Map<String, String>>();
+    private final Map<String, Integer> etags = new HashMap<String, Integer>();
+    private final List<String> deleteRequests = new ArrayList<String>();
+    private HttpServer server;
+    private CloudBlobContainer container;
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().add("Connection", "close");
+                synchronized (blobs) {
+                    try {
+                        dispatch(exchange);
+                    }
+                    finally {
+                        exchange.close();
+                    }
+                }
+            }
+        });
+        server.start();
+
+        String base = "http://127.0.0.1:" + server.getAddress().getPort();
+        container = new CloudBlobClient(new URI(base)).getContainerReference("bulk");
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private void dispatch(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        String query = exchange.getRequestURI().getRawQuery();
+        String name = exchange.getRequestURI().getPath().substring("/bulk".length());
+        name = name.startsWith("/") ? name.substring(1) : name;
+
+        if (query != null && query.contains("comp=list")) {
+            String prefix = "";
+            for (String pair : query.split("&")) {
+                if (pair.startsWith("prefix=")) {
+                    prefix = URLDecoder.decode(pair.substring("prefix=".length()), "UTF-8");
+                }
+            }
+            sendListing(exchange, prefix, query.contains("include=metadata"));
+        }
+        else if ("DELETE".equals(method)) {
+            deleteRequests.add(name);
+            if (name.contains("conflict-")) {
+                exchange.sendResponseHeaders(409, -1);
+            }
+            else if (name.contains("busy-") && deleteRequests.indexOf(name) == deleteRequests.size() - 1) {
+                exchange.sendResponseHeaders(503, -1);
+            }
+            else if (blobs.remove(name) == null) {
+                exchange.sendResponseHeaders(404, -1);
+            }
+            else {
+                exchange.sendResponseHeaders(202, -1);
+            }
+        }
+        else if ("PUT".equals(method) && query != null && query.contains("comp=metadata")) {
+            String ifMatch = exchange.getRequestHeaders().getFirst("If-Match");
+            if (!("\"" + etags.get(name) + "\"").equals(ifMatch)) {
+                exchange.sendResponseHeaders(412, -1);
+                return;
+            }
+
+            Map<String, String> metadata = new TreeMap<String, String>();
+            for (Map.Entry<String, List<String>> header : exchange.getRequestHeaders().entrySet()) {
+                if (header.getKey().toLowerCase().startsWith("x-ms-meta-")) {
+                    metadata.put(header.getKey().toLowerCase().substring("x-ms-meta-".length()), header.getValue()
+                            .get(0));
+                }
+            }
+            blobs.put(name, metadata);
+            etags.put(name, etags.get(name) + 1);
+            exchange.getResponseHeaders().add("ETag", "\"" + etags.get(name) + "\"");
+            exchange.sendResponseHeaders(200, -1);
+        }
+        else {
+            exchange.sendResponseHeaders(400, -1);
+        }
+    }
+
+    private void sendListing(HttpExchange exchange, String prefix, boolean includeMetadata) throws IOException {
+        String base = "http://127.0.0.1:" + server.getAddress().getPort() + "/bulk/";
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?><EnumerationResults><Blobs>");
+        for (Map.Entry<String, Map<String, String>> blob : blobs.entrySet()) {
+            if (!blob.getKey().startsWith(prefix)) {
+                continue;
+            }
+
+            xml.append("<Blob><Name>").append(blob.getKey()).append("</Name><Url>").append(base)
+                    .append(blob.getKey()).append("</Url><Properties><Etag>\"").append(etags.get(blob.getKey()))
+                    .append("\"</Etag><BlobType>BlockBlob</BlobType></Properties>");
+            if (includeMetadata) {
+                xml.append("<Metadata>");
+                for (Map.Entry<String, String> entry : blob.getValue().entrySet()) {
+                    xml.append('<').append(entry.getKey()).append('>').append(entry.getValue()).append("</")
+                            .append(entry.getKey()).append('>');
+                }
+                xml.append("</Metadata>");
+            }
+            xml.append("</Blob>");
+        }
+        xml.append("</Blobs><NextMarker /></EnumerationResults>");
+
+        byte[] body = xml.toString().getBytes("UTF-8");
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+    }
+
+    private void addBlob(String name, String... metadata) {
+        Map<String, String> values = new TreeMap<String, String>();
+        for (int i = 0; i < metadata.length; i += 2) {
+            values.put(metadata[i], metadata[i + 1]);
+        }
+        synchronized (blobs) {
+            blobs.put(name, values);
+            etags.put(name, 1);
+        }
+    }
+
+    private static BlobRequestOptions options() {
+        BlobRequestOptions options = new BlobRequestOptions();
+        options.setConcurrentRequestCount(4);
+        options.setRetryPolicyFactory(new RetryLinearRetry(10, 3));
+        return options;
+    }
+
+    @Test
+    public void deletesEveryBlobUnderThePrefixAndReportsFailures() throws Exception {
+        for (int i = 0; i < 50; i++) {
+            addBlob("logs/" + i);
+        }
+        addBlob("logs/busy-1");
+        addBlob("logs/conflict-1");
+        addBlob("keep/1");
+
+        final List<Long> progress = new ArrayList<Long>();
+        BulkBlobOperation.Result result = container.deleteBlobs("logs/", DeleteSnapshotsOption.INCLUDE_SNAPSHOTS,
+                new BulkBlobOperation.ProgressListener() {
+                    @Override
+                    public void progress(long completedCount, long failedCount) {
+                        progress.add(completedCount + failedCount);
+                    }
+                }, options(), null);
+
+        assertEquals(51, result.getCompletedCount());
+        assertEquals(1, result.getFailedCount());
+        StorageException failure = result.getFailures().values().iterator().next();
+        assertEquals(409, failure.getHttpStatusCode());
+        assertTrue(result.getFailures().keySet().iterator().next().toString().endsWith("/bulk/logs/conflict-1"));
+        assertEquals(52, progress.size());
+        assertEquals(Long.valueOf(52), progress.get(51));
+
+        synchronized (blobs) {
+            assertEquals(2, blobs.size());
+            assertTrue(blobs.containsKey("keep/1"));
+        }
+    }
+
+    @Test
+    public void treatsBlobsAlreadyDeletedAsDeleted() throws Exception {
+        addBlob("tmp/a");
+        final CloudBlobContainer target = container;
+        BulkBlobOperation.Result result = container.forEachBlob("tmp/", null, new BulkBlobOperation.BlobAction() {
+            @Override
+            public void execute(CloudBlob blob, BlobRequestOptions options, OperationContext opContext)
+                    throws StorageException {
+                try {
+                    // Delete the blob behind the bulk operation's back first.
+                    target.getBlockBlobReference(blob.getName()).delete(DeleteSnapshotsOption.NONE, null, options,
+                            opContext);
+                }
+                catch (Exception e) {
+                    throw new AssertionError(e);
+                }
+                BulkBlobOperation.deleteAction(DeleteSnapshotsOption.NONE).execute(blob, options, opContext);
+            }
+        }, null, options(), null);
+
+        assertEquals(1, result.getCompletedCount());
+        assertEquals(0, result.getFailedCount());
+    }
+
+    @Test
+    public void mergesMetadataUnderADirectory() throws Exception {
+        addBlob("photos/2013/a", "owner", "alice");
+        addBlob("photos/2013/b");
+        addBlob("photos/2014/c", "owner", "bob");
+
+        HashMap<String, String> metadata = new HashMap<String, String>();
+        metadata.put("archived", "true");
+        CloudBlobDirectory directory = container.getDirectoryReference("photos/2013");
+        BulkBlobOperation.Result result = directory.uploadBlobMetadata(null, metadata, null, options(), null);
+
+        assertEquals(2, result.getCompletedCount());
+        synchronized (blobs) {
+            assertEquals("alice", blobs.get("photos/2013/a").get("owner"));
+            assertEquals("true", blobs.get("photos/2013/a").get("archived"));
+            assertEquals("true", blobs.get("photos/2013/b").get("archived"));
+            assertNull(blobs.get("photos/2014/c").get("archived"));
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.services.blob.client;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Test;
+
+import com.microsoft.windowsazure.services.core.storage.OperationContext;
+import com.microsoft.windowsazure.services.core.storage.StorageException;
+import com.microsoft.windowsazure.services.core.storage.utils.Base64;
+
+public class DedupBlockUploaderTest {
+    private static final int MIN = 1024;
+    private static final int MAX = 16 * 1024;
+    private static final int BITS = 12;
+
+    /**
+     * Captures blocks instead of sending them.
+     */
+    private static class CapturingUploader extends DedupBlockUploader {
+        final Map<String, byte[]> blocks = new ConcurrentHashMap<String, byte[]>();
+
+        CapturingUploader(BlobRequestOptions options) {
+            super(null, MIN, MAX, BITS, null, options, new OperationContext());
+        }
+
+        @Override
+        protected void putBlock(String blockId, byte[] data, int length, String md5) throws StorageException,
+                IOException {
+            assertTrue(length <= MAX);
+            byte[] block = new byte[length];
+            System.arraycopy(data, 0, block, 0, length);
+            assertNull("block uploaded twice", blocks.put(blockId, block));
+        }
+    }
+
+    private static BlobRequestOptions options() {
+        BlobRequestOptions options = new BlobRequestOptions();
+        options.setConcurrentRequestCount(3);
+        options.setStoreBlobContentMD5(true);
+        options.setUseTransactionalContentMD5(false);
+        return options;
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] assemble(List<BlockEntry> blockList, Map<String, byte[]> store) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (BlockEntry entry : blockList) {
+            byte[] block = store.get(entry.getId());
+            assertNotNull(block);
+            out.write(block, 0, block.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static List<BlockEntry> committed(Map<String, byte[]> store) {
+        List<BlockEntry> entries = new ArrayList<BlockEntry>();
+        for (Map.Entry<String, byte[]> block : store.entrySet()) {
+            BlockEntry entry = new BlockEntry(block.getKey(), BlockSearchMode.COMMITTED);
+            entry.setSize(block.getValue().length);
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    @Test
+    public void testInsertionOnlyResendsNearbyBlocks() throws Exception {
+        byte[] original = randomBytes(512 * 1024, 1);
+        CapturingUploader first = new CapturingUploader(options());
+        List<BlockEntry> firstList = first.uploadBlocks(new ByteArrayInputStream(original));
+        assertArrayEquals(original, assemble(firstList, first.blocks));
+        assertTrue(firstList.size() > 20);
+
+        // Insert a few bytes near the start; fixed-size blocks would all shift and change.
+        byte[] edited = new byte[original.length + 100];
+        System.arraycopy(original, 0, edited, 0, 3000);
+        System.arraycopy(randomBytes(100, 2), 0, edited, 3000, 100);
+        System.arraycopy(original, 3000, edited, 3100, original.length - 3000);
+
+        CapturingUploader second = new CapturingUploader(options());
+        second.setExistingBlocks(committed(first.blocks));
+        List<BlockEntry> secondList = second.uploadBlocks(new ByteArrayInputStream(edited));
+
+        Map<String, byte[]> store = new ConcurrentHashMap<String, byte[]>(first.blocks);
+        store.putAll(second.blocks);
+        assertArrayEquals(edited, assemble(secondList, store));
+        assertTrue("uploaded " + second.getUploadedBlockCount(), second.getUploadedBlockCount() <= 2);
+        assertTrue(second.getUploadedBytes() < 2 * MAX);
+
+        MessageDigest digest = MessageDigest.getInstance("MD5");
+        assertEquals(Base64.encode(digest.digest(edited)), second.getContentMD5());
+    }
+
+    @Test
+    public void testRepeatedContentIsUploadedOnce() throws Exception {
+        byte[] part = randomBytes(64 * 1024, 3);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int m = 0; m < 4; m++) {
+            stream.write(part, 0, part.length);
+        }
+        byte[] data = stream.toByteArray();
+
+        CapturingUploader uploader = new CapturingUploader(options());
+        List<BlockEntry> blockList = uploader.uploadBlocks(new ByteArrayInputStream(data));
+        assertArrayEquals(data, assemble(blockList, uploader.blocks));
+        assertTrue(uploader.getUploadedBytes() < part.length + 2 * MAX);
+    }
+
+    @Test
+    public void testBlocksRespectSizeLimits() throws Exception {
+        // Uniform content has no natural boundaries, so every block but the last is cut at the maximum.
+        byte[] data = new byte[5 * MAX + 10];
+        CapturingUploader uploader = new CapturingUploader(options());
+        List<BlockEntry> blockList = uploader.uploadBlocks(new ByteArrayInputStream(data));
+        assertArrayEquals(data, assemble(blockList, uploader.blocks));
+
+        byte[] random = randomBytes(256 * 1024, 4);
+        int offset = 0;
+        while (offset < random.length) {
+            byte[] rest = new byte[Math.min(MAX, random.length - offset)];
+            System.arraycopy(random, offset, rest, 0, rest.length);
+            int boundary = DedupBlockUploader.findBoundary(rest, rest.length, MIN, BITS);
+            if (boundary < 0) {
+                boundary = rest.length;
+            }
+            assertTrue(boundary >= MIN || offset + boundary == random.length);
+            offset += boundary;
+        }
+    }
+
+    @Test
+    public void testEmptyStream() throws Exception {
+        CapturingUploader uploader = new CapturingUploader(options());
+        assertEquals(0, uploader.uploadBlocks(new ByteArrayInputStream(new byte[0])).size());
+        assertEquals(0, uploader.getUploadedBlockCount());
+    }
+}
@@ -0,0 +1,217 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.services.blob.client;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.microsoft.windowsazure.services.core.storage.OperationContext;
+import com.microsoft.windowsazure.services.core.storage.StorageException;
+import com.microsoft.windowsazure.services.core.storage.utils.Base64;
+
+public class FileBlockUploaderTest {
+
+    /**
+     * Captures blocks instead of sending them, delaying early blocks so they complete out of order.
+     */
+    private static class CapturingUploader extends FileBlockUploader {
+        final Map<String, byte[]> blocks = new ConcurrentHashMap<String, byte[]>();
+        final Map<String, String> md5s = new ConcurrentHashMap<String, String>();
+        final int failOnCall;
+        private int calls;
+
+        CapturingUploader(FileChannel channel, long offset, long length, int blockSize, BlobRequestOptions options,
+                int failOnCall) throws StorageException {
+            super(null, channel, offset, length, blockSize, null, options, new OperationContext());
+            this.failOnCall = failOnCall;
+        }
+
+        @Override
+        protected void putBlock(String blockId, byte[] data, String md5) throws StorageException, IOException {
+            int call;
+            synchronized (this) {
+                call = ++calls;
+            }
+            if (call == failOnCall) {
+                throw new StorageException("ServerBusy", "busy", 503, null, null);
+            }
+            try {
+                Thread.sleep(call <= 2 ? 50 : 0);
+            }
+            catch (InterruptedException e) {
+                throw new IOException("interrupted");
+            }
+            blocks.put(blockId, data);
+            if (md5 != null) {
+                md5s.put(blockId, md5);
+            }
+        }
+    }
+
+    private File file;
+    private byte[] contents;
+    private RandomAccessFile raf;
+
+    @Before
+    public void setUp() throws IOException {
+        contents = new byte[10 * 1000 + 37];
+        new Random(7).nextBytes(contents);
+        file = File.createTempFile("fileblockuploader", ".bin");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(contents);
+        out.close();
+        raf = new RandomAccessFile(file, "r");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        raf.close();
+        file.delete();
+    }
+
+    private static BlobRequestOptions options(boolean storeMd5, boolean transactionalMd5) {
+        BlobRequestOptions options = new BlobRequestOptions();
+        options.setConcurrentRequestCount(4);
+        options.setStoreBlobContentMD5(storeMd5);
+        options.setUseTransactionalContentMD5(transactionalMd5);
+        return options;
+    }
+
+    private static String md5(byte[] data, int offset, int length) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("MD5");
+        digest.update(data, offset, length);
+        return Base64.encode(digest.digest());
+    }
+
+    @Test
+    public void blocksReassembleToFileAndBlobMd5MatchesDespiteOutOfOrderCompletion() throws Exception {
+        CapturingUploader uploader = new CapturingUploader(raf.getChannel(), 0, contents.length, 1000, options(
+                true, false), -1);
+
+        ArrayList<BlockEntry> blockList = uploader.uploadBlocks();
+
+        assertEquals(11, blockList.size());
+        int position = 0;
+        for (BlockEntry entry : blockList) {
+            byte[] block = uploader.blocks.get(entry.getId());
+            for (int m = 0; m < block.length; m++) {
+                assertEquals(contents[position + m], block[m]);
+            }
+            position += block.length;
+        }
+        assertEquals(contents.length, position);
+        assertEquals(md5(contents, 0, contents.length), uploader.getContentMD5());
+        assertTrue(uploader.md5s.isEmpty());
+        assertEquals(0, raf.getChannel().position());
+    }
+
+    @Test
+    public void transactionalMd5IsComputedPerBlockForRegion() throws Exception {
+        CapturingUploader uploader = new CapturingUploader(raf.getChannel(), 500, 2500, 1000, options(false, true),
+                -1);
+
+        ArrayList<BlockEntry> blockList = uploader.uploadBlocks();
+
+        assertEquals(3, blockList.size());
+        assertNull(uploader.getContentMD5());
+        assertEquals(md5(contents, 500, 1000), uploader.md5s.get(blockList.get(0).getId()));
+        assertEquals(md5(contents, 1500, 1000), uploader.md5s.get(blockList.get(1).getId()));
+        assertEquals(md5(contents, 2500, 500), uploader.md5s.get(blockList.get(2).getId()));
+    }
+
+    @Test
+    public void blockFailureIsSurfaced() throws Exception {
+        CapturingUploader uploader = new CapturingUploader(raf.getChannel(), 0, contents.length, 1000, options(
+                false, false), 3);
+
+        try {
+            uploader.uploadBlocks();
+            fail("expected StorageException");
+        }
+        catch (StorageException e) {
+            assertEquals(503, e.getHttpStatusCode());
+        }
+    }
+
+    @Test
+    public void resumedUploadRejectsBlocksStagedByAnotherUpload() throws Exception {
+        CapturingUploader uploader = new CapturingUploader(raf.getChannel(), 0, contents.length, 1000, options(false,
+                false), -1);
+        ArrayList<BlockEntry> staged = new ArrayList<BlockEntry>();
+        staged.add(new BlockEntry(Base64.encode(new byte[8]), BlockSearchMode.UNCOMMITTED));
+
+        try {
+            uploader.setExistingBlocks(staged);
+            fail("expected StorageException");
+        }
+        catch (StorageException e) {
+            assertEquals("InvalidInput", e.getErrorCode());
+        }
+        assertEquals(0, uploader.getUploadedBlockCount());
+    }
+
+    @Test(expected = IOException.class)
+    public void shortFileIsReported() throws Exception {
+        new CapturingUploader(raf.getChannel(), 0, contents.length + 1000, 1000, options(false, false), -1)
+                .uploadBlocks();
+    }
+
+    @Test
+    public void resumedUploadOnlySendsMissingBlocks() throws Exception {
+        CapturingUploader first = new CapturingUploader(raf.getChannel(), 0, contents.length, 1000, options(false,
+                false), -1);
+        first.setExistingBlocks(new ArrayList<BlockEntry>());
+        ArrayList<BlockEntry> firstList = first.uploadBlocks();
+        assertEquals(11, first.getUploadedBlockCount());
+
+        // Pretend all but blocks 3 and 10 were staged before the interruption.
+        ArrayList<BlockEntry> staged = new ArrayList<BlockEntry>();
+        for (int m = 0; m < firstList.size(); m++) {
+            if (m != 3 && m != 10) {
+                BlockEntry entry = new BlockEntry(firstList.get(m).getId(), BlockSearchMode.UNCOMMITTED);
+                entry.setSize(first.blocks.get(firstList.get(m).getId()).length);
+                staged.add(entry);
+            }
+        }
+
+        CapturingUploader resumed = new CapturingUploader(raf.getChannel(), 0, contents.length, 1000, options(true,
+                false), -1);
+        resumed.setExistingBlocks(staged);
+        ArrayList<BlockEntry> resumedList = resumed.uploadBlocks();
+
+        assertEquals(2, resumed.getUploadedBlockCount());
+        assertTrue(resumed.blocks.containsKey(firstList.get(3).getId()));
+        assertTrue(resumed.blocks.containsKey(firstList.get(10).getId()));
+        for (int m = 0; m < firstList.size(); m++) {
+            assertEquals(firstList.get(m).getId(), resumedList.get(m).getId());
+            assertEquals(firstList.get(0).getId().length(), resumedList.get(m).getId().length());
+        }
+        assertEquals(md5(contents, 0, contents.length), resumed.getContentMD5());
+    }
+}
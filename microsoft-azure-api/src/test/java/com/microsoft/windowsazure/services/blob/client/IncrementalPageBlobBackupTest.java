@@ -0,0 +1,253 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.services.blob.client;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.microsoft.windowsazure.services.core.storage.OperationContext;
+import com.microsoft.windowsazure.services.core.storage.StorageException;
+
+public class IncrementalPageBlobBackupTest {
+    private static final int PAGE = BlobConstants.PAGE_SIZE;
+    private static final int CHUNK = IncrementalPageBlobBackup.CHUNK_SIZE;
+    private static final int LENGTH = 3 * CHUNK + 2 * PAGE;
+
+    /**
+     * Serves the snapshot from an in-memory image and records writes to an in-memory target blob.
+     */
+    private static class InMemoryBackup extends IncrementalPageBlobBackup {
+        final byte[] source;
+        final List<PageRange> ranges;
+        final byte[] target = new byte[LENGTH];
+        final List<long[]> puts = Collections.synchronizedList(new ArrayList<long[]>());
+        final List<long[]> clears = Collections.synchronizedList(new ArrayList<long[]>());
+        int creates;
+
+        InMemoryBackup(CloudPageBlob snapshot, PageBlobBackupManifest previous, byte[] source, List<PageRange> ranges) {
+            super(snapshot, previous);
+            this.source = source;
+            this.ranges = ranges;
+        }
+
+        @Override
+        long getSourceLength(BlobRequestOptions options, OperationContext opContext) {
+            return source.length;
+        }
+
+        @Override
+        List<PageRange> getSourcePageRanges(BlobRequestOptions options, OperationContext opContext) {
+            return ranges;
+        }
+
+        @Override
+        void getPages(long offset, byte[] buffer, int bufferOffset, int length, BlobRequestOptions options,
+                OperationContext opContext) {
+            assertTrue(length <= CHUNK);
+            System.arraycopy(source, (int) offset, buffer, bufferOffset, length);
+        }
+
+        @Override
+        void createTarget(CloudPageBlob blob, long length, BlobRequestOptions options, OperationContext opContext) {
+            Arrays.fill(target, (byte) 0);
+            creates++;
+        }
+
+        @Override
+        void putPages(CloudPageBlob blob, long offset, byte[] buffer, int bufferOffset, int length,
+                BlobRequestOptions options, OperationContext opContext) {
+            assertTrue(length <= CHUNK);
+            System.arraycopy(buffer, bufferOffset, target, (int) offset, length);
+            puts.add(new long[] { offset, length });
+        }
+
+        @Override
+        void clearPages(CloudPageBlob blob, long offset, long length, BlobRequestOptions options,
+                OperationContext opContext) {
+            Arrays.fill(target, (int) offset, (int) (offset + length), (byte) 0);
+            clears.add(new long[] { offset, length });
+        }
+    }
+
+    private CloudPageBlob snapshot;
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        CloudBlobClient client = new CloudBlobClient(new URI("http://127.0.0.1/"));
+        snapshot = new CloudPageBlob(new URI("http://127.0.0.1/vhds/disk.vhd"), "2013-01-01T00:00:00.0000000Z",
+                client);
+        file = File.createTempFile("incrementalbackup", ".vhd");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private static BlobRequestOptions options() {
+        BlobRequestOptions options = new BlobRequestOptions();
+        options.setConcurrentRequestCount(3);
+        return options;
+    }
+
+    private static void fill(byte[] image, List<PageRange> ranges, long start, int length, int seed) {
+        for (int m = 0; m < length; m++) {
+            image[(int) start + m] = (byte) (seed + m * 31 + (m >> 9));
+        }
+        ranges.add(new PageRange(start, start + length - 1));
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) input.length()];
+            input.readFully(data);
+            return data;
+        }
+        finally {
+            input.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRequiresSnapshot() throws Exception {
+        new IncrementalPageBlobBackup(new CloudPageBlob(new URI("http://127.0.0.1/vhds/disk.vhd"),
+                new CloudBlobClient(new URI("http://127.0.0.1/"))), null);
+    }
+
+    @Test
+    public void testSplitIntoChunks() {
+        List<PageRange> ranges = new ArrayList<PageRange>();
+        ranges.add(new PageRange(0, PAGE - 1));
+        ranges.add(new PageRange(CHUNK - PAGE, 2 * CHUNK + PAGE - 1));
+
+        List<PageRange> first = IncrementalPageBlobBackup.splitIntoChunks(ranges).get(0L);
+        assertEquals(2, first.size());
+        assertEquals(CHUNK - 1, first.get(1).getEndOffset());
+        assertEquals(1, IncrementalPageBlobBackup.splitIntoChunks(ranges).get(1L).size());
+        assertEquals(2 * CHUNK, IncrementalPageBlobBackup.splitIntoChunks(ranges).get(2L).get(0).getStartOffset());
+        assertEquals(3, IncrementalPageBlobBackup.splitIntoChunks(ranges).size());
+    }
+
+    @Test
+    public void testIncrementalFileBackupWritesOnlyChangedChunks() throws Exception {
+        byte[] image = new byte[LENGTH];
+        List<PageRange> ranges = new ArrayList<PageRange>();
+        fill(image, ranges, 0, 4 * PAGE, 1);
+        fill(image, ranges, CHUNK + 8 * PAGE, 2 * PAGE, 2);
+        fill(image, ranges, 3 * CHUNK, 2 * PAGE, 3);
+
+        InMemoryBackup full = new InMemoryBackup(snapshot, null, image, ranges);
+        PageBlobBackupManifest manifest = full.backupToFile(file, options(), null);
+        assertArrayEquals(image, readFile(file));
+        assertEquals(8 * PAGE, full.getBytesRead());
+        assertEquals(3, full.getChangedChunkCount());
+        assertEquals(3, manifest.getChunkHashes().size());
+        assertTrue(manifest.verify(file));
+
+        // Round-trip the manifest as the caller would between backups.
+        ByteArrayOutputStream saved = new ByteArrayOutputStream();
+        manifest.write(saved);
+        PageBlobBackupManifest previous = PageBlobBackupManifest.read(new ByteArrayInputStream(saved.toByteArray()));
+        assertEquals(manifest.getChunkHashes(), previous.getChunkHashes());
+        assertEquals(manifest.getSnapshotID(), previous.getSnapshotID());
+
+        // Change the second chunk and drop the pages of the last one.
+        byte[] next = image.clone();
+        next[CHUNK + 8 * PAGE + 5] ^= 0x55;
+        Arrays.fill(next, 3 * CHUNK, LENGTH, (byte) 0);
+        List<PageRange> nextRanges = new ArrayList<PageRange>(ranges.subList(0, 2));
+
+        InMemoryBackup incremental = new InMemoryBackup(snapshot, previous, next, nextRanges);
+        PageBlobBackupManifest nextManifest = incremental.backupToFile(file, options(), null);
+        assertArrayEquals(next, readFile(file));
+        assertEquals(2, incremental.getChangedChunkCount());
+        assertEquals(CHUNK + 2 * PAGE, incremental.getBytesWritten());
+        assertEquals(manifest.getChunkHashes().get(0L), nextManifest.getChunkHashes().get(0L));
+        assertFalse(nextManifest.getChunkHashes().containsKey(3L));
+        assertTrue(nextManifest.verify(file));
+        assertFalse(manifest.verify(file));
+    }
+
+    @Test
+    public void testIncrementalPageBlobBackupKeepsTargetSparse() throws Exception {
+        byte[] image = new byte[LENGTH];
+        List<PageRange> ranges = new ArrayList<PageRange>();
+        fill(image, ranges, 2 * PAGE, 2 * PAGE, 4);
+        fill(image, ranges, 2 * CHUNK, 3 * PAGE, 5);
+
+        CloudPageBlob targetBlob = new CloudPageBlob(new URI("http://127.0.0.1/backups/disk.vhd"),
+                new CloudBlobClient(new URI("http://127.0.0.1/")));
+        InMemoryBackup full = new InMemoryBackup(snapshot, null, image, ranges);
+        PageBlobBackupManifest manifest = full.backupToPageBlob(targetBlob, options(), null);
+        assertEquals(1, full.creates);
+        assertEquals(2, full.puts.size());
+        assertEquals(0, full.clears.size());
+        assertArrayEquals(image, full.target);
+
+        // Move the data within the first chunk; the old pages must be cleared, the unchanged chunk left alone.
+        byte[] next = image.clone();
+        Arrays.fill(next, 2 * PAGE, 4 * PAGE, (byte) 0);
+        List<PageRange> nextRanges = new ArrayList<PageRange>();
+        fill(next, nextRanges, 6 * PAGE, PAGE, 6);
+        nextRanges.add(ranges.get(1));
+
+        InMemoryBackup incremental = new InMemoryBackup(snapshot, manifest, next, nextRanges);
+        System.arraycopy(full.target, 0, incremental.target, 0, LENGTH);
+        incremental.backupToPageBlob(targetBlob, options(), null);
+        assertEquals(0, incremental.creates);
+        assertEquals(1, incremental.puts.size());
+        assertEquals(6 * PAGE, incremental.puts.get(0)[0]);
+        assertEquals(2, incremental.clears.size());
+        assertEquals(1, incremental.getChangedChunkCount());
+        assertArrayEquals(next, incremental.target);
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadRejectsOtherContent() throws IOException {
+        PageBlobBackupManifest.read(new ByteArrayInputStream("not a manifest\n".getBytes("UTF-8")));
+    }
+
+    @Test
+    public void testLengthChangeForcesFullBackup() throws StorageException, IOException {
+        byte[] image = new byte[LENGTH];
+        List<PageRange> ranges = new ArrayList<PageRange>();
+        fill(image, ranges, 0, PAGE, 7);
+        PageBlobBackupManifest manifest = new InMemoryBackup(snapshot, null, image, ranges).backupToFile(file,
+                options(), null);
+
+        byte[] grown = Arrays.copyOf(image, LENGTH + CHUNK);
+        InMemoryBackup incremental = new InMemoryBackup(snapshot, manifest, grown, ranges);
+        PageBlobBackupManifest next = incremental.backupToFile(file, options(), null);
+        assertEquals(1, incremental.getChangedChunkCount());
+        assertEquals(LENGTH + CHUNK, next.getLength());
+        assertArrayEquals(grown, readFile(file));
+    }
+}
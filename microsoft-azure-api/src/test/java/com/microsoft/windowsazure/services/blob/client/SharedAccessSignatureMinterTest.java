@@ -0,0 +1,148 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.services.blob.client;
+
+import static org.junit.Assert.*;
+
+import java.net.URI;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.microsoft.windowsazure.services.core.storage.StorageCredentialsAccountAndKey;
+import com.microsoft.windowsazure.services.core.storage.utils.Base64;
+
+public class SharedAccessSignatureMinterTest {
+
+    private static final String KEY = Base64.encode("0123456789abcdef0123456789abcdef".getBytes());
+
+    /**
+     * A minter with a settable clock.
+     */
+    private static final class TestMinter extends SharedAccessSignatureMinter {
+        long now = 1356998400000L;
+
+        TestMinter(CloudBlobClient client) {
+            super(client);
+        }
+
+        @Override
+        long getCurrentTime() {
+            return now;
+        }
+    }
+
+    private static CloudBlobClient client(String endpoint, String account) throws Exception {
+        return new CloudBlobClient(new URI(endpoint), new StorageCredentialsAccountAndKey(account, KEY));
+    }
+
+    private static Map<String, String> parse(String query) {
+        Map<String, String> values = new HashMap<String, String>();
+        for (String pair : query.split("&")) {
+            int separator = pair.indexOf('=');
+            values.put(pair.substring(0, separator), pair.substring(separator + 1));
+        }
+        return values;
+    }
+
+    private static String expected(CloudBlob blob, EnumSet<SharedAccessBlobPermissions> permissions, long expiry)
+            throws Exception {
+        SharedAccessBlobPolicy policy = new SharedAccessBlobPolicy();
+        policy.setPermissions(permissions);
+        policy.setSharedAccessExpiryTime(new Date(expiry));
+        return blob.generateSharedAccessSignature(policy, null);
+    }
+
+    @Test
+    public void matchesTheBlobSignatureWithABucketedExpiry() throws Exception {
+        CloudBlobClient client = client("http://myaccount.blob.core.windows.net", "myaccount");
+        CloudBlockBlob blob = client.getContainerReference("images").getBlockBlobReference("photos/a b+c.png");
+        TestMinter minter = new TestMinter(client);
+        EnumSet<SharedAccessBlobPermissions> permissions = EnumSet.of(SharedAccessBlobPermissions.READ);
+        SharedAccessSignatureMinter.Template template = minter.createTemplate(permissions, 3600, 300);
+
+        minter.now += 1000;
+        String token = minter.generateSharedAccessSignature(template, blob);
+
+        // 1356998400000 is a multiple of 300 s, so the expiry rounds up to one bucket after an hour.
+        long expiry = 1356998400000L + 3600 * 1000L + 300 * 1000L;
+        assertEquals(parse(expected(blob, permissions, expiry)), parse(token));
+        assertEquals("sv", token.substring(0, 2));
+    }
+
+    @Test
+    public void cachesSignaturesWithinABucket() throws Exception {
+        CloudBlobClient client = client("http://myaccount.blob.core.windows.net", "myaccount");
+        CloudBlockBlob blob = client.getContainerReference("images").getBlockBlobReference("logo.png");
+        TestMinter minter = new TestMinter(client);
+        SharedAccessSignatureMinter.Template template = minter.createTemplate(
+                EnumSet.of(SharedAccessBlobPermissions.READ), 600, 60);
+
+        minter.now += 1000;
+        String first = minter.generateSharedAccessSignature(template, blob);
+        minter.now += 30 * 1000;
+        String second = minter.generateSharedAccessSignature(template, blob);
+
+        assertSame(first, second);
+        assertEquals(1, minter.getComputedCount());
+        assertEquals(1, minter.getCachedCount());
+
+        minter.now += 60 * 1000;
+        String third = minter.generateSharedAccessSignature(template, blob);
+
+        assertFalse(first.equals(third));
+        assertEquals(2, minter.getComputedCount());
+        assertEquals(parse(expected(blob, EnumSet.of(SharedAccessBlobPermissions.READ), 1356998400000L + 720 * 1000L)),
+                parse(third));
+    }
+
+    @Test
+    public void signsManyPathsInOneCall() throws Exception {
+        CloudBlobClient client = client("http://myaccount.blob.core.windows.net", "myaccount");
+        TestMinter minter = new TestMinter(client);
+        minter.setMaxCachedSignatures(0);
+        EnumSet<SharedAccessBlobPermissions> permissions = EnumSet.of(SharedAccessBlobPermissions.READ,
+                SharedAccessBlobPermissions.WRITE);
+        SharedAccessSignatureMinter.Template template = minter.createTemplate(permissions, 60, 60);
+
+        String[] tokens = minter.generateSharedAccessSignatures(template, "videos/1.mp4", "videos/dir/2 two.mp4");
+
+        assertEquals(2, tokens.length);
+        long expiry = 1356998400000L + 60 * 1000L;
+        CloudBlobContainer container = client.getContainerReference("videos");
+        assertEquals(parse(expected(container.getBlockBlobReference("1.mp4"), permissions, expiry)), parse(tokens[0]));
+        assertEquals(parse(expected(container.getBlockBlobReference("dir/2 two.mp4"), permissions, expiry)),
+                parse(tokens[1]));
+        assertEquals(2, minter.getComputedCount());
+        assertEquals(0, minter.getCachedCount());
+    }
+
+    @Test
+    public void supportsStoredPoliciesAndPathStyleEndpoints() throws Exception {
+        CloudBlobClient client = client("http://127.0.0.1:10000/devstoreaccount1", "devstoreaccount1");
+        CloudBlockBlob blob = client.getContainerReference("data").getBlockBlobReference("report.csv");
+        SharedAccessSignatureMinter minter = new SharedAccessSignatureMinter(client);
+        SharedAccessSignatureMinter.Template template = minter.createTemplate("readers");
+
+        assertEquals(parse(blob.generateSharedAccessSignature(null, "readers")),
+                parse(minter.generateSharedAccessSignature(template, blob)));
+        assertEquals(parse(blob.generateSharedAccessSignature(null, "readers")),
+                parse(minter.generateSharedAccessSignatures(template, "data/report.csv")[0]));
+        assertEquals(1, minter.getComputedCount());
+    }
+}
@@ -0,0 +1,162 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.services.blob.client;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.microsoft.windowsazure.services.core.storage.Constants;
+import com.microsoft.windowsazure.services.core.storage.OperationContext;
+import com.microsoft.windowsazure.services.core.storage.StorageException;
+
+public class SparsePageTransferTest {
+    private static final int PAGE = BlobConstants.PAGE_SIZE;
+
+    /**
+     * Records page writes and serves page reads from an in-memory image.
+     */
+    private static class RecordingTransfer extends SparsePageTransfer {
+        final List<long[]> puts = Collections.synchronizedList(new ArrayList<long[]>());
+        final byte[] image;
+
+        RecordingTransfer(RandomAccessFile file, byte[] image) {
+            super(null, file.getChannel(), null, options(), new OperationContext());
+            this.image = image;
+        }
+
+        @Override
+        protected void putPages(long offset, byte[] data) throws StorageException, IOException {
+            assertTrue(data.length <= 4 * Constants.MB);
+            assertEquals(0, data.length % PAGE);
+            System.arraycopy(data, 0, image, (int) offset, data.length);
+            puts.add(new long[] { offset, data.length });
+        }
+
+        @Override
+        protected void getPages(long offset, byte[] data) throws StorageException, IOException {
+            System.arraycopy(image, (int) offset, data, 0, data.length);
+        }
+    }
+
+    private static BlobRequestOptions options() {
+        BlobRequestOptions options = new BlobRequestOptions();
+        options.setConcurrentRequestCount(3);
+        return options;
+    }
+
+    private File file;
+    private RandomAccessFile raf;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("sparsepagetransfer", ".vhd");
+        raf = new RandomAccessFile(file, "rw");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        raf.close();
+        file.delete();
+    }
+
+    private void write(long offset, byte[] data) throws IOException {
+        raf.seek(offset);
+        raf.write(data);
+    }
+
+    private static byte[] filled(int length, int value) {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte) value);
+        return data;
+    }
+
+    @Test
+    public void emptyPageScanDetectsSingleNonZeroByte() {
+        ByteBuffer buffer = ByteBuffer.allocate(2 * PAGE);
+        assertTrue(SparsePageTransfer.isEmptyPage(buffer, 0));
+        buffer.put(PAGE + PAGE - 1, (byte) 1);
+        assertTrue(SparsePageTransfer.isEmptyPage(buffer, 0));
+        assertFalse(SparsePageTransfer.isEmptyPage(buffer, PAGE));
+    }
+
+    @Test
+    public void uploadSendsOnlyCoalescedNonEmptyRanges() throws Exception {
+        long length = 10L * Constants.MB;
+        raf.setLength(length);
+        // Two adjacent pages, a single page with one set byte, and a 5 MB run crossing the 4 MB scan boundary.
+        write(PAGE, filled(2 * PAGE, 7));
+        write(10 * PAGE + 100, new byte[] { 1 });
+        long runStart = 3L * Constants.MB;
+        write(runStart, filled(5 * Constants.MB, 9));
+
+        byte[] image = new byte[(int) length];
+        RecordingTransfer transfer = new RecordingTransfer(raf, image);
+        transfer.upload(length);
+
+        List<long[]> puts = new ArrayList<long[]>(transfer.puts);
+        Collections.sort(puts, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return Long.valueOf(a[0]).compareTo(b[0]);
+            }
+        });
+
+        assertEquals(4, puts.size());
+        assertArrayEquals(new long[] { PAGE, 2 * PAGE }, puts.get(0));
+        assertArrayEquals(new long[] { 10 * PAGE, PAGE }, puts.get(1));
+        assertArrayEquals(new long[] { runStart, 4 * Constants.MB }, puts.get(2));
+        assertArrayEquals(new long[] { runStart + 4 * Constants.MB, Constants.MB }, puts.get(3));
+        assertEquals(2 * PAGE + PAGE + 5 * Constants.MB, transfer.getBytesTransferred());
+
+        byte[] original = new byte[(int) length];
+        raf.seek(0);
+        raf.readFully(original);
+        assertTrue(Arrays.equals(original, image));
+    }
+
+    @Test
+    public void downloadWritesOnlyPopulatedRanges() throws Exception {
+        byte[] image = new byte[6 * Constants.MB];
+        Arrays.fill(image, PAGE, 3 * PAGE, (byte) 3);
+        Arrays.fill(image, Constants.MB, 6 * Constants.MB, (byte) 4);
+
+        raf.setLength(image.length);
+        ArrayList<PageRange> ranges = new ArrayList<PageRange>();
+        ranges.add(new PageRange(PAGE, 3 * PAGE - 1));
+        ranges.add(new PageRange(Constants.MB, 6 * Constants.MB - 1));
+
+        RecordingTransfer transfer = new RecordingTransfer(raf, image);
+        transfer.download(ranges);
+
+        assertEquals(2 * PAGE + 5 * Constants.MB, transfer.getBytesTransferred());
+        byte[] written = new byte[image.length];
+        raf.seek(0);
+        raf.readFully(written);
+        assertTrue(Arrays.equals(image, written));
+    }
+}
@@ -0,0 +1,178 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.services.core;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.microsoft.windowsazure.services.core.utils.EndpointCircuitBreaker;
+import com.microsoft.windowsazure.services.core.utils.RetryBudget;
+import com.microsoft.windowsazure.services.core.utils.ThrottlingBackoff;
+import com.microsoft.windowsazure.services.core.utils.pipeline.ClientFilterAdapter;
+import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.ClientResponse;
+
+/**
+ * Simulates clients against a local throttling endpoint to exercise {@link AdaptiveRetryPolicy} through
+ * {@link RetryPolicyFilter}.
+ */
+public class AdaptiveRetryPolicyTest {
+    private static final int[] RETRYABLE = new int[] { 500, 503 };
+
+    private ThrottlingStubServer stub;
+
+    @Before
+    public void setup() throws Exception {
+        stub = new ThrottlingStubServer().start();
+    }
+
+    @After
+    public void teardown() {
+        stub.stop();
+    }
+
+    private Client createClient(RetryPolicy policy) {
+        Client client = Client.create();
+        client.addFilter(new ClientFilterAdapter(new RetryPolicyFilter(policy)));
+        return client;
+    }
+
+    @Test
+    public void retriesThrottledRequestUntilSuccess() throws Exception {
+        stub.throttleFirst(2);
+        AdaptiveRetryPolicy policy = new AdaptiveRetryPolicy(1, 20, 3, RETRYABLE, new RetryBudget(),
+                new EndpointCircuitBreaker());
+
+        ClientResponse response = createClient(policy).resource(stub.getUri()).get(ClientResponse.class);
+
+        assertEquals(200, response.getStatus());
+        assertEquals(3, stub.getRequestCount());
+    }
+
+    @Test
+    public void honorsRetryAfterHeader() throws Exception {
+        stub.throttleFirst(1).withRetryAfter("1");
+        AdaptiveRetryPolicy policy = new AdaptiveRetryPolicy(1, 5000, 3, RETRYABLE, new RetryBudget(),
+                new EndpointCircuitBreaker());
+
+        long start = System.currentTimeMillis();
+        ClientResponse response = createClient(policy).resource(stub.getUri()).get(ClientResponse.class);
+
+        assertEquals(200, response.getStatus());
+        assertTrue(System.currentTimeMillis() - start >= 1000);
+    }
+
+    @Test
+    public void givesUpWhenRetryAfterExceedsMaximumBackoff() throws Exception {
+        stub.throttleFirst(1).withRetryAfter("60");
+        AdaptiveRetryPolicy policy = new AdaptiveRetryPolicy(1, 1000, 3, RETRYABLE, new RetryBudget(),
+                new EndpointCircuitBreaker());
+
+        ClientResponse response = createClient(policy).resource(stub.getUri()).get(ClientResponse.class);
+
+        assertEquals(503, response.getStatus());
+        assertEquals(1, stub.getRequestCount());
+    }
+
+    @Test
+    public void exhaustedBudgetStopsRetries() throws Exception {
+        stub.throttleFirst(Integer.MAX_VALUE);
+        AdaptiveRetryPolicy policy = new AdaptiveRetryPolicy(1, 5, 10, RETRYABLE, new RetryBudget(4, 0),
+                new EndpointCircuitBreaker(1000, 60000, 60000));
+        Client client = createClient(policy);
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(503, client.resource(stub.getUri()).get(ClientResponse.class).getStatus());
+        }
+
+        // 3 first attempts plus the 4 retries the budget allowed
+        assertEquals(7, stub.getRequestCount());
+        assertEquals(0, policy.getRetryBudget().getAvailableTokens());
+    }
+
+    @Test
+    public void openCircuitStopsRetries() throws Exception {
+        stub.throttleFirst(Integer.MAX_VALUE);
+        EndpointCircuitBreaker breaker = new EndpointCircuitBreaker(2, 60000, 60000);
+        AdaptiveRetryPolicy policy = new AdaptiveRetryPolicy(1, 5, 10, RETRYABLE, new RetryBudget(), breaker);
+
+        ClientResponse response = createClient(policy).resource(stub.getUri()).get(ClientResponse.class);
+
+        assertEquals(503, response.getStatus());
+        assertEquals(2, stub.getRequestCount());
+        assertTrue(breaker.isOpen(stub.getUri().substring(0, stub.getUri().length() - 1)));
+    }
+
+    @Test
+    public void decorrelatedJitterStaysWithinBounds() {
+        Random random = new Random(42);
+        int previous = 10;
+        for (int i = 0; i < 1000; i++) {
+            int next = ThrottlingBackoff.nextDecorrelatedJitter(random, 10, 500, previous);
+            assertTrue(next >= 10);
+            assertTrue(next <= Math.max(10, Math.min(500, previous * 3)));
+            previous = next;
+        }
+    }
+
+    @Test
+    public void parsesRetryAfterInBothForms() {
+        Date now = new Date(1000000000000L);
+        assertEquals(5000, ThrottlingBackoff.parseRetryAfter("5", now));
+        assertEquals(-1, ThrottlingBackoff.parseRetryAfter("soon", now));
+        assertEquals(-1, ThrottlingBackoff.parseRetryAfter(null, now));
+        assertEquals(10000, ThrottlingBackoff.parseRetryAfter("Sun, 09 Sep 2001 01:46:50 GMT", now));
+    }
+
+    @Test
+    public void fleetOfClientsStaysWithinRetryBudget() throws Exception {
+        stub.withCapacity(2).withServiceTime(20);
+        final int clients = 16;
+        final int budget = 20;
+        AdaptiveRetryPolicy policy = new AdaptiveRetryPolicy(5, 200, 5, RETRYABLE, new RetryBudget(budget, 0),
+                new EndpointCircuitBreaker(1000, 60000, 60000));
+        final Client client = createClient(policy);
+        final AtomicInteger succeeded = new AtomicInteger();
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < clients; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    if (client.resource(stub.getUri()).get(ClientResponse.class).getStatus() == 200) {
+                        succeeded.incrementAndGet();
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertTrue(stub.getRequestCount() <= clients + budget);
+        assertTrue(succeeded.get() >= 2);
+    }
+}
@@ -0,0 +1,133 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.services.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local HTTP endpoint that simulates a throttled service: it admits a limited number of concurrent requests and
+ * answers everything else with 503 "Server Busy", optionally with a Retry-After header.
+ */
+public class ThrottlingStubServer {
+    private final HttpServer server;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger throttled = new AtomicInteger();
+    private volatile int capacity;
+    private volatile int throttleFirst;
+    private volatile String retryAfter;
+    private volatile int serviceTimeInMs;
+
+    public ThrottlingStubServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleRequest(exchange);
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        capacity = Integer.MAX_VALUE;
+    }
+
+    public ThrottlingStubServer start() {
+        server.start();
+        return this;
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    public String getUri() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    /**
+     * Throttles requests beyond the given number of concurrent requests.
+     */
+    public ThrottlingStubServer withCapacity(int capacity) {
+        this.capacity = capacity;
+        return this;
+    }
+
+    /**
+     * Throttles the first <code>count</code> requests regardless of load.
+     */
+    public ThrottlingStubServer throttleFirst(int count) {
+        this.throttleFirst = count;
+        return this;
+    }
+
+    public ThrottlingStubServer withRetryAfter(String retryAfter) {
+        this.retryAfter = retryAfter;
+        return this;
+    }
+
+    public ThrottlingStubServer withServiceTime(int serviceTimeInMs) {
+        this.serviceTimeInMs = serviceTimeInMs;
+        return this;
+    }
+
+    public int getRequestCount() {
+        return requests.get();
+    }
+
+    public int getThrottledCount() {
+        return throttled.get();
+    }
+
+    private void handleRequest(HttpExchange exchange) throws IOException {
+        int number = requests.incrementAndGet();
+        int concurrent = inFlight.incrementAndGet();
+        try {
+            if (number <= throttleFirst || concurrent > capacity) {
+                throttled.incrementAndGet();
+                if (retryAfter != null) {
+                    exchange.getResponseHeaders().add("Retry-After", retryAfter);
+                }
+                respond(exchange, 503, "Server Busy");
+                return;
+            }
+
+            if (serviceTimeInMs > 0) {
+                Thread.sleep(serviceTimeInMs);
+            }
+            respond(exchange, 200, "OK");
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream stream = exchange.getResponseBody();
+        stream.write(bytes);
+        stream.close();
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.services.core.storage;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class RequestRateGovernorTest {
+    @Test
+    public void requestsBeyondTheRateWaitForTheirTurn() throws Exception {
+        RequestRateGovernor governor = new RequestRateGovernor(100);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 31; i++) {
+            governor.acquire("account", null);
+        }
+        long elapsedInMs = (System.nanoTime() - start) / 1000000;
+
+        // A burst of 10 requests is allowed, the remaining 21 are spaced 10ms apart
+        assertTrue("elapsed " + elapsedInMs, elapsedInMs >= 180);
+    }
+
+    @Test
+    public void partitionsAreShapedIndependently() throws Exception {
+        RequestRateGovernor governor = new RequestRateGovernor(10000, 10);
+
+        long start = System.nanoTime();
+        governor.acquire("account", "a");
+        governor.acquire("account", "b");
+        governor.acquire("account", "c");
+        assertTrue((System.nanoTime() - start) / 1000000 < 50);
+
+        governor.acquire("account", "a");
+        assertTrue((System.nanoTime() - start) / 1000000 >= 90);
+    }
+
+    @Test
+    public void idlePartitionBucketsAreDiscarded() throws Exception {
+        RequestRateGovernor governor = new RequestRateGovernor(10000, 100, TimeUnit.MILLISECONDS.toNanos(50));
+        governor.acquire("account", "a");
+        governor.acquire("account", "b");
+        assertEquals(2, governor.getPartitionBucketCount());
+
+        Thread.sleep(100);
+        governor.acquire("account", "c");
+
+        assertEquals(1, governor.getPartitionBucketCount());
+        assertEquals(100, governor.getCurrentPartitionRate("account", "a"), 0.001);
+    }
+
+    @Test
+    public void throttlingReducesTheRateAndSuccessRestoresIt() throws Exception {
+        RequestRateGovernor governor = new RequestRateGovernor(1000, 100);
+        governor.acquire("account", "partition");
+
+        governor.onResponse("account", "partition", 503);
+        assertEquals(700, governor.getCurrentAccountRate("account"), 0.001);
+        assertEquals(70, governor.getCurrentPartitionRate("account", "partition"), 0.001);
+
+        // Throttled responses for requests that were already in flight count as one signal
+        governor.onResponse("account", "partition", 503);
+        assertEquals(700, governor.getCurrentAccountRate("account"), 0.001);
+
+        for (int i = 0; i < 30; i++) {
+            governor.onResponse("account", "partition", 200);
+        }
+        assertEquals(1000, governor.getCurrentAccountRate("account"), 0.001);
+        assertEquals(100, governor.getCurrentPartitionRate("account", "partition"), 0.001);
+    }
+
+    @Test
+    public void otherErrorsDoNotChangeTheRate() throws Exception {
+        RequestRateGovernor governor = new RequestRateGovernor(1000);
+        governor.acquire("account", null);
+
+        governor.onResponse("account", null, 404);
+        governor.onResponse("account", null, 500);
+        governor.onResponse("account", null, -1);
+
+        assertEquals(1000, governor.getCurrentAccountRate("account"), 0.001);
+    }
+
+    @Test
+    public void clientExposesTheGovernor() throws Exception {
+        CloudStorageAccount account = CloudStorageAccount.getDevelopmentStorageAccount();
+        RequestRateGovernor governor = new RequestRateGovernor(500);
+
+        ServiceClient client = account.createCloudBlobClient();
+        client.setRequestRateGovernor(governor);
+
+        assertSame(governor, client.getRequestRateGovernor());
+        assertEquals(account.getCredentials().getAccountName(), client.getRequestRateAccountKey());
+        assertNull(account.createCloudQueueClient().getRequestRateGovernor());
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.services.core.storage;
+
+import static org.junit.Assert.*;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.microsoft.windowsazure.services.core.ThrottlingStubServer;
+import com.microsoft.windowsazure.services.core.utils.EndpointCircuitBreaker;
+import com.microsoft.windowsazure.services.core.utils.RetryBudget;
+
+public class RetryAdaptiveTest {
+    private ThrottlingStubServer stub;
+
+    @Before
+    public void setup() throws Exception {
+        stub = new ThrottlingStubServer().throttleFirst(Integer.MAX_VALUE).start();
+    }
+
+    @After
+    public void teardown() {
+        stub.stop();
+    }
+
+    private OperationContext sendRequest() throws Exception {
+        HttpURLConnection request = (HttpURLConnection) new URL(stub.getUri()).openConnection();
+        request.getResponseCode();
+        OperationContext opContext = new OperationContext();
+        opContext.setCurrentRequestObject(request);
+        return opContext;
+    }
+
+    @Test
+    public void doesNotRetryClientErrors() {
+        RetryAdaptive factory = new RetryAdaptive();
+        RetryResult result = factory.createInstance(null).shouldRetry(0, 404, null, null);
+        assertFalse(result.isShouldRetry());
+    }
+
+    @Test
+    public void honorsRetryAfterHeader() throws Exception {
+        stub.withRetryAfter("2");
+        RetryAdaptive factory = new RetryAdaptive(10, 5000, 3);
+
+        RetryResult result = factory.createInstance(null).shouldRetry(0, 503, null, sendRequest());
+
+        assertTrue(result.isShouldRetry());
+        assertEquals(2000, result.getBackOffIntervalInMs());
+    }
+
+    @Test
+    public void givesUpWhenRetryAfterExceedsMaximumBackoff() throws Exception {
+        stub.withRetryAfter("120");
+        RetryAdaptive factory = new RetryAdaptive(10, 5000, 3);
+
+        RetryResult result = factory.createInstance(null).shouldRetry(0, 503, null, sendRequest());
+
+        assertFalse(result.isShouldRetry());
+    }
+
+    @Test
+    public void budgetIsSharedAcrossOperations() throws Exception {
+        RetryAdaptive factory = new RetryAdaptive(10, 100, 5, new RetryBudget(3, 0), new EndpointCircuitBreaker(100,
+                60000, 60000));
+
+        int retries = 0;
+        for (int operation = 0; operation < 3; operation++) {
+            RetryPolicy policy = factory.createInstance(null);
+            for (int retry = 0; retry < 5; retry++) {
+                RetryResult result = policy.shouldRetry(retry, 503, null, sendRequest());
+                if (!result.isShouldRetry()) {
+                    break;
+                }
+                assertTrue(result.getBackOffIntervalInMs() >= 10);
+                assertTrue(result.getBackOffIntervalInMs() <= 100);
+                retries++;
+            }
+        }
+
+        assertEquals(3, retries);
+    }
+
+    @Test
+    public void openCircuitStopsRetries() throws Exception {
+        RetryAdaptive factory = new RetryAdaptive(10, 100, 10, new RetryBudget(), new EndpointCircuitBreaker(3,
+                60000, 60000));
+
+        RetryPolicy policy = factory.createInstance(null);
+        assertTrue(policy.shouldRetry(0, 503, null, sendRequest()).isShouldRetry());
+        assertTrue(policy.shouldRetry(1, 503, null, sendRequest()).isShouldRetry());
+        assertFalse(policy.shouldRetry(2, 503, null, sendRequest()).isShouldRetry());
+
+        // Other operations against the same endpoint fail fast as well
+        assertFalse(factory.createInstance(null).shouldRetry(0, 503, null, sendRequest()).isShouldRetry());
+    }
+
+    @Test
+    public void successesBetweenFailuresKeepTheCircuitClosed() throws Exception {
+        EndpointCircuitBreaker breaker = new EndpointCircuitBreaker(3, 60000, 60000);
+        RetryAdaptive factory = new RetryAdaptive(10, 100, 10, new RetryBudget(), breaker);
+
+        for (int operation = 0; operation < 5; operation++) {
+            RetryPolicy policy = factory.createInstance(null);
+            OperationContext opContext = sendRequest();
+            assertTrue(policy.shouldRetry(0, 503, null, opContext).isShouldRetry());
+            policy.onSuccess(opContext);
+        }
+
+        assertFalse(breaker.isOpen(new URL(stub.getUri()).getProtocol() + "://"
+                + new URL(stub.getUri()).getAuthority()));
+    }
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.services.core.storage.utils.implementation;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import com.microsoft.windowsazure.services.core.storage.OperationContext;
+import com.microsoft.windowsazure.services.core.storage.utils.Base64;
+import com.microsoft.windowsazure.services.core.storage.utils.StreamMd5AndLength;
+import com.microsoft.windowsazure.services.core.storage.utils.Utility;
+
+public class AsyncDigestTest {
+
+    private static byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    private static String md5(byte[] data) throws Exception {
+        return Base64.encode(MessageDigest.getInstance("MD5").digest(data));
+    }
+
+    @Test
+    public void chunksAreHashedInOrderAndBuffersAreRecycled() throws Exception {
+        byte[] data = randomBytes(100 * 1000 + 3);
+        AsyncDigest digest = new AsyncDigest(MessageDigest.getInstance("MD5"), 4096);
+
+        byte[] buffer = new byte[1000];
+        for (int offset = 0; offset < data.length; offset += buffer.length) {
+            int count = Math.min(buffer.length, data.length - offset);
+            System.arraycopy(data, offset, buffer, 0, count);
+            byte[] next = digest.exchange(buffer, count);
+            assertEquals(buffer.length, next.length);
+            buffer = next;
+        }
+
+        assertEquals(md5(data), Base64.encode(digest.await().digest()));
+    }
+
+    @Test
+    public void producerWaitsOnlyWhenPendingBytesExceedBound() throws Exception {
+        final CountDownLatch hashing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        MessageDigest slow = new MessageDigest("slow") {
+            @Override
+            protected void engineUpdate(byte input) {
+            }
+
+            @Override
+            protected void engineUpdate(byte[] input, int offset, int len) {
+                hashing.countDown();
+                try {
+                    release.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            protected byte[] engineDigest() {
+                return new byte[0];
+            }
+
+            @Override
+            protected void engineReset() {
+            }
+        };
+
+        final AsyncDigest digest = new AsyncDigest(slow, 200);
+        digest.update(new byte[100], 100);
+        hashing.await();
+
+        // The first chunk is being hashed; these fit within the bound so must not block.
+        digest.update(new byte[100], 100);
+
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    digest.update(new byte[100], 100);
+                }
+                catch (Exception e) {
+                    // ignored
+                }
+            }
+        };
+        producer.start();
+        producer.join(200);
+        assertTrue("producer should wait while the bound is exceeded", producer.isAlive());
+
+        release.countDown();
+        producer.join(5000);
+        assertFalse(producer.isAlive());
+        digest.await();
+    }
+
+    @Test
+    public void writeToOutputStreamCopiesAndHashesOnce() throws Exception {
+        byte[] data = randomBytes(50 * 1024 + 17);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OperationContext opContext = new OperationContext();
+
+        StreamMd5AndLength descriptor = Utility.writeToOutputStream(new ByteArrayInputStream(data), out, -1, false,
+                true, null, opContext);
+
+        assertTrue(Arrays.equals(data, out.toByteArray()));
+        assertEquals(data.length, descriptor.getLength());
+        assertEquals(md5(data), descriptor.getMd5());
+    }
+
+    @Test
+    public void writeToOutputStreamContinuesIntermediateDigest() throws Exception {
+        byte[] data = randomBytes(30 * 1024);
+        OperationContext opContext = new OperationContext();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        Utility.writeToOutputStream(new ByteArrayInputStream(data, 0, 10000), out, -1, false, true, null, opContext);
+        StreamMd5AndLength descriptor = Utility.writeToOutputStream(new ByteArrayInputStream(data, 10000,
+                data.length - 10000), out, -1, false, true, null, opContext);
+
+        assertEquals(md5(data), descriptor.getMd5());
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.services.core.storage.utils.implementation;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.microsoft.windowsazure.services.core.storage.HedgingPolicy;
+import com.microsoft.windowsazure.services.core.storage.OperationContext;
+import com.microsoft.windowsazure.services.core.storage.RequestResult;
+import com.microsoft.windowsazure.services.core.storage.StorageException;
+
+public class HedgedRequestExecutorTest {
+
+    /**
+     * An attempt whose first invocation takes the given time and whose later invocations complete immediately.
+     */
+    private static class SlowFirstAttempt implements HedgedRequestExecutor.Attempt<String> {
+        private final AtomicInteger invocations = new AtomicInteger();
+        private final long firstDelayInMs;
+        private final boolean firstFails;
+        private final boolean laterFail;
+
+        SlowFirstAttempt(long firstDelayInMs, boolean firstFails, boolean laterFail) {
+            this.firstDelayInMs = firstDelayInMs;
+            this.firstFails = firstFails;
+            this.laterFail = laterFail;
+        }
+
+        @Override
+        public String execute(OperationContext opContext) throws StorageException {
+            int invocation = invocations.incrementAndGet();
+            RequestResult result = new RequestResult();
+            result.setStatusCode(200 + invocation);
+            opContext.appendRequestResult(result);
+
+            if (invocation == 1) {
+                try {
+                    Thread.sleep(firstDelayInMs);
+                }
+                catch (InterruptedException e) {
+                    throw new StorageException("Cancelled", "cancelled", -1, null, e);
+                }
+                if (firstFails) {
+                    throw new StorageException("First", "first failed", 500, null, null);
+                }
+                return "first";
+            }
+
+            if (laterFail) {
+                throw new StorageException("Hedge", "hedge failed", 500, null, null);
+            }
+            return "hedge";
+        }
+    }
+
+    @Test
+    public void fastFirstAttemptIsNotHedged() throws Exception {
+        HedgingPolicy policy = new HedgingPolicy(0.95, 200, 10);
+        SlowFirstAttempt attempt = new SlowFirstAttempt(0, false, false);
+        OperationContext opContext = new OperationContext();
+
+        assertEquals("first", HedgedRequestExecutor.execute(policy, opContext, attempt));
+
+        assertEquals(1, attempt.invocations.get());
+        assertEquals(0, policy.getHedgeCount());
+        assertEquals(1, policy.getOperationCount());
+        assertEquals(201, opContext.getLastResult().getStatusCode());
+    }
+
+    @Test
+    public void slowFirstAttemptIsHedgedAndCancelled() throws Exception {
+        HedgingPolicy policy = new HedgingPolicy(0.95, 20, 10);
+        SlowFirstAttempt attempt = new SlowFirstAttempt(5000, false, false);
+        OperationContext opContext = new OperationContext();
+
+        long start = System.currentTimeMillis();
+        assertEquals("hedge", HedgedRequestExecutor.execute(policy, opContext, attempt));
+
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        assertEquals(2, attempt.invocations.get());
+        assertEquals(1, policy.getHedgeCount());
+        assertEquals(1, policy.getHedgeWinCount());
+        assertEquals(1.0, policy.getHedgeRate(), 0.0001);
+        assertEquals(1, opContext.getRequestResults().size());
+        assertEquals(202, opContext.getLastResult().getStatusCode());
+    }
+
+    @Test
+    public void failedHedgeWaitsForFirstAttempt() throws Exception {
+        HedgingPolicy policy = new HedgingPolicy(0.95, 20, 10);
+        SlowFirstAttempt attempt = new SlowFirstAttempt(200, false, true);
+
+        assertEquals("first", HedgedRequestExecutor.execute(policy, new OperationContext(), attempt));
+        assertEquals(1, policy.getHedgeCount());
+        assertEquals(0, policy.getHedgeWinCount());
+    }
+
+    @Test
+    public void failureOfBothAttemptsSurfacesFirstException() throws Exception {
+        HedgingPolicy policy = new HedgingPolicy(0.95, 20, 10);
+        SlowFirstAttempt attempt = new SlowFirstAttempt(200, true, true);
+
+        try {
+            HedgedRequestExecutor.execute(policy, new OperationContext(), attempt);
+            fail();
+        }
+        catch (StorageException e) {
+            assertEquals("First", e.getErrorCode());
+        }
+    }
+
+    @Test
+    public void hedgeDelayFollowsObservedPercentile() throws Exception {
+        HedgingPolicy policy = new HedgingPolicy(0.9, 500, 10);
+        assertEquals(500, policy.getHedgeDelayInMs());
+
+        for (int latency = 1; latency <= 100; latency++) {
+            policy.recordOperation(latency, false, false);
+        }
+
+        assertEquals(90, policy.getHedgeDelayInMs());
+        assertEquals(0, policy.getHedgeRate(), 0.0001);
+    }
+
+    @Test
+    public void concurrentOperationsShareThePolicy() throws Exception {
+        final HedgingPolicy policy = new HedgingPolicy(0.95, 1000, 10);
+        final CountDownLatch done = new CountDownLatch(8);
+        for (int i = 0; i < 8; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        HedgedRequestExecutor.execute(policy, new OperationContext(), new SlowFirstAttempt(0, false,
+                                false));
+                    }
+                    catch (StorageException e) {
+                        // counted below
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+
+        assertEquals(8, policy.getOperationCount());
+    }
+}
@@ -0,0 +1,188 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.services.core.utils;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.microsoft.windowsazure.services.core.ServiceException;
+import com.microsoft.windowsazure.services.core.utils.RefreshingTokenCache.AcquiredToken;
+
+public class RefreshingTokenCacheTest {
+
+    private static class CountingSource implements RefreshingTokenCache.TokenSource {
+        private final AtomicInteger count = new AtomicInteger();
+        private final long expiresInSeconds;
+        private final long delayMillis;
+        private volatile CountDownLatch gate;
+
+        CountingSource(long expiresInSeconds, long delayMillis) {
+            this.expiresInSeconds = expiresInSeconds;
+            this.delayMillis = delayMillis;
+        }
+
+        @Override
+        public AcquiredToken acquire(String scope) throws ServiceException {
+            try {
+                Thread.sleep(delayMillis);
+                CountDownLatch current = gate;
+                if (current != null) {
+                    current.await();
+                }
+            }
+            catch (InterruptedException e) {
+                throw new ServiceException(e);
+            }
+            return new AcquiredToken(scope + "-" + count.incrementAndGet(), expiresInSeconds);
+        }
+    }
+
+    private static class ManualDateFactory implements DateFactory {
+        private final Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
+
+        @Override
+        public synchronized Date getDate() {
+            return calendar.getTime();
+        }
+
+        synchronized void advanceSeconds(int seconds) {
+            calendar.add(Calendar.SECOND, seconds);
+        }
+    }
+
+    @Test
+    public void concurrentCallersShareOneAcquisition() throws Exception {
+        // Arrange
+        CountingSource source = new CountingSource(3600, 100);
+        final RefreshingTokenCache cache = new RefreshingTokenCache(source, new DefaultDateFactory());
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<String>> results = new ArrayList<Future<String>>();
+
+        // Act
+        for (int i = 0; i < 8; i++) {
+            results.add(pool.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return cache.getAccessToken("scope");
+                }
+            }));
+        }
+
+        // Assert
+        for (Future<String> result : results) {
+            assertEquals("scope-1", result.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(1, source.count.get());
+        pool.shutdown();
+    }
+
+    @Test
+    public void staleTokenIsServedWhileRefreshedInTheBackground() throws Exception {
+        // Arrange
+        CountingSource source = new CountingSource(100, 0);
+        ManualDateFactory dates = new ManualDateFactory();
+        final RefreshingTokenCache cache = new RefreshingTokenCache(source, dates);
+        assertEquals("scope-1", cache.getAccessToken("scope"));
+        dates.advanceSeconds(60);
+        source.gate = new CountDownLatch(1);
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+
+        // Act
+        Future<String> stale = pool.submit(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return cache.getAccessToken("scope");
+            }
+        });
+        String whileRefreshing = stale.get(5, TimeUnit.SECONDS);
+        source.gate.countDown();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (source.count.get() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        // Assert
+        assertEquals("scope-1", whileRefreshing);
+        assertEquals(2, source.count.get());
+        assertEquals("scope-2", cache.getAccessToken("scope"));
+        pool.shutdown();
+    }
+
+    @Test
+    public void expiredTokenIsAcquiredBeforeReturning() throws Exception {
+        // Arrange
+        CountingSource source = new CountingSource(100, 0);
+        ManualDateFactory dates = new ManualDateFactory();
+        RefreshingTokenCache cache = new RefreshingTokenCache(source, dates);
+        assertEquals("scope-1", cache.getAccessToken("scope"));
+        dates.advanceSeconds(100);
+
+        // Act
+        String afterExpiry = cache.getAccessToken("scope");
+
+        // Assert
+        assertEquals("scope-2", afterExpiry);
+        assertEquals(2, source.count.get());
+    }
+
+    @Test
+    public void usedTokenIsRefreshedInTheBackground() throws Exception {
+        // Arrange
+        CountingSource source = new CountingSource(1, 0);
+        RefreshingTokenCache cache = new RefreshingTokenCache(source, new DefaultDateFactory());
+
+        // Act
+        String first = cache.getAccessToken("scope");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (source.count.get() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        String second = cache.getAccessToken("scope");
+
+        // Assert
+        assertEquals("scope-1", first);
+        assertEquals("scope-2", second);
+        assertEquals(2, source.count.get());
+    }
+
+    @Test
+    public void idleTokenIsNotRefreshed() throws Exception {
+        // Arrange
+        CountingSource source = new CountingSource(1, 0);
+        RefreshingTokenCache cache = new RefreshingTokenCache(source, new DefaultDateFactory());
+
+        // Act
+        cache.getAccessToken("scope");
+        Thread.sleep(1500);
+
+        // Assert
+        // the token used on the request path is refreshed once; the refreshed token is never used, so it is not
+        assertEquals(2, source.count.get());
+    }
+}
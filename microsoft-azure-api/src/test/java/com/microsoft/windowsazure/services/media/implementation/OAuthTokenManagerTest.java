@@ -122,13 +122,14 @@ public class OAuthTokenManagerTest {
         String accessToken2 = client.getAccessToken();
         calendar.add(Calendar.SECOND, 45);
         String accessToken3 = client.getAccessToken();
+        verify(contract, timeout(5000).times(2)).getAccessToken(new URI("testurl"), "testname", "testpassword", "testscope");
+        String accessToken4 = client.getAccessToken();
 
         // Assert
         assertEquals("testaccesstoken1-1", accessToken1);
         assertEquals("testaccesstoken1-1", accessToken2);
-        assertEquals("testaccesstoken1-2", accessToken3);
-
-        verify(contract, times(2)).getAccessToken(new URI("testurl"), "testname", "testpassword", "testscope");
+        assertEquals("testaccesstoken1-1", accessToken3);
+        assertEquals("testaccesstoken1-2", accessToken4);
     }
 
 }
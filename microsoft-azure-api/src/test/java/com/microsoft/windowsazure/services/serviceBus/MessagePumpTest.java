@@ -0,0 +1,442 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.services.serviceBus;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentMatcher;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.microsoft.windowsazure.services.serviceBus.implementation.BrokerProperties;
+import com.microsoft.windowsazure.services.serviceBus.models.BrokeredMessage;
+import com.microsoft.windowsazure.services.serviceBus.models.ReceiveMessageOptions;
+import com.microsoft.windowsazure.services.serviceBus.models.ReceiveQueueMessageResult;
+import com.microsoft.windowsazure.services.serviceBus.models.ReceiveSubscriptionMessageResult;
+
+public class MessagePumpTest {
+    private ServiceBusContract service;
+    private BlockingQueue<BrokeredMessage> pending;
+
+    @Before
+    public void init() throws Exception {
+        service = mock(ServiceBusContract.class);
+        pending = new LinkedBlockingQueue<BrokeredMessage>();
+
+        when(service.receiveQueueMessage(eq("queue"), any(ReceiveMessageOptions.class))).thenAnswer(
+                new Answer<ReceiveQueueMessageResult>() {
+                    @Override
+                    public ReceiveQueueMessageResult answer(InvocationOnMock invocation) throws Throwable {
+                        ReceiveMessageOptions options = (ReceiveMessageOptions) invocation.getArguments()[1];
+                        assertTrue(options.isPeekLock());
+                        return new ReceiveQueueMessageResult(pending.poll(10, TimeUnit.MILLISECONDS));
+                    }
+                });
+        when(service.receiveSubscriptionMessage(eq("topic"), eq("sub"), any(ReceiveMessageOptions.class)))
+                .thenAnswer(new Answer<ReceiveSubscriptionMessageResult>() {
+                    @Override
+                    public ReceiveSubscriptionMessageResult answer(InvocationOnMock invocation) throws Throwable {
+                        return new ReceiveSubscriptionMessageResult(pending.poll(10, TimeUnit.MILLISECONDS));
+                    }
+                });
+    }
+
+    @Test
+    public void handledMessagesAreDeletedAndFailedMessagesUnlocked() throws Exception {
+        // Arrange
+        final Set<String> handled = Collections.synchronizedSet(new HashSet<String>());
+        final CountDownLatch done = new CountDownLatch(10);
+        for (int i = 0; i < 10; i++) {
+            pending.add(message("m" + i));
+        }
+        MessagePump pump = MessagePump.forQueue(service, "queue", new MessageHandler() {
+            @Override
+            public void onMessage(BrokeredMessage message) throws Exception {
+                handled.add(message.getMessageId());
+                done.countDown();
+                if (message.getMessageId().equals("m3")) {
+                    throw new Exception("handler failure");
+                }
+            }
+        });
+
+        // Act
+        pump.start();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        pump.stop();
+
+        // Assert
+        MessagePumpStats stats = pump.getStats();
+        assertEquals(10, handled.size());
+        assertEquals(10, stats.getReceiveCount());
+        assertEquals(10, stats.getDispatchedCount());
+        assertEquals(9, stats.getCompletedCount());
+        assertEquals(1, stats.getAbandonedCount());
+        verify(service, times(9)).deleteMessage(any(BrokeredMessage.class));
+        verify(service).unlockMessage(argThat(new ArgumentMatcher<BrokeredMessage>() {
+            @Override
+            public boolean matches(Object argument) {
+                return ((BrokeredMessage) argument).getMessageId().equals("m3");
+            }
+        }));
+    }
+
+    @Test
+    public void handlerErrorUnlocksTheMessageAndKeepsTheHandlerRunning() throws Exception {
+        // Arrange
+        final CountDownLatch done = new CountDownLatch(2);
+        pending.add(message("m0"));
+        pending.add(message("m1"));
+        MessagePump pump = MessagePump.forQueue(service, "queue", new MessageHandler() {
+            @Override
+            public void onMessage(BrokeredMessage message) throws Exception {
+                done.countDown();
+                if (message.getMessageId().equals("m0")) {
+                    throw new AssertionError("handler error");
+                }
+            }
+        }).setHandlerCount(1);
+
+        // Act
+        pump.start();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        pump.stop();
+
+        // Assert
+        MessagePumpStats stats = pump.getStats();
+        assertEquals(1, stats.getCompletedCount());
+        assertEquals(1, stats.getAbandonedCount());
+        verify(service).unlockMessage(argThat(new ArgumentMatcher<BrokeredMessage>() {
+            @Override
+            public boolean matches(Object argument) {
+                return ((BrokeredMessage) argument).getMessageId().equals("m0");
+            }
+        }));
+    }
+
+    @Test
+    public void receiverSurvivesRuntimeFailures() throws Exception {
+        // Arrange
+        final CountDownLatch done = new CountDownLatch(1);
+        when(service.receiveQueueMessage(eq("queue"), any(ReceiveMessageOptions.class))).thenThrow(
+                new RuntimeException("filter failure")).thenAnswer(new Answer<ReceiveQueueMessageResult>() {
+            @Override
+            public ReceiveQueueMessageResult answer(InvocationOnMock invocation) throws Throwable {
+                return new ReceiveQueueMessageResult(pending.poll(10, TimeUnit.MILLISECONDS));
+            }
+        });
+        pending.add(message("m0").setSessionId("s"));
+        MessagePump pump = MessagePump.forQueue(service, "queue", new MessageHandler() {
+            @Override
+            public void onMessage(BrokeredMessage message) throws Exception {
+                done.countDown();
+            }
+        }).setSessionOrdered(true);
+
+        // Act
+        pump.start();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        pump.stop();
+
+        // Assert
+        assertEquals(1, pump.getStats().getReceiveErrorCount());
+        assertEquals(1, pump.getStats().getCompletedCount());
+    }
+
+    @Test
+    public void lockRenewalSurvivesRuntimeFailures() throws Exception {
+        // Arrange
+        final CountDownLatch done = new CountDownLatch(1);
+        doThrow(new RuntimeException("renewal failure")).doNothing().when(service)
+                .renewQueueLock("queue", "slow", "lock-slow");
+        pending.add(message("slow"));
+        MessagePump pump = MessagePump.forQueue(service, "queue", new MessageHandler() {
+            @Override
+            public void onMessage(BrokeredMessage message) throws Exception {
+                Thread.sleep(200);
+                done.countDown();
+            }
+        }).setLockRenewalIntervalMillis(30);
+
+        // Act
+        pump.start();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        pump.stop();
+
+        // Assert
+        assertEquals(1, pump.getStats().getLockRenewalErrorCount());
+        assertTrue(pump.getStats().getLockRenewalCount() >= 2);
+    }
+
+    @Test
+    public void slowHandlerHasItsLockRenewed() throws Exception {
+        // Arrange
+        final CountDownLatch done = new CountDownLatch(1);
+        pending.add(message("slow"));
+        MessagePump pump = MessagePump.forSubscription(service, "topic", "sub", new MessageHandler() {
+            @Override
+            public void onMessage(BrokeredMessage message) throws Exception {
+                Thread.sleep(200);
+                done.countDown();
+            }
+        }).setLockRenewalIntervalMillis(30);
+
+        // Act
+        pump.start();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        pump.stop();
+
+        // Assert
+        verify(service, atLeast(2)).renewSubscriptionLock("topic", "sub", "slow", "lock-slow");
+        verify(service).deleteMessage(any(BrokeredMessage.class));
+        assertTrue(pump.getStats().getLockRenewalCount() >= 2);
+        assertTrue(pump.getStats().getAverageHandlerMillis() >= 200);
+    }
+
+    @Test
+    public void bufferedMessageHasItsLockRenewed() throws Exception {
+        // Arrange
+        final CountDownLatch done = new CountDownLatch(2);
+        pending.add(message("slow"));
+        pending.add(message("buffered"));
+        MessagePump pump = MessagePump.forQueue(service, "queue", new MessageHandler() {
+            @Override
+            public void onMessage(BrokeredMessage message) throws Exception {
+                if (message.getMessageId().equals("slow")) {
+                    Thread.sleep(200);
+                }
+                done.countDown();
+            }
+        }).setReceiverCount(1).setHandlerCount(1).setLockRenewalIntervalMillis(30);
+
+        // Act
+        pump.start();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        pump.stop();
+
+        // Assert
+        verify(service, atLeast(2)).renewQueueLock("queue", "buffered", "lock-buffered");
+        verify(service, times(2)).deleteMessage(any(BrokeredMessage.class));
+    }
+
+    @Test
+    public void prefetchBoundsMessagesLockedAheadOfHandlers() throws Exception {
+        // Arrange
+        final CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < 20; i++) {
+            pending.add(message("m" + i));
+        }
+        MessagePump pump = MessagePump.forQueue(service, "queue", new MessageHandler() {
+            @Override
+            public void onMessage(BrokeredMessage message) throws Exception {
+                release.await();
+            }
+        }).setReceiverCount(4).setPrefetchCount(3).setHandlerCount(1);
+
+        // Act
+        pump.start();
+        Thread.sleep(300);
+        MessagePumpStats blocked = pump.getStats();
+        release.countDown();
+
+        // Assert
+        // one message is with the blocked handler, at most three more are locked in the buffer
+        assertEquals(4, blocked.getReceiveCount());
+        assertEquals(3, blocked.getBufferedCount());
+        pump.stop();
+    }
+
+    @Test
+    public void stopUnlocksBufferedMessages() throws Exception {
+        // Arrange
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < 3; i++) {
+            pending.add(message("m" + i));
+        }
+        final MessagePump pump = MessagePump.forQueue(service, "queue", new MessageHandler() {
+            @Override
+            public void onMessage(BrokeredMessage message) throws Exception {
+                started.countDown();
+                release.await();
+            }
+        }).setHandlerCount(1);
+
+        // Act
+        pump.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        Thread stopper = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    pump.stop();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        stopper.start();
+        while (pump.isRunning()) {
+            Thread.sleep(10);
+        }
+        release.countDown();
+        stopper.join();
+
+        // Assert
+        assertFalse(pump.isRunning());
+        MessagePumpStats stats = pump.getStats();
+        assertEquals(1, stats.getCompletedCount());
+        assertEquals(2, stats.getAbandonedCount());
+        verify(service, times(2)).unlockMessage(any(BrokeredMessage.class));
+    }
+
+    @Test
+    public void sessionOrderedPumpKeepsSessionOrderAndHandlesSessionsConcurrently() throws Exception {
+        // Arrange
+        final String[] sessions = { "a", "b", "c", "d" };
+        final Map<String, List<String>> handled = new HashMap<String, List<String>>();
+        final Map<String, AtomicInteger> inFlight = new HashMap<String, AtomicInteger>();
+        for (String session : sessions) {
+            handled.put(session, Collections.synchronizedList(new ArrayList<String>()));
+            inFlight.put(session, new AtomicInteger());
+        }
+        final AtomicInteger totalInFlight = new AtomicInteger();
+        final AtomicInteger maxTotalInFlight = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(40);
+        for (int i = 0; i < 10; i++) {
+            for (String session : sessions) {
+                pending.add(message(session + i).setSessionId(session));
+            }
+        }
+        MessagePump pump = MessagePump.forQueue(service, "queue", new MessageHandler() {
+            @Override
+            public void onMessage(BrokeredMessage message) throws Exception {
+                String session = message.getSessionId();
+                if (inFlight.get(session).incrementAndGet() > 1) {
+                    overlaps.incrementAndGet();
+                }
+                int total = totalInFlight.incrementAndGet();
+                synchronized (maxTotalInFlight) {
+                    maxTotalInFlight.set(Math.max(maxTotalInFlight.get(), total));
+                }
+                Thread.sleep(5 + (message.getMessageId().hashCode() & 7));
+                handled.get(session).add(message.getMessageId());
+                totalInFlight.decrementAndGet();
+                inFlight.get(session).decrementAndGet();
+                done.countDown();
+            }
+        }).setSessionOrdered(true).setHandlerCount(4).setPrefetchCount(40);
+
+        // Act
+        pump.start();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        pump.stop();
+
+        // Assert
+        assertEquals(0, overlaps.get());
+        assertTrue(maxTotalInFlight.get() > 1);
+        for (String session : sessions) {
+            List<String> expected = new ArrayList<String>();
+            for (int i = 0; i < 10; i++) {
+                expected.add(session + i);
+            }
+            assertEquals(expected, handled.get(session));
+        }
+        verify(service, times(40)).deleteMessage(any(BrokeredMessage.class));
+    }
+
+    @Test
+    public void busySessionDoesNotStarveOtherSessions() throws Exception {
+        // Arrange
+        final List<String> handled = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(21);
+        for (int i = 0; i < 20; i++) {
+            pending.add(message("hot" + i).setSessionId("hot"));
+        }
+        pending.add(message("cold").setSessionId("cold"));
+        MessagePump pump = MessagePump.forQueue(service, "queue", new MessageHandler() {
+            @Override
+            public void onMessage(BrokeredMessage message) throws Exception {
+                Thread.sleep(10);
+                handled.add(message.getMessageId());
+                done.countDown();
+            }
+        }).setSessionOrdered(true).setHandlerCount(1).setPrefetchCount(30).setMaxBufferedPerSession(30);
+
+        // Act
+        pump.start();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        pump.stop();
+
+        // Assert
+        // everything is buffered before the first message finishes, after which the sessions alternate
+        assertTrue(handled.indexOf("cold") < 5);
+        assertEquals("hot19", handled.get(20));
+    }
+
+    @Test
+    public void fullSessionLanePausesReceiving() throws Exception {
+        // Arrange
+        final CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < 20; i++) {
+            pending.add(message("hot" + i).setSessionId("hot"));
+        }
+        MessagePump pump = MessagePump.forQueue(service, "queue", new MessageHandler() {
+            @Override
+            public void onMessage(BrokeredMessage message) throws Exception {
+                release.await();
+            }
+        }).setSessionOrdered(true).setHandlerCount(2).setPrefetchCount(30).setMaxBufferedPerSession(3);
+
+        // Act
+        pump.start();
+        Thread.sleep(300);
+        MessagePumpStats blocked = pump.getStats();
+        release.countDown();
+
+        // Assert
+        // one message is with the handler, three are buffered, and the receiver holds the next one until there is room
+        assertEquals(5, blocked.getReceiveCount());
+        assertEquals(3, blocked.getBufferedCount());
+        pump.stop();
+    }
+
+    private static BrokeredMessage message(String id) {
+        BrokerProperties properties = new BrokerProperties();
+        properties.setMessageId(id);
+        properties.setLockToken("lock-" + id);
+        return new BrokeredMessage(properties);
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.services.serviceBus.implementation;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+
+import com.microsoft.windowsazure.services.serviceBus.models.QueueInfo;
+
+/**
+ * Measures the serialization cost of a management operation: writing a queue description entry and reading it back,
+ * once through the cached contexts and per-thread marshallers of {@link MarshallerProvider} and
+ * {@link UnmarshallerProvider}, and once creating the context and marshallers for every entry, as each request used
+ * to. Not run by the build; run the main method from the test classpath, optionally passing the number of measured
+ * operations.
+ */
+public final class ManagementOperationBenchmark {
+    private static final int WARMUP_OPERATIONS = 200;
+
+    private ManagementOperationBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        Entry entry = new QueueInfo("benchmark").setMaxSizeInMegabytes(1024L).getEntry();
+        MarshallerProvider marshallers = new MarshallerProvider();
+        UnmarshallerProvider unmarshallers = new UnmarshallerProvider();
+
+        for (int i = 0; i < WARMUP_OPERATIONS; i++) {
+            roundTrip(entry, marshallers.getContext(Entry.class), unmarshallers.getContext(Entry.class));
+            roundTripUncached(entry);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            roundTrip(entry, marshallers.getContext(Entry.class), unmarshallers.getContext(Entry.class));
+        }
+        long cachedNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            roundTripUncached(entry);
+        }
+        long uncachedNanos = System.nanoTime() - start;
+
+        System.out.println(String.format("Queue description round trip over %d operations: cached %.1f us/op, "
+                + "uncached %.1f us/op", iterations, cachedNanos / 1000.0 / iterations, uncachedNanos / 1000.0
+                / iterations));
+    }
+
+    private static void roundTripUncached(Entry entry) throws Exception {
+        JAXBContext context = JAXBContext.newInstance(Entry.class);
+        Marshaller marshaller = context.createMarshaller();
+        marshaller.setProperty("com.sun.xml.bind.namespacePrefixMapper", new NamespacePrefixMapperImpl());
+        roundTrip(entry, marshaller, context.createUnmarshaller());
+    }
+
+    private static void roundTrip(Entry entry, Marshaller marshaller, Unmarshaller unmarshaller) throws Exception {
+        StringWriter writer = new StringWriter();
+        marshaller.marshal(entry, writer);
+        Object read = unmarshaller.unmarshal(new StringReader(writer.toString()));
+        if (!(read instanceof Entry)) {
+            throw new IllegalStateException("The entry did not round trip.");
+        }
+    }
+}
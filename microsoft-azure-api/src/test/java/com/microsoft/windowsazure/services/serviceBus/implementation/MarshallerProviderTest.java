@@ -0,0 +1,107 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.services.serviceBus.implementation;
+
+import static org.junit.Assert.*;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+
+import org.junit.Test;
+
+import com.microsoft.windowsazure.services.serviceBus.models.QueueInfo;
+
+public class MarshallerProviderTest {
+
+    @Test
+    public void marshallerIsReusedOnTheSameThread() {
+        // Arrange
+        MarshallerProvider provider = new MarshallerProvider();
+
+        // Act
+        Marshaller first = provider.getContext(Entry.class);
+        Marshaller second = provider.getContext(Entry.class);
+
+        // Assert
+        assertNotNull(first);
+        assertSame(first, second);
+    }
+
+    @Test
+    public void marshallerIsNotSharedBetweenThreads() throws Exception {
+        // Arrange
+        final MarshallerProvider provider = new MarshallerProvider();
+        final AtomicReference<Marshaller> other = new AtomicReference<Marshaller>();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                other.set(provider.getContext(Entry.class));
+            }
+        });
+
+        // Act
+        Marshaller mine = provider.getContext(Entry.class);
+        thread.start();
+        thread.join();
+
+        // Assert
+        assertNotNull(other.get());
+        assertNotSame(mine, other.get());
+    }
+
+    @Test
+    public void contextIsCachedPerType() throws Exception {
+        // Arrange
+
+        // Act
+        JAXBContext first = JAXBContextCache.get(Entry.class);
+        JAXBContext second = JAXBContextCache.get(null, Entry.class);
+
+        // Assert
+        assertSame(first, second);
+    }
+
+    @Test
+    public void reusedMarshallerKeepsServicePrefixesAcrossCalls() throws Exception {
+        // Arrange
+        MarshallerProvider marshallerProvider = new MarshallerProvider();
+        UnmarshallerProvider unmarshallerProvider = new UnmarshallerProvider();
+        QueueInfo queue = new QueueInfo("reused").setMaxSizeInMegabytes(1024L);
+
+        // Act
+        String first = marshal(marshallerProvider, queue.getEntry());
+        String second = marshal(marshallerProvider, queue.getEntry());
+        Unmarshaller unmarshaller = unmarshallerProvider.getContext(Entry.class);
+        Entry entry = (Entry) unmarshaller.unmarshal(new StringReader(second));
+
+        // Assert
+        assertEquals(first, second);
+        assertTrue(first.contains("<atom:entry"));
+        assertTrue(first.contains("<QueueDescription"));
+        assertSame(unmarshaller, unmarshallerProvider.getContext(Entry.class));
+        assertEquals(Long.valueOf(1024L), new QueueInfo(entry).getMaxSizeInMegabytes());
+    }
+
+    private static String marshal(MarshallerProvider provider, Entry entry) throws Exception {
+        StringWriter writer = new StringWriter();
+        provider.getContext(Entry.class).marshal(entry, writer);
+        return writer.toString();
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.services.serviceBus.implementation;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class MessageBodyStreamWriterTest {
+
+    private final MessageBodyStreamWriter writer = new MessageBodyStreamWriter();
+
+    @Test
+    public void sizeIsDeclaredWhenBodyLengthIsKnown() {
+        // Arrange
+        MessageBodyStream known = new MessageBodyStream(new ByteArrayInputStream(new byte[1234]), 1234);
+        MessageBodyStream unknown = new MessageBodyStream(new ByteArrayInputStream(new byte[5]), -1);
+
+        // Act
+        long knownSize = writer.getSize(known, MessageBodyStream.class, null, null, null);
+        long unknownSize = writer.getSize(unknown, MessageBodyStream.class, null, null, null);
+
+        // Assert
+        assertEquals(1234, knownSize);
+        assertEquals(-1, unknownSize);
+    }
+
+    @Test
+    public void bodyIsWrittenUnchanged() throws Exception {
+        // Arrange
+        byte[] data = new byte[70000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        // Act
+        writer.writeTo(new MessageBodyStream(new ByteArrayInputStream(data), data.length), MessageBodyStream.class,
+                null, null, null, null, out);
+
+        // Assert
+        assertTrue(Arrays.equals(data, out.toByteArray()));
+    }
+
+    @Test
+    public void bodyCanBeResetAndWrittenAgain() throws Exception {
+        // Arrange
+        byte[] data = "hello".getBytes("UTF-8");
+        MessageBodyStream body = new MessageBodyStream(new ByteArrayInputStream(data), data.length);
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+
+        // Act
+        assertTrue(body.markSupported());
+        body.mark(Integer.MAX_VALUE);
+        writer.writeTo(body, MessageBodyStream.class, null, null, null, null, first);
+        body.reset();
+        writer.writeTo(body, MessageBodyStream.class, null, null, null, null, second);
+
+        // Assert
+        assertTrue(Arrays.equals(data, first.toByteArray()));
+        assertTrue(Arrays.equals(data, second.toByteArray()));
+    }
+}
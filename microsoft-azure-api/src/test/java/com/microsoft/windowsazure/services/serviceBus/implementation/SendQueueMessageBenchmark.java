@@ -0,0 +1,105 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.services.serviceBus.implementation;
+
+import java.util.Arrays;
+
+import com.microsoft.windowsazure.services.core.ServiceException;
+import com.microsoft.windowsazure.services.core.ServiceFilter;
+import com.microsoft.windowsazure.services.serviceBus.models.BrokeredMessage;
+import com.sun.jersey.api.client.Client;
+
+/**
+ * Measures the client-side cost of a <code>sendQueueMessage</code> call against a local stub endpoint, with the
+ * filtered resource cached by the proxy and with a fresh proxy per send, which builds the filter chain again as every
+ * request used to. Not run by the build; run the main method from the test classpath, optionally passing the number
+ * of measured sends.
+ */
+public final class SendQueueMessageBenchmark {
+    private static final int WARMUP_SENDS = 500;
+    private static final int FILTER_COUNT = 3;
+    private static final int ROUNDS = 6;
+
+    private SendQueueMessageBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        StubServiceBusServer server = new StubServiceBusServer();
+        try {
+            String uri = server.getUri();
+            Client channel = Client.create();
+            ServiceFilter[] filters = new ServiceFilter[FILTER_COUNT];
+            for (int i = 0; i < filters.length; i++) {
+                filters[i] = new ServiceFilter() {
+                    @Override
+                    public Response handle(Request request, Next next) throws Exception {
+                        return next.handle(request);
+                    }
+                };
+            }
+            ServiceBusRestProxy cached = new ServiceBusRestProxy(channel, filters, uri, new BrokerPropertiesMapper());
+            byte[] body = new byte[1024];
+
+            for (int i = 0; i < WARMUP_SENDS; i++) {
+                cached.sendQueueMessage("queue", new BrokeredMessage(body));
+                new ServiceBusRestProxy(channel, filters, uri, new BrokerPropertiesMapper()).sendQueueMessage("queue",
+                        new BrokeredMessage(body));
+            }
+
+            // alternate which variant goes first, so that neither benefits from running later
+            long[] cachedNanos = new long[ROUNDS];
+            long[] rebuiltNanos = new long[ROUNDS];
+            for (int round = 0; round < ROUNDS; round++) {
+                server.bodies.clear();
+                if (round % 2 == 0) {
+                    cachedNanos[round] = timeSends(cached, null, filters, uri, body, iterations);
+                    rebuiltNanos[round] = timeSends(null, channel, filters, uri, body, iterations);
+                }
+                else {
+                    rebuiltNanos[round] = timeSends(null, channel, filters, uri, body, iterations);
+                    cachedNanos[round] = timeSends(cached, null, filters, uri, body, iterations);
+                }
+            }
+
+            System.out.println(String.format("sendQueueMessage with %d filters, %d rounds of %d sends, median: "
+                    + "cached chain %.1f us/op, rebuilt chain %.1f us/op", FILTER_COUNT, ROUNDS, iterations,
+                    median(cachedNanos) / 1000.0 / iterations, median(rebuiltNanos) / 1000.0 / iterations));
+        }
+        finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * Times the sends through the cached proxy, or through a fresh proxy per send when <code>cached</code> is null.
+     */
+    private static long timeSends(ServiceBusRestProxy cached, Client channel, ServiceFilter[] filters, String uri,
+            byte[] body, int iterations) throws ServiceException {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            ServiceBusRestProxy proxy = cached != null ? cached : new ServiceBusRestProxy(channel, filters, uri,
+                    new BrokerPropertiesMapper());
+            proxy.sendQueueMessage("queue", new BrokeredMessage(body));
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
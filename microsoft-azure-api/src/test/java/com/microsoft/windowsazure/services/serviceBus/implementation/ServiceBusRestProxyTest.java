@@ -0,0 +1,129 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.services.serviceBus.implementation;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.microsoft.windowsazure.services.core.ExponentialRetryPolicy;
+import com.microsoft.windowsazure.services.core.RetryPolicyFilter;
+import com.microsoft.windowsazure.services.core.ServiceFilter;
+import com.microsoft.windowsazure.services.serviceBus.ServiceBusContract;
+import com.microsoft.windowsazure.services.serviceBus.models.BrokeredMessage;
+import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.WebResource;
+import com.sun.jersey.api.client.config.ClientConfig;
+import com.sun.jersey.api.client.config.DefaultClientConfig;
+
+public class ServiceBusRestProxyTest {
+    private StubServiceBusServer server;
+    private String uri;
+
+    private static class CountingFilter implements ServiceFilter {
+        final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Response handle(Request request, Next next) throws Exception {
+            count.incrementAndGet();
+            return next.handle(request);
+        }
+    }
+
+    @Before
+    public void init() throws IOException {
+        server = new StubServiceBusServer();
+        uri = server.getUri();
+    }
+
+    @After
+    public void cleanup() {
+        server.stop();
+    }
+
+    private ServiceBusRestProxy createProxy(ServiceFilter... filters) {
+        // a plain client, without the providers registered by Exports
+        return new ServiceBusRestProxy(Client.create(), filters, uri, new BrokerPropertiesMapper());
+    }
+
+    private ServiceBusRestProxy createStreamingProxy(ServiceFilter... filters) {
+        ClientConfig config = new DefaultClientConfig();
+        config.getClasses().add(MessageBodyStreamWriter.class);
+        return new ServiceBusRestProxy(Client.create(config), filters, uri, new BrokerPropertiesMapper());
+    }
+
+    @Test
+    public void failedSendIsRetriedWithTheWholeBody() throws Exception {
+        // Arrange
+        ServiceFilter retry = new RetryPolicyFilter(new ExponentialRetryPolicy(1, 3, new int[] { 503 }));
+        ServiceBusRestProxy plain = createProxy(retry);
+        ServiceBusRestProxy streaming = createStreamingProxy(retry);
+
+        // Act
+        server.failuresRemaining.set(1);
+        plain.sendQueueMessage("queue", new BrokeredMessage("hello"));
+        server.failuresRemaining.set(1);
+        streaming.sendQueueMessage("queue", new BrokeredMessage("world"));
+
+        // Assert
+        assertEquals(Arrays.asList("hello", "hello", "world", "world"), server.bodies);
+    }
+
+    @Test
+    public void filteredResourceIsBuiltOncePerChannel() throws Exception {
+        // Arrange
+        ServiceBusRestProxy proxy = createProxy(new CountingFilter());
+
+        // Act
+        WebResource first = proxy.getResource();
+        WebResource second = proxy.getResource();
+        proxy.setChannel(Client.create());
+        WebResource rebuilt = proxy.getResource();
+
+        // Assert
+        assertSame(first, second);
+        assertNotSame(first, rebuilt);
+        assertSame(rebuilt, proxy.getResource());
+    }
+
+    @Test
+    public void filtersRunOncePerRequestOnTheSharedChain() throws Exception {
+        // Arrange
+        CountingFilter first = new CountingFilter();
+        CountingFilter second = new CountingFilter();
+        ServiceBusRestProxy proxy = createProxy(first);
+        ServiceBusContract filtered = proxy.withFilter(second);
+
+        // Act
+        for (int i = 0; i < 5; i++) {
+            proxy.sendQueueMessage("queue", new BrokeredMessage("hello"));
+        }
+        for (int i = 0; i < 3; i++) {
+            filtered.sendQueueMessage("other", new BrokeredMessage("hello"));
+        }
+
+        // Assert
+        assertEquals(8, server.requests.get());
+        assertEquals(8, first.count.get());
+        assertEquals(3, second.count.get());
+        assertEquals("/other/messages?api-version=2012-08", server.lastPath);
+    }
+}
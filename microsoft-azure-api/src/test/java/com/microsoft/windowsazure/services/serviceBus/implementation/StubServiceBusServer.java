@@ -0,0 +1,70 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.services.serviceBus.implementation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local endpoint that accepts every Service Bus request, recording its path and body. The next
+ * {@link #failuresRemaining} requests are answered with 503.
+ */
+class StubServiceBusServer {
+    final AtomicInteger requests = new AtomicInteger();
+    final AtomicInteger failuresRemaining = new AtomicInteger();
+    final List<String> bodies = Collections.synchronizedList(new ArrayList<String>());
+    volatile String lastPath;
+
+    private final HttpServer server;
+
+    StubServiceBusServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream body = exchange.getRequestBody();
+                ByteArrayOutputStream content = new ByteArrayOutputStream();
+                int read;
+                while ((read = body.read()) != -1) {
+                    content.write(read);
+                }
+                bodies.add(content.toString("UTF-8"));
+                lastPath = exchange.getRequestURI().toString();
+                requests.incrementAndGet();
+                exchange.sendResponseHeaders(failuresRemaining.getAndDecrement() > 0 ? 503 : 201, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+    }
+
+    String getUri() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    void stop() {
+        server.stop(0);
+    }
+}
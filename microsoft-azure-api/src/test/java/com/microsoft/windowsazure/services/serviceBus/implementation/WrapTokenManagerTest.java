@@ -144,13 +144,14 @@ public class WrapTokenManagerTest {
         String accessToken2 = client.getAccessToken(new URI("https://test/scope"));
         calendar.add(Calendar.SECOND, 45);
         String accessToken3 = client.getAccessToken(new URI("https://test/scope"));
+        verify(contract, timeout(5000).times(2)).wrapAccessToken("testurl", "testname", "testpassword", "http://test/scope");
+        String accessToken4 = client.getAccessToken(new URI("https://test/scope"));
 
         // Assert
         assertEquals("testaccesstoken1-1", accessToken1);
         assertEquals("testaccesstoken1-1", accessToken2);
-        assertEquals("testaccesstoken1-2", accessToken3);
-
-        verify(contract, times(2)).wrapAccessToken("testurl", "testname", "testpassword", "http://test/scope");
+        assertEquals("testaccesstoken1-1", accessToken3);
+        assertEquals("testaccesstoken1-2", accessToken4);
     }
 
 }
@@ -0,0 +1,122 @@
+/**
+ * Copyright Microsoft Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.windowsazure.services.serviceBus.models;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class BrokeredMessageTest {
+
+    private static byte[] content(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        return data;
+    }
+
+    @Test
+    public void bodyLengthIsKnownForArrayAndStringBodies() {
+        // Arrange
+
+        // Act
+        BrokeredMessage fromBytes = new BrokeredMessage(new byte[300]);
+        BrokeredMessage fromString = new BrokeredMessage("h\u00e9llo");
+        BrokeredMessage fromStream = new BrokeredMessage(new ByteArrayInputStream(new byte[3]));
+        BrokeredMessage empty = new BrokeredMessage((byte[]) null);
+
+        // Assert
+        assertEquals(300, fromBytes.getBodyLength());
+        assertEquals(6, fromString.getBodyLength());
+        assertEquals(-1, fromStream.getBodyLength());
+        assertEquals(-1, empty.getBodyLength());
+        assertEquals(-1, fromBytes.setBody(new ByteArrayInputStream(new byte[3])).getBodyLength());
+    }
+
+    @Test
+    public void readBodyWithKnownLengthFillsOnePooledBuffer() throws Exception {
+        // Arrange
+        ByteBufferPool pool = new ByteBufferPool();
+        byte[] data = content(200 * 1024);
+        BrokeredMessage message = new BrokeredMessage(new ByteArrayInputStream(data), data.length);
+
+        // Act
+        ByteBuffer buffer = message.readBody(pool);
+
+        // Assert
+        assertEquals(0, buffer.position());
+        assertEquals(data.length, buffer.limit());
+        assertEquals(256 * 1024, buffer.capacity());
+        assertTrue(Arrays.equals(data, Arrays.copyOf(buffer.array(), buffer.limit())));
+    }
+
+    @Test
+    public void readBodyWithUnknownLengthGrowsThroughThePool() throws Exception {
+        // Arrange
+        ByteBufferPool pool = new ByteBufferPool();
+        byte[] data = content(ByteBufferPool.MIN_CAPACITY * 3 + 7);
+        BrokeredMessage message = new BrokeredMessage(new ByteArrayInputStream(data));
+
+        // Act
+        ByteBuffer buffer = message.readBody(pool);
+
+        // Assert
+        assertEquals(data.length, buffer.remaining());
+        assertTrue(Arrays.equals(data, Arrays.copyOf(buffer.array(), buffer.limit())));
+    }
+
+    @Test
+    public void readBodyOfExactPowerOfTwoLengthDoesNotGrow() throws Exception {
+        // Arrange
+        ByteBufferPool pool = new ByteBufferPool();
+        byte[] data = content(ByteBufferPool.MIN_CAPACITY);
+        BrokeredMessage message = new BrokeredMessage(new ByteArrayInputStream(data), data.length);
+
+        // Act
+        ByteBuffer buffer = message.readBody(pool);
+
+        // Assert
+        assertEquals(ByteBufferPool.MIN_CAPACITY, buffer.capacity());
+        assertEquals(data.length, buffer.remaining());
+    }
+
+    @Test
+    public void releasedBuffersAreReusedUpToTheLimit() {
+        // Arrange
+        ByteBufferPool pool = new ByteBufferPool(64 * 1024, 1);
+        ByteBuffer first = pool.acquire(10000);
+        ByteBuffer second = pool.acquire(10000);
+        first.put((byte) 1);
+
+        // Act
+        pool.release(first);
+        pool.release(second);
+        ByteBuffer reused = pool.acquire(9000);
+        ByteBuffer allocated = pool.acquire(9000);
+        ByteBuffer oversized = pool.acquire(100 * 1024);
+
+        // Assert
+        assertEquals(16 * 1024, first.capacity());
+        assertSame(first, reused);
+        assertEquals(0, reused.position());
+        assertNotSame(second, allocated);
+        assertEquals(100 * 1024, oversized.capacity());
+    }
+}